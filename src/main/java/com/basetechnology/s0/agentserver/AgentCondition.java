@@ -20,6 +20,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import org.json.JSONException;
 import org.json.JSONObject;
+import com.basetechnology.s0.agentserver.activities.AgentActivity;
 import com.basetechnology.s0.agentserver.util.JsonUtils;
 
 public class AgentCondition {
@@ -29,6 +30,8 @@ public class AgentCondition {
   public String condition;
   public String script;
   public boolean enabled;
+  // Priority class for the condition's activities, or -1 for the default condition priority
+  public int priority = -1;
   
   public AgentCondition(String name, String description, String interval, String condition, String script, boolean enabled){
     this.name = name;
@@ -54,8 +57,11 @@ public class AgentCondition {
     String script = conditionJson.optString("script","");
     boolean enabled = conditionJson.optBoolean("enabled",true);
     JsonUtils.validateKeys(conditionJson, "Agent condition", new ArrayList<String>(Arrays.asList(
-        "name", "description", "interval", "condition", "script", "enabled")));
-    return new AgentCondition(name, description, interval, condition, script, enabled);
+        "name", "description", "interval", "condition", "script", "enabled", "priority")));
+    AgentCondition agentCondition = new AgentCondition(name, description, interval, condition, script, enabled);
+    if (conditionJson.has("priority"))
+      agentCondition.priority = AgentActivity.getPriority(conditionJson.optString("priority"));
+    return agentCondition;
   }
   
   public long getInterval(AgentInstance agentInstance) throws AgentServerException {
@@ -70,6 +76,8 @@ public class AgentCondition {
     timerJson.put("condition", condition);
     timerJson.put("script", script);
     timerJson.put("enabled", enabled);
+    if (priority >= 0)
+      timerJson.put("priority", AgentActivity.getPriorityName(priority));
     return timerJson;
   }
 
@@ -32,15 +32,19 @@ import com.basetechnology.s0.agentserver.field.FieldList;
 import com.basetechnology.s0.agentserver.goals.Goal;
 import com.basetechnology.s0.agentserver.notification.NotificationDefinition;
 import com.basetechnology.s0.agentserver.script.intermediate.ExpressionNode;
+import com.basetechnology.s0.agentserver.script.intermediate.MapTypeNode;
+import com.basetechnology.s0.agentserver.script.intermediate.ObjectTypeNode;
 import com.basetechnology.s0.agentserver.script.intermediate.ScriptNode;
 import com.basetechnology.s0.agentserver.script.intermediate.Symbol;
 import com.basetechnology.s0.agentserver.script.intermediate.SymbolException;
 import com.basetechnology.s0.agentserver.script.intermediate.SymbolManager;
 import com.basetechnology.s0.agentserver.script.intermediate.SymbolTable;
 import com.basetechnology.s0.agentserver.script.intermediate.SymbolValues;
+import com.basetechnology.s0.agentserver.script.intermediate.TypeNode;
 import com.basetechnology.s0.agentserver.script.parser.ParserException;
 import com.basetechnology.s0.agentserver.script.parser.ScriptParser;
 import com.basetechnology.s0.agentserver.script.parser.tokenizer.TokenizerException;
+import com.basetechnology.s0.agentserver.script.runtime.ParsedScripts;
 import com.basetechnology.s0.agentserver.script.runtime.value.Value;
 import com.basetechnology.s0.agentserver.util.DateUtils;
 import com.basetechnology.s0.agentserver.util.JsonListMap;
@@ -77,7 +81,13 @@ public class AgentDefinition {
   public NameValueList<NotificationDefinition> notifications;
   public String triggerIntervalExpression;
   public String reportingIntervalExpression;
-  public SymbolManager symbolManager;
+  // Maximum time in ms. any activity of this agent may run, overriding config - null for the config default
+  public Long activityDeadline;
+  // Symbols shared by all instances of this definition, so that parsed scripts can be shared too;
+  // never changed once in use, but replaced as a whole when the definition is updated
+  public volatile SymbolManager symbolManager;
+  public ParsedScripts parsedScripts = new ParsedScripts();
+  protected boolean scriptsParsed = false;
   public Boolean enabled;
 
   public AgentDefinition(AgentServer agentServer) throws SymbolException, RuntimeException {
@@ -467,17 +477,25 @@ public class AgentDefinition {
     Boolean enabled = update ? null : true;
     if (agentJson.has("enabled"))
       enabled = agentJson.optBoolean("enabled");
+
+    Long activityDeadline = null;
+    if (agentJson.has("activity_deadline")){
+      activityDeadline = agentJson.optLong("activity_deadline", -1);
+      if (activityDeadline < 0)
+        throw new AgentServerException("Activity deadline must be a non-negative number of milliseconds");
+    }
     
     // Validate keys
     JsonUtils.validateKeys(agentJson, "Agent definition", new ArrayList<String>(Arrays.asList(
         "user", "name", "description", "parameters", "inputs", "timers", "conditions",
         "notifications", "scripts", "outputs", "scratchpad", "memory", "goals", "created",
-        "modified", "reporting_interval", "trigger_interval", "enabled")));
+        "modified", "reporting_interval", "trigger_interval", "enabled", "activity_deadline")));
 
     // TODO: Differentiate create vs. recreate vs. update - handling of SHA
     agent = new AgentDefinition(agentServer, user, agentDefinitionName, agentDescription, parameters,
         inputs, timers, conditions, scripts, scratchpad, memory, notifications, outputsList,
         goalsList, triggerIntervalExpression, reportingIntervalExpression, timeCreated, timeModified, enabled, update);
+    agent.activityDeadline = activityDeadline;
 
     // Return the created agent definition
     return agent;
@@ -557,6 +575,10 @@ public class AgentDefinition {
 
       agentJson.put("enabled", enabled);
 
+      // Activity deadline only appears if overridden for this agent
+      if (activityDeadline != null)
+        agentJson.put("activity_deadline", activityDeadline);
+
       return agentJson;
     } catch (JSONException e){
       throw new AgentServerException("Unexpected JSON error generating JSON for agent definition");
@@ -615,16 +637,152 @@ public class AgentDefinition {
       this.reportingIntervalExpression = updated.reportingIntervalExpression;
     }
 
+    if (updated.activityDeadline != null && ! updated.activityDeadline.equals(this.activityDeadline)){
+      modified = true;
+      this.activityDeadline = updated.activityDeadline;
+    }
+
     // Did anything actually change?
     if (modified){
       // Yes, record time of modification
       this.timeModified = System.currentTimeMillis();
 
+      // Parse trees shared by instances of this definition may no longer apply
+      invalidateParsedScripts();
+
       // Persist the changes
       agentServer.persistence.put(this);
     }
   }
   
+  public synchronized SymbolManager getInstanceSymbolManager() throws SymbolException {
+    // Build the instance symbols only once, for all instances
+    if (symbolManager == null){
+      symbolManager = new SymbolManager();
+      addInstanceSymbols(symbolManager);
+    }
+    return symbolManager;
+  }
+
+  public void addInstanceSymbols(SymbolManager symbolManager) throws SymbolException {
+    addInstanceSymbols(symbolManager, null);
+  }
+
+  public void addInstanceSymbols(SymbolManager symbolManager, SymbolManager oldSymbolManager) throws SymbolException {
+    // Add parameters
+    if (parameters != null)
+      for (Field field: parameters)
+        putInstanceSymbol(symbolManager, oldSymbolManager, "parameters", field.symbol.name, field.symbol.type);
+
+    // Add inputs
+    if (inputs != null)
+      for (DataSourceReference input: inputs)
+        putInstanceSymbol(symbolManager, oldSymbolManager, "inputs", input.name, MapTypeNode.one);
+
+    // Add scratchpad
+    if (scratchpad != null)
+      for (Field field: scratchpad)
+        putInstanceSymbol(symbolManager, oldSymbolManager, "scratchpad", field.symbol.name, field.symbol.type);
+
+    // Add memory
+    if (memory != null)
+      for (Field field: memory)
+        putInstanceSymbol(symbolManager, oldSymbolManager, "memory", field.symbol.name, field.symbol.type);
+
+    // Add goals
+    if (goals != null)
+      for (Goal goal: goals)
+        putInstanceSymbol(symbolManager, oldSymbolManager, "goals", goal.name, ObjectTypeNode.one);
+
+    // Add notifications
+    if (notifications != null)
+      for (NameValue<NotificationDefinition> nameValue: notifications)
+        putInstanceSymbol(symbolManager, oldSymbolManager, "notifications", nameValue.name, MapTypeNode.one);
+
+    // Add outputs
+    if (outputs != null)
+      for (Field field: outputs)
+        putInstanceSymbol(symbolManager, oldSymbolManager, "outputs", field.symbol.name, field.symbol.type);
+  }
+
+  protected void putInstanceSymbol(SymbolManager symbolManager, SymbolManager oldSymbolManager, String categoryName, String name, TypeNode type) throws SymbolException {
+    // Reuse the old symbol for an unchanged field, since instance values are keyed by symbol
+    Symbol oldSymbol = oldSymbolManager != null && oldSymbolManager.isCategory(categoryName) ?
+        oldSymbolManager.get(categoryName, name) : null;
+    if (oldSymbol != null && oldSymbol.type.toString().equals(type.toString()))
+      symbolManager.getSymbolTable(categoryName).put(oldSymbol);
+    else
+      symbolManager.put(categoryName, name, type);
+  }
+
+  public synchronized ParsedScripts getParsedScripts() throws AgentServerException {
+    // Parse scripts on first use by any instance
+    if (! scriptsParsed)
+      parseScripts();
+    return parsedScripts;
+  }
+
+  public synchronized void parseScripts() throws AgentServerException {
+    // Instances see the new scripts all at once
+    SymbolManager symbolManager;
+    try {
+      symbolManager = getInstanceSymbolManager();
+    } catch (SymbolException e){
+      throw new AgentServerException("SymbolException: " + e.getMessage());
+    }
+    parsedScripts.set(parseScripts(symbolManager));
+    scriptsParsed = true;
+  }
+
+  protected List<ScriptNode> parseScripts(SymbolManager symbolManager) throws AgentServerException {
+    List<ScriptNode> scriptNodes = new ArrayList<ScriptNode>();
+    try {
+      if (scripts != null)
+        for (NameValue<ScriptDefinition> scriptDefinitionNameValue: scripts){
+          ScriptParser parser = new ScriptParser(symbolManager);
+          scriptNodes.add(parser.parseScriptString(scriptDefinitionNameValue.value.script));
+        }
+    } catch (TokenizerException e){
+      throw new AgentServerException("TokenizerException: " + e.getMessage());
+    } catch (ParserException e){
+      throw new AgentServerException("ParserException: " + e.getMessage());
+    }
+    return scriptNodes;
+  }
+
+  public synchronized void invalidateParsedScripts() throws AgentServerException {
+    // Nothing to do if no instance has used the symbols yet
+    SymbolManager oldSymbolManager = symbolManager;
+    if (oldSymbolManager == null)
+      return;
+
+    // Instances may be parsing and running scripts with the current symbols right now, so build
+    // the symbols for the updated definition afresh rather than changing them in place
+    SymbolManager newSymbolManager = new SymbolManager();
+    try {
+      addInstanceSymbols(newSymbolManager, oldSymbolManager);
+    } catch (SymbolException e){
+      throw new AgentServerException("SymbolException: " + e.getMessage());
+    }
+
+    // Re-parse scripts against the new symbols if any instance is already using them
+    List<ScriptNode> scriptNodes = scriptsParsed ? parseScripts(newSymbolManager) : null;
+
+    // Switch this definition and its instances over to the new symbols and scripts
+    symbolManager = newSymbolManager;
+    if (agentServer.agentInstances != null)
+      for (NameValue<AgentInstanceList> agentInstanceList: agentServer.agentInstances)
+        for (AgentInstance agentInstance: agentInstanceList.value)
+          if (agentInstance.agentDefinition == this)
+            agentInstance.symbolManager = newSymbolManager;
+    if (scriptNodes != null)
+      parsedScripts.set(scriptNodes);
+
+    // Discard cached parse trees for the old symbols
+    if (agentServer.scriptCache != null)
+      agentServer.scriptCache.invalidate(oldSymbolManager);
+  }
+
   public String toString(){
     try {
       return toJson().toString();
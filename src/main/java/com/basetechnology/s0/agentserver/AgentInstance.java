@@ -28,18 +28,19 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import com.basetechnology.s0.agentserver.activities.AgentActivity;
 import com.basetechnology.s0.agentserver.activities.AgentActivityNotification;
+import com.basetechnology.s0.agentserver.activities.AgentActivityThread;
 import com.basetechnology.s0.agentserver.activities.AgentActivityTriggerInputChanged;
 import com.basetechnology.s0.agentserver.field.Field;
-import com.basetechnology.s0.agentserver.goals.Goal;
 import com.basetechnology.s0.agentserver.notification.MailNotification;
 import com.basetechnology.s0.agentserver.notification.NotificationDefinition;
 import com.basetechnology.s0.agentserver.notification.NotificationHistory;
 import com.basetechnology.s0.agentserver.notification.NotificationInstance;
 import com.basetechnology.s0.agentserver.notification.NotificationRecord;
+import com.basetechnology.s0.agentserver.scheduler.AgentMailbox;
 import com.basetechnology.s0.agentserver.scheduler.AgentScheduler;
 import com.basetechnology.s0.agentserver.script.intermediate.ExpressionNode;
-import com.basetechnology.s0.agentserver.script.intermediate.MapTypeNode;
 import com.basetechnology.s0.agentserver.script.intermediate.ObjectTypeNode;
 import com.basetechnology.s0.agentserver.script.intermediate.ScriptNode;
 import com.basetechnology.s0.agentserver.script.intermediate.Symbol;
@@ -49,6 +50,7 @@ import com.basetechnology.s0.agentserver.script.intermediate.SymbolTable;
 import com.basetechnology.s0.agentserver.script.intermediate.SymbolValues;
 import com.basetechnology.s0.agentserver.script.intermediate.TypeNode;
 import com.basetechnology.s0.agentserver.script.parser.ParserException;
+import com.basetechnology.s0.agentserver.script.parser.ScriptCache;
 import com.basetechnology.s0.agentserver.script.parser.ScriptParser;
 import com.basetechnology.s0.agentserver.script.parser.tokenizer.TokenizerException;
 import com.basetechnology.s0.agentserver.script.runtime.ExceptionInfo;
@@ -58,6 +60,7 @@ import com.basetechnology.s0.agentserver.script.runtime.value.FieldValue;
 import com.basetechnology.s0.agentserver.script.runtime.value.MapValue;
 import com.basetechnology.s0.agentserver.script.runtime.value.NullValue;
 import com.basetechnology.s0.agentserver.script.runtime.value.Value;
+import com.basetechnology.s0.agentserver.util.Clock;
 import com.basetechnology.s0.agentserver.util.DateUtils;
 import com.basetechnology.s0.agentserver.util.JsonListMap;
 import com.basetechnology.s0.agentserver.util.JsonUtils;
@@ -92,13 +95,26 @@ public class AgentInstance {
   public int limitInstanceStatesStored;
   public Boolean enabled;
   public boolean pendingSuspended;
-  public boolean busy;
+  // Activities that are due for this agent, in order, run one at a time by the scheduler
+  // Note: Access to the mailbox is synchronized on the scheduler shard the agent is pinned to (see AgentScheduler.getShard)
+  public AgentMailbox mailbox = new AgentMailbox();
+  public AgentActivity currentActivity;
+  public boolean readyToRun;
+  // Priority class and time at which the agent was queued as ready to run
+  public int readyPriority;
+  public long readyTime;
+  public int numScriptsRunning;
+  // Input-changed activities not yet started for this agent, keyed by data source
+  // Note: Later triggers from the same data source are merged into the pending one
+  public Map<AgentInstance, AgentActivityTriggerInputChanged> pendingInputChanged =
+      new HashMap<AgentInstance, AgentActivityTriggerInputChanged>();
   public long lastInputsChanged;
   public long lastTriggerReady;
   public long lastTriggered;
   public List<AgentState> state;
   public ScriptRuntime scriptRuntime;
-  public SymbolManager symbolManager;
+  // Shared with the definition, which swaps in a new one when it is updated
+  public volatile SymbolManager symbolManager;
   public Map<String, SymbolValues> categorySymbolValues;
   public ParsedScripts parsedScripts;
   public boolean scheduledInit;
@@ -168,7 +184,7 @@ public class AgentInstance {
       boolean check) throws AgentServerException {
     this.check = check;
     this.update = update;
-    this.timeInstantiated = timeInstantiated > 0 ? timeInstantiated : System.currentTimeMillis();
+    this.timeInstantiated = timeInstantiated > 0 ? timeInstantiated : Clock.now();
     this.timeUpdated = timeUpdated > 0 ? timeUpdated : 0;
     this.user = user == null ? User.noUser : user;
     this.agentDefinition = agentDefinition;
@@ -236,7 +252,6 @@ public class AgentInstance {
       initializeTimerStatus();
     }
 
-    this.busy = false;
     this.ranInit = false;
 
     if (! update && ! check && enabled != null && enabled)
@@ -294,6 +309,10 @@ public class AgentInstance {
     enabled = true;
     captureState();
 
+    // Any activities that arrived in the mailbox while disabled can now run
+    if (AgentScheduler.singleton != null)
+      AgentScheduler.singleton.wakeAgent(this);
+
     // Queue the 'init' script to run if it hasn't already
     if (! scheduledInit){
       scheduledInit = true;
@@ -325,46 +344,11 @@ public class AgentInstance {
   }
   
   public void buildSymbols() throws SymbolException {
-    // Re-build symbol manager tables
-    symbolManager = new SymbolManager();
-
-    // But definition may not be complete yet
-    if (agentDefinition != null){
-      // Add parameters
-      if (agentDefinition != null && agentDefinition.parameters != null)
-        for (Field field: agentDefinition.parameters)
-          symbolManager.put("parameters", field.symbol.name, field.symbol.type);
-
-      // Add inputs
-      if (agentDefinition.inputs != null)
-        for (DataSourceReference input: agentDefinition.inputs)
-          symbolManager.put("inputs", input.name, MapTypeNode.one);
-
-      // Add scratchpad
-      if (agentDefinition.scratchpad != null)
-        for (Field field: agentDefinition.scratchpad)
-          symbolManager.put("scratchpad", field.symbol.name, field.symbol.type);
-
-      // Add memory
-      if (agentDefinition.memory != null)
-        for (Field field: agentDefinition.memory)
-          symbolManager.put("memory", field.symbol.name, field.symbol.type);
-
-      // Add goals
-      if (agentDefinition.goals != null)
-        for (Goal goal: agentDefinition.goals)
-          symbolManager.put("goals", goal.name, ObjectTypeNode.one);
-
-      // Add notifications
-      if (agentDefinition.notifications != null)
-        for (NameValue<NotificationDefinition> nameValue: agentDefinition.notifications)
-          symbolManager.put("notifications", nameValue.name, MapTypeNode.one);
-
-      // Add outputs
-      if (agentDefinition.outputs != null)
-        for (Field field: agentDefinition.outputs)
-          symbolManager.put("outputs", field.symbol.name, field.symbol.type);
-    }
+    // Share the symbols of all instances of the definition, but definition may not be complete yet
+    if (agentDefinition != null)
+      symbolManager = agentDefinition.getInstanceSymbolManager();
+    else
+      symbolManager = new SymbolManager();
   }
 
   public AgentState captureState() throws AgentServerException {
@@ -436,7 +420,7 @@ public class AgentInstance {
     
     // Save the captured state, if it changed
     AgentState newState = new AgentState(
-        System.currentTimeMillis(),
+        Clock.now(),
         symbolManager,
         parameterStates,
         inputStates,
@@ -637,10 +621,8 @@ public class AgentInstance {
   
   public Value evaluateExpression(String expression, boolean captureInputs) throws AgentServerException {
     try {
-    // Compile the script
-    // TODO: Cache and reuse compiled scripts
-    ScriptParser parser = new ScriptParser(this);
-    ExpressionNode expressionNode = parser.parseExpressionString(expression);
+    // Compile the expression, or reuse its cached parse tree
+    ExpressionNode expressionNode = parseExpression(expression);
 
     // Optionally capture output field values for data source inputs
     if (captureInputs)
@@ -666,6 +648,22 @@ public class AgentInstance {
     }
   }
 
+  public ExpressionNode parseExpression(String expression) throws TokenizerException, ParserException {
+    ScriptCache scriptCache = agentServer == null ? null : agentServer.scriptCache;
+    if (scriptCache == null)
+      return new ScriptParser(this).parseExpressionString(expression);
+    else
+      return scriptCache.parseExpression(this, expression);
+  }
+
+  public ScriptNode parseScript(String script) throws TokenizerException, ParserException {
+    ScriptCache scriptCache = agentServer == null ? null : agentServer.scriptCache;
+    if (scriptCache == null)
+      return new ScriptParser(this).parseScriptString(script);
+    else
+      return scriptCache.parseScript(this, script);
+  }
+
   public Value runScript(String scriptName) throws TokenizerException, ParserException, SymbolException, RuntimeException, JSONException, AgentServerException {
     return runScript(scriptName, true);
   }
@@ -679,6 +677,19 @@ public class AgentInstance {
   }
   
   public Value runScript(String scriptName, List<Value> arguments, boolean captureInputs) throws TokenizerException, ParserException, SymbolException, RuntimeException, JSONException, AgentServerException {
+    // Hold off activities for this agent until the script finishes
+    AgentScheduler scheduler = AgentScheduler.singleton;
+    if (scheduler != null)
+      scheduler.scriptStarting(this);
+    try {
+      return runScriptNow(scriptName, arguments, captureInputs);
+    } finally {
+      if (scheduler != null)
+        scheduler.scriptFinished(this);
+    }
+  }
+
+  protected Value runScriptNow(String scriptName, List<Value> arguments, boolean captureInputs) throws TokenizerException, ParserException, SymbolException, RuntimeException, JSONException, AgentServerException {
     // Reset script status
     scriptStartTime.put(scriptName, null);
     scriptEndTime.put(scriptName, null);
@@ -695,17 +706,15 @@ public class AgentInstance {
     }
 
     // Record start time for script
-    scriptStartTime.put(scriptName, System.currentTimeMillis());
+    scriptStartTime.put(scriptName, Clock.now());
     
     // TODO: Record script status: never ran, compile errors, exceptions, aborted, timed-out
     
-    // Compile the script
-    // TODO: Cache and reuse compiled scripts
+    // Compile the script, or reuse its cached parse tree
     scriptStatus.put(scriptName, "compiling");
-    ScriptParser parser = new ScriptParser(this);
     String script = agentDefinition.scripts.get(scriptName).script;
     // TODO: Do something with script definition
-    ScriptNode scriptNode = parser.parseScriptString(script);
+    ScriptNode scriptNode = parseScript(script);
 
     // Optionally capture output field values for data source inputs
     if (captureInputs)
@@ -720,7 +729,7 @@ public class AgentInstance {
     scriptReturnValue.put(scriptName, valueNode);
     
     // Record end time for script
-    scriptEndTime.put(scriptName, System.currentTimeMillis());
+    scriptEndTime.put(scriptName, Clock.now());
 
     // Capture state, if changed
     captureState();
@@ -747,11 +756,22 @@ public class AgentInstance {
   }
   
   public Value runScriptString(String script, boolean captureInputs) throws AgentServerException {
+    // Hold off activities for this agent until the script finishes
+    AgentScheduler scheduler = AgentScheduler.singleton;
+    if (scheduler != null)
+      scheduler.scriptStarting(this);
+    try {
+      return runScriptStringNow(script, captureInputs);
+    } finally {
+      if (scheduler != null)
+        scheduler.scriptFinished(this);
+    }
+  }
+
+  protected Value runScriptStringNow(String script, boolean captureInputs) throws AgentServerException {
     try {
-      // Compile the script
-      // TODO: Cache and reuse compiled scripts
-      ScriptParser parser = new ScriptParser(this);
-      ScriptNode scriptNode = parser.parseScriptString(script);
+      // Compile the script, or reuse its cached parse tree
+      ScriptNode scriptNode = parseScript(script);
 
       // Optionally capture output field values for data source inputs
       if (captureInputs)
@@ -896,23 +916,23 @@ public class AgentInstance {
   }
 
   public void triggerInputChanged() throws AgentServerException {
-    // Trigger each instance that is dependent on this instance as an input
-    for (AgentInstance agentInstance: dependentInstances)
-      triggerInputChanged(agentInstance);
-  }
-
-  public void triggerInputChanged(AgentInstance dataSourceInstance) throws AgentServerException {
-    // Create a new trigger activity for data source change
-    AgentActivityTriggerInputChanged triggerActivity = new AgentActivityTriggerInputChanged(dataSourceInstance, this);
+    // Within a propagation wave, the wave triggers dependents once all of their changed inputs are in
+    AgentActivity activity = AgentActivityThread.getCurrentActivity();
+    if (activity instanceof AgentActivityTriggerInputChanged && activity.agent == this &&
+        ! ((AgentActivityTriggerInputChanged)activity).waves.isEmpty()){
+      ((AgentActivityTriggerInputChanged)activity).outputChanged = true;
+      return;
+    }
 
-    // Schedule the trigger activity
-    if (AgentScheduler.singleton != null)
-      AgentScheduler.singleton.add(triggerActivity);
+    // Otherwise start a new wave to trigger each instance that depends on this instance, directly or not
+    AgentScheduler scheduler = AgentScheduler.singleton;
+    if (scheduler != null && dependentInstances.size() > 0)
+      scheduler.startWave(this);
   }
   
   public void update(AgentServer agentServer, AgentInstance updated) throws SymbolException, JSONException, AgentServerException {
     // TODO: Only update time if there are any actual changes
-    this.timeUpdated = System.currentTimeMillis();
+    this.timeUpdated = Clock.now();
     
     if (updated.description != null)
       this.description = updated.description;
@@ -1094,7 +1114,7 @@ public class AgentInstance {
   public long getTriggerTime() throws AgentServerException {
     // If we have never triggered, we can accept input immediately
     if (lastTriggered == 0)
-      return System.currentTimeMillis();
+      return Clock.now();
     else
       // Otherwise we can't take input until our trigger interval expires
       // Note: That may be a time in the past, but that is okay and means immediately
@@ -1239,7 +1259,7 @@ public class AgentInstance {
   public void notify(NotificationInstance notificationInstance) throws AgentServerException {
     // Store info for the notification
     notificationInstance.pending = ! notificationInstance.definition.type.equals("notify_only");
-    notificationInstance.timeNotified = System.currentTimeMillis();
+    notificationInstance.timeNotified = Clock.now();
     notificationInstance.timeResponse = 0;
     notificationInstance.response = "no_response";
     notificationInstance.responseChoice = "no_choice";
@@ -1326,21 +1346,9 @@ public class AgentInstance {
   }
   
   public void parseScripts() throws AgentServerException {
-    parsedScripts.clear();
-    if (agentDefinition != null && agentDefinition.scripts != null)
-      for (NameValue<ScriptDefinition> scriptDefinitionNameValue: agentDefinition.scripts){
-        ScriptDefinition scriptDefinition = scriptDefinitionNameValue.value;
-        ScriptParser parser = new ScriptParser(this);
-        String script = agentDefinition.scripts.get(scriptDefinition.name).script;
-        try {
-          ScriptNode scriptNode = parser.parseScriptString(script);
-          parsedScripts.add(scriptNode);
-        } catch (TokenizerException e){
-          throw new AgentServerException("TokenizerException: " + e.getMessage());
-        } catch (ParserException e){
-          throw new AgentServerException("TokenizerException: " + e.getMessage());
-        }
-      }
+    // Parsed scripts are shared by all instances of the definition
+    if (agentDefinition != null)
+      parsedScripts = agentDefinition.getParsedScripts();
   }
 
   public ScriptNode get(String functionName, List<TypeNode> argumentTypes){
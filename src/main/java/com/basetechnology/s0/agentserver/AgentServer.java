@@ -41,7 +41,10 @@ import com.basetechnology.s0.agentserver.script.intermediate.SymbolManager;
 import com.basetechnology.s0.agentserver.script.intermediate.SymbolTable;
 import com.basetechnology.s0.agentserver.script.intermediate.SymbolValues;
 import com.basetechnology.s0.agentserver.script.parser.ParserException;
+import com.basetechnology.s0.agentserver.script.parser.ScriptCache;
+import com.basetechnology.s0.agentserver.script.compiler.ScriptCompiler;
 import com.basetechnology.s0.agentserver.script.parser.tokenizer.TokenizerException;
+import com.basetechnology.s0.agentserver.script.runtime.PatternCache;
 import com.basetechnology.s0.agentserver.script.runtime.value.Value;
 import com.basetechnology.s0.agentserver.util.DateUtils;
 import com.basetechnology.s0.agentserver.util.ListMap;
@@ -70,6 +73,9 @@ public class AgentServer {
   public WebSiteAccessConfig webSiteAccessConfig;
   public WebAccessManager webAccessManager;
   public MailAccessManager mailAccessManager;
+  public ScriptCache scriptCache;
+  // Number of runs before a script is compiled, cached from config so script runs don't parse it
+  public volatile int scriptCompileThreshold = ScriptCompiler.DEFAULT_COMPILE_THRESHOLD;
 
   public AgentServer(AgentAppServer agentAppServer) throws RuntimeException, AgentServerException, IOException, InterruptedException, PersistentFileException, ParseException, TokenizerException, ParserException {
     this(agentAppServer, true);
@@ -499,6 +505,10 @@ public class AgentServer {
     if (! usersAgents.containsKey(agentName))
       throw new AgentServerException("Attempt to delete agent definition ('" + agentName + "') that does not exist for user ('" + userId + "')");
 
+    // Discard cached parse trees for its scripts and expressions
+    if (agentDefinition.symbolManager != null)
+      scriptCache.invalidate(agentDefinition.symbolManager);
+
     // Delete the named agent definition for the user
     usersAgents.remove(agentName);
   }
@@ -515,6 +525,11 @@ public class AgentServer {
     if (! usersAgents.containsKey(agentName))
       throw new AgentServerException("Attempt to delete agent definition ('" + agentName + "') that does not exist for user ('" + userId + "')");
 
+    // Discard cached parse trees for its scripts and expressions
+    AgentDefinition agentDefinition = usersAgents.get(agentName);
+    if (agentDefinition != null && agentDefinition.symbolManager != null)
+      scriptCache.invalidate(agentDefinition.symbolManager);
+
     // Delete the named agent definition for the user
     usersAgents.remove(agentName);
   }
@@ -840,6 +855,20 @@ public class AgentServer {
       config = new AgentServerConfig(this);
     config.load();
 
+    // Initialize the cache of parsed expressions and scripts
+    if (scriptCache == null)
+      scriptCache = new ScriptCache(config.getScriptCacheSize());
+    else {
+      scriptCache.clear();
+      scriptCache.setCapacity(config.getScriptCacheSize());
+    }
+
+    // Cache the script compile threshold
+    scriptCompileThreshold = config.getScriptCompileThreshold();
+
+    // Size the cache of compiled regex patterns that all agents share
+    PatternCache.shared.setCapacity(config.getRegexCacheSize());
+
     // Initialize the web access configuration parameters
     if (webAccessConfig == null)
       webAccessConfig = new AgentServerWebAccessConfig(config);
@@ -19,12 +19,16 @@ package com.basetechnology.s0.agentserver;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import com.basetechnology.s0.agentserver.activities.AgentActivity;
+
 public class AgentTimer {
   public String name;
   public String description;
   public String intervalExpression;
   public String script;
   public boolean enabled;
+  // Priority class for the timer's activities, or -1 for the default timer priority
+  public int priority = -1;
   
   public AgentTimer(String name, String description,
       String intervalExpression, String script, boolean enabled) throws AgentServerException{
@@ -58,7 +62,10 @@ public class AgentTimer {
       throw new AgentServerException("Timer interval expression may not be negative");
     String script = timerJson.optString("script","");
     boolean enabled = timerJson.optBoolean("enabled",true);
-    return new AgentTimer(name, description, intervalExpression, script, enabled);
+    AgentTimer timer = new AgentTimer(name, description, intervalExpression, script, enabled);
+    if (timerJson.has("priority"))
+      timer.priority = AgentActivity.getPriority(timerJson.optString("priority"));
+    return timer;
   }
   
   public JSONObject toJson() throws JSONException {
@@ -68,6 +75,8 @@ public class AgentTimer {
     timerJson.put("interval", intervalExpression);
     timerJson.put("script", script);
     timerJson.put("enabled", enabled);
+    if (priority >= 0)
+      timerJson.put("priority", AgentActivity.getPriorityName(priority));
     return timerJson;
   }
 
@@ -53,6 +53,10 @@ public class User {
   public Boolean approved;
   public Boolean enabled;
   public Boolean newActivityEnabled;
+  // Share of the scheduler's workers relative to other users, and limit on concurrent activities
+  // Note: Null means use the server default
+  public Integer schedulerWeight;
+  public Integer schedulerMaxConcurrency;
   
   public static User noUser = new User("none");
   public static User nullUser = new User("null");
@@ -132,7 +136,7 @@ public class User {
       this.email = updated.email;
     if (updated.comment != null)
       this.comment = updated.comment;
-    // User cannot update the "approved", "enabled" and "new_activity_enabled" fields
+    // User cannot update the "approved", "enabled", "new_activity_enabled", and scheduler fields
     
     // Update may have changed password, so regenerate SHAa
     generateSha();
@@ -190,13 +194,18 @@ public class User {
       shaId = userJson.optString("sha_id", null);
       shaPassword = userJson.optString("sha_password", null);
     }
+    Integer schedulerWeight = userJson.has("scheduler_weight") ? userJson.optInt("scheduler_weight") : null;
+    Integer schedulerMaxConcurrency = userJson.has("scheduler_max_concurrency") ? userJson.optInt("scheduler_max_concurrency") : null;
     JsonUtils.validateKeys(userJson, "User", new ArrayList<String>(Arrays.asList(
         "id", "password", "password_hint", "full_name", "display_name", "nick_name",
         "organization", "bio", "interests", "email", "incognito", "comment", "approved",
         "enabled", "new_activity_enabled",
-        "sha_id", "sha_password")));
-    return new User(id, password, passwordHint, fullName, displayName, nickName,
+        "sha_id", "sha_password", "scheduler_weight", "scheduler_max_concurrency")));
+    User user = new User(id, password, passwordHint, fullName, displayName, nickName,
         organization, bio, interests, email, incognito, comment, approved, enabled, newActivityEnabled, shaId, shaPassword);
+    user.schedulerWeight = schedulerWeight;
+    user.schedulerMaxConcurrency = schedulerMaxConcurrency;
+    return user;
 
   }
   
@@ -224,6 +233,9 @@ public class User {
       userJson.put("approved", approved);
       userJson.put("sha_id", shaId);
       userJson.put("sha_password", shaPassword);
+      // Scheduler settings only appear if set for this user
+      userJson.put("scheduler_weight", schedulerWeight);
+      userJson.put("scheduler_max_concurrency", schedulerMaxConcurrency);
     } catch (JSONException e){
       e.printStackTrace();
       log.error("Exception generating User JSON - " + e.getMessage());
@@ -22,21 +22,45 @@ import org.json.JSONException;
 import com.basetechnology.s0.agentserver.AgentInstance;
 import com.basetechnology.s0.agentserver.AgentServerException;
 import com.basetechnology.s0.agentserver.RuntimeException;
+import com.basetechnology.s0.agentserver.scheduler.AgentActivityTimingWheel;
 import com.basetechnology.s0.agentserver.script.intermediate.SymbolException;
+import com.basetechnology.s0.agentserver.util.Clock;
 
 public class AgentActivity {
   static final Logger log = Logger.getLogger(AgentActivity.class);
 
+  // Maximum time an activity may run before the watchdog aborts it, zero for no limit
+  public static final long DEFAULT_DEADLINE = 5 * 60 * 1000;
+
+  // Priority classes, highest first - a lower number is dispatched first
+  public static final int INIT_PRIORITY = 0;
+  public static final int NOTIFICATION_PRIORITY = 1;
+  public static final int INPUTS_CHANGED_PRIORITY = 2;
+  public static final int TIMER_PRIORITY = 3;
+  public static final int CONDITION_PRIORITY = 4;
+  public static final int NUM_PRIORITIES = 5;
+  public static final String[] PRIORITY_NAMES = {"init", "notification", "inputs_changed", "timer", "condition"};
+
   public AgentInstance agent;
   public enum StatusTypes {NOT_STARTED, STARTING, RUNNING, EXCEPTION, STOPPING, COMPLETED, ABORTING, ABORTED};
   public StatusTypes status;
   public long when;
+  public long sequenceNumber;
+  // Time at which a periodic activity should run again once it completes, zero if not re-armed
+  public long rearmWhen;
   public String description;
-  public boolean abortRequested;
+  public int priority;
+  // Time at which the activity was delivered to its agent's mailbox, for aging its priority
+  public long readyTime;
+  public volatile boolean abortRequested;
+  // Time by which the activity must complete, zero if it has no deadline
+  public long deadline;
   public AgentActivityThread activityThread;
   public Exception exception;
   public long startTime;
   public long endTime;
+  // Place of the activity in the timing wheel scheduler queue, owned by the wheel
+  public final AgentActivityTimingWheel.Node wheelNode = new AgentActivityTimingWheel.Node(this);
   
   public AgentActivity(){
     this(null, 0, null);
@@ -46,19 +70,69 @@ public class AgentActivity {
     this.agent = agent;
     this.when = when;
     this.description = description;
+    this.priority = getDefaultPriority();
     status = StatusTypes.NOT_STARTED;
     abortRequested = false;
   }
+
+  static public int getPriority(String priorityName) throws AgentServerException {
+    for (int i = 0; i < NUM_PRIORITIES; i++)
+      if (PRIORITY_NAMES[i].equalsIgnoreCase(priorityName.trim()))
+        return i;
+    throw new AgentServerException("Unknown activity priority: '" + priorityName + "'");
+  }
+
+  static public String getPriorityName(int priority){
+    return PRIORITY_NAMES[priority];
+  }
+
+  public int getDefaultPriority(){
+    // Each type of activity has its own default priority class
+    return TIMER_PRIORITY;
+  }
+
+  public boolean isBounded(){
+    // Whether the agent definition itself limits how many of these can be queued, so admission control can pass it
+    return false;
+  }
+
+  public long getRearmInterval() throws AgentServerException {
+    // Interval after which a periodic activity runs again even if it did not finish, zero if it doesn't
+    return 0;
+  }
+
+  public boolean isCoalescible(){
+    // Whether a newer activity of this type supersedes an older one for the same agent
+    return false;
+  }
+
+  public int getEffectivePriority(long now, long agingInterval){
+    return getEffectivePriority(priority, readyTime, now, agingInterval);
+  }
+
+  static public int getEffectivePriority(int priority, long readyTime, long now, long agingInterval){
+    // Priority rises one class for each aging interval spent waiting, so low priorities can't starve
+    // Note: Zero aging interval means strict priority with no aging
+    if (agingInterval <= 0 || readyTime <= 0 || now <= readyTime)
+      return priority;
+    long numIntervals = (now - readyTime) / agingInterval;
+    return numIntervals >= priority ? 0 : priority - (int)numIntervals;
+  }
   
   public boolean performActivity()  throws SymbolException, RuntimeException, AgentServerException, JSONException {
     startActivity();
     finishActivity();
     return true;
   }
+
+  public String getType(){
+    // Type of activity, used to look up its deadline in config
+    return "activity";
+  }
   
   public void startingActivity(){
     status = StatusTypes.STARTING;
-    startTime = System.currentTimeMillis();
+    startTime = Clock.now();
   }
   
   public void startActivity(){
@@ -67,22 +141,39 @@ public class AgentActivity {
   }
   
   public void gotException(Exception e){
-    endTime = System.currentTimeMillis();
+    endTime = Clock.now();
     exception = e;
     e.printStackTrace();
     log.error("Exception in activity - " + description + " - " + e);
-    status = StatusTypes.EXCEPTION;
+    status = abortRequested ? StatusTypes.ABORTED : StatusTypes.EXCEPTION;
   }
 
   public void finishActivity(){
-    endTime = System.currentTimeMillis();
-    status = StatusTypes.COMPLETED;
+    endTime = Clock.now();
+    status = abortRequested ? StatusTypes.ABORTED : StatusTypes.COMPLETED;
     log.info("Finished activity - " + description + " status: " + status + " in " + (endTime - startTime) + " ms.");
     // TODO - Should state capture be done at this point?
   }
   
+  public void aborted(){
+    endTime = Clock.now();
+    status = StatusTypes.ABORTED;
+    log.warn("Aborted activity - " + description + " after " + (endTime - startTime) + " ms.");
+  }
+
+  public void rearm(){
+    // Reset this activity to run again rather than allocating a new one for the next period
+    when = rearmWhen;
+    rearmWhen = 0;
+    status = StatusTypes.NOT_STARTED;
+    abortRequested = false;
+    deadline = 0;
+    readyTime = 0;
+    exception = null;
+  }
+
   public String toString(){
-    long delta = when - System.currentTimeMillis();
+    long delta = when - Clock.now();
     return "Activity " + description + " - scheduled for " +
         (delta > 0 ? "+" : "") + delta + " ms. from now";
   }
@@ -24,20 +24,23 @@ import com.basetechnology.s0.agentserver.AgentConditionStatus;
 import com.basetechnology.s0.agentserver.AgentInstance;
 import com.basetechnology.s0.agentserver.AgentServerException;
 import com.basetechnology.s0.agentserver.RuntimeException;
-import com.basetechnology.s0.agentserver.scheduler.AgentScheduler;
 import com.basetechnology.s0.agentserver.script.intermediate.SymbolException;
 import com.basetechnology.s0.agentserver.script.parser.ParserException;
 import com.basetechnology.s0.agentserver.script.parser.tokenizer.TokenizerException;
 import com.basetechnology.s0.agentserver.script.runtime.value.Value;
+import com.basetechnology.s0.agentserver.util.Clock;
 
 public class AgentActivityCondition extends AgentActivity {
   static final Logger log = Logger.getLogger(AgentActivityCondition.class);
+  public static final long DEFAULT_DEADLINE = 60 * 1000;
 
   public AgentCondition condition;
   
   public AgentActivityCondition(AgentInstance agent, AgentCondition condition) throws AgentServerException {
-    super(agent, System.currentTimeMillis() + condition.getInterval(agent), "AgentCondition " + condition.toString());
+    super(agent, Clock.now() + condition.getInterval(agent), "AgentCondition " + condition.toString());
     this.condition = condition;
+    if (condition.priority >= 0)
+      priority = condition.priority;
   }
   
   public boolean performActivity() throws SymbolException, RuntimeException, AgentServerException, JSONException {
@@ -49,7 +52,7 @@ public class AgentActivityCondition extends AgentActivity {
     // If condition is now disabled, ignore this lingering hit
     if (status.enabled){
       // Remember time of that we checked the trigger condition
-      long now = System.currentTimeMillis();
+      long now = Clock.now();
       status.checkTime = now;
       
       // Count check interval hits
@@ -92,12 +95,9 @@ public class AgentActivityCondition extends AgentActivity {
 
       // Reschedule the condition for its next interval, unless it is now marked as disabled
       if (status.enabled){
-        // Create a new condition activity - time will be now plus condition interval
-        AgentActivityCondition conditionActivity = new AgentActivityCondition(agent, condition);
-
-        // Schedule the next interval of the condition
+        // Have the scheduler re-arm this activity when it completes - time will be now plus condition interval
+        rearmWhen = Clock.now() + condition.getInterval(agent);
         log.info("Rescheduling condition " + condition.name + " for t plus " + condition.interval + " ms.");
-        AgentScheduler.singleton.add(conditionActivity);
       } else
         log.info("Condition " + condition.name + " will not be rescheduled since it is now disabled");
     }
@@ -106,4 +106,21 @@ public class AgentActivityCondition extends AgentActivity {
     return true;
   }
 
+  public long getRearmInterval() throws AgentServerException {
+    // Condition is checked again at its next interval unless it has been disabled
+    AgentConditionStatus status = agent.conditionStatus.get(condition.name);
+    return status != null && status.enabled ? condition.getInterval(agent) : 0;
+  }
+
+  public boolean isBounded(){
+    return true;
+  }
+
+  public int getDefaultPriority(){
+    return CONDITION_PRIORITY;
+  }
+
+  public String getType(){
+    return "condition";
+  }
 }
@@ -22,6 +22,7 @@ import com.basetechnology.s0.agentserver.RuntimeException;
 import com.basetechnology.s0.agentserver.notification.NotificationInstance;
 
 public class AgentActivityNotification extends AgentActivity {
+  public static final long DEFAULT_DEADLINE = 60 * 1000;
   public NotificationInstance notificationInstance;
   
   public AgentActivityNotification(AgentInstance agent, long when, NotificationInstance notificationInstance) throws RuntimeException {
@@ -39,5 +40,11 @@ public class AgentActivityNotification extends AgentActivity {
     return true;
   }
 
+  public int getDefaultPriority(){
+    return NOTIFICATION_PRIORITY;
+  }
 
+  public String getType(){
+    return "notification";
+  }
 }
@@ -26,6 +26,7 @@ import com.basetechnology.s0.agentserver.script.parser.ParserException;
 import com.basetechnology.s0.agentserver.script.parser.tokenizer.TokenizerException;
 
 public class AgentActivityRunScript extends AgentActivity {
+  public static final long DEFAULT_DEADLINE = 5 * 60 * 1000;
   public String scriptName;
   
   public AgentActivityRunScript(AgentInstance agent, long when, String description, String scriptName) throws RuntimeException {
@@ -59,4 +60,15 @@ public class AgentActivityRunScript extends AgentActivity {
     return true;
   }
 
+  public boolean isBounded(){
+    return true;
+  }
+
+  public int getDefaultPriority(){
+    return INIT_PRIORITY;
+  }
+
+  public String getType(){
+    return "run_script";
+  }
 }
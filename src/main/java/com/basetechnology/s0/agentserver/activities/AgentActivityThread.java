@@ -18,22 +18,61 @@ package com.basetechnology.s0.agentserver.activities;
 
 import org.apache.log4j.Logger;
 
+import com.basetechnology.s0.agentserver.scheduler.AgentSchedulerShard;
+import com.basetechnology.s0.agentserver.util.Clock;
+
 public class AgentActivityThread implements Runnable {
   static final Logger log = Logger.getLogger(AgentActivityThread.class);
 
+  // Activity being performed by the current thread, so scripts can notice an abort request
+  static final ThreadLocal<AgentActivity> currentActivity = new ThreadLocal<AgentActivity>();
+
   public AgentActivity activity;
+  public AgentSchedulerShard shard;
   public Thread thread;
-  
+
   public AgentActivityThread(AgentActivity activity){
+    this(activity, null);
+  }
+
+  public AgentActivityThread(AgentActivity activity, AgentSchedulerShard shard){
     this.activity = activity;
+    this.shard = shard;
   }
-  
+
+  static public AgentActivity getCurrentActivity(){
+    return currentActivity.get();
+  }
+
   public void run(){
+    currentActivity.set(activity);
     try {
       activity.performActivity();
     } catch (Exception e){
       log.info("Exception in AgentActivityThread: " + e);
       e.printStackTrace();
+
+      // Make sure the activity doesn't look like it is still running
+      activity.gotException(e);
+    } finally {
+      currentActivity.remove();
+
+      // A timer or condition aborted for running past its deadline still runs again at its next interval
+      if (activity.abortRequested && activity.rearmWhen <= 0){
+        // Clear the watchdog's interrupt so that it doesn't cut short the interval evaluation
+        Thread.interrupted();
+        try {
+          long interval = activity.getRearmInterval();
+          if (interval > 0)
+            activity.rearmWhen = Clock.now() + interval;
+        } catch (Exception e){
+          log.info("Exception getting re-arm interval for aborted activity - " + activity.description + " - " + e);
+        }
+      }
+
+      // Let the agent's scheduler shard know that the agent is free for its next activity
+      if (shard != null)
+        shard.activityCompleted(activity);
     }
   }
 }
@@ -24,20 +24,23 @@ import com.basetechnology.s0.agentserver.AgentServerException;
 import com.basetechnology.s0.agentserver.AgentTimer;
 import com.basetechnology.s0.agentserver.AgentTimerStatus;
 import com.basetechnology.s0.agentserver.RuntimeException;
-import com.basetechnology.s0.agentserver.scheduler.AgentScheduler;
 import com.basetechnology.s0.agentserver.script.intermediate.SymbolException;
 import com.basetechnology.s0.agentserver.script.parser.ParserException;
 import com.basetechnology.s0.agentserver.script.parser.tokenizer.TokenizerException;
 import com.basetechnology.s0.agentserver.script.runtime.value.Value;
+import com.basetechnology.s0.agentserver.util.Clock;
 
 public class AgentActivityTimer extends AgentActivity {
   static final Logger log = Logger.getLogger(AgentActivityTimer.class);
+  public static final long DEFAULT_DEADLINE = 60 * 1000;
   public AgentTimer timer;
   
   public AgentActivityTimer(AgentInstance agent, AgentTimer timer) throws AgentServerException {
     // TODO: Review whether now plus interval or original schedule plus interval
-    super(agent, System.currentTimeMillis() + timer.getInterval(agent), "AgentTimer " + timer.toString());
+    super(agent, Clock.now() + timer.getInterval(agent), "AgentTimer " + timer.toString());
     this.timer = timer;
+    if (timer.priority >= 0)
+      priority = timer.priority;
     log.info("Starting timer " + timer);
   }
   
@@ -50,7 +53,7 @@ public class AgentActivityTimer extends AgentActivity {
     // If timer is now disabled, ignore this lingering hit
     if (status.enabled){
       // Remember time of timer trigger
-      long now = System.currentTimeMillis();
+      long now = Clock.now();
       status.time = now;
 
       // Count timer hits
@@ -73,15 +76,10 @@ public class AgentActivityTimer extends AgentActivity {
       
       // Reschedule the timer for its next interval, unless it is now marked as disabled
       if (status.enabled){
-        // Create a new timer activity - time will be now plus timer interval
-        AgentActivityTimer timerActivity = new AgentActivityTimer(agent, timer);
-
-        // Schedule the next interval of the timer
-        if (AgentScheduler.singleton != null) {
-          log.info("Rescheduling timer " + timer.name + " for t plus " + timer.getInterval(agent) + " ms.");
-          AgentScheduler.singleton.add(timerActivity);
-        } else 
-          log.info("Timer " + timer.name + " will not be rescheduled since scheduler has been terminated");
+        // Have the scheduler re-arm this activity when it completes - time will be now plus timer interval
+        long interval = timer.getInterval(agent);
+        rearmWhen = Clock.now() + interval;
+        log.info("Rescheduling timer " + timer.name + " for t plus " + interval + " ms.");
       } else
         log.info("Timer " + timer.name + " will not be rescheduled since it is now disabled");
     }
@@ -90,4 +88,21 @@ public class AgentActivityTimer extends AgentActivity {
     return true;
   }
 
+  public long getRearmInterval() throws AgentServerException {
+    // Timer runs again at its next interval unless it has been disabled
+    AgentTimerStatus status = agent.timerStatus.get(timer.name);
+    return status != null && status.enabled ? timer.getInterval(agent) : 0;
+  }
+
+  public boolean isBounded(){
+    return true;
+  }
+
+  public int getDefaultPriority(){
+    return TIMER_PRIORITY;
+  }
+
+  public String getType(){
+    return "timer";
+  }
 }
@@ -16,6 +16,9 @@
 
 package com.basetechnology.s0.agentserver.activities;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.log4j.Logger;
 import org.json.JSONException;
 
@@ -24,25 +27,51 @@ import com.basetechnology.s0.agentserver.AgentConditionStatus;
 import com.basetechnology.s0.agentserver.AgentInstance;
 import com.basetechnology.s0.agentserver.AgentServerException;
 import com.basetechnology.s0.agentserver.RuntimeException;
+import com.basetechnology.s0.agentserver.scheduler.AgentPropagationWave;
 import com.basetechnology.s0.agentserver.script.intermediate.SymbolException;
 import com.basetechnology.s0.agentserver.script.parser.ParserException;
 import com.basetechnology.s0.agentserver.script.parser.tokenizer.TokenizerException;
 import com.basetechnology.s0.agentserver.script.runtime.value.Value;
+import com.basetechnology.s0.agentserver.util.Clock;
 import com.basetechnology.s0.agentserver.util.NameValue;
 
 public class AgentActivityTriggerInputChanged extends AgentActivity {
   static final Logger log = Logger.getLogger(AgentActivityTriggerInputChanged.class);
+  public static final long DEFAULT_DEADLINE = 60 * 1000;
 
   public AgentInstance dataSource;
-  long triggerInterval;
+  public long triggerInterval;
+
+  // Propagation waves for which this activity evaluates the agent, more than one once triggers are merged
+  // Note: Access is synchronized on the agent's scheduler shard until the activity starts
+  public List<AgentPropagationWave> waves = new ArrayList<AgentPropagationWave>();
+  // Whether the agent's outputs changed while the activity ran, for the waves to pass on to its dependents
+  public volatile boolean outputChanged;
   
   public AgentActivityTriggerInputChanged(AgentInstance agent, AgentInstance dataSource) throws AgentServerException {
+    this(agent, dataSource, agent.getTriggerInterval());
+  }
+  
+  public AgentActivityTriggerInputChanged(AgentInstance agent, AgentInstance dataSource, long triggerInterval){
     super(agent, -1, "AgentActivityTriggerInputChanged for data source " + dataSource.agentDefinition.name);
     this.dataSource = dataSource;
-    this.triggerInterval = agent.getTriggerInterval();
-    this.when = System.currentTimeMillis() + triggerInterval;
+    this.triggerInterval = triggerInterval;
+    this.when = Clock.now() + triggerInterval;
     
   }
+
+  public AgentActivityTriggerInputChanged(AgentInstance agent, AgentInstance dataSource, long triggerInterval, AgentPropagationWave wave){
+    this(agent, dataSource, triggerInterval);
+    if (wave != null)
+      waves.add(wave);
+  }
+
+  public void finishWaves(){
+    // Let each wave know that the agent has been evaluated, or never will be
+    for (AgentPropagationWave wave: waves)
+      wave.agentEvaluated(agent, outputChanged);
+    waves.clear();
+  }
   
   public long computeTriggerInterval() throws AgentServerException {
     triggerInterval = agent.evaluateExpressionLong(agent.triggerIntervalExpression);
@@ -51,14 +80,14 @@ public class AgentActivityTriggerInputChanged extends AgentActivity {
   
   public long computeTriggerTime() throws AgentServerException {
     triggerInterval = agent.evaluateExpressionLong(agent.triggerIntervalExpression);
-    return System.currentTimeMillis() + triggerInterval;
+    return Clock.now() + triggerInterval;
   }
   
   public boolean performActivity() throws SymbolException, RuntimeException, AgentServerException, JSONException {
     startActivity();
     
     // Find out what time it is
-    long now = System.currentTimeMillis();
+    long now = Clock.now();
 
     // Record time of inputs changed event
     agent.lastInputsChanged = now;
@@ -167,4 +196,15 @@ public class AgentActivityTriggerInputChanged extends AgentActivity {
     return true;
   }
 
+  public boolean isCoalescible(){
+    return true;
+  }
+
+  public int getDefaultPriority(){
+    return INPUTS_CHANGED_PRIORITY;
+  }
+
+  public String getType(){
+    return "inputs_changed";
+  }
 }
@@ -107,6 +107,8 @@ public class AgentAppServer {
       response.getWriter().println("{\"errors\": [{\"type\": \"" + type + "\", \"message\": \"" + message + "\"}]}");
     }
     response.setStatus(statusCode);
+    if (e instanceof AgentAppServerUnavailableException)
+      response.setHeader("Retry-After", Long.toString(((AgentAppServerUnavailableException)e).retryAfter));
     response.setContentType("application/" + type + "; charset=utf-8");
     ((Request)request).setHandled(true);
   }
@@ -0,0 +1,31 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.appserver;
+
+import javax.servlet.http.HttpServletResponse;
+
+public class AgentAppServerUnavailableException extends AgentAppServerException {
+  static final long serialVersionUID = 1L;
+  // Seconds the client should wait before trying again
+  public long retryAfter;
+  
+  public AgentAppServerUnavailableException(String message, long retryAfter){
+    super(HttpServletResponse.SC_SERVICE_UNAVAILABLE, message);
+    this.retryAfter = retryAfter;
+  }
+
+}
@@ -38,17 +38,22 @@ import com.basetechnology.s0.agentserver.AgentServer;
 import com.basetechnology.s0.agentserver.AgentServerException;
 import com.basetechnology.s0.agentserver.OutputRecord;
 import com.basetechnology.s0.agentserver.User;
+import com.basetechnology.s0.agentserver.activities.AgentActivity;
 import com.basetechnology.s0.agentserver.field.Field;
 import com.basetechnology.s0.agentserver.notification.NotificationInstance;
 import com.basetechnology.s0.agentserver.scheduler.AgentScheduler;
 import com.basetechnology.s0.agentserver.script.intermediate.ExpressionNode;
+import com.basetechnology.s0.agentserver.script.intermediate.Node;
 import com.basetechnology.s0.agentserver.script.intermediate.ScriptNode;
 import com.basetechnology.s0.agentserver.script.intermediate.Symbol;
 import com.basetechnology.s0.agentserver.script.intermediate.SymbolException;
 import com.basetechnology.s0.agentserver.script.intermediate.SymbolValues;
+import com.basetechnology.s0.agentserver.script.optimizer.ScriptOptimizer;
 import com.basetechnology.s0.agentserver.script.parser.ScriptParser;
+import com.basetechnology.s0.agentserver.script.runtime.PatternCache;
 import com.basetechnology.s0.agentserver.script.runtime.ScriptRuntime;
 import com.basetechnology.s0.agentserver.script.runtime.value.Value;
+import com.basetechnology.s0.agentserver.script.runtime.value.ValueMethodTable;
 import com.basetechnology.s0.agentserver.util.DateUtils;
 import com.basetechnology.s0.agentserver.util.JsonListMap;
 import com.basetechnology.s0.agentserver.util.ListMap;
@@ -174,7 +179,64 @@ public class HandleGet extends HandleHttp {
       for (NameValue<AgentInstanceList> agentInstanceListNameValue: agentServer.agentInstances)
         num_active_agents += agentInstanceListNameValue.value.size();
       aboutJson.put("num_active_agents", num_active_agents);
+      // Each user's weighted share of the scheduler's workers and backlog of activities
+      aboutJson.put("user_scheduling", agentScheduler == null ? new JSONArray() : agentScheduler.getUserSchedulingJson());
+      // Activities waiting to run in each priority class
+      aboutJson.put("priority_backlog", agentScheduler == null ?
+          AgentScheduler.getPriorityBacklogJson(new int[AgentActivity.NUM_PRIORITIES]) : agentScheduler.getPriorityBacklogJson());
       response.getWriter().println(aboutJson.toString(4));
+    } else if (path.equalsIgnoreCase("/scheduler/metrics")){
+      checkAdminAccess();
+      log.info("Getting scheduler metrics");
+
+      // Get queue depths, dispatch lag and run time distributions, and activity counts
+      JSONObject metricsJson = agentServer.agentScheduler.getMetricsJson();
+      setOutput(metricsJson);
+    } else if (path.equalsIgnoreCase("/script_cache")){
+      checkAdminAccess();
+      log.info("Getting script cache statistics");
+
+      // Get size, hits, misses, evictions, and invalidations of cached parse trees
+      JSONObject cacheJson = agentServer.scriptCache.toJson();
+      setOutput(cacheJson);
+    } else if (path.equalsIgnoreCase("/regex_cache")){
+      checkAdminAccess();
+      log.info("Getting regex cache statistics");
+
+      // Get size, hits, misses, and evictions of compiled regex patterns
+      JSONObject cacheJson = PatternCache.shared.toJson();
+      setOutput(cacheJson);
+    } else if (path.equalsIgnoreCase("/script_methods")){
+      log.info("Getting script value methods");
+
+      // Get the methods that scripts can call on each type of value
+      JSONObject methodsJson = ValueMethodTable.getTablesJson();
+      setOutput(methodsJson);
+    } else if (path.equalsIgnoreCase("/script_tree")){
+      checkAdminAccess();
+      String scriptString = request.getParameter("script");
+      String expressionString = request.getParameter("expression");
+      String optimizeString = request.getParameter("optimize");
+      if ((scriptString == null) == (expressionString == null))
+        throw new AgentAppServerBadRequestException("Expected either a script or an expression query parameter");
+      log.info("Getting parse tree for " + (scriptString != null ? "script: " + scriptString : "expression: " + expressionString));
+
+      // Parse the way agents do, optimized unless asked not to be or disabled by the configuration,
+      // using a check instance so that no instance name is used up
+      AgentDefinition dummyAgentDefinition = new AgentDefinition(agentServer);
+      AgentInstance dummyAgentInstance = new AgentInstance(dummyAgentDefinition, true);
+      ScriptParser parser = new ScriptParser(dummyAgentInstance);
+      parser.optimize = optimizeString == null || Boolean.parseBoolean(optimizeString);
+      Node node;
+      try {
+        node = scriptString != null ? parser.parseScriptString(scriptString) : parser.parseExpressionString(expressionString);
+      } catch (Exception e){
+        throw new AgentAppServerBadRequestException("Unable to parse " + (scriptString != null ? "script" : "expression") + " - " + e.getMessage());
+      }
+      JSONObject treeJson = new JsonListMap();
+      treeJson.put("optimized", parser.isOptimizing());
+      treeJson.put("tree", node == null ? JSONObject.NULL : ScriptOptimizer.toJson(node));
+      setOutput(treeJson);
     } else if (path.equalsIgnoreCase("/config")){
       log.info("Getting configuration settings");
       response.setContentType("application/json; charset=utf-8");
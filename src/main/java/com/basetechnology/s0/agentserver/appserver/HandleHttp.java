@@ -31,6 +31,7 @@ import org.json.JSONTokener;
 
 import com.basetechnology.s0.agentserver.AgentServer;
 import com.basetechnology.s0.agentserver.User;
+import com.basetechnology.s0.agentserver.scheduler.AgentScheduler;
 import com.basetechnology.s0.agentserver.util.XmlUtils;
 
 public class HandleHttp {
@@ -77,6 +78,14 @@ public class HandleHttp {
     return requestJson;
   }
 
+  public void checkSchedulerAdmission(User user) throws AgentAppServerUnavailableException {
+    // Turn away requests that would add work while the scheduler queue is saturated
+    AgentScheduler agentScheduler = AgentScheduler.singleton;
+    if (agentScheduler != null && agentScheduler.admission.isSaturated(user.id))
+      throw new AgentAppServerUnavailableException("Agent scheduler is saturated - try again later",
+          (agentScheduler.admission.retryInterval + 999) / 1000);
+  }
+
   public void checkAdminAccess() throws AgentAppServerBadRequestException {
     // Make sure we have the admin password
     Request request = httpInfo.request;
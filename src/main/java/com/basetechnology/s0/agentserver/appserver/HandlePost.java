@@ -168,6 +168,7 @@ public class HandlePost extends HandleHttp {
         throw new AgentAppServerBadRequestException("Invalid agent instance JSON object");
 
       log.info("Adding new agent instance for user: " + user.id);
+      checkSchedulerAdmission(user);
 
       // Parse and add the agent instance
       AgentInstance agentInstance = agentServer.addAgentInstance(user, agentInstanceJson);
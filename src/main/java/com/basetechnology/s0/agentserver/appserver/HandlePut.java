@@ -187,11 +187,35 @@ public class HandlePut extends HandleHttp {
           newActivityString.equalsIgnoreCase("yes") ||
           newActivityString.equalsIgnoreCase("on"));
       log.info("Enabling user: " + user.id + " enable new activity: " + enableNewActivity);
+      checkSchedulerAdmission(user);
 
       // Enable user as directed
       user.enabled = enableAllActivity;
       user.newActivityEnabled = enableNewActivity;
       
+      // Update was successful
+      response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+    } else if (lcPath.matches("^/users/[a-zA-Z0-9_.@\\-]*/scheduling$")){
+      User user = checkAdminUserAccess();
+      String weightString = request.getParameter("weight");
+      String maxConcurrencyString = request.getParameter("max_concurrency");
+      Integer weight = null;
+      if (weightString != null && weightString.trim().length() > 0)
+        weight = Integer.parseInt(weightString.trim());
+      Integer maxConcurrency = null;
+      if (maxConcurrencyString != null && maxConcurrencyString.trim().length() > 0)
+        maxConcurrency = Integer.parseInt(maxConcurrencyString.trim());
+      if (weight != null && weight < 1)
+        throw new AgentAppServerBadRequestException("Scheduler weight must be at least 1");
+      if (maxConcurrency != null && maxConcurrency < 0)
+        throw new AgentAppServerBadRequestException("Scheduler max concurrency must not be negative");
+      log.info("Setting scheduling for user: " + user.id + " weight: " + weight + " max concurrency: " + maxConcurrency);
+
+      // Set the user's share of the scheduler's workers - omitted parameters revert to the server default
+      user.schedulerWeight = weight;
+      user.schedulerMaxConcurrency = maxConcurrency;
+      agentServer.persistence.put(user);
+
       // Update was successful
       response.setStatus(HttpServletResponse.SC_NO_CONTENT);
     } else if (lcPath.matches("^/users/[a-zA-Z0-9_.@\\-]*/agent_definitions/[a-zA-Z0-9_.@\\-]*$")){
@@ -333,6 +357,7 @@ public class HandlePut extends HandleHttp {
         throw new AgentAppServerException(HttpServletResponse.SC_NOT_FOUND, "No agent instance with that name for that user");
 
       log.info("Enabling/resuming agent instance " + agentName + " for user: " + user.id);
+      checkSchedulerAdmission(user);
       AgentInstanceList agentMap = agentServer.agentInstances.get(user.id);
       AgentInstance agent = agentMap.get(agentName);
 
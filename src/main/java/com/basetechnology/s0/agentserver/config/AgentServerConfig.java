@@ -31,7 +31,20 @@ import com.basetechnology.s0.agentserver.AgentServer;
 import com.basetechnology.s0.agentserver.AgentServerException;
 import com.basetechnology.s0.agentserver.mailaccessmanager.MailAccessManager;
 import com.basetechnology.s0.agentserver.persistence.persistentfile.PersistentFileException;
+import com.basetechnology.s0.agentserver.activities.AgentActivity;
+import com.basetechnology.s0.agentserver.scheduler.AgentActivityJournal;
+import com.basetechnology.s0.agentserver.scheduler.AgentAdmissionControl;
+import com.basetechnology.s0.agentserver.scheduler.AgentActivityQueue;
+import com.basetechnology.s0.agentserver.scheduler.AgentActivityThreadPool;
+import com.basetechnology.s0.agentserver.scheduler.AgentReadyQueue;
+import com.basetechnology.s0.agentserver.scheduler.AgentScheduler;
+import com.basetechnology.s0.agentserver.script.compiler.ScriptCompiler;
+import com.basetechnology.s0.agentserver.script.optimizer.ScriptOptimizer;
+import com.basetechnology.s0.agentserver.script.parser.ScriptCache;
+import com.basetechnology.s0.agentserver.script.runtime.PatternCache;
+import com.basetechnology.s0.agentserver.scheduler.AgentUserQueue;
 import com.basetechnology.s0.agentserver.script.runtime.ScriptState;
+import com.basetechnology.s0.agentserver.util.Clock;
 import com.basetechnology.s0.agentserver.util.JsonListMap;
 import com.basetechnology.s0.agentserver.util.JsonUtils;
 import com.basetechnology.s0.agentserver.util.ListMap;
@@ -92,6 +105,10 @@ public class AgentServerConfig {
   public void put(String key, Object value) throws AgentServerException{
     config.put(key, value.toString());
     persist(key);
+
+    // Keep the server's cached copy of the script compile threshold current
+    if (key.equals("script_compile_threshold"))
+      agentServer.scriptCompileThreshold = getScriptCompileThreshold();
   }
   
   public void update(JSONObject json) throws AgentServerException, JSONException {
@@ -111,7 +128,15 @@ public class AgentServerConfig {
         "minimum_host_mail_access_interval", "minimum_address_mail_access_interval",
         "admin_approve_user_create", "mail_confirm_user_create",
         "default_limit_instance_states_stored", "maximum_limit_instance_states_stored",
-        "default_limit_instance_states_returned", "maximum_limit_instance_states_returned")));
+        "default_limit_instance_states_returned", "maximum_limit_instance_states_returned",
+        "scheduler_thread_pool_size", "scheduler_thread_pool_type", "scheduler_queue_type",
+        "scheduler_default_user_weight", "scheduler_default_user_max_concurrency",
+        "activity_deadline", "activity_deadline_run_script", "activity_deadline_timer",
+        "activity_deadline_condition", "activity_deadline_inputs_changed", "activity_deadline_notification",
+        "scheduler_journal_interval", "scheduler_catch_up_window", "scheduler_shards", "scheduler_clock",
+        "scheduler_priority_aging", "scheduler_max_queued", "scheduler_max_queued_per_user",
+        "scheduler_max_queued_per_agent", "scheduler_queue_low_watermark", "scheduler_overload_policy",
+        "script_cache_size", "script_compile_threshold", "script_optimize", "regex_cache_size")));
     
     // Now simply copy the keys to the config map
     for (Iterator<String> it = json.keys(); it.hasNext(); ){
@@ -192,6 +217,175 @@ public class AgentServerConfig {
     else
       return Integer.parseInt(maximumLimitInstanceStatesReturnedString);
   }
+
+  public int getSchedulerThreadPoolSize() {
+    String schedulerThreadPoolSizeString = get("scheduler_thread_pool_size");
+    if (schedulerThreadPoolSizeString == null || schedulerThreadPoolSizeString.trim().length() == 0)
+      return AgentActivityThreadPool.DEFAULT_THREAD_POOL_SIZE;
+    else
+      return Integer.parseInt(schedulerThreadPoolSizeString);
+  }
+
+  public String getSchedulerThreadPoolType() {
+    String schedulerThreadPoolType = get("scheduler_thread_pool_type");
+    if (schedulerThreadPoolType == null || schedulerThreadPoolType.trim().length() == 0)
+      return AgentActivityThreadPool.DEFAULT_THREAD_POOL_TYPE;
+    else
+      return schedulerThreadPoolType;
+  }
+
+  public String getSchedulerQueueType() {
+    String schedulerQueueType = get("scheduler_queue_type");
+    if (schedulerQueueType == null || schedulerQueueType.trim().length() == 0)
+      return AgentActivityQueue.DEFAULT_QUEUE_TYPE;
+    else
+      return schedulerQueueType;
+  }
+
+  public int getSchedulerDefaultUserWeight() {
+    String schedulerDefaultUserWeightString = get("scheduler_default_user_weight");
+    if (schedulerDefaultUserWeightString == null || schedulerDefaultUserWeightString.trim().length() == 0)
+      return AgentUserQueue.DEFAULT_USER_WEIGHT;
+    else
+      return Integer.parseInt(schedulerDefaultUserWeightString);
+  }
+
+  public int getSchedulerDefaultUserMaxConcurrency() {
+    String schedulerDefaultUserMaxConcurrencyString = get("scheduler_default_user_max_concurrency");
+    if (schedulerDefaultUserMaxConcurrencyString == null || schedulerDefaultUserMaxConcurrencyString.trim().length() == 0)
+      return AgentUserQueue.DEFAULT_USER_MAX_CONCURRENCY;
+    else
+      return Integer.parseInt(schedulerDefaultUserMaxConcurrencyString);
+  }
+
+  public long getActivityDeadline() {
+    String activityDeadlineString = get("activity_deadline");
+    if (activityDeadlineString == null || activityDeadlineString.trim().length() == 0)
+      return AgentActivity.DEFAULT_DEADLINE;
+    else
+      return Long.parseLong(activityDeadlineString);
+  }
+
+  public long getActivityDeadline(String activityType) {
+    // Each type of activity can have its own deadline, otherwise use the general one
+    String activityDeadlineString = get("activity_deadline_" + activityType);
+    if (activityDeadlineString == null || activityDeadlineString.trim().length() == 0)
+      return getActivityDeadline();
+    else
+      return Long.parseLong(activityDeadlineString);
+  }
+
+  public long getSchedulerJournalInterval() {
+    String schedulerJournalIntervalString = get("scheduler_journal_interval");
+    if (schedulerJournalIntervalString == null || schedulerJournalIntervalString.trim().length() == 0)
+      return AgentActivityJournal.DEFAULT_JOURNAL_INTERVAL;
+    else
+      return Long.parseLong(schedulerJournalIntervalString);
+  }
+
+  public long getSchedulerCatchUpWindow() {
+    String schedulerCatchUpWindowString = get("scheduler_catch_up_window");
+    if (schedulerCatchUpWindowString == null || schedulerCatchUpWindowString.trim().length() == 0)
+      return AgentActivityJournal.DEFAULT_CATCH_UP_WINDOW;
+    else
+      return Long.parseLong(schedulerCatchUpWindowString);
+  }
+
+  public int getSchedulerShards() {
+    String schedulerShardsString = get("scheduler_shards");
+    if (schedulerShardsString == null || schedulerShardsString.trim().length() == 0)
+      return AgentScheduler.DEFAULT_NUM_SHARDS;
+    else
+      return Integer.parseInt(schedulerShardsString);
+  }
+
+  public String getSchedulerClock() {
+    String schedulerClockString = get("scheduler_clock");
+    if (schedulerClockString == null || schedulerClockString.trim().length() == 0)
+      return Clock.DEFAULT_CLOCK_TYPE;
+    else
+      return schedulerClockString.trim().toLowerCase();
+  }
+
+  public long getSchedulerPriorityAging() {
+    String schedulerPriorityAgingString = get("scheduler_priority_aging");
+    if (schedulerPriorityAgingString == null || schedulerPriorityAgingString.trim().length() == 0)
+      return AgentReadyQueue.DEFAULT_AGING_INTERVAL;
+    else
+      return Long.parseLong(schedulerPriorityAgingString);
+  }
+
+  public int getSchedulerMaxQueued() {
+    String schedulerMaxQueuedString = get("scheduler_max_queued");
+    if (schedulerMaxQueuedString == null || schedulerMaxQueuedString.trim().length() == 0)
+      return AgentAdmissionControl.DEFAULT_MAX_QUEUED;
+    else
+      return Integer.parseInt(schedulerMaxQueuedString);
+  }
+
+  public int getSchedulerMaxQueuedPerUser() {
+    String schedulerMaxQueuedPerUserString = get("scheduler_max_queued_per_user");
+    if (schedulerMaxQueuedPerUserString == null || schedulerMaxQueuedPerUserString.trim().length() == 0)
+      return AgentAdmissionControl.DEFAULT_MAX_QUEUED_PER_USER;
+    else
+      return Integer.parseInt(schedulerMaxQueuedPerUserString);
+  }
+
+  public int getSchedulerMaxQueuedPerAgent() {
+    String schedulerMaxQueuedPerAgentString = get("scheduler_max_queued_per_agent");
+    if (schedulerMaxQueuedPerAgentString == null || schedulerMaxQueuedPerAgentString.trim().length() == 0)
+      return AgentAdmissionControl.DEFAULT_MAX_QUEUED_PER_AGENT;
+    else
+      return Integer.parseInt(schedulerMaxQueuedPerAgentString);
+  }
+
+  public int getSchedulerQueueLowWatermark() {
+    String schedulerQueueLowWatermarkString = get("scheduler_queue_low_watermark");
+    if (schedulerQueueLowWatermarkString == null || schedulerQueueLowWatermarkString.trim().length() == 0)
+      return AgentAdmissionControl.DEFAULT_LOW_WATERMARK;
+    else
+      return Integer.parseInt(schedulerQueueLowWatermarkString);
+  }
+
+  public String getSchedulerOverloadPolicy() {
+    String schedulerOverloadPolicyString = get("scheduler_overload_policy");
+    if (schedulerOverloadPolicyString == null || schedulerOverloadPolicyString.trim().length() == 0)
+      return AgentAdmissionControl.DEFAULT_OVERLOAD_POLICY;
+    else
+      return schedulerOverloadPolicyString.trim().toLowerCase();
+  }
+
+  public int getScriptCacheSize() {
+    String scriptCacheSizeString = get("script_cache_size");
+    if (scriptCacheSizeString == null || scriptCacheSizeString.trim().length() == 0)
+      return ScriptCache.DEFAULT_CAPACITY;
+    else
+      return Integer.parseInt(scriptCacheSizeString);
+  }
+
+  public int getScriptCompileThreshold() {
+    String scriptCompileThresholdString = get("script_compile_threshold");
+    if (scriptCompileThresholdString == null || scriptCompileThresholdString.trim().length() == 0)
+      return ScriptCompiler.DEFAULT_COMPILE_THRESHOLD;
+    else
+      return Integer.parseInt(scriptCompileThresholdString);
+  }
+
+  public boolean getScriptOptimize() {
+    String scriptOptimizeString = get("script_optimize");
+    if (scriptOptimizeString == null || scriptOptimizeString.trim().length() == 0)
+      return ScriptOptimizer.DEFAULT_OPTIMIZE;
+    else
+      return getBoolean("script_optimize");
+  }
+
+  public int getRegexCacheSize() {
+    String regexCacheSizeString = get("regex_cache_size");
+    if (regexCacheSizeString == null || regexCacheSizeString.trim().length() == 0)
+      return PatternCache.DEFAULT_CAPACITY;
+    else
+      return Integer.parseInt(regexCacheSizeString);
+  }
   
   public void putDefaultExecutionLevel(int level) throws AgentServerException{
     put("execution_limit_default_level", level);
@@ -231,6 +425,31 @@ public class AgentServerConfig {
     put("maximum_limit_instance_states_stored", agentServerProperties.maximumLimitInstanceStatesStored);
     put("default_limit_instance_states_returned", agentServerProperties.defaultLimitInstanceStatesReturned);
     put("maximum_limit_instance_states_returned", agentServerProperties.maximumLimitInstanceStatesReturned);
+    put("scheduler_thread_pool_size", agentServerProperties.schedulerThreadPoolSize);
+    put("scheduler_thread_pool_type", agentServerProperties.schedulerThreadPoolType);
+    put("scheduler_queue_type", agentServerProperties.schedulerQueueType);
+    put("scheduler_default_user_weight", agentServerProperties.schedulerDefaultUserWeight);
+    put("scheduler_default_user_max_concurrency", agentServerProperties.schedulerDefaultUserMaxConcurrency);
+    put("activity_deadline", agentServerProperties.activityDeadline);
+    put("activity_deadline_run_script", agentServerProperties.activityDeadlineRunScript);
+    put("activity_deadline_timer", agentServerProperties.activityDeadlineTimer);
+    put("activity_deadline_condition", agentServerProperties.activityDeadlineCondition);
+    put("activity_deadline_inputs_changed", agentServerProperties.activityDeadlineInputsChanged);
+    put("activity_deadline_notification", agentServerProperties.activityDeadlineNotification);
+    put("scheduler_journal_interval", agentServerProperties.schedulerJournalInterval);
+    put("scheduler_catch_up_window", agentServerProperties.schedulerCatchUpWindow);
+    put("scheduler_shards", agentServerProperties.schedulerShards);
+    put("scheduler_clock", agentServerProperties.schedulerClock);
+    put("scheduler_priority_aging", agentServerProperties.schedulerPriorityAging);
+    put("scheduler_max_queued", agentServerProperties.schedulerMaxQueued);
+    put("scheduler_max_queued_per_user", agentServerProperties.schedulerMaxQueuedPerUser);
+    put("scheduler_max_queued_per_agent", agentServerProperties.schedulerMaxQueuedPerAgent);
+    put("scheduler_queue_low_watermark", agentServerProperties.schedulerQueueLowWatermark);
+    put("scheduler_overload_policy", agentServerProperties.schedulerOverloadPolicy);
+    put("script_cache_size", agentServerProperties.scriptCacheSize);
+    put("script_compile_threshold", agentServerProperties.scriptCompileThreshold);
+    put("script_optimize", agentServerProperties.scriptOptimize);
+    put("regex_cache_size", agentServerProperties.regexCacheSize);
     // TODO: How to handle directory since we can't read the config file until we know the directory
     // Probably needs to be a command line or environment variable, maybe both
     
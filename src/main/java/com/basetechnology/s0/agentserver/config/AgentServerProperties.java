@@ -28,7 +28,25 @@ import com.basetechnology.s0.agentserver.AgentInstance;
 import com.basetechnology.s0.agentserver.AgentServerException;
 import com.basetechnology.s0.agentserver.User;
 import com.basetechnology.s0.agentserver.mailaccessmanager.MailAccessManager;
+import com.basetechnology.s0.agentserver.activities.AgentActivity;
+import com.basetechnology.s0.agentserver.activities.AgentActivityRunScript;
+import com.basetechnology.s0.agentserver.activities.AgentActivityTimer;
+import com.basetechnology.s0.agentserver.activities.AgentActivityCondition;
+import com.basetechnology.s0.agentserver.activities.AgentActivityTriggerInputChanged;
+import com.basetechnology.s0.agentserver.activities.AgentActivityNotification;
+import com.basetechnology.s0.agentserver.scheduler.AgentActivityJournal;
+import com.basetechnology.s0.agentserver.scheduler.AgentAdmissionControl;
+import com.basetechnology.s0.agentserver.scheduler.AgentActivityQueue;
+import com.basetechnology.s0.agentserver.scheduler.AgentActivityThreadPool;
+import com.basetechnology.s0.agentserver.scheduler.AgentReadyQueue;
+import com.basetechnology.s0.agentserver.scheduler.AgentScheduler;
+import com.basetechnology.s0.agentserver.script.compiler.ScriptCompiler;
+import com.basetechnology.s0.agentserver.script.optimizer.ScriptOptimizer;
+import com.basetechnology.s0.agentserver.script.parser.ScriptCache;
+import com.basetechnology.s0.agentserver.script.runtime.PatternCache;
+import com.basetechnology.s0.agentserver.scheduler.AgentUserQueue;
 import com.basetechnology.s0.agentserver.script.runtime.ScriptState;
+import com.basetechnology.s0.agentserver.util.Clock;
 import com.basetechnology.s0.agentserver.util.ListMap;
 import com.basetechnology.s0.agentserver.webaccessmanager.WebAccessManager;
 
@@ -87,6 +105,31 @@ public class AgentServerProperties {
   public String defaultLimitInstanceStatesStored;
   public String maximumLimitInstanceStatesReturned;
   public String defaultLimitInstanceStatesReturned;
+  public String schedulerThreadPoolSize;
+  public String schedulerThreadPoolType;
+  public String schedulerQueueType;
+  public String schedulerDefaultUserWeight;
+  public String schedulerDefaultUserMaxConcurrency;
+  public String activityDeadline;
+  public String activityDeadlineRunScript;
+  public String activityDeadlineTimer;
+  public String activityDeadlineCondition;
+  public String activityDeadlineInputsChanged;
+  public String activityDeadlineNotification;
+  public String schedulerJournalInterval;
+  public String schedulerCatchUpWindow;
+  public String schedulerShards;
+  public String schedulerClock;
+  public String schedulerPriorityAging;
+  public String schedulerMaxQueued;
+  public String schedulerMaxQueuedPerUser;
+  public String schedulerMaxQueuedPerAgent;
+  public String schedulerQueueLowWatermark;
+  public String schedulerOverloadPolicy;
+  public String scriptCacheSize;
+  public String scriptCompileThreshold;
+  public String scriptOptimize;
+  public String regexCacheSize;
 
   public ListMap<String, String> commandLineProperties;
   public Properties properties;
@@ -236,6 +279,53 @@ public class AgentServerProperties {
         Integer.toString(AgentInstance.DEFAULT_LIMIT_INSTANCE_STATES_RETURNED));
     maximumLimitInstanceStatesReturned = getProperty("maximum_limit_instance_states_returned",
         Integer.toString(AgentInstance.DEFAULT_MAXIMUM_LIMIT_INSTANCE_STATES_RETURNED));
+
+    schedulerThreadPoolSize = getProperty("scheduler_thread_pool_size",
+        Integer.toString(AgentActivityThreadPool.DEFAULT_THREAD_POOL_SIZE));
+    schedulerThreadPoolType = getProperty("scheduler_thread_pool_type",
+        AgentActivityThreadPool.DEFAULT_THREAD_POOL_TYPE);
+    schedulerQueueType = getProperty("scheduler_queue_type",
+        AgentActivityQueue.DEFAULT_QUEUE_TYPE);
+    schedulerDefaultUserWeight = getProperty("scheduler_default_user_weight",
+        Integer.toString(AgentUserQueue.DEFAULT_USER_WEIGHT));
+    schedulerDefaultUserMaxConcurrency = getProperty("scheduler_default_user_max_concurrency",
+        Integer.toString(AgentUserQueue.DEFAULT_USER_MAX_CONCURRENCY));
+    activityDeadline = getProperty("activity_deadline",
+        Long.toString(AgentActivity.DEFAULT_DEADLINE));
+    activityDeadlineRunScript = getProperty("activity_deadline_run_script",
+        Long.toString(AgentActivityRunScript.DEFAULT_DEADLINE));
+    activityDeadlineTimer = getProperty("activity_deadline_timer",
+        Long.toString(AgentActivityTimer.DEFAULT_DEADLINE));
+    activityDeadlineCondition = getProperty("activity_deadline_condition",
+        Long.toString(AgentActivityCondition.DEFAULT_DEADLINE));
+    activityDeadlineInputsChanged = getProperty("activity_deadline_inputs_changed",
+        Long.toString(AgentActivityTriggerInputChanged.DEFAULT_DEADLINE));
+    activityDeadlineNotification = getProperty("activity_deadline_notification",
+        Long.toString(AgentActivityNotification.DEFAULT_DEADLINE));
+    schedulerJournalInterval = getProperty("scheduler_journal_interval",
+        Long.toString(AgentActivityJournal.DEFAULT_JOURNAL_INTERVAL));
+    schedulerCatchUpWindow = getProperty("scheduler_catch_up_window",
+        Long.toString(AgentActivityJournal.DEFAULT_CATCH_UP_WINDOW));
+    schedulerShards = getProperty("scheduler_shards",
+        Integer.toString(AgentScheduler.DEFAULT_NUM_SHARDS));
+    schedulerClock = getProperty("scheduler_clock", Clock.DEFAULT_CLOCK_TYPE);
+    schedulerPriorityAging = getProperty("scheduler_priority_aging",
+        Long.toString(AgentReadyQueue.DEFAULT_AGING_INTERVAL));
+    schedulerMaxQueued = getProperty("scheduler_max_queued",
+        Integer.toString(AgentAdmissionControl.DEFAULT_MAX_QUEUED));
+    schedulerMaxQueuedPerUser = getProperty("scheduler_max_queued_per_user",
+        Integer.toString(AgentAdmissionControl.DEFAULT_MAX_QUEUED_PER_USER));
+    schedulerMaxQueuedPerAgent = getProperty("scheduler_max_queued_per_agent",
+        Integer.toString(AgentAdmissionControl.DEFAULT_MAX_QUEUED_PER_AGENT));
+    schedulerQueueLowWatermark = getProperty("scheduler_queue_low_watermark",
+        Integer.toString(AgentAdmissionControl.DEFAULT_LOW_WATERMARK));
+    schedulerOverloadPolicy = getProperty("scheduler_overload_policy",
+        AgentAdmissionControl.DEFAULT_OVERLOAD_POLICY);
+    scriptCacheSize = getProperty("script_cache_size", Integer.toString(ScriptCache.DEFAULT_CAPACITY));
+    scriptCompileThreshold = getProperty("script_compile_threshold",
+        Integer.toString(ScriptCompiler.DEFAULT_COMPILE_THRESHOLD));
+    scriptOptimize = getProperty("script_optimize", Boolean.toString(ScriptOptimizer.DEFAULT_OPTIMIZE));
+    regexCacheSize = getProperty("regex_cache_size", Integer.toString(PatternCache.DEFAULT_CAPACITY));
     
   }
   
@@ -57,7 +57,7 @@ public class MailAccessManager {
   }
 
   public long getDelayedAccessTime(String emailAddress){
-    // Get current time
+    // Get current time - in real time even with a simulated clock, since this throttles a real mail server
     long now = System.currentTimeMillis();
     
     // Get time of last access to this email address
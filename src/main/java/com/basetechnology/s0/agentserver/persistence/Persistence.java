@@ -33,6 +33,7 @@ import com.basetechnology.s0.agentserver.AgentServerException;
 import com.basetechnology.s0.agentserver.User;
 import com.basetechnology.s0.agentserver.persistence.persistentfile.PersistentFile;
 import com.basetechnology.s0.agentserver.persistence.persistentfile.PersistentFileException;
+import com.basetechnology.s0.agentserver.scheduler.AgentActivityJournal;
 import com.basetechnology.s0.agentserver.script.intermediate.SymbolException;
 import com.basetechnology.s0.agentserver.script.parser.ParserException;
 import com.basetechnology.s0.agentserver.script.parser.tokenizer.TokenizerException;
@@ -65,7 +66,8 @@ public class Persistence {
         loadAllTables();
       } else {
         // No, create a new persistent file for this agent server
-        List<String> tableNames = Arrays.asList("config", "users", "agentDefinitions", "agentInstances", "webaccess");
+        List<String> tableNames = Arrays.asList("config", "users", "agentDefinitions", "agentInstances", "webaccess",
+            AgentActivityJournal.TABLE_NAME);
         file.create(path, "Agent Server Stage 0", "0.1", tableNames);
         
         // And open it
@@ -102,7 +104,8 @@ public class Persistence {
       }
   }
 
-  public String get(String tableName, String key) throws AgentServerException {
+  // Note: The scheduler's activity journal writes from its own thread, so access to the file is synchronized
+  public synchronized String get(String tableName, String key) throws AgentServerException {
     try {
       return file.get(tableName, key);
     } catch (PersistentFileException e){
@@ -114,7 +117,7 @@ public class Persistence {
     }
   }
 
-  public ListMap<String, String> get(String tableName) throws IOException, PersistentFileException {
+  public synchronized ListMap<String, String> get(String tableName) throws IOException, PersistentFileException {
     return file.get(tableName);
   }
   
@@ -134,7 +137,7 @@ public class Persistence {
     put("agentInstances", agentInstance.user.id + "|" + agentInstance.name, agentInstance.toJson().toString());
   }
 
-  public void put(String tableName, String key, String value) throws AgentServerException {
+  public synchronized void put(String tableName, String key, String value) throws AgentServerException {
     try {
       file.put(tableName, key, value);
     } catch (PersistentFileException e){
@@ -151,7 +154,7 @@ public class Persistence {
     loadAgentDefinitions();
     loadAgentInstances();
     // TODO: Status of the scheduler - is it suspended, when is it started?
-    // TODO: What to do about pending activities - store/load them? Or, can they be ignored?
+    // Note: Pending timers and conditions are read back from the activity journal when the scheduler starts
   }
 
   public void loadUsers() throws AgentServerException {
@@ -0,0 +1,41 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.scheduler;
+
+import java.util.Comparator;
+
+import com.basetechnology.s0.agentserver.activities.AgentActivity;
+
+public class AgentActivityComparator implements Comparator<AgentActivity> {
+  public static final AgentActivityComparator one = new AgentActivityComparator();
+
+  public int compare(AgentActivity activity1, AgentActivity activity2){
+    // Order by scheduled time first
+    if (activity1.when < activity2.when)
+      return -1;
+    else if (activity1.when > activity2.when)
+      return 1;
+
+    // Activities scheduled for the same time run in the order they were queued
+    else if (activity1.sequenceNumber < activity2.sequenceNumber)
+      return -1;
+    else if (activity1.sequenceNumber > activity2.sequenceNumber)
+      return 1;
+    else
+      return 0;
+  }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.basetechnology.s0.agentserver.scheduler;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+import com.basetechnology.s0.agentserver.AgentInstance;
+import com.basetechnology.s0.agentserver.activities.AgentActivity;
+
+public class AgentActivityHeapQueue extends AgentActivityQueue {
+  // Activities waiting for their scheduled time, earliest first
+  public PriorityQueue<AgentActivity> queue = new PriorityQueue<AgentActivity>(11, AgentActivityComparator.one);
+
+  public String getType(){
+    return HEAP_QUEUE_TYPE;
+  }
+
+  public void add(AgentActivity activity){
+    queue.add(activity);
+  }
+
+  public boolean remove(AgentActivity activity){
+    return queue.remove(activity);
+  }
+
+  public AgentActivity pollDue(long now){
+    AgentActivity activity = queue.peek();
+    if (activity != null && now >= activity.when)
+      return queue.poll();
+    else
+      return null;
+  }
+
+  public long getNextDueTime(){
+    AgentActivity activity = queue.peek();
+    return activity == null ? -1 : activity.when;
+  }
+
+  public int removeAgentActivities(AgentInstance agentInstance){
+    int numRemoved = 0;
+    for (Iterator<AgentActivity> it = queue.iterator(); it.hasNext(); )
+      if (it.next().agent == agentInstance){
+        it.remove();
+        numRemoved++;
+      }
+    return numRemoved;
+  }
+
+  public int size(){
+    return queue.size();
+  }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.scheduler;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.basetechnology.s0.agentserver.util.JsonListMap;
+
+public class AgentActivityHistogram {
+  // Log-linear buckets in the style of an HDR histogram - values below SUB_BUCKET_COUNT
+  // get a bucket each, and each power of two above that is split into SUB_BUCKET_COUNT
+  // buckets, so any recorded value is off by at most 1/16 of its magnitude
+  public static final int SUB_BUCKET_BITS = 4;
+  public static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  public static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+  // Note: Counts are updated without locking, so recording never blocks the scheduler
+  // and readers may see a count that is a record or two behind the buckets
+  protected AtomicLongArray counts;
+  protected AtomicLong totalCount;
+  protected AtomicLong totalValue;
+  protected AtomicLong maxValue;
+
+  public AgentActivityHistogram(){
+    this.counts = new AtomicLongArray(NUM_BUCKETS);
+    this.totalCount = new AtomicLong();
+    this.totalValue = new AtomicLong();
+    this.maxValue = new AtomicLong();
+  }
+
+  static public int getBucketIndex(long value){
+    if (value < SUB_BUCKET_COUNT)
+      return value < 0 ? 0 : (int)value;
+
+    // Power of two above the linear range, and which of its sub-buckets the value falls in
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS;
+    int subBucket = (int)(value >>> shift) - SUB_BUCKET_COUNT;
+    return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+  }
+
+  static public long getBucketHighValue(int index){
+    // Highest value that is recorded in the bucket
+    if (index < SUB_BUCKET_COUNT)
+      return index;
+    int shift = index / SUB_BUCKET_COUNT - 1;
+    long lowValue = (long)(index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT) << shift;
+    return lowValue + (1L << shift) - 1;
+  }
+
+  public void record(long value){
+    if (value < 0)
+      value = 0;
+    counts.incrementAndGet(getBucketIndex(value));
+    totalCount.incrementAndGet();
+    totalValue.addAndGet(value);
+    for (long max = maxValue.get(); value > max && ! maxValue.compareAndSet(max, value); max = maxValue.get())
+      ;
+  }
+
+  public long getCount(){
+    return totalCount.get();
+  }
+
+  public long getMax(){
+    return maxValue.get();
+  }
+
+  public double getMean(){
+    long count = totalCount.get();
+    return count == 0 ? 0 : (double)totalValue.get() / count;
+  }
+
+  public long getValueAtPercentile(double percentile){
+    // Walk the buckets until the requested fraction of all values has been seen
+    long count = totalCount.get();
+    if (count == 0)
+      return 0;
+    long countAtPercentile = Math.max(1, (long)Math.ceil(percentile / 100 * count));
+    long seen = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++){
+      seen += counts.get(i);
+      if (seen >= countAtPercentile)
+        return Math.min(getBucketHighValue(i), maxValue.get());
+    }
+    return maxValue.get();
+  }
+
+  public JSONObject toJson() throws JSONException {
+    JSONObject histogramJson = new JsonListMap();
+    histogramJson.put("count", getCount());
+    histogramJson.put("mean", Math.round(getMean() * 100) / 100.0);
+    histogramJson.put("p50", getValueAtPercentile(50));
+    histogramJson.put("p90", getValueAtPercentile(90));
+    histogramJson.put("p99", getValueAtPercentile(99));
+    histogramJson.put("p999", getValueAtPercentile(99.9));
+    histogramJson.put("max", getMax());
+    return histogramJson;
+  }
+}
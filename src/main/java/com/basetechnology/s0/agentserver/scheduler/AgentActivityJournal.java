@@ -0,0 +1,251 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.scheduler;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.basetechnology.s0.agentserver.AgentInstance;
+import com.basetechnology.s0.agentserver.AgentServerException;
+import com.basetechnology.s0.agentserver.User;
+import com.basetechnology.s0.agentserver.activities.AgentActivity;
+import com.basetechnology.s0.agentserver.activities.AgentActivityCondition;
+import com.basetechnology.s0.agentserver.activities.AgentActivityRunScript;
+import com.basetechnology.s0.agentserver.activities.AgentActivityTimer;
+import com.basetechnology.s0.agentserver.persistence.Persistence;
+import com.basetechnology.s0.agentserver.persistence.persistentfile.PersistentFileException;
+import com.basetechnology.s0.agentserver.util.ListMap;
+
+public class AgentActivityJournal implements Runnable {
+  static final Logger log = Logger.getLogger(AgentActivityJournal.class);
+
+  public static final String TABLE_NAME = "activityJournal";
+  public static final long DEFAULT_JOURNAL_INTERVAL = 5 * 1000;
+  public static final long DEFAULT_CATCH_UP_WINDOW = 10 * 1000;
+
+  public Persistence persistence;
+  public long interval;
+  Thread thread;
+  volatile boolean stopRequested;
+
+  // Journal entry for each agent, keyed by user id and agent name
+  // Note: All access to the entries is synchronized on the journal
+  Map<String, AgentActivityJournalEntry> entries;
+  // Keys of entries that have changed since they were last written
+  Set<String> dirtyKeys;
+  // Entries read from the persistent store, consulted only while agents are rehydrated at startup
+  Map<String, AgentActivityJournalEntry> restoredEntries;
+
+  public long numFlushes;
+  public long numEntriesWritten;
+
+  public AgentActivityJournal(Persistence persistence, long interval){
+    this.persistence = persistence;
+    this.interval = interval;
+    this.entries = new HashMap<String, AgentActivityJournalEntry>();
+    this.dirtyKeys = new LinkedHashSet<String>();
+    this.restoredEntries = new HashMap<String, AgentActivityJournalEntry>();
+  }
+
+  static public boolean isSupported(Persistence persistence){
+    // Persistent stores created before the journal existed have no table for it
+    return persistence != null && persistence.file != null && persistence.file.getTable(TABLE_NAME) != null;
+  }
+
+  static public String getKey(AgentInstance agent){
+    User user = agent.user == null ? User.noUser : agent.user;
+    return user.id + "|" + agent.name;
+  }
+
+  public synchronized void load() throws AgentServerException {
+    try {
+      // Read the entries written before the last shutdown
+      ListMap<String, String> table = persistence.get(TABLE_NAME);
+      for (String key: table){
+        AgentActivityJournalEntry entry = AgentActivityJournalEntry.fromJson(new JSONObject(table.get(key)));
+        restoredEntries.put(key, entry);
+
+        // Carry forward the 'init' status, since fire times will be journaled again as activities are queued
+        entries.put(key, new AgentActivityJournalEntry(entry.ranInit));
+      }
+      log.info("Loaded " + restoredEntries.size() + " activity journal entries");
+    } catch (PersistentFileException e){
+      e.printStackTrace();
+      throw new AgentServerException("PersistentFileException loading activity journal: " + e.getMessage());
+    } catch (IOException e){
+      e.printStackTrace();
+      throw new AgentServerException("IOException loading activity journal from persistent store: " + e.getMessage());
+    } catch (JSONException e){
+      e.printStackTrace();
+      throw new AgentServerException("JSONException loading activity journal from persistent store: " + e.getMessage());
+    }
+  }
+
+  public synchronized boolean restoredRanInit(AgentInstance agent){
+    AgentActivityJournalEntry entry = restoredEntries.get(getKey(agent));
+    return entry != null && entry.ranInit;
+  }
+
+  public synchronized long getRestoredWhen(AgentActivity activity){
+    // Time a timer or condition was due to fire before the restart, zero if unknown
+    AgentActivityJournalEntry entry = restoredEntries.get(getKey(activity.agent));
+    Map<String, Long> times = entry == null ? null : getTimes(entry, activity);
+    Long when = times == null ? null : times.get(getName(activity));
+    return when == null ? 0 : when;
+  }
+
+  public synchronized void discardRestoredEntries(){
+    restoredEntries.clear();
+  }
+
+  protected AgentActivityJournalEntry getEntry(AgentInstance agent){
+    String key = getKey(agent);
+    AgentActivityJournalEntry entry = entries.get(key);
+    if (entry == null){
+      entry = new AgentActivityJournalEntry();
+      entries.put(key, entry);
+    }
+    return entry;
+  }
+
+  protected boolean isJournaled(AgentActivity activity){
+    // Only timers and conditions have a schedule phase worth keeping over a restart
+    return activity instanceof AgentActivityTimer || activity instanceof AgentActivityCondition;
+  }
+
+  protected Map<String, Long> getTimes(AgentActivityJournalEntry entry, AgentActivity activity){
+    if (activity instanceof AgentActivityTimer)
+      return entry.timers;
+    else if (activity instanceof AgentActivityCondition)
+      return entry.conditions;
+    else
+      return null;
+  }
+
+  protected String getName(AgentActivity activity){
+    if (activity instanceof AgentActivityTimer)
+      return ((AgentActivityTimer)activity).timer.name;
+    else
+      return ((AgentActivityCondition)activity).condition.name;
+  }
+
+  public synchronized void activityQueued(AgentActivity activity){
+    // Record the next fire time of a timer or condition
+    if (isJournaled(activity)){
+      getTimes(getEntry(activity.agent), activity).put(getName(activity), activity.when);
+      dirtyKeys.add(getKey(activity.agent));
+    }
+  }
+
+  public synchronized void activityFinished(AgentActivity activity){
+    // Record that the agent ran its 'init' script
+    if (activity instanceof AgentActivityRunScript){
+      AgentActivityJournalEntry entry = getEntry(activity.agent);
+      if (((AgentActivityRunScript)activity).scriptName.equals("init") && activity.agent.ranInit && ! entry.ranInit){
+        entry.ranInit = true;
+        dirtyKeys.add(getKey(activity.agent));
+      }
+      return;
+    }
+
+    // A timer or condition that will not be re-armed no longer has a fire time
+    if (isJournaled(activity) && getTimes(getEntry(activity.agent), activity).remove(getName(activity)) != null)
+      dirtyKeys.add(getKey(activity.agent));
+  }
+
+  public synchronized void agentRemoved(AgentInstance agent){
+    // Forget the agent, so that a new agent of the same name starts afresh
+    String key = getKey(agent);
+    entries.put(key, new AgentActivityJournalEntry());
+    dirtyKeys.add(key);
+  }
+
+  public void start(){
+    // Don't let the journal keep the JVM alive
+    thread = new Thread(this, "AgentActivityJournal");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public void run(){
+    log.info("AgentActivityJournal.run started");
+    while (! stopRequested){
+      // Let changes accumulate so that they can be written as a batch
+      synchronized (this){
+        try {
+          if (! stopRequested)
+            wait(interval);
+        } catch (InterruptedException e){
+          // Nothing to do
+        }
+      }
+      flush();
+    }
+    thread = null;
+    log.info("AgentActivityJournal.run finished");
+  }
+
+  public void flush(){
+    // Take a snapshot of the changed entries
+    Map<String, String> batch = new LinkedHashMap<String, String>();
+    synchronized (this){
+      try {
+        for (String key: dirtyKeys)
+          batch.put(key, entries.get(key).toJson().toString());
+      } catch (JSONException e){
+        log.warn("JSONException journaling activities: " + e.getMessage());
+      }
+      dirtyKeys.clear();
+    }
+
+    // Write them outside the lock so the scheduler never waits for the disk
+    for (String key: batch.keySet()){
+      try {
+        persistence.put(TABLE_NAME, key, batch.get(key));
+      } catch (AgentServerException e){
+        log.warn("Unable to write activity journal entry for " + key + ": " + e.getMessage());
+      }
+    }
+    synchronized (this){
+      numFlushes++;
+      numEntriesWritten += batch.size();
+    }
+  }
+
+  public void stop(){
+    // Write out any remaining changes before the persistent store is closed
+    stopRequested = true;
+    synchronized (this){
+      notifyAll();
+    }
+    Thread journalThread = thread;
+    if (journalThread != null)
+      try {
+        journalThread.join(interval + 5 * 1000);
+      } catch (InterruptedException e){
+        // Nothing to do
+      }
+  }
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.scheduler;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public class AgentActivityJournalEntry {
+  // Whether the agent has already run its 'init' script
+  public boolean ranInit;
+  // Next fire time of each of the agent's timers and conditions, by name
+  public Map<String, Long> timers;
+  public Map<String, Long> conditions;
+
+  public AgentActivityJournalEntry(){
+    this(false);
+  }
+
+  public AgentActivityJournalEntry(boolean ranInit){
+    this.ranInit = ranInit;
+    this.timers = new LinkedHashMap<String, Long>();
+    this.conditions = new LinkedHashMap<String, Long>();
+  }
+
+  static public AgentActivityJournalEntry fromJson(JSONObject entryJson) throws JSONException {
+    AgentActivityJournalEntry entry = new AgentActivityJournalEntry(entryJson.optBoolean("ran_init", false));
+    getTimes(entryJson.optJSONObject("timers"), entry.timers);
+    getTimes(entryJson.optJSONObject("conditions"), entry.conditions);
+    return entry;
+  }
+
+  static protected void getTimes(JSONObject timesJson, Map<String, Long> times) throws JSONException {
+    if (timesJson != null)
+      for (Iterator<String> it = timesJson.keys(); it.hasNext(); ){
+        String name = it.next();
+        times.put(name, timesJson.getLong(name));
+      }
+  }
+
+  public JSONObject toJson() throws JSONException {
+    JSONObject entryJson = new JSONObject();
+    entryJson.put("ran_init", ranInit);
+    entryJson.put("timers", new JSONObject(timers));
+    entryJson.put("conditions", new JSONObject(conditions));
+    return entryJson;
+  }
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.basetechnology.s0.agentserver.scheduler;
+
+import com.basetechnology.s0.agentserver.AgentInstance;
+import com.basetechnology.s0.agentserver.AgentServerException;
+import com.basetechnology.s0.agentserver.activities.AgentActivity;
+
+public abstract class AgentActivityQueue {
+  public static final String HEAP_QUEUE_TYPE = "heap";
+  public static final String TIMING_WHEEL_QUEUE_TYPE = "timing_wheel";
+  public static final String DEFAULT_QUEUE_TYPE = HEAP_QUEUE_TYPE;
+
+  static public AgentActivityQueue create(String type, long now) throws AgentServerException {
+    if (type == null || type.trim().length() == 0)
+      type = DEFAULT_QUEUE_TYPE;
+    type = type.trim().toLowerCase();
+    if (type.equals(HEAP_QUEUE_TYPE))
+      return new AgentActivityHeapQueue();
+    else if (type.equals(TIMING_WHEEL_QUEUE_TYPE))
+      return new AgentActivityTimingWheel(now);
+    else
+      throw new AgentServerException("Unknown scheduler queue type: '" + type + "'");
+  }
+
+  abstract public String getType();
+
+  abstract public void add(AgentActivity activity);
+
+  abstract public boolean remove(AgentActivity activity);
+
+  // Remove and return the next activity whose time has come, or null if none is due yet
+  abstract public AgentActivity pollDue(long now);
+
+  // Time by which the scheduler should check again for due activities, or -1 if the queue is empty
+  abstract public long getNextDueTime();
+
+  abstract public int removeAgentActivities(AgentInstance agentInstance);
+
+  abstract public int size();
+
+  public boolean isEmpty(){
+    return size() == 0;
+  }
+}
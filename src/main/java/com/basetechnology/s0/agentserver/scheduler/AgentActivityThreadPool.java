@@ -0,0 +1,158 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.basetechnology.s0.agentserver.scheduler;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.basetechnology.s0.agentserver.AgentServerException;
+import com.basetechnology.s0.agentserver.activities.AgentActivityThread;
+import com.basetechnology.s0.agentserver.util.JsonListMap;
+
+public class AgentActivityThreadPool {
+  static final Logger log = Logger.getLogger(AgentActivityThreadPool.class);
+
+  public static final String FIXED_THREAD_POOL_TYPE = "fixed";
+  public static final String VIRTUAL_THREAD_POOL_TYPE = "virtual";
+  public static final String DEFAULT_THREAD_POOL_TYPE = FIXED_THREAD_POOL_TYPE;
+  public static final int DEFAULT_THREAD_POOL_SIZE = 8;
+
+  public String type;
+  public int size;
+  protected ExecutorService executor;
+
+  // Counts for reporting queue depth and activity in the pool
+  protected AtomicInteger numQueued = new AtomicInteger();
+  protected AtomicInteger numActive = new AtomicInteger();
+  protected AtomicLong numCompleted = new AtomicLong();
+
+  public AgentActivityThreadPool() throws AgentServerException {
+    this(DEFAULT_THREAD_POOL_TYPE, DEFAULT_THREAD_POOL_SIZE);
+  }
+
+  public AgentActivityThreadPool(String type, int size) throws AgentServerException {
+    if (type == null || type.trim().length() == 0)
+      type = DEFAULT_THREAD_POOL_TYPE;
+    type = type.trim().toLowerCase();
+    if (! type.equals(FIXED_THREAD_POOL_TYPE) && ! type.equals(VIRTUAL_THREAD_POOL_TYPE))
+      throw new AgentServerException("Unknown scheduler thread pool type: '" + type + "'");
+    if (size < 1)
+      throw new AgentServerException("Scheduler thread pool size must be at least 1: " + size);
+    this.size = size;
+
+    // Virtual threads are only available on newer JDKs, so fall back to fixed platform threads
+    if (type.equals(VIRTUAL_THREAD_POOL_TYPE)){
+      executor = newVirtualThreadExecutor();
+      if (executor == null){
+        log.warn("Virtual threads are not supported by this JVM - using fixed thread pool instead");
+        type = FIXED_THREAD_POOL_TYPE;
+      }
+    }
+    this.type = type;
+
+    // Fixed pool threads are created up front so that dispatch never creates a thread
+    if (executor == null){
+      ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(size, size, 0L, TimeUnit.MILLISECONDS,
+          new LinkedBlockingQueue<Runnable>(), new AgentActivityThreadFactory());
+      threadPoolExecutor.prestartAllCoreThreads();
+      executor = threadPoolExecutor;
+    }
+    log.info("Created " + type + " agent activity thread pool with size " + size);
+  }
+
+  static ExecutorService newVirtualThreadExecutor(){
+    // Use reflection since the method only exists on JDKs that support virtual threads
+    try {
+      Method method = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService)method.invoke(null);
+    } catch (Exception e){
+      return null;
+    }
+  }
+
+  public void execute(final AgentActivityThread activityThread){
+    // Wrap the activity so that we can track how many are queued and running
+    numQueued.incrementAndGet();
+    executor.execute(new Runnable(){
+      public void run(){
+        numQueued.decrementAndGet();
+        numActive.incrementAndGet();
+        activityThread.thread = Thread.currentThread();
+        try {
+          activityThread.run();
+        } finally {
+          activityThread.thread = null;
+          numActive.decrementAndGet();
+          numCompleted.incrementAndGet();
+        }
+      }
+    });
+  }
+
+  public int getQueueDepth(){
+    return numQueued.get();
+  }
+
+  public int getNumActive(){
+    return numActive.get();
+  }
+
+  public long getNumCompleted(){
+    return numCompleted.get();
+  }
+
+  public boolean isShutdown(){
+    return executor.isShutdown();
+  }
+
+  public void shutdown(){
+    // Let any activities that are already running finish, but accept no new ones
+    executor.shutdown();
+  }
+
+  public JSONObject toJson() throws JSONException {
+    JSONObject poolJson = new JsonListMap();
+    poolJson.put("type", type);
+    poolJson.put("size", size);
+    poolJson.put("active", getNumActive());
+    poolJson.put("queue_depth", getQueueDepth());
+    poolJson.put("completed", getNumCompleted());
+    return poolJson;
+  }
+
+  static class AgentActivityThreadFactory implements ThreadFactory {
+    static AtomicInteger nextPoolNumber = new AtomicInteger(1);
+    AtomicInteger nextThreadNumber = new AtomicInteger(1);
+    String namePrefix = "AgentActivity-" + nextPoolNumber.getAndIncrement() + "-";
+
+    public Thread newThread(Runnable runnable){
+      // Don't let idle pool threads keep the JVM alive
+      Thread thread = new Thread(runnable, namePrefix + nextThreadNumber.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,251 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.basetechnology.s0.agentserver.scheduler;
+
+import com.basetechnology.s0.agentserver.AgentInstance;
+import com.basetechnology.s0.agentserver.activities.AgentActivity;
+
+/**
+ * Hashed hierarchical timing wheel for scheduled agent activities.
+ *
+ * Level zero has one bucket per tick, and each higher level has one bucket per full turn of
+ * the level below it. An activity is placed in the lowest level whose span covers its delay and
+ * is cascaded down into finer buckets as the wheel turns, so insert and cancel are O(1) rather
+ * than O(log n) for the heap. Activities in the same tick become due in insertion order.
+ */
+public class AgentActivityTimingWheel extends AgentActivityQueue {
+  public static final long DEFAULT_TICK_INTERVAL = 10;
+  public static final int WHEEL_BITS = 6;
+  public static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+  public static final int WHEEL_MASK = WHEEL_SIZE - 1;
+  public static final int NUM_LEVELS = 4;
+  public static final long MAX_TICKS = (1L << (WHEEL_BITS * NUM_LEVELS)) - 1;
+
+  public long tickInterval;
+  // All ticks up to and including the current tick have been expired
+  public long currentTick;
+  protected Bucket[][] buckets;
+  // Activities whose tick has passed, in the order they became due
+  protected Bucket due;
+  protected int size;
+
+  public AgentActivityTimingWheel(long now){
+    this(DEFAULT_TICK_INTERVAL, now);
+  }
+
+  public AgentActivityTimingWheel(long tickInterval, long now){
+    this.tickInterval = tickInterval;
+    this.currentTick = now / tickInterval;
+    this.buckets = new Bucket[NUM_LEVELS][WHEEL_SIZE];
+    for (int level = 0; level < NUM_LEVELS; level++)
+      for (int slot = 0; slot < WHEEL_SIZE; slot++)
+        buckets[level][slot] = new Bucket();
+    this.due = new Bucket();
+    this.size = 0;
+  }
+
+  public String getType(){
+    return TIMING_WHEEL_QUEUE_TYPE;
+  }
+
+  public void add(AgentActivity activity){
+    insert(activity);
+    size++;
+  }
+
+  protected void insert(AgentActivity activity){
+    // Round up so that an activity never becomes due before its time
+    long expiryTick = (activity.when + tickInterval - 1) / tickInterval;
+    long ticks = expiryTick - currentTick;
+    if (ticks <= 0){
+      due.add(activity);
+      return;
+    }
+
+    // Activities beyond the span of the wheel wait in the top level and get re-inserted as it turns
+    if (ticks > MAX_TICKS){
+      ticks = MAX_TICKS;
+      expiryTick = currentTick + MAX_TICKS;
+    }
+
+    // Pick the lowest level whose span covers the delay
+    int level = 0;
+    while (level < NUM_LEVELS - 1 && ticks >= 1L << (WHEEL_BITS * (level + 1)))
+      level++;
+    int slot = (int)((expiryTick >> (WHEEL_BITS * level)) & WHEEL_MASK);
+    buckets[level][slot].add(activity);
+  }
+
+  public boolean remove(AgentActivity activity){
+    Node node = activity.wheelNode;
+    if (node.bucket == null)
+      return false;
+    node.bucket.remove(node);
+    size--;
+    return true;
+  }
+
+  protected void advance(long now){
+    long nowTick = now / tickInterval;
+
+    // Nothing to cascade or expire if everything left is already due
+    if (size == due.size){
+      if (nowTick > currentTick)
+        currentTick = nowTick;
+      return;
+    }
+
+    while (currentTick < nowTick){
+      currentTick++;
+
+      // Whenever a level wraps around, cascade the next bucket of the level above it
+      for (int level = 1; level < NUM_LEVELS; level++){
+        if ((currentTick & ((1L << (WHEEL_BITS * level)) - 1)) != 0)
+          break;
+        int slot = (int)((currentTick >> (WHEEL_BITS * level)) & WHEEL_MASK);
+        Bucket bucket = buckets[level][slot];
+        for (Node node = bucket.clear(); node != null; ){
+          Node next = node.next;
+          node.next = null;
+          insert(node.activity);
+          node = next;
+        }
+      }
+
+      // Everything in the level zero bucket for this tick is now due
+      Bucket bucket = buckets[0][(int)(currentTick & WHEEL_MASK)];
+      for (Node node = bucket.clear(); node != null; ){
+        Node next = node.next;
+        node.next = null;
+        due.add(node.activity);
+        node = next;
+      }
+    }
+  }
+
+  public AgentActivity pollDue(long now){
+    advance(now);
+    Node node = due.head;
+    if (node == null)
+      return null;
+    due.remove(node);
+    size--;
+    return node.activity;
+  }
+
+  public long getNextDueTime(){
+    if (size == 0)
+      return -1;
+    else if (due.size > 0)
+      return currentTick * tickInterval;
+
+    // Look for the next non-empty level zero bucket before level zero wraps around
+    long wrapTick = (currentTick | WHEEL_MASK) + 1;
+    for (long tick = currentTick + 1; tick < wrapTick; tick++)
+      if (buckets[0][(int)(tick & WHEEL_MASK)].size > 0)
+        return tick * tickInterval;
+
+    // Otherwise check again when the next higher level bucket gets cascaded
+    return wrapTick * tickInterval;
+  }
+
+  public int removeAgentActivities(AgentInstance agentInstance){
+    int numRemoved = removeAgentActivities(due, agentInstance);
+    for (int level = 0; level < NUM_LEVELS; level++)
+      for (int slot = 0; slot < WHEEL_SIZE; slot++)
+        numRemoved += removeAgentActivities(buckets[level][slot], agentInstance);
+    size -= numRemoved;
+    return numRemoved;
+  }
+
+  protected int removeAgentActivities(Bucket bucket, AgentInstance agentInstance){
+    int numRemoved = 0;
+    for (Node node = bucket.head; node != null; ){
+      Node next = node.next;
+      if (node.activity.agent == agentInstance){
+        bucket.remove(node);
+        numRemoved++;
+      }
+      node = next;
+    }
+    return numRemoved;
+  }
+
+  public int size(){
+    return size;
+  }
+
+  // Links for one activity in the wheel; only the wheel can change them, so other code holding
+  // the activity can't corrupt the bucket lists
+  public static class Node {
+    final AgentActivity activity;
+    Bucket bucket;
+    Node prev;
+    Node next;
+
+    public Node(AgentActivity activity){
+      this.activity = activity;
+    }
+  }
+
+  // Doubly-linked list of the nodes of the activities in one slot of the wheel
+  static class Bucket {
+    Node head;
+    Node tail;
+    int size;
+
+    void add(AgentActivity activity){
+      Node node = activity.wheelNode;
+      node.bucket = this;
+      node.prev = tail;
+      node.next = null;
+      if (tail == null)
+        head = node;
+      else
+        tail.next = node;
+      tail = node;
+      size++;
+    }
+
+    void remove(Node node){
+      if (node.prev == null)
+        head = node.next;
+      else
+        node.prev.next = node.next;
+      if (node.next == null)
+        tail = node.prev;
+      else
+        node.next.prev = node.prev;
+      node.bucket = null;
+      node.prev = null;
+      node.next = null;
+      size--;
+    }
+
+    // Empty the bucket, returning its nodes still chained through next
+    Node clear(){
+      Node first = head;
+      for (Node node = first; node != null; node = node.next){
+        node.bucket = null;
+        node.prev = null;
+      }
+      head = null;
+      tail = null;
+      size = 0;
+      return first;
+    }
+  }
+}
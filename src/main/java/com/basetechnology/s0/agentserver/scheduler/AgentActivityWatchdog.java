@@ -0,0 +1,86 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.scheduler;
+
+import org.apache.log4j.Logger;
+
+import com.basetechnology.s0.agentserver.util.Clock;
+
+public class AgentActivityWatchdog implements Runnable {
+  static final Logger log = Logger.getLogger(AgentActivityWatchdog.class);
+
+  // Real time between deadline checks while running on a simulated clock
+  public static final long SIMULATED_CHECK_INTERVAL = 100;
+
+  public AgentSchedulerShard shard;
+  Thread thread;
+  volatile boolean stopRequested;
+
+  // Earliest deadline the watchdog is waiting for, zero if none
+  // Note: Access is synchronized on the shard
+  long nextCheckTime;
+
+  public AgentActivityWatchdog(AgentSchedulerShard shard){
+    this.shard = shard;
+  }
+
+  public void start(){
+    // Don't let the watchdog keep the JVM alive
+    thread = new Thread(this, "AgentActivityWatchdog-" + shard.index);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public void run(){
+    log.info("AgentActivityWatchdog.run started");
+    synchronized (shard){
+      while (! stopRequested){
+        // Abort anything past its deadline and find out when the next deadline falls
+        long now = Clock.now();
+        nextCheckTime = shard.abortOverdueActivities(now);
+
+        // Wait for that deadline, or for the shard to start an activity with an earlier one
+        try {
+          // Note: Simulated time can jump ahead at any moment, so re-check it frequently
+          long waitTime = nextCheckTime == 0 ? 0 : Math.max(1, nextCheckTime - now);
+          if (waitTime > SIMULATED_CHECK_INTERVAL && Clock.get().isSimulated())
+            waitTime = SIMULATED_CHECK_INTERVAL;
+          shard.wait(waitTime);
+        } catch (InterruptedException e){
+          // Nothing to do
+        }
+      }
+      thread = null;
+    }
+    log.info("AgentActivityWatchdog.run finished");
+  }
+
+  public void deadlineAdded(long deadline){
+    // Wake the watchdog if it would otherwise sleep past this deadline
+    // Note: Caller must be synchronized on the shard
+    if (nextCheckTime == 0 || deadline < nextCheckTime){
+      nextCheckTime = deadline;
+      shard.notifyAll();
+    }
+  }
+
+  public void stop(){
+    // Caller must be synchronized on the shard
+    stopRequested = true;
+    shard.notifyAll();
+  }
+}
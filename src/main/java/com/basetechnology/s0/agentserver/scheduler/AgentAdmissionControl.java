@@ -0,0 +1,229 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.scheduler;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.basetechnology.s0.agentserver.AgentInstance;
+import com.basetechnology.s0.agentserver.AgentServerException;
+import com.basetechnology.s0.agentserver.User;
+import com.basetechnology.s0.agentserver.activities.AgentActivity;
+import com.basetechnology.s0.agentserver.util.JsonListMap;
+
+public class AgentAdmissionControl {
+  static final Logger log = Logger.getLogger(AgentAdmissionControl.class);
+
+  // High watermarks on queued activities, zero for no limit
+  public static final int DEFAULT_MAX_QUEUED = 100000;
+  public static final int DEFAULT_MAX_QUEUED_PER_USER = 10000;
+  public static final int DEFAULT_MAX_QUEUED_PER_AGENT = 1000;
+  // Low watermark, as a percentage of each high watermark, below which new activities are admitted again
+  public static final int DEFAULT_LOW_WATERMARK = 75;
+
+  // What to do with a new activity once a limit has been crossed
+  public static final String REJECT_POLICY = "reject";
+  public static final String DEFER_POLICY = "defer";
+  public static final String DEFAULT_OVERLOAD_POLICY = REJECT_POLICY;
+
+  // How long a deferred activity is held back, and how long REST clients are told to wait
+  public static final long DEFAULT_RETRY_INTERVAL = 5 * 1000;
+
+  public int maxQueued;
+  public int maxQueuedPerUser;
+  public int maxQueuedPerAgent;
+  public int lowWatermark;
+  public String overloadPolicy;
+  public long retryInterval;
+
+  // Number of activities queued or waiting in a mailbox, and whether a limit has been crossed
+  static class QueuedCount {
+    int numQueued;
+    boolean saturated;
+  }
+
+  protected QueuedCount total = new QueuedCount();
+  protected Map<String, QueuedCount> userCounts = new HashMap<String, QueuedCount>();
+  protected Map<AgentInstance, QueuedCount> agentCounts = new HashMap<AgentInstance, QueuedCount>();
+  protected volatile boolean saturated;
+
+  // Counts of activities turned away, held back, or dropped in favor of newer ones
+  protected long numRejected;
+  protected long numDeferred;
+  protected long numDropped;
+
+  public AgentAdmissionControl(){
+    this.maxQueued = DEFAULT_MAX_QUEUED;
+    this.maxQueuedPerUser = DEFAULT_MAX_QUEUED_PER_USER;
+    this.maxQueuedPerAgent = DEFAULT_MAX_QUEUED_PER_AGENT;
+    this.lowWatermark = DEFAULT_LOW_WATERMARK;
+    this.overloadPolicy = DEFAULT_OVERLOAD_POLICY;
+    this.retryInterval = DEFAULT_RETRY_INTERVAL;
+  }
+
+  static public String checkOverloadPolicy(String policy) throws AgentServerException {
+    if (policy == null || policy.trim().length() == 0)
+      return DEFAULT_OVERLOAD_POLICY;
+    policy = policy.trim().toLowerCase();
+    if (! (policy.equals(REJECT_POLICY) || policy.equals(DEFER_POLICY)))
+      throw new AgentServerException("Unknown scheduler overload policy: '" + policy + "'");
+    return policy;
+  }
+
+  static protected String getUserId(AgentInstance agent){
+    return agent.user == null ? User.noUser.id : agent.user.id;
+  }
+
+  public boolean isSaturated(){
+    return saturated;
+  }
+
+  public synchronized boolean isSaturated(String userId){
+    QueuedCount userCount = userCounts.get(userId);
+    return saturated || (userCount != null && userCount.saturated);
+  }
+
+  public synchronized boolean isSaturated(AgentInstance agent){
+    // Any of the limits that apply to the agent will do
+    QueuedCount userCount = userCounts.get(getUserId(agent));
+    QueuedCount agentCount = agentCounts.get(agent);
+    return saturated || (userCount != null && userCount.saturated) || (agentCount != null && agentCount.saturated);
+  }
+
+  public synchronized int getNumQueued(){
+    return total.numQueued;
+  }
+
+  public synchronized int getNumQueued(AgentInstance agent){
+    QueuedCount agentCount = agentCounts.get(agent);
+    return agentCount == null ? 0 : agentCount.numQueued;
+  }
+
+  public synchronized boolean admit(AgentActivity activity, boolean force){
+    // Refuse the activity if any limit for it has been crossed, unless it must be queued regardless
+    AgentInstance agent = activity.agent;
+    String userId = getUserId(agent);
+    QueuedCount userCount = userCounts.get(userId);
+    QueuedCount agentCount = agentCounts.get(agent);
+    if (! force && (total.saturated || (userCount != null && userCount.saturated) ||
+        (agentCount != null && agentCount.saturated)))
+      return false;
+
+    // Count it against all three limits
+    if (userCount == null){
+      userCount = new QueuedCount();
+      userCounts.put(userId, userCount);
+    }
+    if (agentCount == null){
+      agentCount = new QueuedCount();
+      agentCounts.put(agent, agentCount);
+    }
+    increment(total, maxQueued, "Scheduler queue");
+    increment(userCount, maxQueuedPerUser, "Scheduler queue for user " + userId);
+    increment(agentCount, maxQueuedPerAgent, "Scheduler queue for agent " + agent.name);
+    saturated = total.saturated;
+    return true;
+  }
+
+  public synchronized void release(AgentInstance agent, int numActivities){
+    // Activities have left the queue, by being dispatched, dropped, or flushed
+    if (numActivities <= 0)
+      return;
+    String userId = getUserId(agent);
+    decrement(total, numActivities, maxQueued, "Scheduler queue");
+    QueuedCount userCount = userCounts.get(userId);
+    if (userCount != null && decrement(userCount, numActivities, maxQueuedPerUser, "Scheduler queue for user " + userId))
+      userCounts.remove(userId);
+    QueuedCount agentCount = agentCounts.get(agent);
+    if (agentCount != null && decrement(agentCount, numActivities, maxQueuedPerAgent, "Scheduler queue for agent " + agent.name))
+      agentCounts.remove(agent);
+    saturated = total.saturated;
+  }
+
+  public synchronized void clear(AgentInstance agent){
+    // Agent no longer has anything queued, such as when its mailbox is discarded
+    QueuedCount agentCount = agentCounts.get(agent);
+    if (agentCount != null)
+      release(agent, agentCount.numQueued);
+  }
+
+  public synchronized void activityRejected(){
+    numRejected++;
+  }
+
+  public synchronized void activityDeferred(){
+    numDeferred++;
+  }
+
+  public synchronized void activityDropped(){
+    numDropped++;
+  }
+
+  public synchronized long getNumRejected(){
+    return numRejected;
+  }
+
+  public synchronized long getNumDeferred(){
+    return numDeferred;
+  }
+
+  public synchronized long getNumDropped(){
+    return numDropped;
+  }
+
+  protected void increment(QueuedCount count, int maxQueued, String what){
+    count.numQueued++;
+    if (! count.saturated && maxQueued > 0 && count.numQueued >= maxQueued){
+      count.saturated = true;
+      log.warn(what + " is saturated with " + count.numQueued + " activities");
+    }
+  }
+
+  protected boolean decrement(QueuedCount count, int numActivities, int maxQueued, String what){
+    // Returns true once nothing is left queued
+    count.numQueued = Math.max(0, count.numQueued - numActivities);
+    if (count.saturated && count.numQueued <= (long)maxQueued * lowWatermark / 100){
+      count.saturated = false;
+      log.info(what + " is no longer saturated, with " + count.numQueued + " activities");
+    }
+    return count.numQueued == 0;
+  }
+
+  public synchronized void putJson(JSONObject metricsJson) throws JSONException {
+    JSONObject admissionJson = new JsonListMap();
+    admissionJson.put("queued", total.numQueued);
+    admissionJson.put("saturated", total.saturated);
+    int numSaturatedUsers = 0;
+    for (QueuedCount userCount: userCounts.values())
+      if (userCount.saturated)
+        numSaturatedUsers++;
+    admissionJson.put("saturated_users", numSaturatedUsers);
+    int numSaturatedAgents = 0;
+    for (QueuedCount agentCount: agentCounts.values())
+      if (agentCount.saturated)
+        numSaturatedAgents++;
+    admissionJson.put("saturated_agents", numSaturatedAgents);
+    admissionJson.put("rejected", numRejected);
+    admissionJson.put("deferred", numDeferred);
+    admissionJson.put("dropped", numDropped);
+    metricsJson.put("admission", admissionJson);
+  }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.basetechnology.s0.agentserver.scheduler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+import com.basetechnology.s0.agentserver.activities.AgentActivity;
+
+public class AgentMailbox implements Iterable<AgentActivity> {
+  // Activities delivered to an agent that wait for it to be free, one queue per priority class,
+  // each in the order the activities were delivered
+  // Note: All access must be synchronized on the scheduler shard the agent is pinned to
+  protected Deque<AgentActivity>[] priorityQueues;
+  protected int size;
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public AgentMailbox(){
+    priorityQueues = new Deque[AgentActivity.NUM_PRIORITIES];
+    for (int i = 0; i < AgentActivity.NUM_PRIORITIES; i++)
+      priorityQueues[i] = new ArrayDeque<AgentActivity>();
+    size = 0;
+  }
+
+  public void add(AgentActivity activity){
+    priorityQueues[activity.priority].add(activity);
+    size++;
+  }
+
+  public int getTopPriority(){
+    // Class of the most urgent activity in the mailbox, or the least urgent class if it is empty
+    for (int priority = 0; priority < AgentActivity.NUM_PRIORITIES - 1; priority++)
+      if (! priorityQueues[priority].isEmpty())
+        return priority;
+    return AgentActivity.NUM_PRIORITIES - 1;
+  }
+
+  public AgentActivity poll(long now, long agingInterval){
+    // Take the most urgent activity, allowing for aging, and the oldest of those that are equally urgent
+    // Note: The head of each queue has waited longest in its class, so only the heads need be compared
+    int bestPriority = -1;
+    int bestEffectivePriority = AgentActivity.NUM_PRIORITIES;
+    long bestReadyTime = 0;
+    for (int priority = 0; priority < AgentActivity.NUM_PRIORITIES; priority++){
+      AgentActivity activity = priorityQueues[priority].peek();
+      if (activity == null)
+        continue;
+      int effectivePriority = activity.getEffectivePriority(now, agingInterval);
+      if (effectivePriority < bestEffectivePriority ||
+          (effectivePriority == bestEffectivePriority && activity.readyTime < bestReadyTime)){
+        bestPriority = priority;
+        bestEffectivePriority = effectivePriority;
+        bestReadyTime = activity.readyTime;
+      }
+    }
+    if (bestPriority < 0)
+      return null;
+    size--;
+    return priorityQueues[bestPriority].poll();
+  }
+
+  public boolean remove(AgentActivity activity){
+    if (! priorityQueues[activity.priority].remove(activity))
+      return false;
+    size--;
+    return true;
+  }
+
+  public void clear(){
+    for (Deque<AgentActivity> priorityQueue: priorityQueues)
+      priorityQueue.clear();
+    size = 0;
+  }
+
+  public boolean isEmpty(){
+    return size == 0;
+  }
+
+  public int size(){
+    return size;
+  }
+
+  public Iterator<AgentActivity> iterator(){
+    // Most urgent class first, for flushing and reporting rather than dispatch
+    List<AgentActivity> activities = new ArrayList<AgentActivity>(size);
+    for (Deque<AgentActivity> priorityQueue: priorityQueues)
+      activities.addAll(priorityQueue);
+    return activities.iterator();
+  }
+}
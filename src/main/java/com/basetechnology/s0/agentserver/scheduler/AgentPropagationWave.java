@@ -0,0 +1,188 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.scheduler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.basetechnology.s0.agentserver.AgentInstance;
+import com.basetechnology.s0.agentserver.AgentServerException;
+import com.basetechnology.s0.agentserver.util.Clock;
+
+public class AgentPropagationWave {
+  static final Logger log = Logger.getLogger(AgentPropagationWave.class);
+
+  public AgentScheduler scheduler;
+  public AgentInstance root;
+  public long startTime;
+  public long endTime;
+
+  // Instances affected by a change of the root's outputs, grouped by depth in topological order
+  // Note: Level zero is the root alone, and each instance is one deeper than the deepest of its data sources,
+  // so instances at the same level never depend on each other and can be evaluated in parallel
+  public List<List<AgentInstance>> levels;
+
+  // Instances whose outputs changed so far in this wave, starting with the root
+  // Note: All access must be synchronized on the wave
+  public Set<AgentInstance> changed;
+  int currentLevel;
+  int numPending;
+  public int numEvaluated;
+  public boolean finished;
+
+  public AgentPropagationWave(AgentScheduler scheduler, AgentInstance root){
+    this.scheduler = scheduler;
+    this.root = root;
+    this.startTime = 0;
+    this.endTime = 0;
+    this.levels = getLevels(root);
+    this.changed = new HashSet<AgentInstance>();
+    this.currentLevel = 0;
+    this.numPending = 0;
+    this.numEvaluated = 0;
+    this.finished = false;
+  }
+
+  static public List<List<AgentInstance>> getLevels(AgentInstance root){
+    // Find every instance that depends on the root, directly or through other instances
+    Set<AgentInstance> affected = new LinkedHashSet<AgentInstance>();
+    Deque<AgentInstance> toVisit = new ArrayDeque<AgentInstance>();
+    affected.add(root);
+    toVisit.add(root);
+    while (! toVisit.isEmpty())
+      for (AgentInstance dependent: getDependents(toVisit.poll()))
+        if (affected.add(dependent))
+          toVisit.add(dependent);
+
+    // Count the affected data sources of each affected instance
+    // Note: An edge back into the root would be a cycle, so the root always starts the order
+    Map<AgentInstance, Integer> numSources = new HashMap<AgentInstance, Integer>();
+    for (AgentInstance agent: affected)
+      numSources.put(agent, 0);
+    for (AgentInstance agent: affected)
+      for (AgentInstance dependent: getDependents(agent))
+        if (dependent != root)
+          numSources.put(dependent, numSources.get(dependent) + 1);
+
+    // Order the instances so that each comes after all of its data sources, at one level past the deepest
+    Map<AgentInstance, Integer> depths = new HashMap<AgentInstance, Integer>();
+    Deque<AgentInstance> ready = new ArrayDeque<AgentInstance>();
+    depths.put(root, 0);
+    ready.add(root);
+    int maxDepth = 0;
+    while (! ready.isEmpty()){
+      AgentInstance agent = ready.poll();
+      int depth = depths.get(agent);
+      for (AgentInstance dependent: getDependents(agent)){
+        if (dependent == root)
+          continue;
+        Integer dependentDepth = depths.get(dependent);
+        if (dependentDepth == null || dependentDepth < depth + 1)
+          depths.put(dependent, depth + 1);
+        int remaining = numSources.get(dependent) - 1;
+        numSources.put(dependent, remaining);
+        if (remaining == 0){
+          ready.add(dependent);
+          maxDepth = Math.max(maxDepth, depths.get(dependent));
+        }
+      }
+    }
+
+    // Group the instances by depth, with any caught in a cycle evaluated last
+    List<List<AgentInstance>> levels = new ArrayList<List<AgentInstance>>();
+    for (int i = 0; i <= maxDepth; i++)
+      levels.add(new ArrayList<AgentInstance>());
+    List<AgentInstance> cyclic = new ArrayList<AgentInstance>();
+    for (AgentInstance agent: affected)
+      if (agent == root || numSources.get(agent) == 0)
+        levels.get(depths.get(agent)).add(agent);
+      else
+        cyclic.add(agent);
+    if (cyclic.size() > 0){
+      log.warn("Data source cycle through " + cyclic.size() + " instances that depend on " + root.name);
+      levels.add(cyclic);
+    }
+    return levels;
+  }
+
+  static protected Set<AgentInstance> getDependents(AgentInstance agent){
+    // An instance that uses the same data source for several inputs is still only one dependent
+    return new LinkedHashSet<AgentInstance>(agent.dependentInstances);
+  }
+
+  public synchronized void start(){
+    // Root's outputs have already changed, so evaluate its dependents level by level
+    startTime = Clock.now();
+    changed.add(root);
+    launchNextLevel();
+  }
+
+  protected void launchNextLevel(){
+    // Trigger each instance of the next level that has a data source whose outputs changed in this wave
+    // Note: Caller must be synchronized on the wave, and levels with nothing to evaluate are skipped
+    while (++currentLevel < levels.size()){
+      for (AgentInstance agent: levels.get(currentLevel)){
+        AgentInstance changedDataSource = getChangedDataSource(agent);
+        if (changedDataSource == null || ! agent.enabled)
+          continue;
+        long triggerInterval;
+        try {
+          triggerInterval = agent.getTriggerInterval();
+        } catch (AgentServerException e){
+          log.warn("Unable to get trigger interval for " + agent.name + " - skipping it in wave from " + root.name + ": " + e);
+          continue;
+        }
+        numPending++;
+        numEvaluated++;
+        scheduler.triggerInputChanged(agent, changedDataSource, triggerInterval, this);
+      }
+      if (numPending > 0)
+        return;
+    }
+    finish();
+  }
+
+  protected AgentInstance getChangedDataSource(AgentInstance agent){
+    for (AgentInstance dataSource: agent.dataSourceInstances.values())
+      if (changed.contains(dataSource))
+        return dataSource;
+    return null;
+  }
+
+  public synchronized void agentEvaluated(AgentInstance agent, boolean outputChanged){
+    // Move on to the next level once every instance of this one has been evaluated
+    if (outputChanged)
+      changed.add(agent);
+    if (--numPending == 0 && ! finished)
+      launchNextLevel();
+  }
+
+  protected void finish(){
+    finished = true;
+    endTime = Clock.now();
+    scheduler.metrics.waveFinished(this);
+  }
+}
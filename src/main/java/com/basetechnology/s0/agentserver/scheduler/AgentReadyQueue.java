@@ -0,0 +1,96 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.scheduler;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import com.basetechnology.s0.agentserver.AgentInstance;
+import com.basetechnology.s0.agentserver.activities.AgentActivity;
+
+public class AgentReadyQueue {
+  // Time an agent must wait before its priority rises by one class
+  public static final long DEFAULT_AGING_INTERVAL = 1000;
+
+  // Ready agents, one queue per priority class, each in the order they became ready
+  // Note: All access must be synchronized on the scheduler shard
+  protected Deque<AgentInstance>[] priorityQueues;
+  protected int size;
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public AgentReadyQueue(){
+    priorityQueues = new Deque[AgentActivity.NUM_PRIORITIES];
+    for (int i = 0; i < AgentActivity.NUM_PRIORITIES; i++)
+      priorityQueues[i] = new ArrayDeque<AgentInstance>();
+    size = 0;
+  }
+
+  public void add(AgentInstance agent, int priority, long now){
+    agent.readyPriority = priority;
+    agent.readyTime = now;
+    priorityQueues[priority].add(agent);
+    size++;
+  }
+
+  public void promote(AgentInstance agent, int priority, long now){
+    // Move a ready agent up to a higher priority class when a more urgent activity arrives for it
+    if (priority < agent.readyPriority && remove(agent))
+      add(agent, priority, now);
+  }
+
+  public AgentInstance poll(long now, long agingInterval){
+    // Strict priority, except that an agent's class rises the longer it waits, so low priorities can't starve
+    // Note: The head of each queue has waited longest in its class, so only the heads need be compared
+    int bestPriority = -1;
+    int bestEffectivePriority = AgentActivity.NUM_PRIORITIES;
+    for (int priority = 0; priority < AgentActivity.NUM_PRIORITIES; priority++){
+      AgentInstance agent = priorityQueues[priority].peek();
+      if (agent == null)
+        continue;
+      int effectivePriority = AgentActivity.getEffectivePriority(priority, agent.readyTime, now, agingInterval);
+      if (effectivePriority < bestEffectivePriority){
+        bestPriority = priority;
+        bestEffectivePriority = effectivePriority;
+      }
+    }
+    if (bestPriority < 0)
+      return null;
+    size--;
+    return priorityQueues[bestPriority].poll();
+  }
+
+  public boolean remove(AgentInstance agent){
+    if (! priorityQueues[agent.readyPriority].remove(agent))
+      return false;
+    size--;
+    return true;
+  }
+
+  public void clear(){
+    for (Deque<AgentInstance> priorityQueue: priorityQueues)
+      priorityQueue.clear();
+    size = 0;
+  }
+
+  public boolean isEmpty(){
+    return size == 0;
+  }
+
+  public int size(){
+    return size;
+  }
+}
@@ -17,9 +17,17 @@
 package com.basetechnology.s0.agentserver.scheduler;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 import com.basetechnology.s0.agentserver.AgentCondition;
 import com.basetechnology.s0.agentserver.AgentInstance;
@@ -28,206 +36,333 @@ import com.basetechnology.s0.agentserver.AgentServer;
 import com.basetechnology.s0.agentserver.AgentServerException;
 import com.basetechnology.s0.agentserver.AgentTimer;
 import com.basetechnology.s0.agentserver.RuntimeException;
+import com.basetechnology.s0.agentserver.User;
 import com.basetechnology.s0.agentserver.activities.AgentActivity;
 import com.basetechnology.s0.agentserver.activities.AgentActivityCondition;
 import com.basetechnology.s0.agentserver.activities.AgentActivityRunScript;
-import com.basetechnology.s0.agentserver.activities.AgentActivityThread;
 import com.basetechnology.s0.agentserver.activities.AgentActivityTimer;
+import com.basetechnology.s0.agentserver.util.Clock;
 import com.basetechnology.s0.agentserver.util.DateUtils;
+import com.basetechnology.s0.agentserver.util.JsonListMap;
 import com.basetechnology.s0.agentserver.util.NameValue;
+import com.basetechnology.s0.agentserver.util.RingBuffer;
+import com.basetechnology.s0.agentserver.util.SimulatedClock;
 
-public class AgentScheduler implements Runnable {
+public class AgentScheduler {
   static final Logger log = Logger.getLogger(AgentScheduler.class);
 
   static public AgentScheduler singleton = null;
 
+  // One shard per agent hash bucket - zero or less means one per available processor, but no more than
+  // there are workers, so that every shard still gets a worker of its own
+  public static final int DEFAULT_NUM_SHARDS = 0;
+
   public AgentServer agentServer;
-  
+
   int SLEEP_INTERVAL = 10;
-  int MAX_THREADS = 8;
   int MAX_COMPLETED_ACTIVITIES = 500;
 
-  public boolean neverStarted;
-  public boolean running;
-  public boolean paused;
-  public boolean shutdown;
-  Thread thread;
-  
-  private boolean requestPause;
-  private boolean requestResume;
-  protected boolean requestShutdown;
-  
-  public List<AgentActivity> queue;
-  public List<Thread> activeThreads;
+  public volatile boolean neverStarted;
+  public volatile boolean running;
+  public volatile boolean paused;
+  public volatile boolean shutdown;
+
+  // Shards that each run their own agents, with their own queue, workers, and thread
+  // Note: Each agent is pinned to one shard by the hash of its user and name
+  public volatile AgentSchedulerShard[] shards;
+
+  int defaultUserWeight;
+  int defaultUserMaxConcurrency;
+  // Activities running for each user across all shards, so that a user's maximum concurrency applies to the whole scheduler
+  final ConcurrentHashMap<String, AtomicInteger> userActiveCounts = new ConcurrentHashMap<String, AtomicInteger>();
+  // Time an activity waits before its priority rises by one class, zero for strict priority
+  volatile long priorityAgingInterval;
+  // Limits on queued activities and what to do once they are crossed
+  public AgentAdmissionControl admission;
+  // Most recently completed activities of all shards, oldest first, with the oldest dropped once full
   public List<AgentActivity> completedActivities;
-  
+
+  // Dispatch lag, run time, and queue depth distributions, and activity counts per user and agent
+  public AgentSchedulerMetrics metrics;
+
+  // Journal of the fire times of timers and conditions, so that they survive a restart
+  public volatile AgentActivityJournal journal;
+  long catchUpWindow;
+  // Journaled activities that came due while the server was down, only while agents are rehydrated
+  List<AgentActivity> overdueActivities;
+
   public AgentScheduler(AgentServer agentServer) throws RuntimeException, InterruptedException, AgentServerException {
     this(agentServer, true);
   }
-  
+
   public AgentScheduler(AgentServer agentServer, boolean start) throws RuntimeException, InterruptedException, AgentServerException {
     this.agentServer = agentServer;
 
     // Initialize state of scheduler
     initialize();
-    
+
     // Optionally start the scheduler
     if (start)
       start();
   }
 
-  public void initialize(){
+  public synchronized void initialize(){
     this.neverStarted = true;
     this.running = false;
     this.paused = false;
     this.shutdown = false;
-    this.thread = null;
-    
-    this.requestPause = false;
-    this.requestResume = false;
-    this.requestShutdown = false;
-    
-    this.queue = new ArrayList<AgentActivity>();
-    this.activeThreads = new ArrayList<Thread>();
-    this.completedActivities = new ArrayList<AgentActivity>();
-  }
-  
-  public void run(){
-    neverStarted = false;
-    running = true;
-    log.info("AgentScheduler.run started");
-    boolean noneAvailable = false;
-    while (true){
-      if (requestShutdown){
-        log.info("AgentScheduler.run shutdown requested");
-        break;
-      }
-      
-      // Sleep a little if queue is empty or maximum threads are running or we are suspended
-      while (queue.size() == 0 || activeThreads.size() >= MAX_THREADS || requestPause || paused || noneAvailable){
-        // Check if pause or resume requested
-        if (requestResume){
-          paused = false;
-          requestPause = false;
-          running = true;
-          requestResume = false;
-          log.info("Scheduler is resuming at external request");
-        }
-        else if (requestPause){
-          paused = true;
-          requestPause = false;
-          running = false;
-          log.info("Scheduler is pausing at external request");
-        }
 
-        try {
-          //log.info("AgentScheduler.run sleep queue.size: " + queue.size() + " requestShutdown: " + requestShutdown + " requestPause: " + requestPause);
-          // Sleep a little
-          // TODO: Do a wait if nothing is in queue
-          Thread.sleep(SLEEP_INTERVAL);
+    this.shards = createShards(getConfiguredNumShards());
+    this.defaultUserWeight = AgentUserQueue.DEFAULT_USER_WEIGHT;
+    this.defaultUserMaxConcurrency = AgentUserQueue.DEFAULT_USER_MAX_CONCURRENCY;
+    this.priorityAgingInterval = AgentReadyQueue.DEFAULT_AGING_INTERVAL;
+    this.admission = new AgentAdmissionControl();
+    this.completedActivities = Collections.synchronizedList(new RingBuffer<AgentActivity>(MAX_COMPLETED_ACTIVITIES));
+    this.metrics = new AgentSchedulerMetrics();
+    this.catchUpWindow = AgentActivityJournal.DEFAULT_CATCH_UP_WINDOW;
+    this.overdueActivities = null;
+  }
 
-          // Need to re-check whether anything is available to run
-          noneAvailable = false;
-        } catch (InterruptedException e ){
-          // Nothing to do
-        }
-        
-        // May be a request to shut down
-        if (requestShutdown){
-          log.info("AgentScheduler.run sleep requestShutdown: " + requestShutdown + " requestPause: " + requestPause);
-          break;
-        }
-      }
+  protected AgentSchedulerShard[] createShards(int numShards){
+    AgentSchedulerShard[] newShards = new AgentSchedulerShard[numShards];
+    for (int i = 0; i < numShards; i++)
+      newShards[i] = new AgentSchedulerShard(this, i);
+    return newShards;
+  }
 
-      // Need to re-check whether anything is available to run
-      noneAvailable = true;
-      
-      // Now process the queue
-      int queueLen = queue.size();
-      for (int i = 0; i < queueLen;){
-        long now = System.currentTimeMillis();
-
-        // Skip queue processing if trying to pause or shut down
-        if (requestShutdown || requestPause)
-          break;
-
-        // Process next activity if its scheduled time has come or is overdue
-        AgentActivity activity = queue.get(i);
-        if (activity.status == AgentActivity.StatusTypes.NOT_STARTED &&
-            now >= activity.when && activity.agent.enabled){
-          // Skip activity for now if target agent is already busy
-          if (! activity.agent.busy){
-            // Mark agent as busy
-            activity.agent.busy = true;
-
-            // Mark the activity as 'starting'
-            activity.startingActivity();
-            
-            // Start the agent activity in a new thread
-            AgentActivityThread activityThread = new AgentActivityThread(activity);
-            Thread thread = new Thread(activityThread);
-            thread.start();
-            activityThread.thread = thread;
-            activity.activityThread = activityThread;
-
-            // Note that some activity occurred
-            noneAvailable = false;
-            
-            // TODO: Log start of activity
-            //log.info("Starting activity - " + activity.description);
-          } else
-            log.info("Skipping activity due to busy agent - " + activity.description);
-            
-          // Process next activity in queue
-          i++;
-        } else if (activity.status == AgentActivity.StatusTypes.COMPLETED ||
-            activity.status == AgentActivity.StatusTypes.ABORTED ||
-            activity.status == AgentActivity.StatusTypes.EXCEPTION){
-          // Add the activity to the completed list
-          completedActivities.add(activity);
-          if (completedActivities.size() > MAX_COMPLETED_ACTIVITIES)
-            completedActivities.remove(0);
-          
-          // Agent is no longer busy with this activity
-          activity.agent.busy = false;
-          
-          // Note that other activities may now be able to run
-          noneAvailable = false;
-          
-          // Done with this activity, remove it
-          // TODO: Log end of this activity
-          //log.info("Finished activity - " + activity.description + " status: " + activity.status + " in " + (activity.endTime - activity.startTime) + " ms.");
-          queue.remove(i);
-          queueLen = queue.size();
-          
-          // May be done with the thread in which the activity was running
-          AgentActivityThread activityThread = activity.activityThread;
-          if (activity.status == AgentActivity.StatusTypes.COMPLETED ||
-              activity.status == AgentActivity.StatusTypes.ABORTED ||
-              activity.status == AgentActivity.StatusTypes.EXCEPTION){
-            // Yes, we really done with that activity thread
-            // TODO: If not, when would thread be released??
-            activeThreads.remove(activityThread.thread);
-            activity.activityThread.thread = null;
-            activity.activityThread = null;
-          }
-        } else {
-          // Process next activity in queue
-          i++;
-        }
+  public int getConfiguredNumShards(){
+    // Use default if config has not been loaded yet
+    int numShards = agentServer == null || agentServer.config == null ?
+        DEFAULT_NUM_SHARDS : agentServer.config.getSchedulerShards();
+    if (numShards > 0)
+      return numShards;
+    int threadPoolSize = agentServer == null || agentServer.config == null ?
+        AgentActivityThreadPool.DEFAULT_THREAD_POOL_SIZE : agentServer.config.getSchedulerThreadPoolSize();
+    return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), threadPoolSize));
+  }
 
-        // TODO: Flush activities that never completed in maximum permissible time - and log this
+  public int getNumShards(){
+    return shards.length;
+  }
+
+  public AgentSchedulerShard getShard(AgentInstance agent){
+    // Agent always runs on the same shard, so that its activities stay in order
+    AgentSchedulerShard[] currentShards = shards;
+    if (agent == null || currentShards.length == 1)
+      return currentShards[0];
+    int hash = AgentActivityJournal.getKey(agent).hashCode();
+    return currentShards[(hash & Integer.MAX_VALUE) % currentShards.length];
+  }
+
+  protected synchronized void shardStateChanged(){
+    // Scheduler as a whole is running, paused, or shut down only once all of its shards are
+    boolean anyStarted = false;
+    boolean allRunning = true;
+    boolean allPaused = true;
+    boolean allShutdown = true;
+    for (AgentSchedulerShard shard: shards){
+      anyStarted |= shard.started;
+      allRunning &= shard.running;
+      allPaused &= shard.paused;
+      allShutdown &= shard.shutdown;
+    }
+    if (anyStarted)
+      neverStarted = false;
+    running = allRunning;
+    paused = allPaused;
+
+    // Write out the journal once the last shard stops, while the persistent store is still open
+    if (allShutdown && ! shutdown){
+      if (journal != null){
+        journal.stop();
+        journal = null;
       }
+      if (singleton == this)
+        singleton = null;
+      shutdown = true;
     }
+  }
+
+  public void scriptStarting(AgentInstance agent){
+    getShard(agent).scriptStarting(agent);
+  }
+
+  public void scriptFinished(AgentInstance agent){
+    getShard(agent).scriptFinished(agent);
+  }
+
+  public void wakeAgent(AgentInstance agent){
+    getShard(agent).wakeAgent(agent);
+  }
+
+  public int getNumPendingActivities(){
+    // Count activities that have not yet completed, including those running
+    int numPending = 0;
+    for (AgentSchedulerShard shard: shards)
+      numPending += shard.getNumPendingActivities();
+    return numPending;
+  }
+
+  public int getNumScheduledActivities(){
+    // Count activities that are still waiting for their scheduled time
+    int numScheduled = 0;
+    for (AgentSchedulerShard shard: shards)
+      numScheduled += shard.getNumScheduledActivities();
+    return numScheduled;
+  }
+
+  public int getNumActiveActivities(){
+    int numActive = 0;
+    for (AgentSchedulerShard shard: shards)
+      numActive += shard.getNumActiveActivities();
+    return numActive;
+  }
+
+  public int getNumMailboxActivities(){
+    int numMailbox = 0;
+    for (AgentSchedulerShard shard: shards)
+      numMailbox += shard.getNumMailboxActivities();
+    return numMailbox;
+  }
+
+  public int getQueueDepth(){
+    // Count activities that are due but still waiting for their agent or a worker thread
+    int queueDepth = 0;
+    for (AgentSchedulerShard shard: shards)
+      queueDepth += shard.getQueueDepth();
+    return queueDepth;
+  }
+
+  public int getThreadPoolSize(){
+    int threadPoolSize = 0;
+    for (AgentSchedulerShard shard: shards)
+      threadPoolSize += shard.getThreadPoolSize();
+    return threadPoolSize;
+  }
+
+  public JSONArray getUserSchedulingJson() throws JSONException {
+    // Total each user's counts and share of the workers across the shards that run its agents
+    Map<String, AgentUserQueue> userTotals = new LinkedHashMap<String, AgentUserQueue>();
+    AgentSchedulerShard[] currentShards = shards;
+    int totalThreadPoolSize = getThreadPoolSize();
+    for (AgentSchedulerShard shard: currentShards){
+      // Shards without a pool yet count equally
+      double workerFraction = totalThreadPoolSize > 0 ?
+          (double)shard.getThreadPoolSize() / totalThreadPoolSize : 1.0 / currentShards.length;
+      shard.addUserScheduling(userTotals, workerFraction);
+    }
+
+    JSONArray usersJson = new JSONArray();
+    for (AgentUserQueue userQueue: userTotals.values())
+      usersJson.put(userQueue.toJson(defaultUserWeight, defaultUserMaxConcurrency, userQueue.share));
+    return usersJson;
+  }
+
+  protected AtomicInteger getUserActiveCount(User user){
+    AtomicInteger count = userActiveCounts.get(user.id);
+    if (count == null){
+      AtomicInteger newCount = new AtomicInteger();
+      count = userActiveCounts.putIfAbsent(user.id, newCount);
+      if (count == null)
+        count = newCount;
+    }
+    return count;
+  }
+
+  public int getNumUserActive(User user){
+    return getUserActiveCount(user).get();
+  }
+
+  protected boolean isUserAtMaxConcurrency(User user, int maxConcurrency){
+    return maxConcurrency > 0 && getUserActiveCount(user).get() >= maxConcurrency;
+  }
+
+  protected boolean startUserActivity(User user, int maxConcurrency){
+    // Claim a worker for the user, unless its activities on all shards already use as many as it is allowed
+    AtomicInteger count = getUserActiveCount(user);
+    while (true){
+      int numActive = count.get();
+      if (maxConcurrency > 0 && numActive >= maxConcurrency)
+        return false;
+      if (count.compareAndSet(numActive, numActive + 1))
+        return true;
+    }
+  }
+
+  protected void userActivityFinished(User user, int maxConcurrency){
+    getUserActiveCount(user).decrementAndGet();
+
+    // Other shards may have passed over the user while it was at its limit
+    if (maxConcurrency > 0)
+      for (AgentSchedulerShard shard: shards)
+        shard.wakeDispatcher();
+  }
+
+  public int[] getPriorityBacklog(){
+    // Total the activities waiting in mailboxes for each priority class across the shards
+    int[] backlog = new int[AgentActivity.NUM_PRIORITIES];
+    for (AgentSchedulerShard shard: shards)
+      shard.addPriorityBacklog(backlog);
+    return backlog;
+  }
+
+  public JSONObject getPriorityBacklogJson() throws JSONException {
+    return getPriorityBacklogJson(getPriorityBacklog());
+  }
+
+  static public JSONObject getPriorityBacklogJson(int[] backlog) throws JSONException {
+    JSONObject backlogJson = new JsonListMap();
+    for (int i = 0; i < AgentActivity.NUM_PRIORITIES; i++)
+      backlogJson.put(AgentActivity.getPriorityName(i), backlog[i]);
+    return backlogJson;
+  }
 
-    running = false;
-    paused = false;
-    shutdown = true;
-    requestShutdown = false;
-    singleton = null;
-    // TODO: Anything else to do to release this thread?
-    thread = null;
-    log.info("AgentScheduler.run finished");
+  public long getNumInputChangedTriggers(){
+    long numTriggers = 0;
+    for (AgentSchedulerShard shard: shards)
+      numTriggers += shard.getNumInputChangedTriggers();
+    return numTriggers;
+  }
+
+  public long getNumInputChangedCoalesced(){
+    long numCoalesced = 0;
+    for (AgentSchedulerShard shard: shards)
+      numCoalesced += shard.getNumInputChangedCoalesced();
+    return numCoalesced;
+  }
+
+  public long getNumAbortedActivities(){
+    long numAborted = 0;
+    for (AgentSchedulerShard shard: shards)
+      numAborted += shard.getNumAbortedActivities();
+    return numAborted;
+  }
+
+  public JSONObject getMetricsJson() throws JSONException {
+    // Current state of the queues, totaled across all shards
+    AgentSchedulerMetrics currentMetrics;
+    AgentSchedulerShard[] currentShards;
+    synchronized (this){
+      currentMetrics = metrics;
+      currentShards = shards;
+    }
+    JSONObject metricsJson = new JsonListMap();
+    metricsJson.put("status", getStatus());
+    metricsJson.put("queue_type", currentShards[0].queue.getType());
+    metricsJson.put("shards", currentShards.length);
+    metricsJson.put("scheduled", getNumScheduledActivities());
+    metricsJson.put("waiting", getQueueDepth());
+    metricsJson.put("active", getNumActiveActivities());
+    metricsJson.put("thread_pool_size", getThreadPoolSize());
+    metricsJson.put("completed", completedActivities.size());
+    metricsJson.put("aborted", getNumAbortedActivities());
+    metricsJson.put("input_changed_triggers", getNumInputChangedTriggers());
+    metricsJson.put("input_changed_coalesced", getNumInputChangedCoalesced());
+
+    // Distributions and counts are read without holding up any shard
+    currentMetrics.putJson(metricsJson);
+    admission.putJson(metricsJson);
+    return metricsJson;
   }
 
   public String getStatus(){
@@ -242,28 +377,48 @@ public class AgentScheduler implements Runnable {
     else
       return "indeterminate";
   }
-  
-  // TODO: Insert activity based on time relative to existing activities
-  
-  // TODO: Need to synchronize this, and with reading from queue
-  public void add(AgentActivity activity){
-    queue.add(activity);
-    // TODO: Notify scheduler's thread if it is waiting due to previously empty queue
+
+  public boolean add(AgentActivity activity){
+    // Activity is queued on the shard of its agent, unless turned away by admission control
+    return getShard(activity.agent).add(activity);
+  }
+
+  public boolean isSaturated(){
+    return admission.isSaturated();
+  }
+
+  public void triggerInputChanged(AgentInstance agent, AgentInstance dataSource, long triggerInterval){
+    triggerInputChanged(agent, dataSource, triggerInterval, null);
+  }
+
+  public void triggerInputChanged(AgentInstance agent, AgentInstance dataSource, long triggerInterval, AgentPropagationWave wave){
+    // Caller may be a worker of any shard, so hand the trigger off rather than contend for the agent's shard
+    getShard(agent).handOffInputChanged(agent, dataSource, triggerInterval, wave);
+  }
+
+  public void startWave(AgentInstance root){
+    // Propagate a change of the root's outputs to all instances that depend on it as one wave
+    new AgentPropagationWave(this, root).start();
   }
 
   static public void scheduleInit(AgentInstance agent) throws AgentServerException {
     // TODO: Should 'init' be called if agent is not yet enabled?
     // No-op if no scheduler created yet
     if (singleton != null){
+      // Skip 'init' if the agent already ran it before a restart
+      if (singleton.journal != null && singleton.journal.restoredRanInit(agent)){
+        log.info("Skipping 'init' for " + agent.name + " since it ran before restart");
+        agent.ranInit = true;
+      }
+
       // Check if agent even has an 'init' script
-      if (agent.agentDefinition.scripts.containsKey("init")){
+      else if (agent.agentDefinition.scripts.containsKey("init")){
         // Make sure we have a singleton for this class
 
         // Create a new activity for the 'init'
         AgentActivityRunScript initActivity = new AgentActivityRunScript(agent, 0, "Initialize agent", "init");
 
         // Queue up the new activity
-        // TODO: This needs to synchronized
         singleton.add(initActivity);
       }
    
@@ -284,7 +439,7 @@ public class AgentScheduler implements Runnable {
           AgentActivityTimer timerActivity = new AgentActivityTimer(agent, agentTimerNameValue.value);
 
           // Schedule it
-          singleton.add(timerActivity);
+          singleton.addScheduled(timerActivity);
         }
 
     // Now schedule all conditions for this agent, if agent is enabled
@@ -297,12 +452,54 @@ public class AgentScheduler implements Runnable {
           AgentActivityCondition conditionActivity = new AgentActivityCondition(agent, agentConditionNameValue.value);
 
           // Schedule it
-          singleton.add(conditionActivity);
+          singleton.addScheduled(conditionActivity);
         }
   }
 
+  public void addScheduled(AgentActivity activity){
+    // Resume a journaled timer or condition at the time it was due to fire before a restart
+    AgentActivityJournal currentJournal = journal;
+    long when = currentJournal == null ? 0 : currentJournal.getRestoredWhen(activity);
+    if (when > 0){
+      activity.when = when;
+      if (when <= Clock.now()){
+        synchronized (this){
+          // Hold back overdue activities so that they can be spread out
+          if (overdueActivities != null){
+            overdueActivities.add(activity);
+            return;
+          }
+        }
+      }
+    }
+    add(activity);
+  }
+
+  protected void scheduleOverdueActivities(){
+    // Spread activities that came due while the server was down evenly over the catch-up window,
+    // in the order they were originally due, rather than running all of them at once
+    List<AgentActivity> activities;
+    synchronized (this){
+      activities = overdueActivities;
+      overdueActivities = null;
+    }
+    Collections.sort(activities, AgentActivityComparator.one);
+    long now = Clock.now();
+    int numOverdue = activities.size();
+    for (int i = 0; i < numOverdue; i++){
+      AgentActivity activity = activities.get(i);
+      activity.when = now + catchUpWindow * i / numOverdue;
+      add(activity);
+    }
+    if (numOverdue > 0)
+      log.info("Catching up on " + numOverdue + " overdue timers and conditions over " + catchUpWindow + " ms.");
+  }
+
   public void scheduleInitAll() throws AgentServerException {
     log.info("Scheduling all enabled agents for 'init'");
+    synchronized (this){
+      overdueActivities = new ArrayList<AgentActivity>();
+    }
     // Start all agents for all users
     for (NameValue<AgentInstanceList> userAgentInstancesNameValue: agentServer.agentInstances){
       // Start all agents for this user
@@ -312,31 +509,82 @@ public class AgentScheduler implements Runnable {
           AgentScheduler.scheduleInit(agentInstance);
       }
     }
+
+    // Journaled state is only for the agents rehydrated at startup
+    scheduleOverdueActivities();
+    AgentActivityJournal currentJournal = journal;
+    if (currentJournal != null)
+      currentJournal.discardRestoredEntries();
   }
-  
+
   public void shutDown(){
-    this.requestShutdown = true;
+    for (AgentSchedulerShard shard: shards)
+      shard.shutDown();
+  }
+
+  public synchronized boolean advanceSimulatedClock(){
+    // Only a simulated clock can be advanced
+    Clock clock = Clock.get();
+    if (! (clock instanceof SimulatedClock))
+      return false;
+
+    // Jump to the next due activity, holding every shard's lock so nothing can start in the meantime
+    AgentSchedulerShard[] currentShards = shards;
+    if (! advanceSimulatedClock((SimulatedClock)clock, currentShards, 0))
+      return false;
+
+    // Let each shard deliver whatever is now due
+    for (AgentSchedulerShard shard: currentShards)
+      shard.wakeDispatcher();
+    return true;
   }
-  
+
+  protected boolean advanceSimulatedClock(SimulatedClock clock, AgentSchedulerShard[] currentShards, int shardIndex){
+    // Lock the shards one at a time, always in the same order, and give up if any is still busy
+    if (shardIndex < currentShards.length){
+      AgentSchedulerShard shard = currentShards[shardIndex];
+      synchronized (shard){
+        return shard.isIdle() && advanceSimulatedClock(clock, currentShards, shardIndex + 1);
+      }
+    }
+
+    // All shards are idle, so find the earliest activity due across all of them
+    long nextDueTime = -1;
+    for (AgentSchedulerShard shard: currentShards){
+      long shardNextDueTime = shard.queue.getNextDueTime();
+      if (shardNextDueTime >= 0 && (nextDueTime < 0 || shardNextDueTime < nextDueTime))
+        nextDueTime = shardNextDueTime;
+    }
+
+    // Nothing to do if nothing is queued or the earliest activity is already due
+    if (nextDueTime <= clock.currentTimeMillis())
+      return false;
+    clock.advanceTo(nextDueTime);
+    return true;
+  }
+
   public void waitUntilDone() throws InterruptedException {
     waitUntilDone(2 * 1000);
   }
-  
+
   public void waitUntilDone(long howLong) throws InterruptedException {
+    // Poll, since completions are spread across the shards
     long now = System.currentTimeMillis();
     long max = now + howLong;
-    while (queue.size() > 0 && System.currentTimeMillis() < max){
-      // Sleep a little waiting for queue to empty
-      Thread.sleep(SLEEP_INTERVAL);
+    while (getNumPendingActivities() > 0 && now < max){
+      Thread.sleep(Math.min(SLEEP_INTERVAL, max - now));
+      now = System.currentTimeMillis();
     }
   }
-  
+
   public void pause(){
-    this.requestPause = true;
+    for (AgentSchedulerShard shard: shards)
+      shard.pause();
   }
-  
+
   public void resume(){
-    this.requestResume = true;
+    for (AgentSchedulerShard shard: shards)
+      shard.resume();
   }
 
   public void start() throws RuntimeException, InterruptedException, AgentServerException {
@@ -348,19 +596,57 @@ public class AgentScheduler implements Runnable {
     if (running)
       return;
 
-    log.info("Starting AgentScheduler at " + DateUtils.toRfcString(System.currentTimeMillis()));
+    // Switch to the clock selected in config, with a simulated clock starting from the current time
+    if (agentServer != null && agentServer.config != null){
+      String clockType = agentServer.config.getSchedulerClock();
+      if (! clockType.equals(Clock.get().getType()))
+        Clock.set(Clock.create(clockType, Clock.now()));
+    }
+
+    log.info("Starting AgentScheduler at " + DateUtils.toRfcString(Clock.now()) +
+        (Clock.get().isSimulated() ? " (simulated clock)" : ""));
     // Reset state
     shutdown = false;
-    requestShutdown = false;
-    requestPause = false;
-    
-    // Create a new thread for this scheduler to run in
-    thread = new Thread(this);
-  
+
+    // Default weight and concurrency limit for users who don't have their own, and priority aging
+    if (agentServer != null && agentServer.config != null){
+      defaultUserWeight = agentServer.config.getSchedulerDefaultUserWeight();
+      defaultUserMaxConcurrency = agentServer.config.getSchedulerDefaultUserMaxConcurrency();
+      priorityAgingInterval = agentServer.config.getSchedulerPriorityAging();
+      admission.maxQueued = agentServer.config.getSchedulerMaxQueued();
+      admission.maxQueuedPerUser = agentServer.config.getSchedulerMaxQueuedPerUser();
+      admission.maxQueuedPerAgent = agentServer.config.getSchedulerMaxQueuedPerAgent();
+      admission.lowWatermark = agentServer.config.getSchedulerQueueLowWatermark();
+      admission.overloadPolicy = AgentAdmissionControl.checkOverloadPolicy(agentServer.config.getSchedulerOverloadPolicy());
+    }
+
+    // Switch to the number of shards selected in config, if nothing is queued yet
+    int numShards = getConfiguredNumShards();
+    synchronized (this){
+      if (numShards != shards.length){
+        if (getNumPendingActivities() == 0){
+          shards = createShards(numShards);
+          log.info("Using " + numShards + " scheduler shards");
+        } else
+          log.warn("Keeping " + shards.length + " scheduler shards since activities are already queued");
+      }
+    }
+
+    // Start journaling timers and conditions, and read back what was journaled before a restart
+    AgentActivityJournal newJournal = createJournal();
+    synchronized (this){
+      journal = newJournal;
+    }
+
     // Remember this scheduler instance as the singleton instance
     singleton = this;
 
-    thread.start();
+    // Start the thread, workers, and watchdog of each shard
+    for (AgentSchedulerShard shard: shards)
+      shard.start();
+
+    // Discard anything left in agent mailboxes by a previous scheduler
+    clearMailboxes();
 
     // Queue up call to 'init' for all enabled agents
     scheduleInitAll();
@@ -379,6 +665,36 @@ public class AgentScheduler implements Runnable {
     }
   }
 
+  protected AgentActivityJournal createJournal() throws AgentServerException {
+    // Journaling needs a persistent store and can be disabled by a zero interval
+    if (agentServer == null || agentServer.config == null || agentServer.persistence == null)
+      return null;
+    long interval = agentServer.config.getSchedulerJournalInterval();
+    if (interval <= 0)
+      return null;
+    if (! AgentActivityJournal.isSupported(agentServer.persistence)){
+      log.warn("Persistent store has no activity journal table - timers and conditions will not survive a restart");
+      return null;
+    }
+    catchUpWindow = agentServer.config.getSchedulerCatchUpWindow();
+
+    AgentActivityJournal newJournal = new AgentActivityJournal(agentServer.persistence, interval);
+    newJournal.load();
+    newJournal.start();
+    return newJournal;
+  }
+
+  protected AgentActivityThreadPool createThreadPool() throws AgentServerException {
+    // Each shard gets an equal part of the configured number of workers, but at least one
+    int numShards = shards.length;
+    if (agentServer == null || agentServer.config == null)
+      return new AgentActivityThreadPool(AgentActivityThreadPool.DEFAULT_THREAD_POOL_TYPE,
+          (AgentActivityThreadPool.DEFAULT_THREAD_POOL_SIZE + numShards - 1) / numShards);
+    else
+      return new AgentActivityThreadPool(agentServer.config.getSchedulerThreadPoolType(),
+          (agentServer.config.getSchedulerThreadPoolSize() + numShards - 1) / numShards);
+  }
+
   public void shutdown() throws InterruptedException, AgentServerException {
     shutdown(true);
   }
@@ -388,7 +704,7 @@ public class AgentScheduler implements Runnable {
     if (this.neverStarted)
       return;
 
-    this.requestShutdown = true;
+    shutDown();
     if (wait){
       int waitLimit = 5 * 1000;
       int sleepTime = 5;
@@ -404,15 +720,22 @@ public class AgentScheduler implements Runnable {
     shutdown();
   }
 
+  public void clearMailboxes(){
+    for (NameValue<AgentInstanceList> userAgentInstancesNameValue: agentServer.agentInstances)
+      for (AgentInstance agentInstance: agentServer.agentInstances.get(userAgentInstancesNameValue.name))
+        getShard(agentInstance).clearMailbox(agentInstance);
+
+    // No agents are ready to run any more
+    for (AgentSchedulerShard shard: shards)
+      shard.clearReadyAgents();
+  }
+
   public void flushAgentActivities(AgentInstance agentInstance){
-    // Find and remove all activities that are queued up for this agent instance
-    // TODO: Really to to interlock the queue to do this safely
-    for (int i = 0; i < queue.size(); i++){
-      AgentActivity agentActivity = queue.get(i);
-      if (agentActivity.agent == agentInstance){
-        queue.remove(i);
-        i--;
-      }
-    }
+    // Find and remove all activities that are queued up for this agent instance on its shard
+    getShard(agentInstance).flushAgentActivities(agentInstance);
+    AgentActivityJournal currentJournal = journal;
+    if (currentJournal != null)
+      currentJournal.agentRemoved(agentInstance);
+    metrics.agentRemoved(agentInstance);
   }
 }
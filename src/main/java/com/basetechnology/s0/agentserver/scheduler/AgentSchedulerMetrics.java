@@ -0,0 +1,142 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.scheduler;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.basetechnology.s0.agentserver.AgentInstance;
+import com.basetechnology.s0.agentserver.User;
+import com.basetechnology.s0.agentserver.activities.AgentActivity;
+import com.basetechnology.s0.agentserver.activities.AgentActivityRunScript;
+import com.basetechnology.s0.agentserver.util.JsonListMap;
+
+public class AgentSchedulerMetrics {
+  // Activity types that are measured separately, with 'init' split out from other scripts
+  // Note: Anything else is measured as a generic "activity"
+  public static final String[] ACTIVITY_TYPES = {"timer", "condition", "inputs_changed", "notification", "init", "run_script", "activity"};
+
+  // Distributions of how long due activities waited to start, how long they ran, and how many
+  // activities were waiting each time one was dispatched
+  // Note: The maps are filled in up front and never change, so they can be read without locking
+  public Map<String, AgentActivityHistogram> dispatchLag;
+  public Map<String, AgentActivityHistogram> runTime;
+  public AgentActivityHistogram queueDepth;
+
+  // Distributions of how many instances each propagation wave evaluated, and how long it took
+  public AgentActivityHistogram waveSize;
+  public AgentActivityHistogram waveLatency;
+
+  // Counts of activities dispatched for each user and for each agent
+  public ConcurrentHashMap<String, AtomicLong> userActivityCounts;
+  public ConcurrentHashMap<String, AtomicLong> agentActivityCounts;
+
+  public AgentSchedulerMetrics(){
+    this.dispatchLag = new LinkedHashMap<String, AgentActivityHistogram>();
+    this.runTime = new LinkedHashMap<String, AgentActivityHistogram>();
+    for (String type: ACTIVITY_TYPES){
+      dispatchLag.put(type, new AgentActivityHistogram());
+      runTime.put(type, new AgentActivityHistogram());
+    }
+    this.queueDepth = new AgentActivityHistogram();
+    this.waveSize = new AgentActivityHistogram();
+    this.waveLatency = new AgentActivityHistogram();
+    this.userActivityCounts = new ConcurrentHashMap<String, AtomicLong>();
+    this.agentActivityCounts = new ConcurrentHashMap<String, AtomicLong>();
+  }
+
+  static public String getType(AgentActivity activity){
+    // An agent's 'init' script is measured apart from its other scripts
+    if (activity instanceof AgentActivityRunScript && ((AgentActivityRunScript)activity).scriptName.equals("init"))
+      return "init";
+    else
+      return activity.getType();
+  }
+
+  protected AgentActivityHistogram getHistogram(Map<String, AgentActivityHistogram> histograms, AgentActivity activity){
+    AgentActivityHistogram histogram = histograms.get(getType(activity));
+    return histogram == null ? histograms.get("activity") : histogram;
+  }
+
+  protected void count(ConcurrentHashMap<String, AtomicLong> counts, String key){
+    AtomicLong count = counts.get(key);
+    if (count == null){
+      AtomicLong newCount = new AtomicLong();
+      count = counts.putIfAbsent(key, newCount);
+      if (count == null)
+        count = newCount;
+    }
+    count.incrementAndGet();
+  }
+
+  static public String getUserId(AgentInstance agent){
+    return agent.user == null ? User.noUser.id : agent.user.id;
+  }
+
+  public void activityDispatched(AgentActivity activity, int numWaiting){
+    // Lag is how far past its scheduled time the activity actually started
+    getHistogram(dispatchLag, activity).record(activity.startTime - activity.when);
+    queueDepth.record(numWaiting);
+    String userId = getUserId(activity.agent);
+    count(userActivityCounts, userId);
+    count(agentActivityCounts, userId + "|" + activity.agent.name);
+  }
+
+  public void activityFinished(AgentActivity activity, long now){
+    // Activity may not have recorded its end time if it failed or was aborted
+    long endTime = activity.endTime >= activity.startTime ? activity.endTime : now;
+    getHistogram(runTime, activity).record(endTime - activity.startTime);
+  }
+
+  public void waveFinished(AgentPropagationWave wave){
+    waveSize.record(wave.numEvaluated);
+    waveLatency.record(wave.endTime - wave.startTime);
+  }
+
+  public void agentRemoved(AgentInstance agent){
+    agentActivityCounts.remove(getUserId(agent) + "|" + agent.name);
+  }
+
+  protected JSONObject toJson(Map<String, AgentActivityHistogram> histograms) throws JSONException {
+    JSONObject histogramsJson = new JsonListMap();
+    for (String type: histograms.keySet())
+      histogramsJson.put(type, histograms.get(type).toJson());
+    return histogramsJson;
+  }
+
+  protected JSONObject toJson(ConcurrentHashMap<String, AtomicLong> counts) throws JSONException {
+    JSONObject countsJson = new JsonListMap();
+    for (Map.Entry<String, AtomicLong> count: counts.entrySet())
+      countsJson.put(count.getKey(), count.getValue().get());
+    return countsJson;
+  }
+
+  public void putJson(JSONObject metricsJson) throws JSONException {
+    metricsJson.put("queue_depth", queueDepth.toJson());
+    metricsJson.put("dispatch_lag", toJson(dispatchLag));
+    metricsJson.put("run_time", toJson(runTime));
+    metricsJson.put("wave_size", waveSize.toJson());
+    metricsJson.put("wave_latency", waveLatency.toJson());
+    metricsJson.put("user_activities", toJson(userActivityCounts));
+    metricsJson.put("agent_activities", toJson(agentActivityCounts));
+  }
+}
@@ -0,0 +1,760 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.scheduler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+import com.basetechnology.s0.agentserver.AgentDefinition;
+import com.basetechnology.s0.agentserver.AgentInstance;
+import com.basetechnology.s0.agentserver.AgentServerException;
+import com.basetechnology.s0.agentserver.User;
+import com.basetechnology.s0.agentserver.activities.AgentActivity;
+import com.basetechnology.s0.agentserver.activities.AgentActivityThread;
+import com.basetechnology.s0.agentserver.activities.AgentActivityTriggerInputChanged;
+import com.basetechnology.s0.agentserver.script.runtime.ExceptionInfo;
+import com.basetechnology.s0.agentserver.util.Clock;
+
+public class AgentSchedulerShard implements Runnable {
+  static final Logger log = Logger.getLogger(AgentSchedulerShard.class);
+
+  // Scheduler this shard belongs to, which holds the state shared by all of its shards
+  public AgentScheduler scheduler;
+  public int index;
+
+  public volatile boolean started;
+  public volatile boolean running;
+  public volatile boolean paused;
+  public volatile boolean shutdown;
+  volatile Thread thread;
+
+  private boolean requestPause;
+  private boolean requestResume;
+  protected volatile boolean requestShutdown;
+
+  // Activities waiting for their scheduled time, either a heap or a timing wheel per config
+  // Note: All access to the queues must be synchronized on the shard
+  public AgentActivityQueue queue;
+  // Agents with an activity in their mailbox that can run as soon as a worker is free, queued per user
+  // Note: Due activities wait in their agent's mailbox so that each agent runs one at a time
+  public Map<String, AgentUserQueue> userQueues;
+  // Users with ready agents, served by deficit round-robin in proportion to their weights
+  public Deque<AgentUserQueue> readyUsers;
+  int numMailboxActivities;
+  // Activities waiting in mailboxes, per priority class
+  int[] numMailboxActivitiesByPriority;
+  public List<AgentActivity> activeActivities;
+  long nextSequenceNumber;
+
+  // Input-changed triggers handed off by any thread, and merged into the queue by the shard's own thread
+  // Note: Handing off never takes the shard's lock, so a busy data source doesn't hold up dispatch
+  public Queue<AgentActivityTriggerInputChanged> inputChangedHandoff;
+
+  // Counts of input-changed triggers, and of those merged into an activity already pending
+  public long numInputChangedTriggers;
+  public long numInputChangedCoalesced;
+
+  // Pool of worker threads in which this shard's activities run
+  // Note: Number of active activities is limited to the size of the pool
+  public AgentActivityThreadPool threadPool;
+
+  // Watchdog that aborts activities which run past their deadlines
+  public AgentActivityWatchdog watchdog;
+  // Aborted activities whose workers have not yet returned, and so still occupy a thread
+  int numAbortedRunning;
+  public long numAbortedActivities;
+
+  public AgentSchedulerShard(AgentScheduler scheduler, int index){
+    this.scheduler = scheduler;
+    this.index = index;
+
+    this.started = false;
+    this.running = false;
+    this.paused = false;
+    this.shutdown = false;
+    this.thread = null;
+
+    this.requestPause = false;
+    this.requestResume = false;
+    this.requestShutdown = false;
+
+    this.queue = new AgentActivityHeapQueue();
+    this.userQueues = new LinkedHashMap<String, AgentUserQueue>();
+    this.readyUsers = new ArrayDeque<AgentUserQueue>();
+    this.numMailboxActivities = 0;
+    this.numMailboxActivitiesByPriority = new int[AgentActivity.NUM_PRIORITIES];
+    this.activeActivities = new ArrayList<AgentActivity>();
+    this.nextSequenceNumber = 0;
+    this.inputChangedHandoff = new ConcurrentLinkedQueue<AgentActivityTriggerInputChanged>();
+    this.numInputChangedTriggers = 0;
+    this.numInputChangedCoalesced = 0;
+    this.numAbortedRunning = 0;
+    this.numAbortedActivities = 0;
+  }
+
+  public void run(){
+    started = true;
+    running = true;
+    scheduler.shardStateChanged();
+    log.info("AgentSchedulerShard.run started for shard " + index);
+    while (true){
+      // Figure out how long we can wait before the earliest activity is due
+      // Note: Zero means wait until woken by a new activity, a completion, or a request
+      long waitTime = 0;
+      boolean stateChanged = false;
+      synchronized (this){
+        // Check if pause or resume requested
+        if (requestResume){
+          paused = false;
+          requestPause = false;
+          running = true;
+          requestResume = false;
+          stateChanged = true;
+          log.info("Scheduler shard " + index + " is resuming at external request");
+        }
+        else if (requestPause){
+          paused = true;
+          requestPause = false;
+          running = false;
+          stateChanged = true;
+          log.info("Scheduler shard " + index + " is pausing at external request");
+        }
+
+        // May be a request to shut down
+        if (requestShutdown){
+          log.info("AgentSchedulerShard.run shutdown requested for shard " + index);
+          break;
+        }
+
+        // Merge triggers handed off by other threads, even while paused, so none are lost
+        drainInputChangedHandoff();
+
+        if (! paused){
+          // Deliver all activities that are now due to their agents' mailboxes
+          long now = Clock.now();
+          for (AgentActivity activity = queue.pollDue(now); activity != null; activity = queue.pollDue(now))
+            deliver(activity);
+          long nextDueTime = queue.getNextDueTime();
+          if (nextDueTime >= 0 && ! Clock.get().isSimulated())
+            waitTime = Math.max(1, nextDueTime - now);
+
+          // Start the next activity of as many ready agents as there are free workers
+          dispatchReady();
+        }
+      }
+
+      // Let the scheduler re-evaluate its overall status outside of the shard's lock
+      if (stateChanged)
+        scheduler.shardStateChanged();
+
+      // A simulated clock doesn't move by itself, so jump it to the next due activity once all shards are idle
+      if (Clock.get().isSimulated())
+        scheduler.advanceSimulatedClock();
+
+      // Wait for the next activity to become due, or to be woken
+      // Note: A wake-up that arrives before parking is not lost, the park simply returns at once
+      if (waitTime == 0)
+        LockSupport.park(this);
+      else
+        LockSupport.parkNanos(this, waitTime * 1000000L);
+    }
+
+    synchronized (this){
+      // Let activities that are already running finish, but release the pool's threads
+      threadPool.shutdown();
+      if (watchdog != null){
+        watchdog.stop();
+        watchdog = null;
+      }
+
+      running = false;
+      paused = false;
+      shutdown = true;
+      requestShutdown = false;
+      thread = null;
+      notifyAll();
+    }
+    scheduler.shardStateChanged();
+    log.info("AgentSchedulerShard.run finished for shard " + index);
+  }
+
+  protected void wakeDispatcher(){
+    // Unpark the shard's thread so that it re-examines its queues
+    Thread dispatcherThread = thread;
+    if (dispatcherThread != null)
+      LockSupport.unpark(dispatcherThread);
+  }
+
+  protected void deliver(AgentActivity activity){
+    // Activity waits in the agent's mailbox until the agent is free to run it
+    AgentInstance agent = activity.agent;
+    activity.readyTime = Clock.now();
+    agent.mailbox.add(activity);
+    numMailboxActivities++;
+    numMailboxActivitiesByPriority[activity.priority]++;
+    AgentUserQueue userQueue = getUserQueue(agent.user);
+    userQueue.numMailboxActivities++;
+
+    // An agent that is already waiting to run moves up if this activity is more urgent
+    if (agent.readyToRun)
+      userQueue.readyAgents.promote(agent, activity.priority, activity.readyTime);
+    else
+      makeReady(agent);
+  }
+
+  protected AgentUserQueue getUserQueue(User user){
+    // Activities of agents without a user are queued as if for a single anonymous user
+    if (user == null)
+      user = User.noUser;
+    AgentUserQueue userQueue = userQueues.get(user.id);
+    if (userQueue == null){
+      userQueue = new AgentUserQueue(user);
+      userQueues.put(user.id, userQueue);
+    } else
+      userQueue.user = user;
+    return userQueue;
+  }
+
+  protected void makeReady(AgentInstance agent){
+    // Agent can run if enabled, not running an activity or a script, and has something in its mailbox
+    if (! agent.readyToRun && agent.currentActivity == null && agent.numScriptsRunning == 0 &&
+        agent.enabled && ! agent.mailbox.isEmpty()){
+      agent.readyToRun = true;
+
+      // Agent waits in the class of the most urgent activity in its mailbox
+      AgentUserQueue userQueue = getUserQueue(agent.user);
+      userQueue.readyAgents.add(agent, agent.mailbox.getTopPriority(), Clock.now());
+      if (! userQueue.inRoundRobin){
+        userQueue.inRoundRobin = true;
+        readyUsers.add(userQueue);
+      }
+    }
+  }
+
+  protected void dispatchReady(){
+    // Deficit round-robin across users - each turn credits a user with its weight, and each
+    // dispatch costs one, so busy users share the workers in proportion to their weights
+    // Note: Users at their maximum concurrency are passed over until one of their activities completes
+    int defaultUserWeight = scheduler.defaultUserWeight;
+    int defaultUserMaxConcurrency = scheduler.defaultUserMaxConcurrency;
+    long agingInterval = scheduler.priorityAgingInterval;
+    long now = Clock.now();
+    int numPassedOver = 0;
+    while (activeActivities.size() + numAbortedRunning < threadPool.size && ! readyUsers.isEmpty() &&
+        numPassedOver < readyUsers.size()){
+      AgentUserQueue userQueue = readyUsers.peek();
+
+      // Drop users with nothing left to run, forfeiting any unused credit
+      if (userQueue.readyAgents.isEmpty()){
+        readyUsers.poll();
+        userQueue.inRoundRobin = false;
+        userQueue.turnStarted = false;
+        userQueue.deficit = 0;
+        continue;
+      }
+
+      // Pass over a user already using all of the workers it is allowed, counting its activities on all shards
+      int maxConcurrency = userQueue.getMaxConcurrency(defaultUserMaxConcurrency);
+      if (scheduler.isUserAtMaxConcurrency(userQueue.user, maxConcurrency)){
+        readyUsers.add(readyUsers.poll());
+        userQueue.turnStarted = false;
+        numPassedOver++;
+        continue;
+      }
+
+      // Start the user's turn by crediting it with its weight
+      if (! userQueue.turnStarted){
+        userQueue.deficit += userQueue.getWeight(defaultUserWeight);
+        userQueue.turnStarted = true;
+      }
+
+      // Dispatch while the user has credit, otherwise move on to the next user
+      if (userQueue.deficit >= 1){
+        // Another shard may have taken the user's last free worker since the check above
+        if (! scheduler.startUserActivity(userQueue.user, maxConcurrency)){
+          readyUsers.add(readyUsers.poll());
+          userQueue.turnStarted = false;
+          numPassedOver++;
+        } else if (dispatch(userQueue.readyAgents.poll(now, agingInterval), now, agingInterval)){
+          userQueue.deficit--;
+          numPassedOver = 0;
+        } else {
+          // Agent can't run after all, so give the worker back
+          scheduler.userActivityFinished(userQueue.user, 0);
+        }
+      } else {
+        readyUsers.add(readyUsers.poll());
+        userQueue.turnStarted = false;
+      }
+    }
+  }
+
+  protected boolean dispatch(AgentInstance agent, long now, long agingInterval){
+    // Agent may have been disabled or flushed since it became ready
+    agent.readyToRun = false;
+    if (agent.currentActivity != null || agent.numScriptsRunning > 0 || ! agent.enabled || agent.mailbox.isEmpty())
+      return false;
+
+    // Take the agent's next activity from its mailbox
+    AgentActivity activity = agent.mailbox.poll(now, agingInterval);
+    scheduler.admission.release(agent, 1);
+    numMailboxActivities--;
+    numMailboxActivitiesByPriority[activity.priority]--;
+    agent.currentActivity = activity;
+
+    // Charge the activity to the agent's user
+    AgentUserQueue userQueue = getUserQueue(agent.user);
+    userQueue.numMailboxActivities--;
+    userQueue.numActive++;
+    userQueue.numDispatched++;
+
+    // Once started, an input-changed activity no longer absorbs later triggers
+    if (activity instanceof AgentActivityTriggerInputChanged){
+      AgentInstance dataSource = ((AgentActivityTriggerInputChanged)activity).dataSource;
+      if (agent.pendingInputChanged.get(dataSource) == activity)
+        agent.pendingInputChanged.remove(dataSource);
+    }
+
+    // Mark the activity as 'starting'
+    activity.startingActivity();
+    activeActivities.add(activity);
+    scheduler.metrics.activityDispatched(activity, getQueueDepth());
+
+    // Give the activity a deadline, after which the watchdog will abort it
+    long deadlineInterval = getActivityDeadline(activity);
+    activity.deadline = deadlineInterval > 0 ? activity.startTime + deadlineInterval : 0;
+    if (activity.deadline > 0 && watchdog != null)
+      watchdog.deadlineAdded(activity.deadline);
+
+    // Hand the agent activity to a pooled worker thread
+    AgentActivityThread activityThread = new AgentActivityThread(activity, this);
+    activity.activityThread = activityThread;
+    threadPool.execute(activityThread);
+
+    // TODO: Log start of activity
+    //log.info("Starting activity - " + activity.description);
+    return true;
+  }
+
+  public synchronized void activityCompleted(AgentActivity activity){
+    // An aborted activity left the active list when the watchdog aborted it, but held its agent until now
+    if (activeActivities.remove(activity))
+      scheduler.metrics.activityFinished(activity, Clock.now());
+    else if (activity.abortRequested)
+      numAbortedRunning--;
+    else
+      return;
+
+    // Add the activity to the completed list, unless it is a timer or condition to be re-armed
+    boolean rearm = activity.rearmWhen > 0 && ! shutdown && ! requestShutdown;
+    AgentActivityJournal journal = scheduler.journal;
+    if (journal != null && activity.rearmWhen <= 0)
+      journal.activityFinished(activity);
+    if (! rearm)
+      scheduler.completedActivities.add(activity);
+    finishWaves(activity);
+
+    // Agent is no longer running this activity
+    AgentInstance agent = activity.agent;
+    if (agent.currentActivity == activity)
+      agent.currentActivity = null;
+    AgentUserQueue userQueue = getUserQueue(agent.user);
+    userQueue.numActive--;
+    scheduler.userActivityFinished(userQueue.user, userQueue.getMaxConcurrency(scheduler.defaultUserMaxConcurrency));
+
+    // Done with the thread in which the activity was running
+    // TODO: Log end of this activity
+    //log.info("Finished activity - " + activity.description + " status: " + activity.status + " in " + (activity.endTime - activity.startTime) + " ms.");
+    AgentActivityThread activityThread = activity.activityThread;
+    if (activityThread != null)
+      activity.activityThread = null;
+
+    // Re-arm a periodic activity in place for its next interval
+    if (rearm){
+      activity.rearm();
+      add(activity);
+    }
+
+    // Agent can now run the next activity in its mailbox
+    // Note: If this shard was replaced while the activity ran, the mailbox belongs to the new scheduler
+    AgentScheduler currentScheduler = AgentScheduler.singleton;
+    if (shutdown && currentScheduler != null)
+      currentScheduler.wakeAgent(agent);
+    else
+      makeReady(agent);
+
+    // Wake up the shard's thread to dispatch the next activity
+    wakeDispatcher();
+  }
+
+  public synchronized void scriptStarting(AgentInstance agent){
+    agent.numScriptsRunning++;
+  }
+
+  public synchronized void scriptFinished(AgentInstance agent){
+    // Activities that arrived in the mailbox while the script ran may now be able to run
+    agent.numScriptsRunning--;
+    if (agent.numScriptsRunning == 0)
+      wakeAgent(agent);
+  }
+
+  public synchronized void wakeAgent(AgentInstance agent){
+    // Agent may now be able to run the activities waiting in its mailbox
+    makeReady(agent);
+    wakeDispatcher();
+  }
+
+  public synchronized int getNumPendingActivities(){
+    // Count activities that have not yet completed, including those running or still being handed off
+    return queue.size() + inputChangedHandoff.size() + numMailboxActivities + activeActivities.size();
+  }
+
+  public synchronized int getNumScheduledActivities(){
+    return queue.size();
+  }
+
+  public synchronized boolean isIdle(){
+    // Idle means nothing is running, waiting in a mailbox, or being handed off, so only the queue can supply work
+    return ! paused && activeActivities.isEmpty() && numMailboxActivities == 0 && inputChangedHandoff.isEmpty();
+  }
+
+  public synchronized int getNumActiveActivities(){
+    return activeActivities.size();
+  }
+
+  public synchronized int getNumMailboxActivities(){
+    return numMailboxActivities;
+  }
+
+  public synchronized int getQueueDepth(){
+    // Count activities that are due but still waiting for their agent or a worker thread
+    return numMailboxActivities + (threadPool == null ? 0 : threadPool.getQueueDepth());
+  }
+
+  public int getThreadPoolSize(){
+    return threadPool == null ? 0 : threadPool.size;
+  }
+
+  public synchronized void addUserScheduling(Map<String, AgentUserQueue> userTotals, double workerFraction){
+    // Each user with work here is entitled to its weight's fraction of the total weight of such users,
+    // of this shard's fraction of all of the workers
+    long totalWeight = 0;
+    for (AgentUserQueue userQueue: userQueues.values())
+      if (userQueue.hasWork())
+        totalWeight += userQueue.getWeight(scheduler.defaultUserWeight);
+
+    // Add this shard's counts and share for each of its users to the totals across all shards
+    for (AgentUserQueue userQueue: userQueues.values()){
+      AgentUserQueue userTotal = userTotals.get(userQueue.user.id);
+      if (userTotal == null){
+        userTotal = new AgentUserQueue(userQueue.user);
+        userTotals.put(userQueue.user.id, userTotal);
+      }
+      userTotal.numMailboxActivities += userQueue.numMailboxActivities;
+      userTotal.numActive += userQueue.numActive;
+      userTotal.numDispatched += userQueue.numDispatched;
+      if (userQueue.hasWork())
+        userTotal.share += workerFraction * userQueue.getWeight(scheduler.defaultUserWeight) / totalWeight;
+    }
+  }
+
+  public synchronized void addPriorityBacklog(int[] totals){
+    for (int i = 0; i < AgentActivity.NUM_PRIORITIES; i++)
+      totals[i] += numMailboxActivitiesByPriority[i];
+  }
+
+  public synchronized long getNumInputChangedTriggers(){
+    return numInputChangedTriggers;
+  }
+
+  public synchronized long getNumInputChangedCoalesced(){
+    return numInputChangedCoalesced;
+  }
+
+  protected long getActivityDeadline(AgentActivity activity){
+    // Agent definition can override the deadline configured for the type of activity
+    AgentDefinition agentDefinition = activity.agent == null ? null : activity.agent.agentDefinition;
+    if (agentDefinition != null && agentDefinition.activityDeadline != null)
+      return agentDefinition.activityDeadline;
+    else if (scheduler.agentServer == null || scheduler.agentServer.config == null)
+      return AgentActivity.DEFAULT_DEADLINE;
+    else
+      return scheduler.agentServer.config.getActivityDeadline(activity.getType());
+  }
+
+  public synchronized long abortOverdueActivities(long now){
+    // Abort all activities that have run past their deadlines
+    // Note: Returns the earliest remaining deadline, or zero if none
+    long nextDeadline = 0;
+    for (int i = activeActivities.size() - 1; i >= 0; i--){
+      AgentActivity activity = activeActivities.get(i);
+      if (activity.deadline <= 0)
+        continue;
+      else if (activity.deadline <= now)
+        abortActivity(activity);
+      else if (nextDeadline == 0 || activity.deadline < nextDeadline)
+        nextDeadline = activity.deadline;
+    }
+    return nextDeadline;
+  }
+
+  protected void abortActivity(AgentActivity activity){
+    // Ask the activity to stop, and wake its worker from any sleep or blocking I/O
+    log.warn("Activity exceeded its deadline - " + activity.description);
+    activity.abortRequested = true;
+    activity.status = AgentActivity.StatusTypes.ABORTING;
+    AgentActivityThread activityThread = activity.activityThread;
+    if (activityThread != null && activityThread.thread != null)
+      activityThread.thread.interrupt();
+
+    // Activity no longer counts against its deadline, but until its worker returns it keeps its thread, and
+    // its agent stays held so that the agent's next activity can't run alongside the aborted script
+    // Note: Once the worker returns, activityCompleted releases the agent and re-arms a timer or condition
+    activeActivities.remove(activity);
+    numAbortedRunning++;
+    numAbortedActivities++;
+    activity.aborted();
+    scheduler.metrics.activityFinished(activity, activity.endTime);
+  }
+
+  public synchronized long getNumAbortedActivities(){
+    return numAbortedActivities;
+  }
+
+  public synchronized boolean add(AgentActivity activity){
+    // Apply the overload policy if the activity would exceed a limit on queued activities
+    if (! scheduler.admission.admit(activity, activity.isBounded()) && ! admitOverloaded(activity))
+      return false;
+
+    // Queue is ordered by scheduled time, with sequence number preserving FIFO order for ties
+    activity.sequenceNumber = nextSequenceNumber++;
+    queue.add(activity);
+    AgentActivityJournal journal = scheduler.journal;
+    if (journal != null)
+      journal.activityQueued(activity);
+
+    // Wake the shard's thread in case the new activity is due before whatever it was waiting for
+    wakeDispatcher();
+    return true;
+  }
+
+  protected boolean admitOverloaded(AgentActivity activity){
+    // A newer coalescible activity replaces the agent's oldest one of the same type
+    AgentAdmissionControl admission = scheduler.admission;
+    AgentInstance agent = activity.agent;
+    if (activity.isCoalescible() && dropOldestInputChanged(agent)){
+      admission.admit(activity, true);
+      return true;
+    }
+
+    // Otherwise either hold the activity back a while, or turn it away
+    if (admission.overloadPolicy.equals(AgentAdmissionControl.DEFER_POLICY)){
+      activity.when = Math.max(activity.when, Clock.now() + admission.retryInterval);
+      admission.admit(activity, true);
+      admission.activityDeferred();
+      return true;
+    }
+    String message = "Activity rejected since the scheduler queue is saturated - " + activity.description;
+    log.warn(message + " for agent " + agent.name);
+    agent.exceptionHistory.add(new ExceptionInfo(new AgentServerException(message), activity.getType()));
+    admission.activityRejected();
+    return false;
+  }
+
+  protected boolean dropOldestInputChanged(AgentInstance agent){
+    // Find the agent's oldest input-changed activity that has not started yet
+    AgentActivityTriggerInputChanged oldestActivity = null;
+    for (AgentActivityTriggerInputChanged pendingActivity: agent.pendingInputChanged.values())
+      if (oldestActivity == null || pendingActivity.sequenceNumber < oldestActivity.sequenceNumber)
+        oldestActivity = pendingActivity;
+    if (oldestActivity == null)
+      return false;
+
+    // Take it out of the queue, or out of the agent's mailbox if it is already due
+    if (! queue.remove(oldestActivity) && agent.mailbox.remove(oldestActivity)){
+      numMailboxActivities--;
+      numMailboxActivitiesByPriority[oldestActivity.priority]--;
+      getUserQueue(agent.user).numMailboxActivities--;
+    }
+    agent.pendingInputChanged.remove(oldestActivity.dataSource);
+    oldestActivity.finishWaves();
+    scheduler.admission.release(agent, 1);
+    scheduler.admission.activityDropped();
+    log.warn("Dropped " + oldestActivity.description + " for agent " + agent.name + " since the scheduler queue is saturated");
+    return true;
+  }
+
+  public void handOffInputChanged(AgentInstance agent, AgentInstance dataSource, long triggerInterval, AgentPropagationWave wave){
+    // Due time is fixed now, but merging with any pending trigger is left to the shard's own thread
+    inputChangedHandoff.add(new AgentActivityTriggerInputChanged(agent, dataSource, triggerInterval, wave));
+    wakeDispatcher();
+  }
+
+  protected void finishWaves(AgentActivity activity){
+    // Waves waiting on an input-changed activity can move on once it has run or been dropped
+    if (activity instanceof AgentActivityTriggerInputChanged)
+      ((AgentActivityTriggerInputChanged)activity).finishWaves();
+  }
+
+  protected void finishPendingWaves(AgentInstance agent){
+    // Input-changed activities that will never run no longer hold up their waves
+    for (AgentActivityTriggerInputChanged pendingActivity: agent.pendingInputChanged.values())
+      pendingActivity.finishWaves();
+  }
+
+  protected void drainInputChangedHandoff(){
+    for (AgentActivityTriggerInputChanged trigger = inputChangedHandoff.poll(); trigger != null;
+        trigger = inputChangedHandoff.poll())
+      mergeInputChanged(trigger);
+  }
+
+  protected void mergeInputChanged(AgentActivityTriggerInputChanged trigger){
+    // Merge into the activity already pending for this agent and data source, if any
+    numInputChangedTriggers++;
+    AgentInstance agent = trigger.agent;
+    AgentActivityTriggerInputChanged pendingActivity = agent.pendingInputChanged.get(trigger.dataSource);
+    if (pendingActivity != null){
+      numInputChangedCoalesced++;
+
+      // Pending activity evaluates the agent for the trigger's waves as well
+      pendingActivity.waves.addAll(trigger.waves);
+
+      // Keep the earliest due time of the merged triggers
+      // Note: Nothing to move if the pending activity is already in the agent's mailbox
+      if (trigger.when < pendingActivity.when && queue.remove(pendingActivity)){
+        pendingActivity.when = trigger.when;
+        pendingActivity.triggerInterval = trigger.triggerInterval;
+        queue.add(pendingActivity);
+      }
+      return;
+    }
+
+    // Otherwise queue up the trigger itself as the pending activity for the data source change
+    if (add(trigger))
+      agent.pendingInputChanged.put(trigger.dataSource, trigger);
+    else
+      trigger.finishWaves();
+  }
+
+  public void start() throws AgentServerException {
+    // Reset state
+    shutdown = false;
+    requestShutdown = false;
+    requestPause = false;
+
+    // Create the pool of worker threads for activities, with this shard's part of the configured size
+    if (threadPool == null || threadPool.isShutdown())
+      threadPool = scheduler.createThreadPool();
+
+    // Switch to the queue type selected in config, if nothing is queued yet
+    String queueType = scheduler.agentServer == null || scheduler.agentServer.config == null ?
+        AgentActivityQueue.DEFAULT_QUEUE_TYPE : scheduler.agentServer.config.getSchedulerQueueType();
+    synchronized (this){
+      if (queue.isEmpty() && ! queue.getType().equalsIgnoreCase(queueType.trim())){
+        queue = AgentActivityQueue.create(queueType, Clock.now());
+        log.info("Using " + queue.getType() + " scheduler queue for shard " + index);
+      }
+    }
+
+    // Start the watchdog that enforces activity deadlines
+    synchronized (this){
+      watchdog = new AgentActivityWatchdog(this);
+      watchdog.start();
+    }
+
+    // Create a new thread for this shard to run in
+    thread = new Thread(this, "AgentSchedulerShard-" + index);
+    thread.start();
+  }
+
+  public synchronized void pause(){
+    this.requestPause = true;
+    wakeDispatcher();
+  }
+
+  public synchronized void resume(){
+    this.requestResume = true;
+    wakeDispatcher();
+  }
+
+  public synchronized void shutDown(){
+    this.requestShutdown = true;
+    wakeDispatcher();
+  }
+
+  public synchronized void clearMailbox(AgentInstance agentInstance){
+    scheduler.admission.clear(agentInstance);
+    finishPendingWaves(agentInstance);
+    agentInstance.mailbox.clear();
+    agentInstance.pendingInputChanged.clear();
+    agentInstance.readyToRun = false;
+  }
+
+  public synchronized void clearReadyAgents(){
+    numMailboxActivities = 0;
+    for (int i = 0; i < AgentActivity.NUM_PRIORITIES; i++)
+      numMailboxActivitiesByPriority[i] = 0;
+
+    // No agents are ready to run any more
+    for (AgentUserQueue userQueue: userQueues.values()){
+      userQueue.readyAgents.clear();
+      userQueue.numMailboxActivities = 0;
+      userQueue.inRoundRobin = false;
+      userQueue.turnStarted = false;
+      userQueue.deficit = 0;
+    }
+    readyUsers.clear();
+  }
+
+  public synchronized void flushAgentActivities(AgentInstance agentInstance){
+    // Find and remove all activities that are queued up for this agent instance
+    int numRemoved = queue.removeAgentActivities(agentInstance);
+    for (Iterator<AgentActivityTriggerInputChanged> it = inputChangedHandoff.iterator(); it.hasNext(); ){
+      AgentActivityTriggerInputChanged trigger = it.next();
+      if (trigger.agent == agentInstance){
+        it.remove();
+        trigger.finishWaves();
+      }
+    }
+
+    // As well as any that are waiting in its mailbox
+    AgentUserQueue userQueue = getUserQueue(agentInstance.user);
+    numMailboxActivities -= agentInstance.mailbox.size();
+    userQueue.numMailboxActivities -= agentInstance.mailbox.size();
+    scheduler.admission.release(agentInstance, numRemoved + agentInstance.mailbox.size());
+    for (AgentActivity activity: agentInstance.mailbox)
+      numMailboxActivitiesByPriority[activity.priority]--;
+    agentInstance.mailbox.clear();
+    finishPendingWaves(agentInstance);
+    agentInstance.pendingInputChanged.clear();
+    if (agentInstance.readyToRun){
+      userQueue.readyAgents.remove(agentInstance);
+      agentInstance.readyToRun = false;
+    }
+    wakeDispatcher();
+  }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.scheduler;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.basetechnology.s0.agentserver.User;
+import com.basetechnology.s0.agentserver.util.JsonListMap;
+
+public class AgentUserQueue {
+  public static final int DEFAULT_USER_WEIGHT = 1;
+  // Zero means a user may use as many worker threads as are free
+  public static final int DEFAULT_USER_MAX_CONCURRENCY = 0;
+
+  public User user;
+
+  // Agents of this user that have an activity ready to run, by priority class and in the order they became ready
+  // Note: All access must be synchronized on the scheduler shard that owns this user queue
+  public AgentReadyQueue readyAgents = new AgentReadyQueue();
+
+  // Deficit round-robin state - credit for dispatches left in the user's current turn
+  public long deficit;
+  public boolean turnStarted;
+  public boolean inRoundRobin;
+
+  // Counts for reporting the user's backlog and share of the workers
+  public int numMailboxActivities;
+  public int numActive;
+  public long numDispatched;
+  // Fraction of all of the scheduler's workers the user is entitled to, only for reporting totals across shards
+  public double share;
+
+  public AgentUserQueue(User user){
+    this.user = user;
+  }
+
+  public int getWeight(int defaultWeight){
+    // User's own weight overrides the server default
+    Integer weight = user.schedulerWeight;
+    return weight == null || weight < 1 ? defaultWeight : weight;
+  }
+
+  public int getMaxConcurrency(int defaultMaxConcurrency){
+    Integer maxConcurrency = user.schedulerMaxConcurrency;
+    return maxConcurrency == null || maxConcurrency < 0 ? defaultMaxConcurrency : maxConcurrency;
+  }
+
+  public boolean hasWork(){
+    return numActive > 0 || numMailboxActivities > 0;
+  }
+
+  public JSONObject toJson(int defaultWeight, int defaultMaxConcurrency, double share) throws JSONException {
+    JSONObject userJson = new JsonListMap();
+    userJson.put("user", user.id);
+    userJson.put("weight", getWeight(defaultWeight));
+    userJson.put("max_concurrency", getMaxConcurrency(defaultMaxConcurrency));
+    userJson.put("share", share);
+    userJson.put("active", numActive);
+    userJson.put("backlog", numMailboxActivities);
+    userJson.put("dispatched", numDispatched);
+    return userJson;
+  }
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.script.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ClassFileWriter {
+  // Java 5 class file version, which the JVM verifies without needing stack map frames
+  static public final int MAJOR_VERSION = 49;
+  static public final int ACC_PUBLIC = 0x0001;
+  static public final int ACC_SUPER = 0x0020;
+
+  static final int CONSTANT_UTF8 = 1;
+  static final int CONSTANT_INTEGER = 3;
+  static final int CONSTANT_LONG = 5;
+  static final int CONSTANT_DOUBLE = 6;
+  static final int CONSTANT_CLASS = 7;
+  static final int CONSTANT_FIELD_REF = 9;
+  static final int CONSTANT_METHOD_REF = 10;
+  static final int CONSTANT_INTERFACE_METHOD_REF = 11;
+  static final int CONSTANT_NAME_AND_TYPE = 12;
+
+  // Class names are internal names, with '/' rather than '.' between package names
+  public String className;
+  public String superClassName;
+  protected ByteArrayOutputStream constantPoolBytes = new ByteArrayOutputStream();
+  protected DataOutputStream constantPool = new DataOutputStream(constantPoolBytes);
+  protected int numConstants = 1;
+  protected Map<String, Integer> constants = new HashMap<String, Integer>();
+  protected List<CodeWriter> methods = new ArrayList<CodeWriter>();
+
+  public ClassFileWriter(String className, String superClassName){
+    this.className = className;
+    this.superClassName = superClassName;
+  }
+
+  public CodeWriter addMethod(int access, String name, String descriptor, int numArgumentSlots){
+    CodeWriter codeWriter = new CodeWriter(this, access, addUtf8(name), addUtf8(descriptor), numArgumentSlots);
+    methods.add(codeWriter);
+    return codeWriter;
+  }
+
+  protected int addConstant(String key, int tag, Object... parts){
+    // Reuse an existing entry for the same constant
+    Integer index = constants.get(key);
+    if (index != null)
+      return index;
+
+    try {
+      constantPool.writeByte(tag);
+      for (Object part: parts)
+        if (part instanceof String)
+          constantPool.writeUTF((String)part);
+        else if (part instanceof Long)
+          constantPool.writeLong((Long)part);
+        else if (part instanceof Double)
+          constantPool.writeDouble((Double)part);
+        else if (tag == CONSTANT_INTEGER)
+          constantPool.writeInt((Integer)part);
+        else
+          constantPool.writeShort((Integer)part);
+    } catch (IOException e){
+      throw new IllegalStateException("Unable to write class file constant - " + e.getMessage());
+    }
+
+    // Long and double constants take two entries
+    index = numConstants;
+    numConstants += tag == CONSTANT_LONG || tag == CONSTANT_DOUBLE ? 2 : 1;
+    constants.put(key, index);
+    return index;
+  }
+
+  public int addUtf8(String value){
+    return addConstant("U" + value, CONSTANT_UTF8, value);
+  }
+
+  public int addInteger(int value){
+    return addConstant("I" + value, CONSTANT_INTEGER, value);
+  }
+
+  public int addLong(long value){
+    return addConstant("J" + value, CONSTANT_LONG, value);
+  }
+
+  public int addDouble(double value){
+    return addConstant("D" + Double.doubleToRawLongBits(value), CONSTANT_DOUBLE, value);
+  }
+
+  public int addClass(String className){
+    return addConstant("C" + className, CONSTANT_CLASS, addUtf8(className));
+  }
+
+  public int addNameAndType(String name, String descriptor){
+    return addConstant("T" + name + " " + descriptor, CONSTANT_NAME_AND_TYPE, addUtf8(name), addUtf8(descriptor));
+  }
+
+  public int addFieldRef(String owner, String name, String descriptor){
+    return addConstant("F" + owner + "." + name + " " + descriptor, CONSTANT_FIELD_REF,
+        addClass(owner), addNameAndType(name, descriptor));
+  }
+
+  public int addMethodRef(String owner, String name, String descriptor){
+    return addConstant("M" + owner + "." + name + descriptor, CONSTANT_METHOD_REF,
+        addClass(owner), addNameAndType(name, descriptor));
+  }
+
+  public int addInterfaceMethodRef(String owner, String name, String descriptor){
+    return addConstant("N" + owner + "." + name + descriptor, CONSTANT_INTERFACE_METHOD_REF,
+        addClass(owner), addNameAndType(name, descriptor));
+  }
+
+  public byte[] toByteArray() throws ScriptCompilerException {
+    // Resolve all constants used by the class itself and its methods before writing the pool
+    int thisClassIndex = addClass(className);
+    int superClassIndex = addClass(superClassName);
+    int codeIndex = addUtf8("Code");
+
+    ByteArrayOutputStream classBytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(classBytes);
+    try {
+      // Header and constant pool
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0);
+      out.writeShort(MAJOR_VERSION);
+      out.writeShort(numConstants);
+      constantPool.flush();
+      constantPoolBytes.writeTo(out);
+
+      // Class, with no interfaces and no fields
+      out.writeShort(ACC_PUBLIC | ACC_SUPER);
+      out.writeShort(thisClassIndex);
+      out.writeShort(superClassIndex);
+      out.writeShort(0);
+      out.writeShort(0);
+
+      // Methods, each with only a code attribute
+      out.writeShort(methods.size());
+      for (CodeWriter codeWriter: methods){
+        byte[] code = codeWriter.toByteArray();
+        out.writeShort(codeWriter.access);
+        out.writeShort(codeWriter.nameIndex);
+        out.writeShort(codeWriter.descriptorIndex);
+        out.writeShort(1);
+        out.writeShort(codeIndex);
+        out.writeInt(12 + code.length);
+        out.writeShort(codeWriter.maxStack);
+        out.writeShort(codeWriter.maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0);
+        out.writeShort(0);
+      }
+
+      // No class attributes
+      out.writeShort(0);
+      out.flush();
+    } catch (IOException e){
+      throw new ScriptCompilerException("Unable to write class file - " + e.getMessage());
+    }
+
+    // The pool is limited to 64K entries
+    if (numConstants > 0xFFFF)
+      throw new ScriptCompilerException("Too many constants in generated class " + className);
+    return classBytes.toByteArray();
+  }
+}
@@ -0,0 +1,29 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.script.compiler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class CodeLabel {
+  // Offset of the label in the code, or -1 until the label is placed
+  public int offset = -1;
+  // Operand stack depth at the label, or -1 until some jump to it or its placement sets it
+  public int stackDepth = -1;
+  // Offsets of the jump instructions to patch once the label is placed
+  public List<Integer> jumpOffsets = new ArrayList<Integer>();
+}
@@ -0,0 +1,299 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.script.compiler;
+
+import java.util.Arrays;
+
+public class CodeWriter {
+  // Opcodes used by the script compiler
+  static public final int ACONST_NULL = 0x01;
+  static public final int ICONST_0 = 0x03;
+  static public final int LCONST_0 = 0x09;
+  static public final int DCONST_0 = 0x0e;
+  static public final int BIPUSH = 0x10;
+  static public final int SIPUSH = 0x11;
+  static public final int LDC = 0x12;
+  static public final int LDC_W = 0x13;
+  static public final int LDC2_W = 0x14;
+  static public final int ILOAD = 0x15;
+  static public final int LLOAD = 0x16;
+  static public final int DLOAD = 0x18;
+  static public final int ALOAD = 0x19;
+  static public final int AALOAD = 0x32;
+  static public final int ISTORE = 0x36;
+  static public final int LSTORE = 0x37;
+  static public final int DSTORE = 0x39;
+  static public final int ASTORE = 0x3a;
+  static public final int POP = 0x57;
+  static public final int POP2 = 0x58;
+  static public final int DUP = 0x59;
+  static public final int DUP_X2 = 0x5b;
+  static public final int DUP2 = 0x5c;
+  static public final int SWAP = 0x5f;
+  static public final int LADD = 0x61;
+  static public final int DADD = 0x63;
+  static public final int LSUB = 0x65;
+  static public final int DSUB = 0x67;
+  static public final int LMUL = 0x69;
+  static public final int DMUL = 0x6b;
+  static public final int LDIV = 0x6d;
+  static public final int DDIV = 0x6f;
+  static public final int LREM = 0x71;
+  static public final int DREM = 0x73;
+  static public final int LNEG = 0x75;
+  static public final int DNEG = 0x77;
+  static public final int L2D = 0x8a;
+  static public final int D2L = 0x8f;
+  static public final int LCMP = 0x94;
+  static public final int DCMPL = 0x97;
+  static public final int DCMPG = 0x98;
+  static public final int IFEQ = 0x99;
+  static public final int IFNE = 0x9a;
+  static public final int IFLT = 0x9b;
+  static public final int IFGE = 0x9c;
+  static public final int IFGT = 0x9d;
+  static public final int IFLE = 0x9e;
+  static public final int IF_ICMPEQ = 0x9f;
+  static public final int IF_ICMPNE = 0xa0;
+  static public final int GOTO = 0xa7;
+  static public final int RETURN = 0xb1;
+  static public final int GETSTATIC = 0xb2;
+  static public final int GETFIELD = 0xb4;
+  static public final int PUTFIELD = 0xb5;
+  static public final int INVOKEVIRTUAL = 0xb6;
+  static public final int INVOKESPECIAL = 0xb7;
+  static public final int INVOKESTATIC = 0xb8;
+  static public final int INVOKEINTERFACE = 0xb9;
+  static public final int NEW = 0xbb;
+  static public final int CHECKCAST = 0xc0;
+  static public final int IFNONNULL = 0xc7;
+  static public final int WIDE = 0xc4;
+
+  // Largest method the JVM accepts
+  static public final int MAX_CODE_LENGTH = 65535;
+
+  public ClassFileWriter classWriter;
+  public int access;
+  public int nameIndex;
+  public int descriptorIndex;
+  public int maxStack;
+  public int maxLocals;
+  protected byte[] code = new byte[256];
+  protected int length;
+  protected int stackDepth;
+  // False after an unconditional jump or return, until a label is placed
+  protected boolean reachable = true;
+  protected boolean jumpOutOfRange;
+
+  public CodeWriter(ClassFileWriter classWriter, int access, int nameIndex, int descriptorIndex, int numArgumentSlots){
+    this.classWriter = classWriter;
+    this.access = access;
+    this.nameIndex = nameIndex;
+    this.descriptorIndex = descriptorIndex;
+    this.maxLocals = numArgumentSlots;
+  }
+
+  public int newLocal(int size){
+    int local = maxLocals;
+    maxLocals += size;
+    return local;
+  }
+
+  protected void writeByte(int value){
+    if (length == code.length)
+      code = Arrays.copyOf(code, code.length * 2);
+    code[length++] = (byte)value;
+  }
+
+  protected void writeShort(int value){
+    writeByte(value >> 8);
+    writeByte(value);
+  }
+
+  protected void adjustStack(int change){
+    stackDepth += change;
+    if (stackDepth > maxStack)
+      maxStack = stackDepth;
+  }
+
+  public void insn(int opcode, int stackChange){
+    writeByte(opcode);
+    adjustStack(stackChange);
+    if (opcode == RETURN)
+      reachable = false;
+  }
+
+  public void varInsn(int opcode, int local){
+    // Loads push and stores pop one slot, or two for long and double
+    int size = opcode == LLOAD || opcode == DLOAD || opcode == LSTORE || opcode == DSTORE ? 2 : 1;
+    if (local > 255){
+      writeByte(WIDE);
+      writeByte(opcode);
+      writeShort(local);
+    } else {
+      writeByte(opcode);
+      writeByte(local);
+    }
+    adjustStack(opcode < ISTORE ? size : - size);
+  }
+
+  public void pushInt(int value){
+    if (value >= -1 && value <= 5)
+      insn(ICONST_0 + value, 1);
+    else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE){
+      writeByte(BIPUSH);
+      writeByte(value);
+      adjustStack(1);
+    } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE){
+      writeByte(SIPUSH);
+      writeShort(value);
+      adjustStack(1);
+    } else
+      ldc(classWriter.addInteger(value), 1);
+  }
+
+  public void pushLong(long value){
+    if (value == 0 || value == 1)
+      insn(LCONST_0 + (int)value, 2);
+    else
+      ldc(classWriter.addLong(value), 2);
+  }
+
+  public void pushDouble(double value){
+    // Only positive zero and one have their own opcodes
+    if (Double.doubleToRawLongBits(value) == 0 || value == 1.0)
+      insn(DCONST_0 + (int)value, 2);
+    else
+      ldc(classWriter.addDouble(value), 2);
+  }
+
+  protected void ldc(int index, int size){
+    if (size == 2){
+      writeByte(LDC2_W);
+      writeShort(index);
+    } else if (index <= 255){
+      writeByte(LDC);
+      writeByte(index);
+    } else {
+      writeByte(LDC_W);
+      writeShort(index);
+    }
+    adjustStack(size);
+  }
+
+  public void typeInsn(int opcode, String className){
+    writeByte(opcode);
+    writeShort(classWriter.addClass(className));
+    if (opcode == NEW)
+      adjustStack(1);
+  }
+
+  public void fieldInsn(int opcode, String owner, String name, String descriptor){
+    writeByte(opcode);
+    writeShort(classWriter.addFieldRef(owner, name, descriptor));
+    int size = getTypeSize(descriptor);
+    if (opcode == GETSTATIC)
+      adjustStack(size);
+    else if (opcode == GETFIELD)
+      adjustStack(size - 1);
+    else
+      adjustStack(- size - 1);
+  }
+
+  public void methodInsn(int opcode, String owner, String name, String descriptor){
+    // Arguments and any target object are popped, and any result pushed
+    int closeParenthesis = descriptor.indexOf(')');
+    int argumentSize = 0;
+    for (int i = 1; i < closeParenthesis; i++){
+      char c = descriptor.charAt(i);
+      boolean isArray = c == '[';
+      while (c == '[')
+        c = descriptor.charAt(++i);
+      if (c == 'L')
+        i = descriptor.indexOf(';', i);
+      argumentSize += ! isArray && (c == 'J' || c == 'D') ? 2 : 1;
+    }
+    int stackChange = getTypeSize(descriptor.substring(closeParenthesis + 1)) - argumentSize -
+        (opcode == INVOKESTATIC ? 0 : 1);
+
+    writeByte(opcode);
+    if (opcode == INVOKEINTERFACE){
+      writeShort(classWriter.addInterfaceMethodRef(owner, name, descriptor));
+      writeByte(argumentSize + 1);
+      writeByte(0);
+    } else
+      writeShort(classWriter.addMethodRef(owner, name, descriptor));
+    adjustStack(stackChange);
+  }
+
+  static protected int getTypeSize(String descriptor){
+    char c = descriptor.charAt(0);
+    return c == 'V' ? 0 : c == 'J' || c == 'D' ? 2 : 1;
+  }
+
+  public void jumpInsn(int opcode, CodeLabel label){
+    // Conditional jumps pop their operands; remember the depth at the target
+    if (opcode == IF_ICMPEQ || opcode == IF_ICMPNE)
+      adjustStack(-2);
+    else if (opcode != GOTO)
+      adjustStack(-1);
+    label.stackDepth = stackDepth;
+
+    // Jump now if the label is already placed, otherwise patch the offset when it is
+    int opcodeOffset = length;
+    writeByte(opcode);
+    if (label.offset >= 0)
+      writeJumpOffset(opcodeOffset, label.offset);
+    else {
+      label.jumpOffsets.add(opcodeOffset);
+      writeShort(0);
+    }
+    if (opcode == GOTO)
+      reachable = false;
+  }
+
+  protected void writeJumpOffset(int opcodeOffset, int targetOffset){
+    int jumpOffset = targetOffset - opcodeOffset;
+    if (jumpOffset < Short.MIN_VALUE || jumpOffset > Short.MAX_VALUE)
+      jumpOutOfRange = true;
+    if (opcodeOffset + 1 == length)
+      writeShort(jumpOffset);
+    else {
+      code[opcodeOffset + 1] = (byte)(jumpOffset >> 8);
+      code[opcodeOffset + 2] = (byte)jumpOffset;
+    }
+  }
+
+  public void mark(CodeLabel label){
+    label.offset = length;
+    for (int jumpOffset: label.jumpOffsets)
+      writeJumpOffset(jumpOffset, length);
+
+    // Code after an unconditional jump is only reached through its label, at the depth of its jumps
+    if (label.stackDepth >= 0)
+      stackDepth = label.stackDepth;
+    else
+      label.stackDepth = stackDepth;
+    reachable = true;
+  }
+
+  public byte[] toByteArray() throws ScriptCompilerException {
+    if (length > MAX_CODE_LENGTH || jumpOutOfRange)
+      throw new ScriptCompilerException("Generated code is too large for a method - " + length + " bytes");
+    return Arrays.copyOf(code, length);
+  }
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.script.compiler;
+
+import java.util.List;
+
+import com.basetechnology.s0.agentserver.AgentServerException;
+import com.basetechnology.s0.agentserver.script.intermediate.Symbol;
+import com.basetechnology.s0.agentserver.script.runtime.ScriptState;
+import com.basetechnology.s0.agentserver.script.runtime.value.Value;
+
+public abstract class CompiledScript {
+  // Nodes and symbols that the generated code refers to, by index
+  public Object[] constants;
+
+  public CompiledScript(Object[] constants){
+    this.constants = constants;
+  }
+
+  public abstract void run(ScriptState scriptState, List<Value> argumentValues) throws AgentServerException;
+
+  // Helpers for the generated code, for variables which are kept in the script state
+
+  static public void putVariable(ScriptState scriptState, Symbol symbol, Value valueNode){
+    scriptState.getSymbolValues(symbol.symbolTable).put(symbol, valueNode);
+  }
+
+  static public void initializeVariable(ScriptState scriptState, Symbol symbol){
+    scriptState.getSymbolValues(symbol.symbolTable).put(symbol, symbol.type.getDefaultValue());
+  }
+
+  static public int getControlFlowChange(ScriptState scriptState){
+    return scriptState.controlFlowChange.ordinal();
+  }
+}
@@ -0,0 +1,1114 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.script.compiler;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.basetechnology.s0.agentserver.script.intermediate.AddNode;
+import com.basetechnology.s0.agentserver.script.intermediate.AssignmentNode;
+import com.basetechnology.s0.agentserver.script.intermediate.AssignmentStatementNode;
+import com.basetechnology.s0.agentserver.script.intermediate.BinaryExpressionNode;
+import com.basetechnology.s0.agentserver.script.intermediate.BinaryLogicalOperatorNode;
+import com.basetechnology.s0.agentserver.script.intermediate.BlockStatementNode;
+import com.basetechnology.s0.agentserver.script.intermediate.BooleanNode;
+import com.basetechnology.s0.agentserver.script.intermediate.BreakStatementNode;
+import com.basetechnology.s0.agentserver.script.intermediate.ContinueStatementNode;
+import com.basetechnology.s0.agentserver.script.intermediate.DivideNode;
+import com.basetechnology.s0.agentserver.script.intermediate.DoStatementNode;
+import com.basetechnology.s0.agentserver.script.intermediate.EqualsNode;
+import com.basetechnology.s0.agentserver.script.intermediate.ExpressionListNode;
+import com.basetechnology.s0.agentserver.script.intermediate.ExpressionNode;
+import com.basetechnology.s0.agentserver.script.intermediate.ExpressionStatementListNode;
+import com.basetechnology.s0.agentserver.script.intermediate.ExpressionStatementNode;
+import com.basetechnology.s0.agentserver.script.intermediate.FloatNumberNode;
+import com.basetechnology.s0.agentserver.script.intermediate.ForStatementNode;
+import com.basetechnology.s0.agentserver.script.intermediate.GreaterEqualsNode;
+import com.basetechnology.s0.agentserver.script.intermediate.GreaterNode;
+import com.basetechnology.s0.agentserver.script.intermediate.IfStatementNode;
+import com.basetechnology.s0.agentserver.script.intermediate.IntegerNumberNode;
+import com.basetechnology.s0.agentserver.script.intermediate.LessEqualsNode;
+import com.basetechnology.s0.agentserver.script.intermediate.LessNode;
+import com.basetechnology.s0.agentserver.script.intermediate.LogicalAndNode;
+import com.basetechnology.s0.agentserver.script.intermediate.LogicalNotNode;
+import com.basetechnology.s0.agentserver.script.intermediate.LogicalOrNode;
+import com.basetechnology.s0.agentserver.script.intermediate.MultiplyNode;
+import com.basetechnology.s0.agentserver.script.intermediate.NegationNode;
+import com.basetechnology.s0.agentserver.script.intermediate.Node;
+import com.basetechnology.s0.agentserver.script.intermediate.NotEqualsNode;
+import com.basetechnology.s0.agentserver.script.intermediate.NullExpressionNode;
+import com.basetechnology.s0.agentserver.script.intermediate.NullStatementNode;
+import com.basetechnology.s0.agentserver.script.intermediate.PostDecrementNode;
+import com.basetechnology.s0.agentserver.script.intermediate.PostIncrementNode;
+import com.basetechnology.s0.agentserver.script.intermediate.PreDecrementNode;
+import com.basetechnology.s0.agentserver.script.intermediate.PreIncrementNode;
+import com.basetechnology.s0.agentserver.script.intermediate.RemainderNode;
+import com.basetechnology.s0.agentserver.script.intermediate.ReturnStatementNode;
+import com.basetechnology.s0.agentserver.script.intermediate.ScriptNode;
+import com.basetechnology.s0.agentserver.script.intermediate.StatementNode;
+import com.basetechnology.s0.agentserver.script.intermediate.SubtractNode;
+import com.basetechnology.s0.agentserver.script.intermediate.Symbol;
+import com.basetechnology.s0.agentserver.script.intermediate.SymbolManager;
+import com.basetechnology.s0.agentserver.script.intermediate.TernaryConditionNode;
+import com.basetechnology.s0.agentserver.script.intermediate.UnaryExpressionNode;
+import com.basetechnology.s0.agentserver.script.intermediate.VariableReferenceNode;
+import com.basetechnology.s0.agentserver.script.intermediate.WhileStatementNode;
+import com.basetechnology.s0.agentserver.script.runtime.ScriptState;
+import com.basetechnology.s0.agentserver.script.runtime.value.FalseValue;
+import com.basetechnology.s0.agentserver.script.runtime.value.FloatValue;
+import com.basetechnology.s0.agentserver.script.runtime.value.IntegerValue;
+import com.basetechnology.s0.agentserver.script.runtime.value.NullValue;
+import com.basetechnology.s0.agentserver.script.runtime.value.StringValue;
+import com.basetechnology.s0.agentserver.script.runtime.value.TrueValue;
+import com.basetechnology.s0.agentserver.script.runtime.value.Value;
+
+/**
+ * Translates a script into a JVM class, whose run method performs the same node executions as
+ * the interpreter, in the same order, counting each one in the script state.
+ *
+ * Local variables of the script are held in JVM locals rather than the script state. A local
+ * variable which only ever holds integers, or only floats, is held as a long or double, and
+ * arithmetic and comparisons on such values are done directly, with no Value objects. Any node
+ * the compiler does not handle is run by the interpreter, and any local variable it refers to
+ * stays in the script state where the interpreter can see it.
+ */
+public class ScriptCompiler {
+  static final Logger log = Logger.getLogger(ScriptCompiler.class);
+
+  // Number of runs after which a script is compiled, unless configured otherwise
+  static public final int DEFAULT_COMPILE_THRESHOLD = 50;
+
+  // Static types of compiled expressions - UNKNOWN only while variable types are being inferred
+  static final int UNKNOWN = 0;
+  static final int LONG = 1;
+  static final int DOUBLE = 2;
+  static final int BOOLEAN = 3;
+  static final int VALUE = 4;
+
+  static final int MAX_INFERENCE_PASSES = 100;
+
+  // Internal names of the classes the generated code refers to
+  static final String SCRIPT_PACKAGE = "com/basetechnology/s0/agentserver/script/";
+  static final String COMPILED_SCRIPT = SCRIPT_PACKAGE + "compiler/CompiledScript";
+  static final String GENERATED_SCRIPT = SCRIPT_PACKAGE + "compiler/GeneratedScript";
+  static final String SCRIPT_STATE = SCRIPT_PACKAGE + "runtime/ScriptState";
+  static final String CONTROL_FLOW_CHANGES = SCRIPT_STATE + "$controlFlowChanges";
+  static final String EXPRESSION_NODE = SCRIPT_PACKAGE + "intermediate/ExpressionNode";
+  static final String STATEMENT_NODE = SCRIPT_PACKAGE + "intermediate/StatementNode";
+  static final String BINARY_EXPRESSION_NODE = SCRIPT_PACKAGE + "intermediate/BinaryExpressionNode";
+  static final String VARIABLE_REFERENCE_NODE = SCRIPT_PACKAGE + "intermediate/VariableReferenceNode";
+  static final String SYMBOL = SCRIPT_PACKAGE + "intermediate/Symbol";
+  static final String TYPE_NODE = SCRIPT_PACKAGE + "intermediate/TypeNode";
+  static final String VALUE_CLASS = SCRIPT_PACKAGE + "runtime/value/Value";
+  static final String INTEGER_VALUE = SCRIPT_PACKAGE + "runtime/value/IntegerValue";
+  static final String FLOAT_VALUE = SCRIPT_PACKAGE + "runtime/value/FloatValue";
+  static final String BOOLEAN_VALUE = SCRIPT_PACKAGE + "runtime/value/BooleanValue";
+  static final String NULL_VALUE = SCRIPT_PACKAGE + "runtime/value/NullValue";
+  static final String STATE_DESCRIPTOR = "L" + SCRIPT_STATE + ";";
+  static final String VALUE_DESCRIPTOR = "L" + VALUE_CLASS + ";";
+
+  static final AtomicInteger numClasses = new AtomicInteger();
+
+  public ScriptNode scriptNode;
+  // Initial and inferred types of the local variables held in JVM locals
+  protected Map<Symbol, Integer> initialTypes = new HashMap<Symbol, Integer>();
+  protected Map<Symbol, Integer> variableTypes = new HashMap<Symbol, Integer>();
+  protected Map<Symbol, Integer> variableLocals = new HashMap<Symbol, Integer>();
+  // Types of values assigned to, and local variables seen by nodes run by the interpreter, in one inference pass
+  protected Map<Symbol, Integer> assignedTypes;
+  protected Set<Symbol> interpretedSymbols;
+  // Nodes and symbols referred to by the generated code
+  protected List<Object> constants = new ArrayList<Object>();
+  protected Map<Object, Integer> constantIndexes = new IdentityHashMap<Object, Integer>();
+  protected CodeWriter code;
+  // Jump targets of break and continue in the innermost loop, or null outside of any loop
+  protected CodeLabel breakLabel;
+  protected CodeLabel continueLabel;
+  protected int controlFlowLocal = -1;
+
+  public ScriptCompiler(ScriptNode scriptNode){
+    this.scriptNode = scriptNode;
+  }
+
+  static public CompiledScript compile(ScriptNode scriptNode) throws ScriptCompilerException {
+    return new ScriptCompiler(scriptNode).compile();
+  }
+
+  public CompiledScript compile() throws ScriptCompilerException {
+    // Decide which local variables go in JVM locals, and with what types
+    inferVariableTypes();
+
+    // Generate a class with a constructor which simply passes the constants to the base class
+    String className = GENERATED_SCRIPT + numClasses.incrementAndGet();
+    ClassFileWriter classWriter = new ClassFileWriter(className, COMPILED_SCRIPT);
+    CodeWriter constructor = classWriter.addMethod(ClassFileWriter.ACC_PUBLIC, "<init>", "([Ljava/lang/Object;)V", 2);
+    constructor.varInsn(CodeWriter.ALOAD, 0);
+    constructor.varInsn(CodeWriter.ALOAD, 1);
+    constructor.methodInsn(CodeWriter.INVOKESPECIAL, COMPILED_SCRIPT, "<init>", "([Ljava/lang/Object;)V");
+    constructor.insn(CodeWriter.RETURN, 0);
+
+    // And a run method for the script itself
+    code = classWriter.addMethod(ClassFileWriter.ACC_PUBLIC, "run", "(" + STATE_DESCRIPTOR + "Ljava/util/List;)V", 3);
+    compileVariables();
+    compileStatement(scriptNode.blockNode);
+    code.insn(CodeWriter.RETURN, 0);
+    byte[] classBytes = classWriter.toByteArray();
+
+    // Load the class in a class loader of its own, so that it goes away along with the script
+    try {
+      ScriptClassLoader classLoader = new ScriptClassLoader(CompiledScript.class.getClassLoader());
+      Class<?> scriptClass = classLoader.defineScriptClass(className.replace('/', '.'), classBytes);
+      return (CompiledScript)scriptClass.getConstructor(Object[].class).newInstance((Object)constants.toArray());
+    } catch (Exception e){
+      throw new ScriptCompilerException("Unable to load compiled script - " + e);
+    } catch (LinkageError e){
+      throw new ScriptCompilerException("Unable to load compiled script - " + e);
+    }
+  }
+
+  // Analysis of local variables
+
+  protected boolean isLocalSymbol(Symbol symbol){
+    // Only the script's own local categories have values in its script state
+    int categorySlot = symbol.symbolTable == null ? -1 : symbol.symbolTable.categorySlot;
+    return categorySlot >= SymbolManager.NUM_AGENT_CATEGORIES &&
+        categorySlot < SymbolManager.NUM_AGENT_CATEGORIES + scriptNode.numLocalCategories;
+  }
+
+  static protected int getValueType(Value valueNode){
+    if (valueNode.getClass() == IntegerValue.class)
+      return LONG;
+    else if (valueNode.getClass() == FloatValue.class)
+      return DOUBLE;
+    else
+      return VALUE;
+  }
+
+  static protected int joinTypes(int type1, int type2){
+    // Variables hold booleans as values, and either kind of number, as values too
+    if (type1 == BOOLEAN)
+      type1 = VALUE;
+    if (type2 == BOOLEAN)
+      type2 = VALUE;
+    if (type1 == UNKNOWN || type1 == type2)
+      return type2;
+    else if (type2 == UNKNOWN)
+      return type1;
+    else
+      return VALUE;
+  }
+
+  protected void inferVariableTypes() throws ScriptCompilerException {
+    // Parameters start with their argument values
+    if (scriptNode.parameters != null)
+      for (Symbol parameterSymbol: scriptNode.parameters.values())
+        if (isLocalSymbol(parameterSymbol))
+          initialTypes.put(parameterSymbol, VALUE);
+
+    // Block variables start with the default value of their type
+    List<BlockStatementNode> blockNodes = new ArrayList<BlockStatementNode>();
+    List<ForStatementNode> forNodes = new ArrayList<ForStatementNode>();
+    collectNodes(scriptNode.blockNode, blockNodes, forNodes, newIdentitySet());
+    for (BlockStatementNode blockNode: blockNodes)
+      for (Symbol localVariable: blockNode.localVariables)
+        if (isLocalSymbol(localVariable) && ! initialTypes.containsKey(localVariable))
+          initialTypes.put(localVariable, getValueType(localVariable.type.getDefaultValue()));
+
+    // Any other local variable starts with no value at all, except that a variable declared by
+    // the initialization of a 'for' statement, and only used within it, is always assigned first
+    List<Symbol> references = new ArrayList<Symbol>();
+    collectSymbols(scriptNode.blockNode, references, newIdentitySet());
+    for (Symbol symbol: references)
+      if (isLocalSymbol(symbol) && ! initialTypes.containsKey(symbol))
+        initialTypes.put(symbol, VALUE);
+    for (ForStatementNode forNode: forNodes)
+      for (StatementNode statementNode: getStatements(forNode.initialExpression))
+        if (statementNode.getClass() == AssignmentStatementNode.class &&
+            ((AssignmentStatementNode)statementNode).variable.getClass() == VariableReferenceNode.class){
+          Symbol symbol = ((VariableReferenceNode)((AssignmentStatementNode)statementNode).variable).symbol;
+          if (initialTypes.get(symbol) != null && initialTypes.get(symbol) == VALUE && ! isBlockVariable(symbol, blockNodes) &&
+              countReferences(forNode.initialExpression, symbol) == 1 &&
+              countReferences(forNode, symbol) == Collections.frequency(references, symbol))
+            initialTypes.put(symbol, UNKNOWN);
+        }
+    variableTypes.putAll(initialTypes);
+
+    // Repeatedly infer types of assigned values until the variable types settle
+    for (int pass = 0; pass < MAX_INFERENCE_PASSES; pass++){
+      assignedTypes = new HashMap<Symbol, Integer>();
+      interpretedSymbols = new HashSet<Symbol>();
+      scanStatement(scriptNode.blockNode);
+      boolean changed = false;
+
+      // Variables seen by the interpreter must stay in the script state
+      for (Symbol symbol: interpretedSymbols)
+        if (variableTypes.remove(symbol) != null)
+          changed = true;
+
+      // The type of a variable covers its initial value and all values assigned to it
+      for (Symbol symbol: variableTypes.keySet()){
+        Integer assignedType = assignedTypes.get(symbol);
+        int type = joinTypes(initialTypes.get(symbol), assignedType == null ? UNKNOWN : assignedType);
+        if (type != variableTypes.get(symbol)){
+          variableTypes.put(symbol, type);
+          changed = true;
+        }
+      }
+
+      // A variable only assigned values of unknown type can hold any value
+      if (! changed)
+        for (Symbol symbol: variableTypes.keySet())
+          if (variableTypes.get(symbol) == UNKNOWN){
+            initialTypes.put(symbol, VALUE);
+            variableTypes.put(symbol, VALUE);
+            changed = true;
+          }
+      if (! changed)
+        return;
+    }
+    throw new ScriptCompilerException("Types of local variables did not settle");
+  }
+
+  static protected Set<Object> newIdentitySet(){
+    return Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+  }
+
+  static protected boolean isBlockVariable(Symbol symbol, List<BlockStatementNode> blockNodes){
+    for (BlockStatementNode blockNode: blockNodes)
+      if (blockNode.localVariables.contains(symbol))
+        return true;
+    return false;
+  }
+
+  static protected List<StatementNode> getStatements(StatementNode statementNode){
+    if (statementNode.getClass() == ExpressionStatementListNode.class)
+      return ((ExpressionStatementListNode)statementNode).expressionStatements;
+    else
+      return Collections.singletonList(statementNode);
+  }
+
+  protected int countReferences(Node node, Symbol symbol) throws ScriptCompilerException {
+    List<Symbol> references = new ArrayList<Symbol>();
+    collectSymbols(node, references, newIdentitySet());
+    return Collections.frequency(references, symbol);
+  }
+
+  protected void collectNodes(Object object, List<BlockStatementNode> blockNodes, List<ForStatementNode> forNodes,
+      Set<Object> visited) throws ScriptCompilerException {
+    if (object instanceof BlockStatementNode && ! visited.contains(object))
+      blockNodes.add((BlockStatementNode)object);
+    else if (object instanceof ForStatementNode && ! visited.contains(object))
+      forNodes.add((ForStatementNode)object);
+    for (Object child: getChildren(object, visited))
+      collectNodes(child, blockNodes, forNodes, visited);
+  }
+
+  protected void collectSymbols(Object object, Collection<Symbol> symbols, Set<Object> visited) throws ScriptCompilerException {
+    if (object instanceof VariableReferenceNode && ! visited.contains(object))
+      symbols.add(((VariableReferenceNode)object).symbol);
+    for (Object child: getChildren(object, visited))
+      collectSymbols(child, symbols, visited);
+  }
+
+  static protected List<Object> getChildren(Object object, Set<Object> visited) throws ScriptCompilerException {
+    // Walk the fields of any kind of node, so that nodes the compiler knows nothing about are covered too
+    List<Object> children = new ArrayList<Object>();
+    if (object == null || ! visited.add(object))
+      return children;
+    if (object instanceof Map)
+      children.addAll(((Map<?, ?>)object).values());
+    else if (object instanceof Iterable)
+      for (Object child: (Iterable<?>)object)
+        children.add(child);
+    else if (object instanceof Object[])
+      Collections.addAll(children, (Object[])object);
+    else if (object instanceof Node)
+      for (Class<?> nodeClass = object.getClass(); nodeClass != Object.class; nodeClass = nodeClass.getSuperclass())
+        for (Field field: nodeClass.getDeclaredFields())
+          if (! Modifier.isStatic(field.getModifiers()) && ! field.getType().isPrimitive()){
+            try {
+              field.setAccessible(true);
+              Object child = field.get(object);
+              if (child instanceof Node || child instanceof Map || child instanceof Iterable || child instanceof Object[])
+                children.add(child);
+            } catch (Exception e){
+              throw new ScriptCompilerException("Unable to examine field " + field.getName() + " of " +
+                  nodeClass.getSimpleName() + " - " + e);
+            }
+          }
+    return children;
+  }
+
+  protected void interpreted(Node node) throws ScriptCompilerException {
+    collectSymbols(node, interpretedSymbols, newIdentitySet());
+  }
+
+  protected void assigned(Symbol symbol, int type){
+    Integer assignedType = assignedTypes.get(symbol);
+    assignedTypes.put(symbol, joinTypes(assignedType == null ? UNKNOWN : assignedType, type));
+  }
+
+  protected void scanStatement(StatementNode statementNode) throws ScriptCompilerException {
+    // Mirrors compileStatement, noting assignments and the nodes left to the interpreter
+    Class<?> nodeClass = statementNode.getClass();
+    if (nodeClass == BlockStatementNode.class){
+      for (StatementNode childNode: ((BlockStatementNode)statementNode).statementSequence)
+        scanStatement(childNode);
+    } else if (nodeClass == ExpressionStatementNode.class)
+      scanExpression(((ExpressionStatementNode)statementNode).expressionNode);
+    else if (nodeClass == AssignmentStatementNode.class &&
+        ((AssignmentStatementNode)statementNode).variable.getClass() == VariableReferenceNode.class){
+      AssignmentStatementNode assignmentNode = (AssignmentStatementNode)statementNode;
+      assigned(((VariableReferenceNode)assignmentNode.variable).symbol, getType(assignmentNode.value));
+      scanExpression(assignmentNode.value);
+    } else if (nodeClass == ExpressionStatementListNode.class){
+      for (StatementNode childNode: ((ExpressionStatementListNode)statementNode).expressionStatements)
+        scanStatement(childNode);
+    } else if (nodeClass == IfStatementNode.class){
+      IfStatementNode ifNode = (IfStatementNode)statementNode;
+      scanExpression(ifNode.condition);
+      scanStatement(ifNode.thenStatement);
+      if (ifNode.elseStatement != null)
+        scanStatement(ifNode.elseStatement);
+    } else if (nodeClass == WhileStatementNode.class){
+      scanExpression(((WhileStatementNode)statementNode).condition);
+      scanStatement(((WhileStatementNode)statementNode).bodyStatement);
+    } else if (nodeClass == DoStatementNode.class){
+      scanStatement(((DoStatementNode)statementNode).bodyStatement);
+      scanExpression(((DoStatementNode)statementNode).condition);
+    } else if (nodeClass == ForStatementNode.class){
+      ForStatementNode forNode = (ForStatementNode)statementNode;
+      scanStatement(forNode.initialExpression);
+      if (! (forNode.conditionExpression instanceof NullExpressionNode))
+        scanExpression(forNode.conditionExpression);
+      scanStatement(forNode.bodyStatement);
+      scanExpression(forNode.incrementExpression);
+    } else if (nodeClass == ReturnStatementNode.class && ((ReturnStatementNode)statementNode).returnExpr != null)
+      scanExpression(((ReturnStatementNode)statementNode).returnExpr);
+    else if (nodeClass != BreakStatementNode.class && nodeClass != ContinueStatementNode.class &&
+        nodeClass != NullStatementNode.class)
+      interpreted(statementNode);
+  }
+
+  protected void scanExpression(ExpressionNode node) throws ScriptCompilerException {
+    // Mirrors compileExpression, noting assignments and the nodes left to the interpreter
+    Class<?> nodeClass = node.getClass();
+    if (isLiteral(node) || nodeClass == NullExpressionNode.class)
+      return;
+    else if (nodeClass == VariableReferenceNode.class && variableTypes.containsKey(((VariableReferenceNode)node).symbol))
+      return;
+    else if (isCompiledAssignment(node)){
+      AssignmentNode assignmentNode = (AssignmentNode)node;
+      assigned(((VariableReferenceNode)assignmentNode.variable).symbol, getType(assignmentNode.node));
+      scanExpression(assignmentNode.node);
+    } else if (isArithmetic(nodeClass) || isComparison(nodeClass)){
+      scanExpression(((BinaryExpressionNode)node).leftNode);
+      scanExpression(((BinaryExpressionNode)node).rightNode);
+    } else if (nodeClass == LogicalAndNode.class || nodeClass == LogicalOrNode.class){
+      scanExpression(((BinaryLogicalOperatorNode)node).leftNode);
+      scanExpression(((BinaryLogicalOperatorNode)node).rightNode);
+    } else if (nodeClass == LogicalNotNode.class && getType(((LogicalNotNode)node).node) == BOOLEAN)
+      scanExpression(((LogicalNotNode)node).node);
+    else if (nodeClass == NegationNode.class)
+      scanExpression(((NegationNode)node).node);
+    else if (isCompiledIncrement(node))
+      return;
+    else if (nodeClass == TernaryConditionNode.class){
+      TernaryConditionNode ternaryNode = (TernaryConditionNode)node;
+      scanExpression(ternaryNode.conditionNode);
+      scanExpression(ternaryNode.leftNode);
+      scanExpression(ternaryNode.rightNode);
+    } else if (nodeClass == ExpressionListNode.class){
+      for (ExpressionNode childNode: ((ExpressionListNode)node).expressionNodes)
+        scanExpression(childNode);
+    } else
+      interpreted(node);
+  }
+
+  // Static types of expressions
+
+  static protected boolean isLiteral(ExpressionNode node){
+    // The parser gives most literals as the values themselves, which evaluate to themselves uncounted
+    Class<?> nodeClass = node.getClass();
+    return nodeClass == IntegerNumberNode.class || nodeClass == FloatNumberNode.class || nodeClass == BooleanNode.class ||
+        nodeClass == IntegerValue.class || nodeClass == FloatValue.class || nodeClass == TrueValue.class ||
+        nodeClass == FalseValue.class || nodeClass == StringValue.class || nodeClass == NullValue.class;
+  }
+
+  static protected boolean isBooleanLiteral(ExpressionNode node){
+    Class<?> nodeClass = node.getClass();
+    return nodeClass == BooleanNode.class || nodeClass == TrueValue.class || nodeClass == FalseValue.class;
+  }
+
+  static protected boolean getBooleanLiteral(ExpressionNode node){
+    return node.getClass() == BooleanNode.class ? ((BooleanNode)node).value : node.getClass() == TrueValue.class;
+  }
+
+  static protected boolean isArithmetic(Class<?> nodeClass){
+    return nodeClass == AddNode.class || nodeClass == SubtractNode.class || nodeClass == MultiplyNode.class ||
+        nodeClass == DivideNode.class || nodeClass == RemainderNode.class;
+  }
+
+  static protected boolean isComparison(Class<?> nodeClass){
+    return nodeClass == LessNode.class || nodeClass == LessEqualsNode.class || nodeClass == GreaterNode.class ||
+        nodeClass == GreaterEqualsNode.class || nodeClass == EqualsNode.class || nodeClass == NotEqualsNode.class;
+  }
+
+  static protected boolean isIncrement(Class<?> nodeClass){
+    return nodeClass == PreIncrementNode.class || nodeClass == PostIncrementNode.class ||
+        nodeClass == PreDecrementNode.class || nodeClass == PostDecrementNode.class;
+  }
+
+  protected boolean isCompiledAssignment(ExpressionNode node){
+    return node.getClass() == AssignmentNode.class &&
+        ((AssignmentNode)node).variable.getClass() == VariableReferenceNode.class;
+  }
+
+  protected boolean isCompiledIncrement(ExpressionNode node){
+    // Only numeric variables are incremented by the generated code
+    if (! isIncrement(node.getClass()) || ((UnaryExpressionNode)node).node.getClass() != VariableReferenceNode.class)
+      return false;
+    Integer type = variableTypes.get(((VariableReferenceNode)((UnaryExpressionNode)node).node).symbol);
+    return type != null && (type == LONG || type == DOUBLE || type == UNKNOWN);
+  }
+
+  protected boolean isCompiledCondition(ExpressionNode node){
+    Class<?> nodeClass = node.getClass();
+    return isComparison(nodeClass) || nodeClass == LogicalAndNode.class || nodeClass == LogicalOrNode.class ||
+        (nodeClass == LogicalNotNode.class && getType(((LogicalNotNode)node).node) == BOOLEAN);
+  }
+
+  static protected int getArithmeticType(int leftType, int rightType){
+    if (leftType == UNKNOWN || rightType == UNKNOWN)
+      return UNKNOWN;
+    else if (leftType == LONG && rightType == LONG)
+      return LONG;
+    else if ((leftType == LONG || leftType == DOUBLE) && (rightType == LONG || rightType == DOUBLE))
+      return DOUBLE;
+    else
+      return VALUE;
+  }
+
+  protected int getType(ExpressionNode node){
+    Class<?> nodeClass = node.getClass();
+    if (nodeClass == IntegerNumberNode.class || nodeClass == IntegerValue.class)
+      return LONG;
+    else if (nodeClass == FloatNumberNode.class || nodeClass == FloatValue.class)
+      return DOUBLE;
+    else if (isBooleanLiteral(node) || isCompiledCondition(node))
+      return BOOLEAN;
+    else if (nodeClass == VariableReferenceNode.class){
+      Integer type = variableTypes.get(((VariableReferenceNode)node).symbol);
+      return type == null ? VALUE : type;
+    } else if (isCompiledAssignment(node))
+      return getType(((AssignmentNode)node).node);
+    else if (isArithmetic(nodeClass))
+      return getArithmeticType(getType(((BinaryExpressionNode)node).leftNode), getType(((BinaryExpressionNode)node).rightNode));
+    else if (nodeClass == NegationNode.class){
+      int type = getType(((NegationNode)node).node);
+      return type == UNKNOWN || type == LONG || type == DOUBLE ? type : VALUE;
+    } else if (isCompiledIncrement(node))
+      return getType(((UnaryExpressionNode)node).node);
+    else if (nodeClass == TernaryConditionNode.class){
+      int leftType = getType(((TernaryConditionNode)node).leftNode);
+      int rightType = getType(((TernaryConditionNode)node).rightNode);
+      return leftType == rightType ? leftType : joinTypes(leftType, rightType);
+    } else if (nodeClass == ExpressionListNode.class){
+      List<ExpressionNode> expressionNodes = ((ExpressionListNode)node).expressionNodes;
+      return expressionNodes.size() == 0 ? VALUE : getType(expressionNodes.get(expressionNodes.size() - 1));
+    } else
+      return VALUE;
+  }
+
+  // Generation of code
+
+  protected void compileVariables(){
+    // Give each variable a JVM local, starting with no value, as in the script state
+    for (Symbol symbol: variableTypes.keySet()){
+      int type = variableTypes.get(symbol);
+      int local = code.newLocal(type == VALUE ? 1 : 2);
+      variableLocals.put(symbol, local);
+      if (type == LONG){
+        code.pushLong(0);
+        code.varInsn(CodeWriter.LSTORE, local);
+      } else if (type == DOUBLE){
+        code.pushDouble(0.0);
+        code.varInsn(CodeWriter.DSTORE, local);
+      } else {
+        code.fieldInsn(CodeWriter.GETSTATIC, NULL_VALUE, "one", "L" + NULL_VALUE + ";");
+        code.varInsn(CodeWriter.ASTORE, local);
+      }
+    }
+
+    // Initialize parameter values from arguments
+    int numParameters = scriptNode.parameters == null ? 0 : scriptNode.parameters.size();
+    for (int i = 0; i < numParameters; i++){
+      Symbol parameterSymbol = scriptNode.parameters.get(i);
+      if (variableLocals.containsKey(parameterSymbol)){
+        loadArgument(i);
+        code.varInsn(CodeWriter.ASTORE, variableLocals.get(parameterSymbol));
+      } else {
+        code.varInsn(CodeWriter.ALOAD, 1);
+        pushConstant(parameterSymbol, SYMBOL);
+        loadArgument(i);
+        code.methodInsn(CodeWriter.INVOKESTATIC, COMPILED_SCRIPT, "putVariable",
+            "(" + STATE_DESCRIPTOR + "L" + SYMBOL + ";" + VALUE_DESCRIPTOR + ")V");
+      }
+    }
+  }
+
+  protected void loadArgument(int i){
+    code.varInsn(CodeWriter.ALOAD, 2);
+    code.pushInt(i);
+    code.methodInsn(CodeWriter.INVOKEINTERFACE, "java/util/List", "get", "(I)Ljava/lang/Object;");
+    code.typeInsn(CodeWriter.CHECKCAST, VALUE_CLASS);
+  }
+
+  protected void pushConstant(Object object, String className){
+    Integer index = constantIndexes.get(object);
+    if (index == null){
+      index = constants.size();
+      constants.add(object);
+      constantIndexes.put(object, index);
+    }
+    code.varInsn(CodeWriter.ALOAD, 0);
+    code.fieldInsn(CodeWriter.GETFIELD, COMPILED_SCRIPT, "constants", "[Ljava/lang/Object;");
+    code.pushInt(index);
+    code.insn(CodeWriter.AALOAD, -1);
+    code.typeInsn(CodeWriter.CHECKCAST, className);
+  }
+
+  protected void countNodeExecution(){
+    code.varInsn(CodeWriter.ALOAD, 1);
+    code.methodInsn(CodeWriter.INVOKEVIRTUAL, SCRIPT_STATE, "countNodeExecutions", "()V");
+  }
+
+  protected void setControlFlowChange(String controlFlowChange){
+    code.varInsn(CodeWriter.ALOAD, 1);
+    code.fieldInsn(CodeWriter.GETSTATIC, CONTROL_FLOW_CHANGES, controlFlowChange, "L" + CONTROL_FLOW_CHANGES + ";");
+    code.fieldInsn(CodeWriter.PUTFIELD, SCRIPT_STATE, "controlFlowChange", "L" + CONTROL_FLOW_CHANGES + ";");
+  }
+
+  protected void box(int type){
+    if (type == LONG)
+      code.methodInsn(CodeWriter.INVOKESTATIC, INTEGER_VALUE, "valueOf", "(J)L" + INTEGER_VALUE + ";");
+    else if (type == DOUBLE){
+      // Get the new object under its double value
+      code.typeInsn(CodeWriter.NEW, FLOAT_VALUE);
+      code.insn(CodeWriter.DUP_X2, 1);
+      code.insn(CodeWriter.DUP_X2, 1);
+      code.insn(CodeWriter.POP, -1);
+      code.methodInsn(CodeWriter.INVOKESPECIAL, FLOAT_VALUE, "<init>", "(D)V");
+    } else if (type == BOOLEAN)
+      code.methodInsn(CodeWriter.INVOKESTATIC, BOOLEAN_VALUE, "create", "(Z)L" + BOOLEAN_VALUE + ";");
+  }
+
+  protected void pop(int type){
+    code.insn(type == LONG || type == DOUBLE ? CodeWriter.POP2 : CodeWriter.POP, type == LONG || type == DOUBLE ? -2 : -1);
+  }
+
+  protected void dup(int type){
+    code.insn(type == LONG || type == DOUBLE ? CodeWriter.DUP2 : CodeWriter.DUP, type == LONG || type == DOUBLE ? 2 : 1);
+  }
+
+  protected void loadVariable(Symbol symbol){
+    int type = variableTypes.get(symbol);
+    int local = variableLocals.get(symbol);
+    if (type == LONG)
+      code.varInsn(CodeWriter.LLOAD, local);
+    else if (type == DOUBLE)
+      code.varInsn(CodeWriter.DLOAD, local);
+    else {
+      code.varInsn(CodeWriter.ALOAD, local);
+
+      // Only a parameter can have been given a null value, which reads as the default for its type
+      if (scriptNode.parameters != null && scriptNode.parameters.values().contains(symbol)){
+        CodeLabel nonNullLabel = new CodeLabel();
+        code.insn(CodeWriter.DUP, 1);
+        code.jumpInsn(CodeWriter.IFNONNULL, nonNullLabel);
+        code.insn(CodeWriter.POP, -1);
+        pushConstant(symbol, SYMBOL);
+        code.fieldInsn(CodeWriter.GETFIELD, SYMBOL, "type", "L" + TYPE_NODE + ";");
+        code.methodInsn(CodeWriter.INVOKEVIRTUAL, TYPE_NODE, "getDefaultValue", "()" + VALUE_DESCRIPTOR);
+        code.mark(nonNullLabel);
+      }
+    }
+  }
+
+  protected void storeVariable(VariableReferenceNode variableNode, int valueType) throws ScriptCompilerException {
+    Symbol symbol = variableNode.symbol;
+    Integer type = variableTypes.get(symbol);
+    if (type == null){
+      // Let the interpreter's node store the value in the script state
+      box(valueType);
+      pushConstant(variableNode, VARIABLE_REFERENCE_NODE);
+      code.insn(CodeWriter.SWAP, 0);
+      code.varInsn(CodeWriter.ALOAD, 1);
+      code.insn(CodeWriter.SWAP, 0);
+      code.methodInsn(CodeWriter.INVOKEVIRTUAL, VARIABLE_REFERENCE_NODE, "putValue",
+          "(" + STATE_DESCRIPTOR + VALUE_DESCRIPTOR + ")" + VALUE_DESCRIPTOR);
+      code.insn(CodeWriter.POP, -1);
+    } else if (type == LONG && valueType == LONG)
+      code.varInsn(CodeWriter.LSTORE, variableLocals.get(symbol));
+    else if (type == DOUBLE && valueType == DOUBLE)
+      code.varInsn(CodeWriter.DSTORE, variableLocals.get(symbol));
+    else if (type == VALUE){
+      // Only string values need to be copied on assignment, never numbers or booleans
+      if (valueType == VALUE)
+        code.methodInsn(CodeWriter.INVOKEVIRTUAL, VALUE_CLASS, "copyOnAssignment", "()" + VALUE_DESCRIPTOR);
+      else
+        box(valueType);
+      code.varInsn(CodeWriter.ASTORE, variableLocals.get(symbol));
+    } else
+      throw new ScriptCompilerException("Value of type " + valueType + " assigned to variable '" + symbol.name +
+          "' of type " + type);
+  }
+
+  protected void compileStatement(StatementNode statementNode) throws ScriptCompilerException {
+    Class<?> nodeClass = statementNode.getClass();
+    if (nodeClass == BlockStatementNode.class){
+      BlockStatementNode blockNode = (BlockStatementNode)statementNode;
+      countNodeExecution();
+
+      // Initialize all local variables
+      for (Symbol localVariable: blockNode.localVariables){
+        Integer type = variableTypes.get(localVariable);
+        if (type == null){
+          code.varInsn(CodeWriter.ALOAD, 1);
+          pushConstant(localVariable, SYMBOL);
+          code.methodInsn(CodeWriter.INVOKESTATIC, COMPILED_SCRIPT, "initializeVariable",
+              "(" + STATE_DESCRIPTOR + "L" + SYMBOL + ";)V");
+        } else if (type == LONG){
+          code.pushLong(localVariable.type.getDefaultValue().getLongValue());
+          code.varInsn(CodeWriter.LSTORE, variableLocals.get(localVariable));
+        } else if (type == DOUBLE){
+          code.pushDouble(localVariable.type.getDefaultValue().getDoubleValue());
+          code.varInsn(CodeWriter.DSTORE, variableLocals.get(localVariable));
+        } else {
+          pushConstant(localVariable, SYMBOL);
+          code.fieldInsn(CodeWriter.GETFIELD, SYMBOL, "type", "L" + TYPE_NODE + ";");
+          code.methodInsn(CodeWriter.INVOKEVIRTUAL, TYPE_NODE, "getDefaultValue", "()" + VALUE_DESCRIPTOR);
+          code.varInsn(CodeWriter.ASTORE, variableLocals.get(localVariable));
+        }
+      }
+
+      for (StatementNode childNode: blockNode.statementSequence)
+        compileStatement(childNode);
+    } else if (nodeClass == ExpressionStatementNode.class){
+      countNodeExecution();
+      pop(compileExpression(((ExpressionStatementNode)statementNode).expressionNode));
+    } else if (nodeClass == AssignmentStatementNode.class &&
+        ((AssignmentStatementNode)statementNode).variable.getClass() == VariableReferenceNode.class){
+      AssignmentStatementNode assignmentNode = (AssignmentStatementNode)statementNode;
+      countNodeExecution();
+      storeVariable((VariableReferenceNode)assignmentNode.variable, compileExpression(assignmentNode.value));
+    } else if (nodeClass == ExpressionStatementListNode.class){
+      countNodeExecution();
+      for (StatementNode childNode: ((ExpressionStatementListNode)statementNode).expressionStatements)
+        compileStatement(childNode);
+    } else if (nodeClass == IfStatementNode.class){
+      IfStatementNode ifNode = (IfStatementNode)statementNode;
+      CodeLabel elseLabel = new CodeLabel();
+      countNodeExecution();
+      compileJump(ifNode.condition, elseLabel, false, false);
+      compileStatement(ifNode.thenStatement);
+      if (ifNode.elseStatement != null){
+        CodeLabel endLabel = new CodeLabel();
+        code.jumpInsn(CodeWriter.GOTO, endLabel);
+        code.mark(elseLabel);
+        compileStatement(ifNode.elseStatement);
+        code.mark(endLabel);
+      } else
+        code.mark(elseLabel);
+    } else if (nodeClass == WhileStatementNode.class){
+      WhileStatementNode whileNode = (WhileStatementNode)statementNode;
+      CodeLabel conditionLabel = new CodeLabel();
+      CodeLabel endLabel = new CodeLabel();
+      countNodeExecution();
+      code.mark(conditionLabel);
+      compileJump(whileNode.condition, endLabel, false, false);
+      compileLoopBody(whileNode.bodyStatement, endLabel, conditionLabel);
+      code.jumpInsn(CodeWriter.GOTO, conditionLabel);
+      code.mark(endLabel);
+    } else if (nodeClass == DoStatementNode.class){
+      DoStatementNode doNode = (DoStatementNode)statementNode;
+      CodeLabel bodyLabel = new CodeLabel();
+      CodeLabel conditionLabel = new CodeLabel();
+      CodeLabel endLabel = new CodeLabel();
+      countNodeExecution();
+      code.mark(bodyLabel);
+      compileLoopBody(doNode.bodyStatement, endLabel, conditionLabel);
+      code.mark(conditionLabel);
+      compileJump(doNode.condition, bodyLabel, true, false);
+      code.mark(endLabel);
+    } else if (nodeClass == ForStatementNode.class){
+      ForStatementNode forNode = (ForStatementNode)statementNode;
+      CodeLabel conditionLabel = new CodeLabel();
+      CodeLabel incrementLabel = new CodeLabel();
+      CodeLabel endLabel = new CodeLabel();
+      countNodeExecution();
+      compileStatement(forNode.initialExpression);
+      code.mark(conditionLabel);
+      if (! (forNode.conditionExpression instanceof NullExpressionNode))
+        compileJump(forNode.conditionExpression, endLabel, false, false);
+      compileLoopBody(forNode.bodyStatement, endLabel, incrementLabel);
+      code.mark(incrementLabel);
+      pop(compileExpression(forNode.incrementExpression));
+      code.jumpInsn(CodeWriter.GOTO, conditionLabel);
+      code.mark(endLabel);
+    } else if (nodeClass == BreakStatementNode.class || nodeClass == ContinueStatementNode.class){
+      boolean isBreak = nodeClass == BreakStatementNode.class;
+      countNodeExecution();
+      if (breakLabel != null)
+        code.jumpInsn(CodeWriter.GOTO, isBreak ? breakLabel : continueLabel);
+      else {
+        // Outside of any loop, the rest of the script is skipped
+        setControlFlowChange(isBreak ? "BREAK" : "CONTINUE");
+        code.insn(CodeWriter.RETURN, 0);
+      }
+    } else if (nodeClass == ReturnStatementNode.class && ((ReturnStatementNode)statementNode).returnExpr != null){
+      // The return value is set before the return is counted
+      code.varInsn(CodeWriter.ALOAD, 1);
+      box(compileExpression(((ReturnStatementNode)statementNode).returnExpr));
+      code.fieldInsn(CodeWriter.PUTFIELD, SCRIPT_STATE, "returnValue", VALUE_DESCRIPTOR);
+      countNodeExecution();
+      setControlFlowChange("RETURN");
+      code.insn(CodeWriter.RETURN, 0);
+    } else if (nodeClass != NullStatementNode.class)
+      compileInterpretedStatement(statementNode);
+  }
+
+  protected void compileLoopBody(StatementNode bodyStatement, CodeLabel loopBreakLabel, CodeLabel loopContinueLabel)
+      throws ScriptCompilerException {
+    CodeLabel savedBreakLabel = breakLabel;
+    CodeLabel savedContinueLabel = continueLabel;
+    breakLabel = loopBreakLabel;
+    continueLabel = loopContinueLabel;
+    compileStatement(bodyStatement);
+    breakLabel = savedBreakLabel;
+    continueLabel = savedContinueLabel;
+  }
+
+  protected void compileInterpretedStatement(StatementNode statementNode) throws ScriptCompilerException {
+    // Let the interpreter run the statement
+    pushConstant(statementNode, STATEMENT_NODE);
+    code.varInsn(CodeWriter.ALOAD, 1);
+    code.methodInsn(CodeWriter.INVOKEVIRTUAL, STATEMENT_NODE, "run", "(" + STATE_DESCRIPTOR + ")V");
+
+    // Then carry out any return, break, or continue it ran into
+    if (controlFlowLocal < 0)
+      controlFlowLocal = code.newLocal(1);
+    code.varInsn(CodeWriter.ALOAD, 1);
+    code.methodInsn(CodeWriter.INVOKESTATIC, COMPILED_SCRIPT, "getControlFlowChange", "(" + STATE_DESCRIPTOR + ")I");
+    code.varInsn(CodeWriter.ISTORE, controlFlowLocal);
+    compileControlFlowChange(ScriptState.controlFlowChanges.RETURN, null);
+    compileControlFlowChange(ScriptState.controlFlowChanges.BREAK, breakLabel);
+    compileControlFlowChange(ScriptState.controlFlowChanges.CONTINUE, continueLabel);
+  }
+
+  protected void compileControlFlowChange(ScriptState.controlFlowChanges controlFlowChange, CodeLabel loopLabel){
+    CodeLabel nextLabel = new CodeLabel();
+    code.varInsn(CodeWriter.ILOAD, controlFlowLocal);
+    code.pushInt(controlFlowChange.ordinal());
+    code.jumpInsn(CodeWriter.IF_ICMPNE, nextLabel);
+    if (loopLabel != null){
+      // The loop takes care of the break or continue, as in the interpreter
+      setControlFlowChange("NO_CHANGE");
+      code.jumpInsn(CodeWriter.GOTO, loopLabel);
+    } else
+      code.insn(CodeWriter.RETURN, 0);
+    code.mark(nextLabel);
+  }
+
+  protected void compileExpression(ExpressionNode node, int type) throws ScriptCompilerException {
+    // Compile to the given type, which may only differ by being a value
+    int nodeType = compileExpression(node);
+    if (nodeType != type){
+      if (type != VALUE)
+        throw new ScriptCompilerException("Expression of type " + nodeType + " used as type " + type);
+      box(nodeType);
+    }
+  }
+
+  protected int compileExpression(ExpressionNode node) throws ScriptCompilerException {
+    Class<?> nodeClass = node.getClass();
+    int type = getType(node);
+    if (nodeClass == IntegerNumberNode.class)
+      code.pushLong(((IntegerNumberNode)node).number);
+    else if (nodeClass == FloatNumberNode.class)
+      code.pushDouble(((FloatNumberNode)node).number);
+    else if (nodeClass == IntegerValue.class)
+      code.pushLong(((IntegerValue)node).value);
+    else if (nodeClass == FloatValue.class)
+      code.pushDouble(((FloatValue)node).value);
+    else if (isBooleanLiteral(node))
+      code.pushInt(getBooleanLiteral(node) ? 1 : 0);
+    else if (nodeClass == StringValue.class){
+      // Each evaluation of a string literal gets its own copy, since strings can be changed in place
+      pushConstant(node, EXPRESSION_NODE);
+      code.varInsn(CodeWriter.ALOAD, 1);
+      code.methodInsn(CodeWriter.INVOKEVIRTUAL, EXPRESSION_NODE, "evaluateExpression",
+          "(" + STATE_DESCRIPTOR + ")" + VALUE_DESCRIPTOR);
+    } else if (nodeClass == NullValue.class)
+      pushConstant(node, VALUE_CLASS);
+    else if (nodeClass == NullExpressionNode.class){
+      countNodeExecution();
+      code.fieldInsn(CodeWriter.GETSTATIC, NULL_VALUE, "one", "L" + NULL_VALUE + ";");
+    } else if (nodeClass == VariableReferenceNode.class && variableTypes.containsKey(((VariableReferenceNode)node).symbol)){
+      countNodeExecution();
+      loadVariable(((VariableReferenceNode)node).symbol);
+    } else if (isCompiledAssignment(node)){
+      // The value of the assignment is the assigned value, before any copy
+      AssignmentNode assignmentNode = (AssignmentNode)node;
+      countNodeExecution();
+      compileExpression(assignmentNode.node);
+      dup(type);
+      storeVariable((VariableReferenceNode)assignmentNode.variable, type);
+    } else if (isArithmetic(nodeClass))
+      compileArithmetic((BinaryExpressionNode)node, type);
+    else if (isCompiledCondition(node)){
+      // Produce the boolean result of the condition as zero or one
+      CodeLabel falseLabel = new CodeLabel();
+      CodeLabel endLabel = new CodeLabel();
+      compileJump(node, falseLabel, false, true);
+      code.pushInt(1);
+      code.jumpInsn(CodeWriter.GOTO, endLabel);
+      code.mark(falseLabel);
+      code.pushInt(0);
+      code.mark(endLabel);
+    } else if (nodeClass == NegationNode.class){
+      countNodeExecution();
+      int operandType = compileExpression(((NegationNode)node).node);
+      if (operandType == LONG)
+        code.insn(CodeWriter.LNEG, 0);
+      else if (operandType == DOUBLE)
+        code.insn(CodeWriter.DNEG, 0);
+      else {
+        box(operandType);
+        code.methodInsn(CodeWriter.INVOKEVIRTUAL, VALUE_CLASS, "negateValue", "()" + VALUE_DESCRIPTOR);
+      }
+    } else if (isCompiledIncrement(node))
+      compileIncrement((UnaryExpressionNode)node, type);
+    else if (nodeClass == TernaryConditionNode.class){
+      TernaryConditionNode ternaryNode = (TernaryConditionNode)node;
+      CodeLabel elseLabel = new CodeLabel();
+      CodeLabel endLabel = new CodeLabel();
+      countNodeExecution();
+      compileJump(ternaryNode.conditionNode, elseLabel, false, true);
+      compileExpression(ternaryNode.leftNode, type);
+      code.jumpInsn(CodeWriter.GOTO, endLabel);
+      code.mark(elseLabel);
+      compileExpression(ternaryNode.rightNode, type);
+      code.mark(endLabel);
+    } else if (nodeClass == ExpressionListNode.class){
+      // The value of the list is that of its last expression
+      List<ExpressionNode> expressionNodes = ((ExpressionListNode)node).expressionNodes;
+      countNodeExecution();
+      if (expressionNodes.size() == 0)
+        code.fieldInsn(CodeWriter.GETSTATIC, NULL_VALUE, "one", "L" + NULL_VALUE + ";");
+      for (int i = 0; i < expressionNodes.size(); i++)
+        if (i < expressionNodes.size() - 1)
+          pop(compileExpression(expressionNodes.get(i)));
+        else
+          compileExpression(expressionNodes.get(i));
+    } else {
+      // Let the interpreter evaluate the expression
+      pushConstant(node, EXPRESSION_NODE);
+      code.varInsn(CodeWriter.ALOAD, 1);
+      code.methodInsn(CodeWriter.INVOKEVIRTUAL, EXPRESSION_NODE, "evaluateExpression",
+          "(" + STATE_DESCRIPTOR + ")" + VALUE_DESCRIPTOR);
+    }
+    return type;
+  }
+
+  protected void compileArithmetic(BinaryExpressionNode node, int type) throws ScriptCompilerException {
+    Class<?> nodeClass = node.getClass();
+    countNodeExecution();
+    if (type == LONG || type == DOUBLE){
+      // Both operands are numbers, computed as doubles if either one is a float
+      compileNumber(node.leftNode, type);
+      compileNumber(node.rightNode, type);
+      boolean isLong = type == LONG;
+      if (nodeClass == AddNode.class)
+        code.insn(isLong ? CodeWriter.LADD : CodeWriter.DADD, -2);
+      else if (nodeClass == SubtractNode.class)
+        code.insn(isLong ? CodeWriter.LSUB : CodeWriter.DSUB, -2);
+      else if (nodeClass == MultiplyNode.class)
+        code.insn(isLong ? CodeWriter.LMUL : CodeWriter.DMUL, -2);
+      else if (nodeClass == DivideNode.class)
+        code.insn(isLong ? CodeWriter.LDIV : CodeWriter.DDIV, -2);
+      else
+        code.insn(isLong ? CodeWriter.LREM : CodeWriter.DREM, -2);
+    } else
+      compileOperands(node);
+  }
+
+  protected void compileNumber(ExpressionNode node, int type) throws ScriptCompilerException {
+    int nodeType = compileExpression(node);
+    if (type == DOUBLE && nodeType == LONG)
+      code.insn(CodeWriter.L2D, 0);
+  }
+
+  protected void compileOperands(BinaryExpressionNode node) throws ScriptCompilerException {
+    // Let the operator node combine the operands as values
+    pushConstant(node, BINARY_EXPRESSION_NODE);
+    compileExpression(node.leftNode, VALUE);
+    compileExpression(node.rightNode, VALUE);
+    code.methodInsn(CodeWriter.INVOKEVIRTUAL, BINARY_EXPRESSION_NODE, "evaluateOperands",
+        "(" + VALUE_DESCRIPTOR + VALUE_DESCRIPTOR + ")" + VALUE_DESCRIPTOR);
+  }
+
+  protected void compileIncrement(UnaryExpressionNode node, int type){
+    Class<?> nodeClass = node.getClass();
+    Symbol symbol = ((VariableReferenceNode)node.node).symbol;
+    boolean isPost = nodeClass == PostIncrementNode.class || nodeClass == PostDecrementNode.class;
+    boolean isIncrement = nodeClass == PreIncrementNode.class || nodeClass == PostIncrementNode.class;
+    countNodeExecution();
+
+    // Leave the original value for a post-increment, the new value otherwise
+    loadVariable(symbol);
+    if (isPost)
+      dup(type);
+    if (type == LONG){
+      code.pushLong(1);
+      code.insn(isIncrement ? CodeWriter.LADD : CodeWriter.LSUB, -2);
+    } else {
+      code.pushDouble(1.0);
+      code.insn(isIncrement ? CodeWriter.DADD : CodeWriter.DSUB, -2);
+    }
+    if (! isPost)
+      dup(type);
+    code.varInsn(type == LONG ? CodeWriter.LSTORE : CodeWriter.DSTORE, variableLocals.get(symbol));
+  }
+
+  protected void compileJump(ExpressionNode node, CodeLabel label, boolean jumpWhen, boolean useBooleanValue)
+      throws ScriptCompilerException {
+    // Jump to the label if the condition has the given truth value. Conditions of statements are
+    // tested as in evaluateBooleanExpression, while logical operators use getBooleanValue
+    Class<?> nodeClass = node.getClass();
+    if (isBooleanLiteral(node)){
+      if (getBooleanLiteral(node) == jumpWhen)
+        code.jumpInsn(CodeWriter.GOTO, label);
+    } else if (nodeClass == LogicalAndNode.class || nodeClass == LogicalOrNode.class){
+      BinaryLogicalOperatorNode logicalNode = (BinaryLogicalOperatorNode)node;
+      boolean isAnd = nodeClass == LogicalAndNode.class;
+      countNodeExecution();
+      if (isAnd != jumpWhen){
+        // Either operand alone can decide the jump
+        compileJump(logicalNode.leftNode, label, jumpWhen, true);
+        compileJump(logicalNode.rightNode, label, jumpWhen, true);
+      } else {
+        // Only the right operand decides the jump, if it is evaluated at all
+        CodeLabel skipLabel = new CodeLabel();
+        compileJump(logicalNode.leftNode, skipLabel, ! jumpWhen, true);
+        compileJump(logicalNode.rightNode, label, jumpWhen, true);
+        code.mark(skipLabel);
+      }
+    } else if (nodeClass == LogicalNotNode.class && isCompiledCondition(node)){
+      countNodeExecution();
+      compileJump(((LogicalNotNode)node).node, label, ! jumpWhen, true);
+    } else if (isComparison(nodeClass))
+      compileComparison((BinaryExpressionNode)node, label, jumpWhen);
+    else {
+      int type = compileExpression(node);
+      if (type != BOOLEAN){
+        box(type);
+        if (useBooleanValue)
+          code.methodInsn(CodeWriter.INVOKEVIRTUAL, VALUE_CLASS, "getBooleanValue", "()Z");
+        else
+          code.methodInsn(CodeWriter.INVOKESTATIC, EXPRESSION_NODE, "isTrue", "(" + VALUE_DESCRIPTOR + ")Z");
+      }
+      code.jumpInsn(jumpWhen ? CodeWriter.IFNE : CodeWriter.IFEQ, label);
+    }
+  }
+
+  protected void compileComparison(BinaryExpressionNode node, CodeLabel label, boolean jumpWhen)
+      throws ScriptCompilerException {
+    Class<?> nodeClass = node.getClass();
+    int leftType = getType(node.leftNode);
+    int rightType = getType(node.rightNode);
+    boolean leftIsNumber = leftType == LONG || leftType == DOUBLE;
+    boolean rightIsNumber = rightType == LONG || rightType == DOUBLE;
+    countNodeExecution();
+    if (! leftIsNumber || ! rightIsNumber){
+      // Let the operator node compare the operands as values
+      compileOperands(node);
+      code.methodInsn(CodeWriter.INVOKEVIRTUAL, VALUE_CLASS, "getBooleanValue", "()Z");
+      code.jumpInsn(jumpWhen ? CodeWriter.IFNE : CodeWriter.IFEQ, label);
+      return;
+    }
+
+    // Compare the numbers, with the sign of the comparison tested by a conditional jump
+    int jumpOpcode;
+    if (nodeClass == LessNode.class)
+      jumpOpcode = CodeWriter.IFLT;
+    else if (nodeClass == LessEqualsNode.class)
+      jumpOpcode = CodeWriter.IFLE;
+    else if (nodeClass == GreaterNode.class)
+      jumpOpcode = CodeWriter.IFGT;
+    else if (nodeClass == GreaterEqualsNode.class)
+      jumpOpcode = CodeWriter.IFGE;
+    else if (nodeClass == EqualsNode.class)
+      jumpOpcode = CodeWriter.IFEQ;
+    else
+      jumpOpcode = CodeWriter.IFNE;
+    if (leftType == LONG && rightType == LONG){
+      compileExpression(node.leftNode);
+      compileExpression(node.rightNode);
+      code.insn(CodeWriter.LCMP, -3);
+    } else {
+      // Other than for less, an integer compared with a float is compared with the float truncated
+      compileNumber(node.leftNode, DOUBLE);
+      compileExpression(node.rightNode);
+      if (leftType == LONG && rightType == DOUBLE && nodeClass != LessNode.class){
+        code.insn(CodeWriter.D2L, 0);
+        code.insn(CodeWriter.L2D, 0);
+      } else if (rightType == LONG)
+        code.insn(CodeWriter.L2D, 0);
+
+      // A comparison with NaN is always false, except for not equals
+      boolean nanIsGreater = nodeClass == LessNode.class || nodeClass == LessEqualsNode.class;
+      code.insn(nanIsGreater ? CodeWriter.DCMPG : CodeWriter.DCMPL, -3);
+    }
+    if (! jumpWhen)
+      jumpOpcode = negateJump(jumpOpcode);
+    code.jumpInsn(jumpOpcode, label);
+  }
+
+  static protected int negateJump(int opcode){
+    switch (opcode){
+    case CodeWriter.IFLT: return CodeWriter.IFGE;
+    case CodeWriter.IFGE: return CodeWriter.IFLT;
+    case CodeWriter.IFGT: return CodeWriter.IFLE;
+    case CodeWriter.IFLE: return CodeWriter.IFGT;
+    case CodeWriter.IFEQ: return CodeWriter.IFNE;
+    default: return CodeWriter.IFEQ;
+    }
+  }
+}
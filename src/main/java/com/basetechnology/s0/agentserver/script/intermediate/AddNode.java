@@ -35,6 +35,17 @@ public class AddNode extends BinaryExpressionNode {
     scriptState.countNodeExecutions();
     Value leftValueNode = leftNode.evaluateExpression(scriptState);
     Value rightValueNode = rightNode.evaluateExpression(scriptState);
+    return evaluateOperands(leftValueNode, rightValueNode);
+  }
+
+  public Value evaluateOperands(Value leftValueNode, Value rightValueNode){
+    // Take the fast path once the operand types have settled
+    int operandTypes = specialize(leftValueNode, rightValueNode);
+    if (operandTypes == INTEGER)
+      return IntegerValue.valueOf(((IntegerValue)leftValueNode).value + ((IntegerValue)rightValueNode).value);
+    else if (operandTypes == FLOAT)
+      return new FloatValue(leftValueNode.getDoubleValue() + rightValueNode.getDoubleValue());
+
     return add(leftValueNode, rightValueNode);
   }
   
@@ -109,26 +120,19 @@ public class AddNode extends BinaryExpressionNode {
       } else
         return leftValueNode;
     } else if(leftValueNode instanceof StringValue){
+      // Appending to a string may extend the buffer it was built in rather than copy it
       if (rightValueNode instanceof BooleanValue){
-        String leftValue = leftValueNode.getStringValue();
         String rightValue = rightValueNode.getStringValue();
-        String sumValue = leftValue + rightValue;
-        return new StringValue(sumValue);
+        return ((StringValue)leftValueNode).concat(rightValue);
       } else if (rightValueNode instanceof IntegerValue){
-        String leftValue = leftValueNode.getStringValue();
         String rightValue = rightValueNode.getStringValue();
-        String sumValue = leftValue + rightValue;
-        return new StringValue(sumValue);
+        return ((StringValue)leftValueNode).concat(rightValue);
       } else if (rightValueNode instanceof FloatValue){
-        String leftValue = leftValueNode.getStringValue();
         String rightValue = rightValueNode.getStringValue();
-        String sumValue = leftValue + rightValue;
-        return new StringValue(sumValue);
+        return ((StringValue)leftValueNode).concat(rightValue);
       } else if (rightValueNode instanceof StringValue){
-        String leftValue = leftValueNode.getStringValue();
         String rightValue = rightValueNode.getStringValue();
-        String sumValue = leftValue + rightValue;
-        return new StringValue(sumValue);
+        return ((StringValue)leftValueNode).concat(rightValue);
       } else
         // TODO: Reconsider whether string plus null is only the string itself
         return leftValueNode;
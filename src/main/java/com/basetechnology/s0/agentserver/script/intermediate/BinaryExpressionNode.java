@@ -16,13 +16,65 @@
 
 package com.basetechnology.s0.agentserver.script.intermediate;
 
+import com.basetechnology.s0.agentserver.AgentServerException;
+import com.basetechnology.s0.agentserver.script.runtime.value.FloatValue;
+import com.basetechnology.s0.agentserver.script.runtime.value.IntegerValue;
+import com.basetechnology.s0.agentserver.script.runtime.value.NullValue;
+import com.basetechnology.s0.agentserver.script.runtime.value.Value;
+
 public class BinaryExpressionNode extends ExpressionNode {
+  // Operand types that an operator node has specialized itself for
+  static public final int UNSPECIALIZED = 0;
+  static public final int INTEGER = 1;
+  static public final int FLOAT = 2;
+  static public final int GENERIC = 3;
+
   public ExpressionNode leftNode;
   public ExpressionNode rightNode;
+  // Parse trees are shared across threads, so this is volatile; threads racing to change it can at
+  // worst leave a state that sends the node to the generic path, since the fast paths only apply
+  // once the operand types of each evaluation match it
+  public volatile int specialization = UNSPECIALIZED;
 
   public BinaryExpressionNode(ExpressionNode leftNode, ExpressionNode rightNode){
     this.leftNode = leftNode;
     this.rightNode = rightNode;
   }
 
+  static public int getOperandTypes(Value leftValueNode, Value rightValueNode){
+    Class<?> leftClass = leftValueNode.getClass();
+    Class<?> rightClass = rightValueNode.getClass();
+    if (leftClass == IntegerValue.class && rightClass == IntegerValue.class)
+      return INTEGER;
+    else if ((leftClass == IntegerValue.class || leftClass == FloatValue.class) &&
+        (rightClass == IntegerValue.class || rightClass == FloatValue.class))
+      return FLOAT;
+    else
+      return GENERIC;
+  }
+
+  public int specialize(Value leftValueNode, Value rightValueNode){
+    // Once the operand types have changed, stay on the generic path
+    int state = specialization;
+    if (state == GENERIC)
+      return GENERIC;
+
+    // Keep the specialization for as long as the operand types match it
+    int operandTypes = getOperandTypes(leftValueNode, rightValueNode);
+    if (operandTypes == state)
+      return state;
+
+    // Specialize on the first numeric operands seen, otherwise go generic for good
+    if (state == UNSPECIALIZED && operandTypes != GENERIC){
+      specialization = operandTypes;
+      return operandTypes;
+    }
+    specialization = GENERIC;
+    return GENERIC;
+  }
+
+  public Value evaluateOperands(Value leftValueNode, Value rightValueNode) throws AgentServerException {
+    return NullValue.one;
+  }
+
 }
@@ -35,17 +35,8 @@ public class BlockStatementNode extends StatementNode {
     scriptState.countNodeExecutions();
     // Initialize all local variables
     for (Symbol localVariable: localVariables){
-      // Get the category symbol value map for this local variable
-      String categoryName = localVariable.symbolTable.categoryName;
-      SymbolValues symbolValues = scriptState.categorySymbolValues.get(categoryName);
-      if (symbolValues == null){
-        // No values in this category yet, so create it
-        symbolValues = new SymbolValues(categoryName);
-        scriptState.categorySymbolValues.put(categoryName, symbolValues);
-      }
-      
-      // Initialize the variable
-      symbolValues.put(localVariable, localVariable.type.getDefaultValue());
+      // Initialize the variable in its slot of the block's category
+      scriptState.getSymbolValues(localVariable.symbolTable).put(localVariable, localVariable.type.getDefaultValue());
     }
     
     for (StatementNode statementNode: statementSequence){
@@ -37,6 +37,17 @@ public class DivideNode extends BinaryExpressionNode {
     scriptState.countNodeExecutions();
     Value leftValueNode = leftNode.evaluateExpression(scriptState);
     Value rightValueNode = rightNode.evaluateExpression(scriptState);
+    return evaluateOperands(leftValueNode, rightValueNode);
+  }
+
+  public Value evaluateOperands(Value leftValueNode, Value rightValueNode){
+    // Take the fast path once the operand types have settled
+    int operandTypes = specialize(leftValueNode, rightValueNode);
+    if (operandTypes == INTEGER)
+      return IntegerValue.valueOf(((IntegerValue)leftValueNode).value / ((IntegerValue)rightValueNode).value);
+    else if (operandTypes == FLOAT)
+      return new FloatValue(leftValueNode.getDoubleValue() / rightValueNode.getDoubleValue());
+
     return divide(leftValueNode, rightValueNode);
   }
 
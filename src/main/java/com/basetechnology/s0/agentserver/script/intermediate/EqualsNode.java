@@ -38,6 +38,15 @@ public class EqualsNode extends RelationalOperatorNode {
     scriptState.countNodeExecutions();
     Value leftValueNode = leftNode.evaluateExpression(scriptState);
     Value rightValueNode = rightNode.evaluateExpression(scriptState);
+    return evaluateOperands(leftValueNode, rightValueNode);
+  }
+
+  public Value evaluateOperands(Value leftValueNode, Value rightValueNode){
+    // Take the fast path once the operand types have settled - only for integers, since mixed
+    // integer and float operands are compared as truncated integers
+    if (specialize(leftValueNode, rightValueNode) == INTEGER)
+      return BooleanValue.create(((IntegerValue)leftValueNode).value == ((IntegerValue)rightValueNode).value);
+
     if(leftValueNode instanceof NullValue){
       return BooleanValue.create(rightValueNode instanceof NullValue);
     } else if(leftValueNode instanceof BooleanValue){
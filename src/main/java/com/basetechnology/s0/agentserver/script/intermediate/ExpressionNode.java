@@ -19,6 +19,7 @@ package com.basetechnology.s0.agentserver.script.intermediate;
 import com.basetechnology.s0.agentserver.AgentServerException;
 import com.basetechnology.s0.agentserver.RuntimeException;
 import com.basetechnology.s0.agentserver.script.runtime.ScriptState;
+import com.basetechnology.s0.agentserver.script.runtime.value.BooleanValue;
 import com.basetechnology.s0.agentserver.script.runtime.value.NullValue;
 import com.basetechnology.s0.agentserver.script.runtime.value.Value;
 
@@ -34,7 +35,13 @@ public class ExpressionNode  extends Node {
   }
 
   public boolean evaluateBooleanExpression(ScriptState scriptState) throws AgentServerException {
-    Value valueNode = evaluateExpression(scriptState);
+    return isTrue(evaluateExpression(scriptState));
+  }
+
+  static public boolean isTrue(Value valueNode){
+    // Conditions almost always produce a boolean, which needs no boxing
+    if (valueNode instanceof BooleanValue)
+      return valueNode.getBooleanValue();
     Object object = valueNode.getValue();
     if (object == null)
       return false;
@@ -38,6 +38,18 @@ public class GreaterEqualsNode extends RelationalOperatorNode {
     scriptState.countNodeExecutions();
     Value leftValueNode = leftNode.evaluateExpression(scriptState);
     Value rightValueNode = rightNode.evaluateExpression(scriptState);
+    return evaluateOperands(leftValueNode, rightValueNode);
+  }
+
+  public Value evaluateOperands(Value leftValueNode, Value rightValueNode){
+    // Take the fast path once the operand types have settled - except for an integer compared
+    // with a float, which is compared as truncated integers below
+    int operandTypes = specialize(leftValueNode, rightValueNode);
+    if (operandTypes == INTEGER)
+      return BooleanValue.create(((IntegerValue)leftValueNode).value >= ((IntegerValue)rightValueNode).value);
+    else if (operandTypes == FLOAT && ! (leftValueNode instanceof IntegerValue))
+      return BooleanValue.create(leftValueNode.getDoubleValue() >= rightValueNode.getDoubleValue());
+
     if(leftValueNode instanceof BooleanValue){
       if (rightValueNode instanceof BooleanValue){
         boolean leftValue = leftValueNode.getBooleanValue();
@@ -28,7 +28,7 @@ public class IntegerNumberNode extends NumberNode {
   }
 
   public Value evaluateExpression(ScriptState scriptState){
-    return new IntegerValue(number);
+    return IntegerValue.valueOf(number);
   }
 
 }
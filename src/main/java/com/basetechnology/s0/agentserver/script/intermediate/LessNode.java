@@ -38,6 +38,17 @@ public class LessNode extends RelationalOperatorNode {
     scriptState.countNodeExecutions();
     Value leftValueNode = leftNode.evaluateExpression(scriptState);
     Value rightValueNode = rightNode.evaluateExpression(scriptState);
+    return evaluateOperands(leftValueNode, rightValueNode);
+  }
+
+  public Value evaluateOperands(Value leftValueNode, Value rightValueNode){
+    // Take the fast path once the operand types have settled
+    int operandTypes = specialize(leftValueNode, rightValueNode);
+    if (operandTypes == INTEGER)
+      return BooleanValue.create(((IntegerValue)leftValueNode).value < ((IntegerValue)rightValueNode).value);
+    else if (operandTypes == FLOAT)
+      return BooleanValue.create(leftValueNode.getDoubleValue() < rightValueNode.getDoubleValue());
+
     if(leftValueNode instanceof BooleanValue){
       if (rightValueNode instanceof BooleanValue){
         boolean leftValue = leftValueNode.getBooleanValue();
@@ -23,17 +23,33 @@ import com.basetechnology.s0.agentserver.AgentServerException;
 import com.basetechnology.s0.agentserver.RuntimeException;
 import com.basetechnology.s0.agentserver.script.runtime.ScriptState;
 import com.basetechnology.s0.agentserver.script.runtime.value.NullValue;
+import com.basetechnology.s0.agentserver.script.runtime.value.StringValue;
 import com.basetechnology.s0.agentserver.script.runtime.value.Value;
+import com.basetechnology.s0.agentserver.script.runtime.value.ValueMethod;
+import com.basetechnology.s0.agentserver.script.runtime.value.ValueMethodTable;
 
 public class MethodReferenceNode extends ExpressionNode {
   public ExpressionNode node;
   public String name;
   public List<ExpressionNode> arguments;
+  protected volatile ResolvedMethod resolvedMethod;
+
+  // Method this reference last resolved to, and the method table of the value type it was resolved for
+  static protected class ResolvedMethod {
+    ValueMethodTable methodTable;
+    ValueMethod<?> method;
+
+    ResolvedMethod(ValueMethodTable methodTable, ValueMethod<?> method){
+      this.methodTable = methodTable;
+      this.method = method;
+    }
+  }
 
   public MethodReferenceNode(ExpressionNode node, String name, List<ExpressionNode> arguments){
     this.node = node;
     this.name = name;
     this.arguments = arguments;
+    StringValue.precompilePatterns(name, arguments);
   }
 
   public Value getValue(ScriptState scriptState) throws AgentServerException {
@@ -42,7 +58,15 @@ public class MethodReferenceNode extends ExpressionNode {
     List<Value> argumentValues = new ArrayList<Value>();
     for (ExpressionNode argumentExpressionNode: arguments)
       argumentValues.add(argumentExpressionNode.evaluateExpression(scriptState));
-    return valueNode.getMethodValue(scriptState, name, argumentValues);
+
+    // Resolve the method on first call, and again whenever the value type changes
+    ValueMethodTable methodTable = valueNode.getMethodTable();
+    ResolvedMethod resolved = resolvedMethod;
+    if (resolved == null || resolved.methodTable != methodTable){
+      resolved = new ResolvedMethod(methodTable, valueNode.getMethod(name, argumentValues.size()));
+      resolvedMethod = resolved;
+    }
+    return resolved.method.call(scriptState, valueNode, argumentValues);
   }
 
   public Value evaluateExpression(ScriptState scriptState) throws AgentServerException {
@@ -48,14 +48,14 @@ public class PostDecrementNode extends UnaryExpressionNode {
         newValueNode = FalseValue.one;
       else if (originalValueNode instanceof IntegerValue){
         IntegerValue node = (IntegerValue)originalValueNode;
-        newValueNode = new IntegerValue(node.value - 1);
+        newValueNode = IntegerValue.valueOf(node.value - 1);
       } else if (originalValueNode instanceof FloatValue){
           FloatValue node = (FloatValue)originalValueNode;
           newValueNode = new FloatValue(node.value - 1.0);
       } else if (originalValueNode instanceof StringValue){
         StringValue node = (StringValue)originalValueNode;
         // TODO: What should we really do here?
-        String s = node.value;
+        String s = node.getStringValue();
         int len = s.length();
         if (len > 0)
           s = s.substring(0, len - 1);
@@ -48,14 +48,14 @@ public class PostIncrementNode extends UnaryExpressionNode {
         newValueNode = originalValueNode;
       else if (originalValueNode instanceof IntegerValue){
         IntegerValue node = (IntegerValue)originalValueNode;
-        newValueNode = new IntegerValue(node.value + 1);
+        newValueNode = IntegerValue.valueOf(node.value + 1);
       } else if (originalValueNode instanceof FloatValue){
           FloatValue node = (FloatValue)originalValueNode;
           newValueNode = new FloatValue(node.value + 1.0);
       } else if (originalValueNode instanceof StringValue){
         StringValue node = (StringValue)originalValueNode;
         // TODO: What should we really do here?
-        newValueNode = new StringValue(node.value + ' ');
+        newValueNode = new StringValue(node.getStringValue() + ' ');
       } else if (originalValueNode instanceof NullValue){
         originalValueNode = new IntegerValue(0);
         newValueNode = new IntegerValue(1);
@@ -17,17 +17,31 @@
 package com.basetechnology.s0.agentserver.script.intermediate;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
 
 import com.basetechnology.s0.agentserver.AgentServerException;
+import com.basetechnology.s0.agentserver.script.compiler.CompiledScript;
+import com.basetechnology.s0.agentserver.script.compiler.ScriptCompiler;
 import com.basetechnology.s0.agentserver.script.runtime.ScriptState;
 import com.basetechnology.s0.agentserver.script.runtime.value.Value;
 import com.basetechnology.s0.agentserver.util.ListMap;
 
 public class ScriptNode extends Node {
+  static final Logger log = Logger.getLogger(ScriptNode.class);
+
   public BlockStatementNode blockNode;
   public TypeNode returnType;
   public String functionName;
   public ListMap<String, Symbol> parameters;
+  // Number of local categories (parameters and blocks) whose values need slots in the script state
+  public int numLocalCategories;
+  // Number of times the script has been run, and its compiled form once it has been run often enough
+  // (counted atomically since the tree is shared by every agent and thread running the script)
+  public AtomicInteger numRuns = new AtomicInteger();
+  public volatile CompiledScript compiledScript;
+  public boolean compileFailed;
 
   public ScriptNode(BlockStatementNode blockNode){
     this(null, null, null, blockNode);
@@ -66,14 +80,19 @@ public class ScriptNode extends Node {
     int numArguments = argumentValues == null ? 0 : argumentValues.size();
     if (numParameters != numArguments)
       throw new AgentServerException("Incorrect number of arguments for function '" + functionName + "' - expected " + numParameters + " but got " + numArguments);
+
+    // Run the compiled form of the script, if it has one by now
+    CompiledScript compiledScript = getCompiledScript(scriptState);
+    if (compiledScript != null){
+      compiledScript.run(scriptState, argumentValues);
+      return;
+    }
+
     SymbolValues symbolValues = null;
     for (int i = 0; i < numParameters; i++){
       Symbol parameterSymbol = parameters.get(i);
-      if (symbolValues == null){
-        String categoryName = parameterSymbol.symbolTable.categoryName;
-        symbolValues = new SymbolValues(categoryName);
-        scriptState.categorySymbolValues.put(categoryName, symbolValues);
-      }
+      if (symbolValues == null)
+        symbolValues = scriptState.getSymbolValues(parameterSymbol.symbolTable);
       Value argumentValue = argumentValues.get(i);
       
       // Initialize the variable
@@ -84,4 +103,27 @@ public class ScriptNode extends Node {
     // - Add initial values
     blockNode.run(scriptState);
   }
+
+  public CompiledScript getCompiledScript(ScriptState scriptState){
+    if (compiledScript != null || compileFailed)
+      return compiledScript;
+
+    // Compile once the script has been run enough times, unless compilation is disabled
+    int compileThreshold = scriptState.agentServer == null ? ScriptCompiler.DEFAULT_COMPILE_THRESHOLD :
+      scriptState.agentServer.scriptCompileThreshold;
+    if (compileThreshold <= 0 || numRuns.incrementAndGet() < compileThreshold)
+      return null;
+    synchronized (this){
+      if (compiledScript == null && ! compileFailed){
+        try {
+          compiledScript = ScriptCompiler.compile(this);
+        } catch (Exception e){
+          // Keep interpreting the script
+          log.warn("Unable to compile script" + (functionName == null ? "" : " for function '" + functionName + "'") + " - " + e);
+          compileFailed = true;
+        }
+      }
+    }
+    return compiledScript;
+  }
 }
@@ -20,11 +20,18 @@ public class Symbol implements Comparable<Symbol> {
   public SymbolTable symbolTable;
   public String name;
   public TypeNode type;
+  // Fixed index of the symbol's value within its category, or -1 if not entered in a symbol table
+  public int slot;
 
   public Symbol(SymbolTable symbolTable, String name, TypeNode type){
+    this(symbolTable, name, type, -1);
+  }
+
+  public Symbol(SymbolTable symbolTable, String name, TypeNode type, int slot){
     this.symbolTable = symbolTable;
     this.name = name;
     this.type = type;
+    this.slot = slot;
   }
   
   public int compareTo (Symbol otherSymbol){
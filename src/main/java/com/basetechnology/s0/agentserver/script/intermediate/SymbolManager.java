@@ -16,12 +16,24 @@
 
 package com.basetechnology.s0.agentserver.script.intermediate;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class SymbolManager {
+  // Categories of agent instance values, in the order of their slots in the script state;
+  // local categories of a script get the slots that follow
+  public static final List<String> AGENT_CATEGORIES = Arrays.asList(
+      "parameters", "inputs", "events", "scratchpad", "memory", "goals", "notifications", "outputs");
+  public static final int NUM_AGENT_CATEGORIES = AGENT_CATEGORIES.size();
+
   public Map<String, SymbolTable> symbolTables = new HashMap<String, SymbolTable>();
 
+  public static int getAgentCategorySlot(String categoryName){
+    return AGENT_CATEGORIES.indexOf(categoryName);
+  }
+
   public void clear(){
     symbolTables.clear();
   }
@@ -24,14 +24,20 @@ import com.basetechnology.s0.agentserver.util.ListMap;
 public class SymbolTable {
 
   public String categoryName;
+  // Index of the category's values in the script state, or -1 to look them up by category name
+  public int categorySlot;
   public ListMap<String, Symbol> symbolNames = new ListMap<String, Symbol>();
 
+  // Slot for the next new symbol, following the slots of any symbols carried over from another table
+  protected int nextSlot = 0;
+
   public SymbolTable(String categoryName){
     this.categoryName = categoryName;
+    this.categorySlot = SymbolManager.getAgentCategorySlot(categoryName);
   }
 
   public SymbolTable(String categoryName, SymbolValues symbolValues){
-    this.categoryName = categoryName;
+    this(categoryName);
   }
 
   public void clear(){
@@ -41,6 +47,7 @@ public class SymbolTable {
 
   public void clearNames(){
     symbolNames.clear();
+    nextSlot = 0;
   }
 
   public void clearValues(){
@@ -74,8 +81,8 @@ public class SymbolTable {
     // See if symbol already exists
     Symbol symbol = symbolNames.get(name);
     if (symbol == null){
-      // Symbol does not yet exist, so create it
-      symbol = new Symbol(this, name, type);
+      // Symbol does not yet exist, so create it in the next slot
+      symbol = new Symbol(this, name, type, nextSlot++);
       symbolNames.put(name, symbol);
     } else if (symbol.type != type)
       // If symbol already exists, may need to update the type
@@ -85,6 +92,13 @@ public class SymbolTable {
   }
   
 
+  public Symbol put(Symbol symbol){
+    // Enter a symbol from another table as is, keeping its slot
+    symbolNames.put(symbol.name, symbol);
+    nextSlot = Math.max(nextSlot, symbol.slot + 1);
+    return symbol;
+  }
+
   public String toString(){
     return "SymbolTable " + categoryName + ": " + symbolNames.toString();
   }
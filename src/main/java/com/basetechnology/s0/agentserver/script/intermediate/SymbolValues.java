@@ -16,6 +16,7 @@
 
 package com.basetechnology.s0.agentserver.script.intermediate;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Set;
 
@@ -34,7 +35,13 @@ import com.basetechnology.s0.agentserver.util.ListMap;
 public class SymbolValues implements Iterable<Symbol> {
   static final Logger log = Logger.getLogger(SymbolValues.class);
   public String categoryName;
+  // Symbols in the order they were added, with values for symbols not held in a slot
   public ListMap<Symbol, Value> symbolValues = new ListMap<Symbol, Value>();
+  // Values indexed by symbol slot, so that scripts read and write them without any lookup
+  protected Symbol[] slotSymbols = NO_SYMBOLS;
+  protected Value[] slotValues = NO_VALUES;
+  static final Symbol[] NO_SYMBOLS = new Symbol[0];
+  static final Value[] NO_VALUES = new Value[0];
 
   public SymbolValues(){
     this(null);
@@ -46,6 +53,8 @@ public class SymbolValues implements Iterable<Symbol> {
   
   public void clear(){
     symbolValues.clear();
+    slotSymbols = NO_SYMBOLS;
+    slotValues = NO_VALUES;
   }
 
   public SymbolValues clone(){
@@ -54,7 +63,7 @@ public class SymbolValues implements Iterable<Symbol> {
     
     // Copy all the key/values from current object to the new one, with deep copy of values
     for (Symbol symbol: symbolValues.keySet())
-      copyValues.put(symbol, symbolValues.get(symbol).clone());
+      copyValues.put(symbol, get(symbol).clone());
     
     // Return the new copy of this object
     return copyValues;
@@ -76,7 +85,11 @@ public class SymbolValues implements Iterable<Symbol> {
   }
   
   public Value get(Symbol symbol){
-    if (symbolValues.containsKey(symbol))
+    // Check the symbol's slot first
+    int slot = symbol.slot;
+    if (slot >= 0 && slot < slotSymbols.length && slotSymbols[slot] == symbol)
+      return slotValues[slot];
+    else if (symbolValues.containsKey(symbol))
       return symbolValues.get(symbol);
     else
       return NullValue.one;
@@ -87,7 +100,7 @@ public class SymbolValues implements Iterable<Symbol> {
     for (Symbol symbol: symbolValues.keySet())
       if (symbol.name.equals(name))
         // Found matching symbol name. Return its value
-        return symbolValues.get(symbol);
+        return get(symbol);
     
     // No match
     return NullValue.one;
@@ -98,7 +111,26 @@ public class SymbolValues implements Iterable<Symbol> {
   }
   
   public void put(Symbol symbol, Value valueNode){
-    symbolValues.put(symbol, valueNode);
+    // Existing symbol in its slot only needs the value stored
+    int slot = symbol.slot;
+    if (slot >= 0 && slot < slotSymbols.length && slotSymbols[slot] == symbol){
+      slotValues[slot] = valueNode;
+      return;
+    }
+
+    // New symbol goes in its slot unless another symbol with the same slot, from some other
+    // symbol table, already has it
+    if (slot >= 0 && ! symbolValues.containsKey(symbol) && (slot >= slotSymbols.length || slotSymbols[slot] == null)){
+      if (slot >= slotSymbols.length){
+        int newLength = Math.max(slot + 1, slotSymbols.length * 2);
+        slotSymbols = Arrays.copyOf(slotSymbols, newLength);
+        slotValues = Arrays.copyOf(slotValues, newLength);
+      }
+      slotSymbols[slot] = symbol;
+      slotValues[slot] = valueNode;
+      symbolValues.put(symbol, null);
+    } else
+      symbolValues.put(symbol, valueNode);
   }
   
   public Set<Symbol> keySet(){
@@ -136,7 +168,16 @@ public class SymbolValues implements Iterable<Symbol> {
   }
   
   public String toString(){
-    return categoryName + ": " + symbolValues.toString();
+    StringBuilder sb = new StringBuilder("[");
+    for (Symbol symbol: symbolValues.keySet()){
+      if (sb.length() > 1)
+        sb.append(", ");
+      sb.append(symbol.toString());
+      sb.append(": ");
+      sb.append(get(symbol));
+    }
+    sb.append(']');
+    return categoryName + ": " + sb.toString();
   }
 
   public boolean equals(SymbolValues otherSymbolValues){
@@ -161,7 +202,7 @@ public class SymbolValues implements Iterable<Symbol> {
       for (Symbol otherSymbol: otherSymbolValues.symbolValues.keySet())
         if (symbolName.equals(otherSymbol.name)){
           // Found match. compare the two values
-          Value valueNode = symbolValues.get(symbol);
+          Value valueNode = get(symbol);
           Value otherValueNode = otherSymbolValues.get(otherSymbol); 
           if (valueNode.equals(otherValueNode)){
             match = true;
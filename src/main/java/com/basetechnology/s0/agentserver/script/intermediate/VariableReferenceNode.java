@@ -30,7 +30,7 @@ public class VariableReferenceNode extends ReferenceNode {
   }
 
   public Value getValue(ScriptState scriptState){
-    Value valueNode = scriptState.categorySymbolValues.get(symbol.symbolTable.categoryName).get(symbol);
+    Value valueNode = scriptState.getSymbolValues(symbol.symbolTable).get(symbol);
     return valueNode == null ? symbol.type.getDefaultValue() : valueNode;
   }
 
@@ -125,17 +125,8 @@ public class VariableReferenceNode extends ReferenceNode {
     // Note: For strings only, value must be copied to avoid sharing between variables
     Value copyNode = valueNode.copyOnAssignment();
     
-    // Make sure we have a category symbol value table
-    // Get the category symbol value map for this local variable
-    String categoryName = symbol.symbolTable.categoryName;
-    SymbolValues symbolValues = scriptState.categorySymbolValues.get(categoryName);
-    if (symbolValues == null){
-      // No values in this category yet, so create it
-      symbolValues = new SymbolValues(categoryName);
-      scriptState.categorySymbolValues.put(categoryName, symbolValues);
-    }
-
-    symbolValues.put(symbol, copyNode);
+    // Store the value in the symbol's slot of its category
+    scriptState.getSymbolValues(symbol.symbolTable).put(symbol, copyNode);
     return copyNode;
   }
 }
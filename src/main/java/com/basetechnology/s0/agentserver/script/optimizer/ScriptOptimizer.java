@@ -0,0 +1,394 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.script.optimizer;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.basetechnology.s0.agentserver.script.intermediate.AddNode;
+import com.basetechnology.s0.agentserver.script.intermediate.AssignmentNode;
+import com.basetechnology.s0.agentserver.script.intermediate.AssignmentStatementNode;
+import com.basetechnology.s0.agentserver.script.intermediate.BinaryExpressionNode;
+import com.basetechnology.s0.agentserver.script.intermediate.BinaryLogicalOperatorNode;
+import com.basetechnology.s0.agentserver.script.intermediate.BlockStatementNode;
+import com.basetechnology.s0.agentserver.script.intermediate.BreakStatementNode;
+import com.basetechnology.s0.agentserver.script.intermediate.CaseStatementNode;
+import com.basetechnology.s0.agentserver.script.intermediate.ConditionNode;
+import com.basetechnology.s0.agentserver.script.intermediate.ContinueStatementNode;
+import com.basetechnology.s0.agentserver.script.intermediate.DivideNode;
+import com.basetechnology.s0.agentserver.script.intermediate.DoStatementNode;
+import com.basetechnology.s0.agentserver.script.intermediate.EqualsNode;
+import com.basetechnology.s0.agentserver.script.intermediate.ExpressionListNode;
+import com.basetechnology.s0.agentserver.script.intermediate.ExpressionNode;
+import com.basetechnology.s0.agentserver.script.intermediate.ExpressionStatementListNode;
+import com.basetechnology.s0.agentserver.script.intermediate.ExpressionStatementNode;
+import com.basetechnology.s0.agentserver.script.intermediate.FieldNode;
+import com.basetechnology.s0.agentserver.script.intermediate.ForStatementNode;
+import com.basetechnology.s0.agentserver.script.intermediate.FunctionCallNode;
+import com.basetechnology.s0.agentserver.script.intermediate.GreaterEqualsNode;
+import com.basetechnology.s0.agentserver.script.intermediate.GreaterNode;
+import com.basetechnology.s0.agentserver.script.intermediate.IfStatementNode;
+import com.basetechnology.s0.agentserver.script.intermediate.LessEqualsNode;
+import com.basetechnology.s0.agentserver.script.intermediate.LessNode;
+import com.basetechnology.s0.agentserver.script.intermediate.LogicalAndNode;
+import com.basetechnology.s0.agentserver.script.intermediate.LogicalNotNode;
+import com.basetechnology.s0.agentserver.script.intermediate.LogicalOrNode;
+import com.basetechnology.s0.agentserver.script.intermediate.MethodReferenceNode;
+import com.basetechnology.s0.agentserver.script.intermediate.MultiplyNode;
+import com.basetechnology.s0.agentserver.script.intermediate.NameReferenceNode;
+import com.basetechnology.s0.agentserver.script.intermediate.NegationNode;
+import com.basetechnology.s0.agentserver.script.intermediate.NewNode;
+import com.basetechnology.s0.agentserver.script.intermediate.Node;
+import com.basetechnology.s0.agentserver.script.intermediate.NotEqualsNode;
+import com.basetechnology.s0.agentserver.script.intermediate.NullStatementNode;
+import com.basetechnology.s0.agentserver.script.intermediate.RemainderNode;
+import com.basetechnology.s0.agentserver.script.intermediate.ReturnStatementNode;
+import com.basetechnology.s0.agentserver.script.intermediate.ScriptNode;
+import com.basetechnology.s0.agentserver.script.intermediate.StatementNode;
+import com.basetechnology.s0.agentserver.script.intermediate.SubscriptedReferenceNode;
+import com.basetechnology.s0.agentserver.script.intermediate.SubtractNode;
+import com.basetechnology.s0.agentserver.script.intermediate.SwitchStatementNode;
+import com.basetechnology.s0.agentserver.script.intermediate.Symbol;
+import com.basetechnology.s0.agentserver.script.intermediate.TernaryConditionNode;
+import com.basetechnology.s0.agentserver.script.intermediate.ThrowStatementNode;
+import com.basetechnology.s0.agentserver.script.intermediate.TryStatementNode;
+import com.basetechnology.s0.agentserver.script.intermediate.TypeNode;
+import com.basetechnology.s0.agentserver.script.intermediate.WhileStatementNode;
+import com.basetechnology.s0.agentserver.script.runtime.value.BooleanValue;
+import com.basetechnology.s0.agentserver.script.runtime.value.FalseValue;
+import com.basetechnology.s0.agentserver.script.runtime.value.FloatValue;
+import com.basetechnology.s0.agentserver.script.runtime.value.IntegerValue;
+import com.basetechnology.s0.agentserver.script.runtime.value.NullValue;
+import com.basetechnology.s0.agentserver.script.runtime.value.StringValue;
+import com.basetechnology.s0.agentserver.script.runtime.value.TrueValue;
+import com.basetechnology.s0.agentserver.script.runtime.value.Value;
+import com.basetechnology.s0.agentserver.util.JsonListMap;
+
+/**
+ * Simplifies a freshly parsed script tree before it is run. Operators and pure built-in functions
+ * whose operands are all literals are replaced by their results, which evaluate to themselves
+ * without counting against the node execution limit, and statements that can never run are
+ * removed. Anything that cannot be evaluated without a script state is left as it is.
+ */
+public class ScriptOptimizer {
+  // Scripts are optimized unless configured otherwise
+  static public final boolean DEFAULT_OPTIMIZE = true;
+
+  // Fields of nodes that hold run-time state rather than the shape of the tree
+  static protected final Set<String> runtimeFieldNames = new HashSet<String>(Arrays.asList(
+      "specialization", "numRuns", "compiledScript", "compileFailed", "numLocalCategories"));
+
+  static public ScriptNode optimize(ScriptNode scriptNode){
+    optimizeBlock(scriptNode.blockNode);
+    return scriptNode;
+  }
+
+  static public ExpressionNode optimize(ExpressionNode expressionNode){
+    return optimizeExpression(expressionNode);
+  }
+
+  static public boolean isConstant(ExpressionNode node){
+    // Only literal values evaluate to themselves - the value for 'now', for example, does not
+    Class<?> nodeClass = node.getClass();
+    return nodeClass == IntegerValue.class || nodeClass == FloatValue.class || nodeClass == StringValue.class ||
+        nodeClass == TrueValue.class || nodeClass == FalseValue.class || nodeClass == NullValue.class;
+  }
+
+  static protected boolean isConstantResult(Value valueNode){
+    return valueNode != null && isConstant(valueNode);
+  }
+
+  static protected boolean isFoldable(ExpressionNode node){
+    Class<?> nodeClass = node.getClass();
+    return nodeClass == AddNode.class || nodeClass == SubtractNode.class || nodeClass == MultiplyNode.class ||
+        nodeClass == DivideNode.class || nodeClass == RemainderNode.class || nodeClass == LessNode.class ||
+        nodeClass == LessEqualsNode.class || nodeClass == GreaterNode.class || nodeClass == GreaterEqualsNode.class ||
+        nodeClass == EqualsNode.class || nodeClass == NotEqualsNode.class;
+  }
+
+  static protected void optimizeExpressions(List<ExpressionNode> expressionNodes){
+    if (expressionNodes != null)
+      for (int i = 0; i < expressionNodes.size(); i++)
+        expressionNodes.set(i, optimizeExpression(expressionNodes.get(i)));
+  }
+
+  static protected ExpressionNode optimizeExpression(ExpressionNode node){
+    if (node == null)
+      return null;
+
+    // Optimize operands first, so that folding works from the leaves up
+    Class<?> nodeClass = node.getClass();
+    if (node instanceof BinaryExpressionNode){
+      BinaryExpressionNode binaryNode = (BinaryExpressionNode)node;
+      binaryNode.leftNode = optimizeExpression(binaryNode.leftNode);
+      binaryNode.rightNode = optimizeExpression(binaryNode.rightNode);
+
+      // Compute the operator on literal operands just as it would be at run time
+      if (isFoldable(binaryNode) && isConstant(binaryNode.leftNode) && isConstant(binaryNode.rightNode))
+        return fold(binaryNode, binaryNode.leftNode, binaryNode.rightNode);
+    } else if (nodeClass == LogicalAndNode.class || nodeClass == LogicalOrNode.class){
+      BinaryLogicalOperatorNode logicalNode = (BinaryLogicalOperatorNode)node;
+      logicalNode.leftNode = optimizeExpression(logicalNode.leftNode);
+      logicalNode.rightNode = optimizeExpression(logicalNode.rightNode);
+
+      // A literal left operand may decide the result without the right operand
+      if (isConstant(logicalNode.leftNode)){
+        boolean leftValue = ((Value)logicalNode.leftNode).getBooleanValue();
+        if (nodeClass == LogicalAndNode.class && ! leftValue)
+          return FalseValue.one;
+        else if (nodeClass == LogicalOrNode.class && leftValue)
+          return TrueValue.one;
+        else if (isConstant(logicalNode.rightNode))
+          return BooleanValue.create(((Value)logicalNode.rightNode).getBooleanValue());
+      }
+    } else if (nodeClass == LogicalNotNode.class){
+      LogicalNotNode notNode = (LogicalNotNode)node;
+      notNode.node = optimizeExpression(notNode.node);
+      if (notNode.node instanceof BooleanValue && isConstant(notNode.node))
+        return BooleanValue.create(! ((Value)notNode.node).getBooleanValue());
+    } else if (nodeClass == NegationNode.class){
+      NegationNode negationNode = (NegationNode)node;
+      negationNode.node = optimizeExpression(negationNode.node);
+      if (negationNode.node.getClass() == IntegerValue.class || negationNode.node.getClass() == FloatValue.class)
+        return ((Value)negationNode.node).negateValue();
+    } else if (nodeClass == TernaryConditionNode.class){
+      // A literal condition picks one of the alternatives
+      TernaryConditionNode ternaryNode = (TernaryConditionNode)node;
+      ternaryNode.conditionNode = optimizeExpression(ternaryNode.conditionNode);
+      ternaryNode.leftNode = optimizeExpression(ternaryNode.leftNode);
+      ternaryNode.rightNode = optimizeExpression(ternaryNode.rightNode);
+      if (isConstant(ternaryNode.conditionNode))
+        return ((Value)ternaryNode.conditionNode).getBooleanValue() ? ternaryNode.leftNode : ternaryNode.rightNode;
+    } else if (nodeClass == FunctionCallNode.class){
+      FunctionCallNode functionCallNode = (FunctionCallNode)node;
+      optimizeExpressions(functionCallNode.argumentList);
+
+      // Pure built-in functions of literals are called just once, now
+      if (functionCallNode.builtinFunction != null && functionCallNode.builtinFunction.isPure()){
+        int numArgs = functionCallNode.argumentList.size();
+        Value[] argumentValues = new Value[numArgs];
+        for (int i = 0; i < numArgs; i++)
+          if (isConstant(functionCallNode.argumentList.get(i)))
+            argumentValues[i] = (Value)functionCallNode.argumentList.get(i);
+          else
+            return node;
+        try {
+          Value valueNode = functionCallNode.builtinFunction.call(null, argumentValues);
+          if (isConstantResult(valueNode))
+            return valueNode;
+        } catch (Exception e){
+          // Leave the error to be reported when the script runs
+        }
+      }
+    } else if (nodeClass == AssignmentNode.class)
+      ((AssignmentNode)node).node = optimizeExpression(((AssignmentNode)node).node);
+    else if (nodeClass == ExpressionListNode.class)
+      optimizeExpressions(((ExpressionListNode)node).expressionNodes);
+    else if (nodeClass == SubscriptedReferenceNode.class){
+      ((SubscriptedReferenceNode)node).node = optimizeExpression(((SubscriptedReferenceNode)node).node);
+      optimizeExpressions(((SubscriptedReferenceNode)node).arguments);
+    } else if (nodeClass == MethodReferenceNode.class){
+      // Patterns folded from literals can be compiled now too
+      MethodReferenceNode methodNode = (MethodReferenceNode)node;
+      methodNode.node = optimizeExpression(methodNode.node);
+      optimizeExpressions(methodNode.arguments);
+      StringValue.precompilePatterns(methodNode.name, methodNode.arguments);
+    } else if (nodeClass == NameReferenceNode.class)
+      ((NameReferenceNode)node).node = optimizeExpression(((NameReferenceNode)node).node);
+    else if (nodeClass == NewNode.class)
+      optimizeExpressions(((NewNode)node).arguments);
+    else if (nodeClass == FieldNode.class)
+      ((FieldNode)node).expressionNode = optimizeExpression(((FieldNode)node).expressionNode);
+    else if (nodeClass == ConditionNode.class)
+      ((ConditionNode)node).expression = optimizeExpression(((ConditionNode)node).expression);
+    return node;
+  }
+
+  static protected ExpressionNode fold(BinaryExpressionNode node, ExpressionNode leftNode, ExpressionNode rightNode){
+    try {
+      Value valueNode = node.evaluateOperands((Value)leftNode, (Value)rightNode);
+      if (valueNode instanceof StringValue)
+        // Literals in the tree are plain strings rather than views of an append buffer
+        return new StringValue(valueNode.getStringValue());
+      else if (isConstantResult(valueNode))
+        return valueNode;
+    } catch (Exception e){
+      // Leave the error, such as a divide by zero, to be reported when the script runs
+    }
+    return node;
+  }
+
+  static protected Boolean getConstantCondition(ExpressionNode node){
+    // Conditions of statements are tested the same way as when they are run
+    if (node != null && isConstant(node))
+      return ExpressionNode.isTrue((Value)node);
+    else
+      return null;
+  }
+
+  static protected void optimizeBlock(BlockStatementNode blockNode){
+    if (blockNode != null)
+      optimizeStatements(blockNode.statementSequence);
+  }
+
+  static protected void optimizeStatements(List<StatementNode> statementNodes){
+    if (statementNodes == null)
+      return;
+    List<StatementNode> optimizedNodes = new ArrayList<StatementNode>();
+    boolean changed = false;
+    for (StatementNode originalNode: statementNodes){
+      StatementNode statementNode = optimizeStatement(originalNode);
+      Class<?> nodeClass = statementNode == null ? null : statementNode.getClass();
+      if (nodeClass != NullStatementNode.class)
+        optimizedNodes.add(statementNode);
+      if (statementNode != originalNode)
+        changed = true;
+
+      // Nothing after a return, break, or continue can run
+      if (nodeClass == ReturnStatementNode.class || nodeClass == BreakStatementNode.class ||
+          nodeClass == ContinueStatementNode.class)
+        break;
+    }
+    if (changed || optimizedNodes.size() != statementNodes.size()){
+      statementNodes.clear();
+      statementNodes.addAll(optimizedNodes);
+    }
+  }
+
+  static protected StatementNode optimizeStatement(StatementNode statementNode){
+    if (statementNode == null)
+      return null;
+    Class<?> nodeClass = statementNode.getClass();
+    if (nodeClass == BlockStatementNode.class)
+      optimizeBlock((BlockStatementNode)statementNode);
+    else if (nodeClass == ExpressionStatementNode.class){
+      ExpressionStatementNode expressionStatementNode = (ExpressionStatementNode)statementNode;
+      expressionStatementNode.expressionNode = optimizeExpression(expressionStatementNode.expressionNode);
+    } else if (nodeClass == AssignmentStatementNode.class){
+      AssignmentStatementNode assignmentNode = (AssignmentStatementNode)statementNode;
+      assignmentNode.value = optimizeExpression(assignmentNode.value);
+    } else if (nodeClass == ExpressionStatementListNode.class){
+      List<StatementNode> expressionStatements = ((ExpressionStatementListNode)statementNode).expressionStatements;
+      for (int i = 0; i < expressionStatements.size(); i++)
+        expressionStatements.set(i, optimizeStatement(expressionStatements.get(i)));
+    } else if (nodeClass == IfStatementNode.class){
+      // Only the branch picked by a literal condition is kept
+      IfStatementNode ifNode = (IfStatementNode)statementNode;
+      ifNode.condition = optimizeExpression(ifNode.condition);
+      ifNode.thenStatement = optimizeStatement(ifNode.thenStatement);
+      if (ifNode.elseStatement != null)
+        ifNode.elseStatement = optimizeStatement(ifNode.elseStatement);
+      Boolean condition = getConstantCondition(ifNode.condition);
+      if (condition != null)
+        return condition ? ifNode.thenStatement : ifNode.elseStatement != null ? ifNode.elseStatement : NullStatementNode.one;
+    } else if (nodeClass == WhileStatementNode.class){
+      WhileStatementNode whileNode = (WhileStatementNode)statementNode;
+      whileNode.condition = optimizeExpression(whileNode.condition);
+      whileNode.bodyStatement = optimizeStatement(whileNode.bodyStatement);
+      if (Boolean.FALSE.equals(getConstantCondition(whileNode.condition)))
+        return NullStatementNode.one;
+    } else if (nodeClass == DoStatementNode.class){
+      DoStatementNode doNode = (DoStatementNode)statementNode;
+      doNode.bodyStatement = optimizeStatement(doNode.bodyStatement);
+      doNode.condition = optimizeExpression(doNode.condition);
+    } else if (nodeClass == ForStatementNode.class){
+      // A loop which never runs its body still runs its initialization
+      ForStatementNode forNode = (ForStatementNode)statementNode;
+      forNode.initialExpression = optimizeStatement(forNode.initialExpression);
+      forNode.conditionExpression = optimizeExpression(forNode.conditionExpression);
+      forNode.incrementExpression = optimizeExpression(forNode.incrementExpression);
+      forNode.bodyStatement = optimizeStatement(forNode.bodyStatement);
+      if (Boolean.FALSE.equals(getConstantCondition(forNode.conditionExpression)))
+        return forNode.initialExpression;
+    } else if (nodeClass == ReturnStatementNode.class)
+      ((ReturnStatementNode)statementNode).returnExpr = optimizeExpression(((ReturnStatementNode)statementNode).returnExpr);
+    else if (nodeClass == ThrowStatementNode.class)
+      ((ThrowStatementNode)statementNode).throwExpr = optimizeExpression(((ThrowStatementNode)statementNode).throwExpr);
+    else if (nodeClass == SwitchStatementNode.class){
+      SwitchStatementNode switchNode = (SwitchStatementNode)statementNode;
+      switchNode.expression = optimizeExpression(switchNode.expression);
+      if (switchNode.caseStatements != null)
+        for (CaseStatementNode caseNode: switchNode.caseStatements)
+          optimizeStatements(caseNode.bodyStatements);
+    } else if (nodeClass == TryStatementNode.class)
+      optimizeBlock(((TryStatementNode)statementNode).blockStatement);
+    return statementNode;
+  }
+
+  // Dumping of trees, for debugging
+
+  static public JSONObject toJson(Node node) throws JSONException {
+    JSONObject nodeJson = new JsonListMap();
+    nodeJson.put("node", node.getClass().getSimpleName());
+    if (node instanceof Value){
+      nodeJson.put("value", node.toString());
+      return nodeJson;
+    }
+
+    // Each public field of the node, with nested nodes dumped in turn
+    for (Field field: node.getClass().getFields())
+      if (! Modifier.isStatic(field.getModifiers()) && ! runtimeFieldNames.contains(field.getName())){
+        try {
+          Object value = toJsonValue(field.get(node));
+          if (value != null)
+            nodeJson.put(field.getName(), value);
+        } catch (IllegalAccessException e){
+          // Only public fields are dumped
+        }
+      }
+    return nodeJson;
+  }
+
+  static protected Object toJsonValue(Object object) throws JSONException {
+    if (object == null)
+      return null;
+    else if (object instanceof TypeNode)
+      return object.toString();
+    else if (object instanceof Node)
+      return toJson((Node)object);
+    else if (object instanceof Symbol)
+      return ((Symbol)object).name;
+    else if (object instanceof Iterable){
+      JSONArray arrayJson = new JSONArray();
+      for (Object element: (Iterable<?>)object)
+        arrayJson.put(toJsonValue(element instanceof CaseStatementNode ? toCaseJson((CaseStatementNode)element) : element));
+      return arrayJson;
+    } else if (object instanceof Number || object instanceof Boolean || object instanceof String || object instanceof JSONObject)
+      return object;
+    else
+      return object.toString();
+  }
+
+  static protected JSONObject toCaseJson(CaseStatementNode caseNode) throws JSONException {
+    // Cases of a switch are not nodes themselves
+    JSONObject caseJson = new JsonListMap();
+    caseJson.put("node", caseNode.getClass().getSimpleName());
+    if (caseNode.condition != null)
+      caseJson.put("condition", toJson(caseNode.condition));
+    caseJson.put("bodyStatements", toJsonValue(caseNode.bodyStatements));
+    return caseJson;
+  }
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.script.parser;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.basetechnology.s0.agentserver.AgentInstance;
+import com.basetechnology.s0.agentserver.script.intermediate.ExpressionNode;
+import com.basetechnology.s0.agentserver.script.intermediate.ScriptNode;
+import com.basetechnology.s0.agentserver.script.intermediate.SymbolManager;
+import com.basetechnology.s0.agentserver.script.parser.tokenizer.TokenizerException;
+import com.basetechnology.s0.agentserver.util.JsonListMap;
+
+public class ScriptCache {
+  // Maximum number of parsed expressions and scripts kept, zero to parse every time
+  public static final int DEFAULT_CAPACITY = 1000;
+
+  public int capacity;
+  protected LinkedHashMap<Key, Object> parsed;
+  protected long numHits;
+  protected long numMisses;
+  protected long numEvictions;
+  protected long numInvalidations;
+
+  // Parse trees refer to symbols of the symbol manager they were parsed against, so the
+  // same source text parsed for two agent instances yields two distinct entries
+  protected static class Key {
+    public SymbolManager symbolManager;
+    public boolean isScript;
+    public String source;
+    
+    public Key(SymbolManager symbolManager, boolean isScript, String source){
+      this.symbolManager = symbolManager;
+      this.isScript = isScript;
+      this.source = source;
+    }
+    
+    public boolean equals(Object object){
+      if (! (object instanceof Key))
+        return false;
+      Key key = (Key)object;
+      return symbolManager == key.symbolManager && isScript == key.isScript && source.equals(key.source);
+    }
+    
+    public int hashCode(){
+      return (System.identityHashCode(symbolManager) * 31 + source.hashCode()) * 2 + (isScript ? 1 : 0);
+    }
+  }
+
+  public ScriptCache(){
+    this(DEFAULT_CAPACITY);
+  }
+
+  public ScriptCache(int capacity){
+    this.capacity = capacity;
+    
+    // Access order, so that the least recently used parse tree is evicted first
+    this.parsed = new LinkedHashMap<Key, Object>(16, 0.75f, true){
+      protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest){
+        if (size() > ScriptCache.this.capacity){
+          numEvictions++;
+          return true;
+        } else
+          return false;
+      }
+    };
+  }
+
+  public ExpressionNode parseExpression(AgentInstance agentInstance, String expression) throws TokenizerException, ParserException {
+    // Nothing to cache for a missing expression
+    if (expression == null)
+      return new ScriptParser(agentInstance).parseExpressionString(expression);
+
+    // Check for a previously parsed tree for this agent's symbols
+    Key key = new Key(agentInstance.symbolManager, false, expression);
+    ExpressionNode expressionNode = (ExpressionNode)get(key);
+    if (expressionNode != null)
+      return expressionNode;
+
+    // Parse outside of the lock since parsing only touches the agent's own symbols
+    ScriptParser parser = new ScriptParser(agentInstance);
+    expressionNode = parser.parseExpressionString(expression);
+    put(key, expressionNode);
+    return expressionNode;
+  }
+
+  public ScriptNode parseScript(AgentInstance agentInstance, String script) throws TokenizerException, ParserException {
+    // Nothing to cache for a missing script
+    if (script == null)
+      return new ScriptParser(agentInstance).parseScriptString(script);
+
+    // Check for a previously parsed tree for this agent's symbols
+    Key key = new Key(agentInstance.symbolManager, true, script);
+    ScriptNode scriptNode = (ScriptNode)get(key);
+    if (scriptNode != null)
+      return scriptNode;
+
+    // Parse outside of the lock since parsing only touches the agent's own symbols
+    ScriptParser parser = new ScriptParser(agentInstance);
+    scriptNode = parser.parseScriptString(script);
+    put(key, scriptNode);
+    return scriptNode;
+  }
+
+  protected synchronized Object get(Key key){
+    Object node = parsed.get(key);
+    if (node != null)
+      numHits++;
+    else
+      numMisses++;
+    return node;
+  }
+
+  protected synchronized void put(Key key, Object node){
+    // Empty source parses to no tree at all, which is cheap to redo
+    if (capacity > 0 && node != null)
+      parsed.put(key, node);
+  }
+
+  public synchronized void invalidate(SymbolManager symbolManager){
+    // Discard all parse trees that refer to symbols of this symbol manager
+    for (Iterator<Key> it = parsed.keySet().iterator(); it.hasNext(); ){
+      Key key = it.next();
+      if (key.symbolManager == symbolManager){
+        it.remove();
+        numInvalidations++;
+      }
+    }
+  }
+
+  public synchronized void setCapacity(int capacity){
+    this.capacity = capacity;
+    
+    // Evict least recently used trees beyond the new capacity
+    for (Iterator<Key> it = parsed.keySet().iterator(); parsed.size() > capacity && it.hasNext(); ){
+      it.next();
+      it.remove();
+      numEvictions++;
+    }
+  }
+
+  public synchronized void clear(){
+    parsed.clear();
+  }
+
+  public synchronized int size(){
+    return parsed.size();
+  }
+
+  public synchronized long getNumHits(){
+    return numHits;
+  }
+
+  public synchronized long getNumMisses(){
+    return numMisses;
+  }
+
+  public synchronized long getNumEvictions(){
+    return numEvictions;
+  }
+
+  public synchronized long getNumInvalidations(){
+    return numInvalidations;
+  }
+
+  public synchronized JSONObject toJson() throws JSONException {
+    JSONObject cacheJson = new JsonListMap();
+    cacheJson.put("capacity", capacity);
+    cacheJson.put("size", parsed.size());
+    cacheJson.put("hits", numHits);
+    cacheJson.put("misses", numMisses);
+    long numLookups = numHits + numMisses;
+    cacheJson.put("hit_ratio", numLookups == 0 ? 0.0 : (double)numHits / numLookups);
+    cacheJson.put("evictions", numEvictions);
+    cacheJson.put("invalidations", numInvalidations);
+    return cacheJson;
+  }
+}
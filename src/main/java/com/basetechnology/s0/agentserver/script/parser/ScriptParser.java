@@ -74,6 +74,7 @@ import com.basetechnology.s0.agentserver.script.intermediate.SubtractNode;
 import com.basetechnology.s0.agentserver.script.intermediate.SwitchStatementNode;
 import com.basetechnology.s0.agentserver.script.intermediate.Symbol;
 import com.basetechnology.s0.agentserver.script.intermediate.SymbolException;
+import com.basetechnology.s0.agentserver.script.intermediate.SymbolTable;
 import com.basetechnology.s0.agentserver.script.intermediate.SymbolManager;
 import com.basetechnology.s0.agentserver.script.intermediate.TernaryConditionNode;
 import com.basetechnology.s0.agentserver.script.intermediate.ThrowStatementNode;
@@ -82,6 +83,7 @@ import com.basetechnology.s0.agentserver.script.intermediate.TypeNode;
 import com.basetechnology.s0.agentserver.script.intermediate.VariableReferenceNode;
 import com.basetechnology.s0.agentserver.script.intermediate.WebTypeNode;
 import com.basetechnology.s0.agentserver.script.intermediate.WhileStatementNode;
+import com.basetechnology.s0.agentserver.script.optimizer.ScriptOptimizer;
 import com.basetechnology.s0.agentserver.script.parser.tokenizer.TokenList;
 import com.basetechnology.s0.agentserver.script.parser.tokenizer.Tokenizer;
 import com.basetechnology.s0.agentserver.script.parser.tokenizer.TokenizerException;
@@ -159,14 +161,21 @@ public class ScriptParser {
   String blockCategoryName;
   List<Symbol> localVariables;
   Map<String, Symbol> localVariableMap;
+  int numLocalCategories;
   public String scriptString;
   public TokenList tokens;
+  // Whether to optimize parsed trees, if the server's configuration allows it
+  public boolean optimize = true;
 
   public ScriptParser(AgentInstance agentInstance){
     this.agentInstance = agentInstance;
     this.symbolManager = agentInstance.symbolManager;
   }
 
+  public ScriptParser(SymbolManager symbolManager){
+    this.symbolManager = symbolManager;
+  }
+
   public ExpressionNode parseExpressionString(String scriptString) throws TokenizerException, ParserException  {
     this.blockSymbolManager = null;
     this.blockCategoryName = null;
@@ -189,7 +198,9 @@ public class ScriptParser {
     if (! (token instanceof EndToken))
       throw new ParserException("Expected end of expresion, but found: " + token);
 
-    // Return the generated expression node
+    // Return the generated expression node, simplified if possible
+    if (isOptimizing())
+      expressionNode = ScriptOptimizer.optimize(expressionNode);
     return expressionNode;
   }
 
@@ -201,6 +212,7 @@ public class ScriptParser {
     if (symbolManager != null)
       this.symbolManager = symbolManager;
     this.blockSymbolManager = new SymbolManager();
+    this.numLocalCategories = 0;
     this.scriptString = scriptString;
 
     Tokenizer tzer = new Tokenizer();
@@ -211,9 +223,35 @@ public class ScriptParser {
       return null;
 
     ScriptNode scriptNode = parseScript();
+
+    // Record how many local category slots the script state needs for the script
+    scriptNode.numLocalCategories = numLocalCategories;
+
+    // Simplify the script if possible
+    if (isOptimizing())
+      ScriptOptimizer.optimize(scriptNode);
     return scriptNode;
   }
 
+  public boolean isOptimizing(){
+    if (! optimize)
+      return false;
+    else if (agentInstance == null || agentInstance.agentServer == null)
+      return ScriptOptimizer.DEFAULT_OPTIMIZE;
+    else
+      return agentInstance.agentServer.config.getScriptOptimize();
+  }
+
+  public Symbol putLocalSymbol(String name, TypeNode type) throws SymbolException {
+    Symbol symbol = blockSymbolManager.put(blockCategoryName, name, type);
+
+    // Resolve a slot for the block's category, following the slots of the agent's categories
+    SymbolTable symbolTable = symbol.symbolTable;
+    if (symbolTable.categorySlot < 0)
+      symbolTable.categorySlot = SymbolManager.NUM_AGENT_CATEGORIES + numLocalCategories++;
+    return symbol;
+  }
+
   public ScriptNode parseScript() throws ParserException {
     // Check for optional function header
     int startPosition = tokens.getPosition();
@@ -331,7 +369,7 @@ public class ScriptParser {
 
       Symbol parameterSymbol = null;
       try {
-        parameterSymbol = blockSymbolManager.put(blockCategoryName, parameterName, parameterType);
+        parameterSymbol = putLocalSymbol(parameterName, parameterType);
       } catch (SymbolException e){
         throw new ParserException("Parser Exception: " + e.getMessage());
       }
@@ -430,7 +468,7 @@ public class ScriptParser {
           // Add new variable name for this block
           Symbol varSymbol = null;
           try {
-            varSymbol = blockSymbolManager.put(blockCategoryName, varName, varType);
+            varSymbol = putLocalSymbol(varName, varType);
           } catch (SymbolException e){
             throw new ParserException("Parser Exception: " + e.getMessage());
           }
@@ -893,7 +931,7 @@ public class ScriptParser {
         // Add new variable name for this block
         Symbol symbol = null;
         try {
-          symbol = blockSymbolManager.put(blockCategoryName, variableName, varType);
+          symbol = putLocalSymbol(variableName, varType);
         } catch (SymbolException e){
           throw new ParserException("Parser Exception: " + e.getMessage());
         }
@@ -1032,7 +1070,7 @@ public class ScriptParser {
         // Add new variable name for this block
         Symbol symbol = null;
         try {
-          symbol = blockSymbolManager.put(blockCategoryName, variableName, varType);
+          symbol = putLocalSymbol(variableName, varType);
         } catch (SymbolException e){
           throw new ParserException("Parser Exception: " + e.getMessage());
         }
@@ -0,0 +1,58 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.script.runtime;
+
+import com.basetechnology.s0.agentserver.AgentServerException;
+import com.basetechnology.s0.agentserver.script.runtime.value.Value;
+
+public abstract class BuiltinFunction {
+  public String name;
+  public int minArgs;
+  public int maxArgs;
+
+  public BuiltinFunction(String name, int numArgs){
+    this(name, numArgs, numArgs);
+  }
+
+  // Use a maxArgs of -1 for functions that take any number of arguments
+  public BuiltinFunction(String name, int minArgs, int maxArgs){
+    this.name = name;
+    this.minArgs = minArgs;
+    this.maxArgs = maxArgs;
+  }
+
+  public boolean acceptsArguments(int numArgs){
+    return numArgs >= minArgs && (maxArgs < 0 || numArgs <= maxArgs);
+  }
+
+  public boolean overlaps(BuiltinFunction other){
+    return name.equals(other.name) && (maxArgs < 0 || other.minArgs <= maxArgs) &&
+        (other.maxArgs < 0 || minArgs <= other.maxArgs);
+  }
+
+  public abstract Value call(ScriptState scriptState, Value[] arguments) throws AgentServerException;
+
+  // A pure function depends only on its arguments, with no side effects, so it can be called once,
+  // without a script state, when all of its arguments are literals
+  public boolean isPure(){
+    return false;
+  }
+
+  public String toString(){
+    return name + "/" + minArgs + (maxArgs == minArgs ? "" : maxArgs < 0 ? "+" : "-" + maxArgs);
+  }
+}
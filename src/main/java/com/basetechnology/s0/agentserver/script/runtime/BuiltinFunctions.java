@@ -0,0 +1,208 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.script.runtime;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.basetechnology.s0.agentserver.AgentServerException;
+import com.basetechnology.s0.agentserver.script.runtime.value.FloatValue;
+import com.basetechnology.s0.agentserver.script.runtime.value.IntegerValue;
+import com.basetechnology.s0.agentserver.script.runtime.value.NullValue;
+import com.basetechnology.s0.agentserver.script.runtime.value.Value;
+import com.basetechnology.s0.agentserver.util.Clock;
+
+public class BuiltinFunctions {
+  // Built-in functions keyed by name, each with the argument counts it accepts
+  static protected Map<String, List<BuiltinFunction>> functions = new HashMap<String, List<BuiltinFunction>>();
+
+  static synchronized public void register(BuiltinFunction function){
+    List<BuiltinFunction> namedFunctions = functions.get(function.name);
+    if (namedFunctions == null){
+      namedFunctions = new ArrayList<BuiltinFunction>();
+      functions.put(function.name, namedFunctions);
+    }
+
+    // A new function replaces any existing one for the same name and argument counts
+    for (int i = namedFunctions.size() - 1; i >= 0; i--)
+      if (namedFunctions.get(i).overlaps(function))
+        namedFunctions.remove(i);
+    namedFunctions.add(function);
+  }
+
+  static synchronized public void unregister(BuiltinFunction function){
+    List<BuiltinFunction> namedFunctions = functions.get(function.name);
+    if (namedFunctions != null){
+      namedFunctions.remove(function);
+      if (namedFunctions.size() == 0)
+        functions.remove(function.name);
+    }
+  }
+
+  static synchronized public BuiltinFunction get(String name, int numArgs){
+    List<BuiltinFunction> namedFunctions = functions.get(name);
+    if (namedFunctions != null)
+      for (BuiltinFunction function: namedFunctions)
+        if (function.acceptsArguments(numArgs))
+          return function;
+    return null;
+  }
+
+  static synchronized public int size(){
+    int count = 0;
+    for (List<BuiltinFunction> namedFunctions: functions.values())
+      count += namedFunctions.size();
+    return count;
+  }
+
+  // Converts a count of some time unit into milliseconds
+  static public class DurationFunction extends BuiltinFunction {
+    public double unitMs;
+
+    public DurationFunction(String name, double unitMs){
+      super(name, 1);
+      this.unitMs = unitMs;
+    }
+
+    public Value call(ScriptState scriptState, Value[] arguments) throws AgentServerException {
+      double value = arguments[0].getDoubleValue(scriptState);
+      return new IntegerValue((long)(value * unitMs));
+    }
+
+    public boolean isPure(){
+      return true;
+    }
+  }
+
+  static {
+    register(new BuiltinFunction("avg", 1, -1){
+      public Value call(ScriptState scriptState, Value[] arguments) throws AgentServerException {
+        Value sumValue = arguments[0];
+        for (int i = 1; i < arguments.length; i++)
+          sumValue = sumValue.add(arguments[i]);
+        return sumValue.divide(arguments.length);
+      }
+    });
+    register(new BuiltinFunction("eval", 1){
+      public Value call(ScriptState scriptState, Value[] arguments) throws AgentServerException {
+        String expression = arguments[0].getStringValue();
+        return scriptState.agentInstance.evaluateExpression(expression);
+      }
+    });
+    register(new BuiltinFunction("exit", 0){
+      public Value call(ScriptState scriptState, Value[] arguments) throws AgentServerException {
+        // Mark the agent for deletion ASAP
+        scriptState.agentInstance.delete();
+        return NullValue.one;
+      }
+    });
+    register(new BuiltinFunction("max", 1, -1){
+      public Value call(ScriptState scriptState, Value[] arguments) throws AgentServerException {
+        Value maxValue = arguments[0];
+        for (int i = 1; i < arguments.length; i++)
+          if (arguments[i].compareValue(maxValue) > 0)
+            maxValue = arguments[i];
+        return maxValue;
+      }
+    });
+    register(new BuiltinFunction("min", 1, -1){
+      public Value call(ScriptState scriptState, Value[] arguments) throws AgentServerException {
+        Value minValue = arguments[0];
+        for (int i = 1; i < arguments.length; i++)
+          if (arguments[i].compareValue(minValue) < 0)
+            minValue = arguments[i];
+        return minValue;
+      }
+    });
+    register(new BuiltinFunction("notify", 1){
+      public Value call(ScriptState scriptState, Value[] arguments) throws AgentServerException {
+        String notificationName = arguments[0].getStringValue(scriptState);
+        scriptState.agentInstance.queueNotify(notificationName);
+        return NullValue.one;
+      }
+    });
+    register(new BuiltinFunction("pi", 0){
+      public Value call(ScriptState scriptState, Value[] arguments) throws AgentServerException {
+        return new FloatValue(Math.PI);
+      }
+
+      public boolean isPure(){
+        return true;
+      }
+    });
+    register(new BuiltinFunction("now", 0){
+      public Value call(ScriptState scriptState, Value[] arguments) throws AgentServerException {
+        return new IntegerValue(Clock.now());
+      }
+    });
+    register(new BuiltinFunction("runScript", 1){
+      public Value call(ScriptState scriptState, Value[] arguments) throws AgentServerException {
+        String scriptString = arguments[0].getStringValue();
+        return scriptState.agentInstance.runScriptString(scriptString);
+      }
+    });
+    register(new BuiltinFunction("sqrt", 1){
+      public Value call(ScriptState scriptState, Value[] arguments) throws AgentServerException {
+        return new FloatValue(Math.sqrt(arguments[0].getDoubleValue(scriptState)));
+      }
+
+      public boolean isPure(){
+        return true;
+      }
+    });
+    register(new BuiltinFunction("sum", 1, -1){
+      public Value call(ScriptState scriptState, Value[] arguments) throws AgentServerException {
+        Value sumValue = arguments[0];
+        for (int i = 1; i < arguments.length; i++)
+          sumValue = sumValue.add(arguments[i]);
+        return sumValue;
+      }
+    });
+    final BuiltinFunction waitFunction = new BuiltinFunction("wait", 1){
+      public Value call(ScriptState scriptState, Value[] arguments) throws AgentServerException {
+        try {
+          Clock.sleep(arguments[0].getIntValue());
+        } catch (InterruptedException e){
+          // Interrupted by the watchdog if the activity was aborted, otherwise ignore
+          scriptState.checkAborted();
+        }
+        return NullValue.one;
+      }
+    };
+    register(waitFunction);
+    register(new BuiltinFunction("sleep", 1){
+      public Value call(ScriptState scriptState, Value[] arguments) throws AgentServerException {
+        return waitFunction.call(scriptState, arguments);
+      }
+    });
+
+    // Durations, in milliseconds
+    register(new DurationFunction("ms", 1));
+    register(new DurationFunction("seconds", 1000.0));
+    register(new DurationFunction("minutes", 60 * 1000.0));
+    register(new DurationFunction("hours", 60 * 60 * 1000.0));
+    register(new DurationFunction("days", 24 * 60 * 60 * 1000.0));
+    register(new DurationFunction("weeks", 7 * 24 * 60 * 60 * 1000.0));
+    register(new DurationFunction("months", 30 * 24 * 60 * 60 * 1000.0));
+    register(new DurationFunction("years", 365 * 24 * 60 * 60 * 1000.0));
+    // Start from a double so the product doesn't overflow int before the final multiply
+    register(new DurationFunction("decades", 10.0 * 365 * 24 * 60 * 60 * 1000));
+    register(new DurationFunction("centuries", 100.0 * 365 * 24 * 60 * 60 * 1000));
+  }
+}
@@ -24,7 +24,11 @@ import com.basetechnology.s0.agentserver.script.intermediate.ScriptNode;
 import com.basetechnology.s0.agentserver.script.intermediate.TypeNode;
 
 public class ParsedScripts {
-  public List<ScriptNode> parsedScripts;
+  // Replaced as a whole, so that readers never see a partially parsed set of scripts
+  public volatile List<ScriptNode> parsedScripts;
+
+  // Bumped on every change, so call sites can tell when their cached lookups are stale
+  public volatile int version;
 
   public ParsedScripts(){
     this.parsedScripts = new ArrayList<ScriptNode>();
@@ -32,10 +36,17 @@ public class ParsedScripts {
   
   public void add(ScriptNode scriptNode){
     parsedScripts.add(scriptNode);
+    version++;
   }
   
   public void clear(){
     parsedScripts.clear();
+    version++;
+  }
+
+  public void set(List<ScriptNode> scriptNodes){
+    parsedScripts = scriptNodes;
+    version++;
   }
   
   public ScriptNode get(String functionName, List<TypeNode> argumentTypes){
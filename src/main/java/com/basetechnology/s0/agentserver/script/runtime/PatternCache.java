@@ -0,0 +1,155 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.script.runtime;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.basetechnology.s0.agentserver.util.JsonListMap;
+
+public class PatternCache {
+  // Maximum number of compiled regex patterns kept, zero to compile every time
+  public static final int DEFAULT_CAPACITY = 500;
+
+  // Patterns do not depend on any agent, so all activity threads share one cache
+  public static final PatternCache shared = new PatternCache();
+
+  public int capacity;
+  protected LinkedHashMap<Key, Pattern> patterns;
+  protected long numHits;
+  protected long numMisses;
+  protected long numEvictions;
+
+  protected static class Key {
+    public String regex;
+    public int flags;
+    
+    public Key(String regex, int flags){
+      this.regex = regex;
+      this.flags = flags;
+    }
+    
+    public boolean equals(Object object){
+      if (! (object instanceof Key))
+        return false;
+      Key key = (Key)object;
+      return flags == key.flags && regex.equals(key.regex);
+    }
+    
+    public int hashCode(){
+      return regex.hashCode() * 31 + flags;
+    }
+  }
+
+  public PatternCache(){
+    this(DEFAULT_CAPACITY);
+  }
+
+  public PatternCache(int capacity){
+    this.capacity = capacity;
+    
+    // Access order, so that the least recently used pattern is evicted first
+    this.patterns = new LinkedHashMap<Key, Pattern>(16, 0.75f, true){
+      protected boolean removeEldestEntry(Map.Entry<Key, Pattern> eldest){
+        if (size() > PatternCache.this.capacity){
+          numEvictions++;
+          return true;
+        } else
+          return false;
+      }
+    };
+  }
+
+  public Pattern getPattern(String regex){
+    return getPattern(regex, 0);
+  }
+
+  public Pattern getPattern(String regex, int flags){
+    // Check for a previously compiled pattern
+    Key key = new Key(regex, flags);
+    Pattern pattern = get(key);
+    if (pattern != null)
+      return pattern;
+
+    // Compile outside of the lock; a bad pattern throws and is not cached
+    pattern = Pattern.compile(regex, flags);
+    put(key, pattern);
+    return pattern;
+  }
+
+  protected synchronized Pattern get(Key key){
+    Pattern pattern = patterns.get(key);
+    if (pattern != null)
+      numHits++;
+    else
+      numMisses++;
+    return pattern;
+  }
+
+  protected synchronized void put(Key key, Pattern pattern){
+    if (capacity > 0)
+      patterns.put(key, pattern);
+  }
+
+  public synchronized void setCapacity(int capacity){
+    this.capacity = capacity;
+    
+    // Evict least recently used patterns beyond the new capacity
+    for (Iterator<Key> it = patterns.keySet().iterator(); patterns.size() > capacity && it.hasNext(); ){
+      it.next();
+      it.remove();
+      numEvictions++;
+    }
+  }
+
+  public synchronized void clear(){
+    patterns.clear();
+  }
+
+  public synchronized int size(){
+    return patterns.size();
+  }
+
+  public synchronized long getNumHits(){
+    return numHits;
+  }
+
+  public synchronized long getNumMisses(){
+    return numMisses;
+  }
+
+  public synchronized long getNumEvictions(){
+    return numEvictions;
+  }
+
+  public synchronized JSONObject toJson() throws JSONException {
+    JSONObject cacheJson = new JsonListMap();
+    cacheJson.put("capacity", capacity);
+    cacheJson.put("size", patterns.size());
+    cacheJson.put("hits", numHits);
+    cacheJson.put("misses", numMisses);
+    long numLookups = numHits + numMisses;
+    cacheJson.put("hit_ratio", numLookups == 0 ? 0.0 : (double)numHits / numLookups);
+    cacheJson.put("evictions", numEvictions);
+    return cacheJson;
+  }
+}
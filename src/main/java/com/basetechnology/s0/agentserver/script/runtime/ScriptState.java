@@ -24,9 +24,12 @@ import com.basetechnology.s0.agentserver.AgentDefinition;
 import com.basetechnology.s0.agentserver.AgentInstance;
 import com.basetechnology.s0.agentserver.AgentServer;
 import com.basetechnology.s0.agentserver.User;
+import com.basetechnology.s0.agentserver.activities.AgentActivity;
+import com.basetechnology.s0.agentserver.activities.AgentActivityThread;
 import com.basetechnology.s0.agentserver.script.intermediate.Node;
 import com.basetechnology.s0.agentserver.script.intermediate.ScriptNode;
 import com.basetechnology.s0.agentserver.script.intermediate.SymbolManager;
+import com.basetechnology.s0.agentserver.script.intermediate.SymbolTable;
 import com.basetechnology.s0.agentserver.script.intermediate.SymbolValues;
 import com.basetechnology.s0.agentserver.script.intermediate.TypeNode;
 import com.basetechnology.s0.agentserver.script.runtime.value.NullValue;
@@ -40,6 +43,8 @@ public class ScriptState {
   public AgentDefinition agentDefinition;
   public SymbolManager symbolManager;
   public Map<String, SymbolValues> categorySymbolValues;
+  // Values of each category indexed by category slot - the agent's categories, then the script's local ones
+  public SymbolValues[] categoryValues;
   public Node node;
   public Value returnValue;
   public enum controlFlowChanges {NO_CHANGE, CONTINUE, BREAK, RETURN, THROW};
@@ -55,6 +60,8 @@ public class ScriptState {
   public int nodeExecutionLevel;
   public int nodeExecutionLimit;
   public int nodeExecutionCount;
+  // Activity in which the script is running, if any, so that it can be aborted
+  public AgentActivity activity;
 
   public ScriptState(ScriptRuntime scriptRuntime, String scriptName, Node node){
     this(scriptRuntime, scriptName, node, -1);
@@ -69,11 +76,46 @@ public class ScriptState {
     this.agentDefinition = null;
     this.symbolManager = agentInstance.symbolManager;
     this.categorySymbolValues = agentInstance.categorySymbolValues;
+    initCategoryValues();
     this.returnValue = NullValue.one;
     this.controlFlowChange = controlFlowChanges.NO_CHANGE;
+    this.activity = AgentActivityThread.getCurrentActivity();
     initExecutionLimits(level);
   }
 
+  public void initCategoryValues(){
+    // Resolve the agent's categories once, leaving local categories to be created on first use
+    int numLocalCategories = node instanceof ScriptNode ? ((ScriptNode)node).numLocalCategories : 0;
+    categoryValues = new SymbolValues[SymbolManager.NUM_AGENT_CATEGORIES + numLocalCategories];
+    if (categorySymbolValues != null)
+      for (int i = 0; i < SymbolManager.NUM_AGENT_CATEGORIES; i++)
+        categoryValues[i] = categorySymbolValues.get(SymbolManager.AGENT_CATEGORIES.get(i));
+  }
+
+  public SymbolValues getSymbolValues(SymbolTable symbolTable){
+    int categorySlot = symbolTable.categorySlot;
+    if (categorySlot >= 0 && categorySlot < categoryValues.length){
+      SymbolValues symbolValues = categoryValues[categorySlot];
+      if (symbolValues == null){
+        // No values in this category yet, so create it
+        symbolValues = new SymbolValues(symbolTable.categoryName);
+        categoryValues[categorySlot] = symbolValues;
+        if (categorySlot < SymbolManager.NUM_AGENT_CATEGORIES)
+          categorySymbolValues.put(symbolTable.categoryName, symbolValues);
+      }
+      return symbolValues;
+    }
+
+    // Categories without a slot are looked up by name
+    SymbolValues symbolValues = categorySymbolValues.get(symbolTable.categoryName);
+    if (symbolValues == null){
+      // No values in this category yet, so create it
+      symbolValues = new SymbolValues(symbolTable.categoryName);
+      categorySymbolValues.put(symbolTable.categoryName, symbolValues);
+    }
+    return symbolValues;
+  }
+
   public void initExecutionLimits(int level){
     if (level < 1)
       level = agentServer == null ? DEFAULT_EXECUTION_LEVEL :
@@ -95,9 +137,20 @@ public class ScriptState {
     nodeExecutionCount++;
     if (nodeExecutionCount > nodeExecutionLimit)
       throw new NodeExecutionLimitException(((node instanceof ScriptNode) ? "Script " + scriptName : "Non-script") + " has excceded operation execution limit of " + nodeExecutionLimit + " operations");
+    checkAborted();
+  }
+
+  public void checkAborted() throws ActivityAbortedException {
+    // Stop cooperatively if the watchdog has aborted the activity running this script
+    if (activity != null && activity.abortRequested)
+      throw new ActivityAbortedException(((node instanceof ScriptNode) ? "Script " + scriptName : "Non-script") + " was aborted since its activity exceeded its deadline");
   }
 
   public ScriptNode get(String functionName, List<TypeNode> argumentTypes){
     return agentInstance.get(functionName, argumentTypes);
   }
+
+  public ParsedScripts getParsedScripts(){
+    return agentInstance.parsedScripts;
+  }
 }
@@ -16,8 +16,6 @@
 
 package com.basetechnology.s0.agentserver.script.runtime.value;
 
-import java.util.List;
-
 import com.basetechnology.s0.agentserver.RuntimeException;
 import com.basetechnology.s0.agentserver.script.intermediate.FloatTypeNode;
 import com.basetechnology.s0.agentserver.script.intermediate.TypeNode;
@@ -67,13 +65,6 @@ public class FloatValue extends NumberValue {
     return super.getNamedValue(scriptState, name);
   }
 
-  public Value getMethodValue(ScriptState scriptState, String name, List<Value> arguments) throws RuntimeException {
-    int numArguments = arguments.size();
-    if (name.equals("sqrt") && numArguments == 0)
-      return new FloatValue(Math.sqrt(this.getFloatValue()));
-    else
-      return super.getMethodValue(scriptState, name, arguments);
-  }
 
   public Value add(Value otherValue){
     return new FloatValue(value + otherValue.getFloatValue());
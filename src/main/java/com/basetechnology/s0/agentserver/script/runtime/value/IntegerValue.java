@@ -16,8 +16,6 @@
 
 package com.basetechnology.s0.agentserver.script.runtime.value;
 
-import java.util.List;
-
 import com.basetechnology.s0.agentserver.RuntimeException;
 import com.basetechnology.s0.agentserver.script.intermediate.IntegerTypeNode;
 import com.basetechnology.s0.agentserver.script.intermediate.TypeNode;
@@ -28,11 +26,27 @@ public class IntegerValue extends NumberValue {
   public long value;
 
   static public IntegerValue zero = new IntegerValue(0);
+
+  // Shared instances of small values, which loop counters and sums produce constantly
+  static public final int SMALL_VALUE_MIN = -128;
+  static public final int SMALL_VALUE_MAX = 1023;
+  static protected final IntegerValue[] smallValues = new IntegerValue[SMALL_VALUE_MAX - SMALL_VALUE_MIN + 1];
+  static {
+    for (int i = 0; i < smallValues.length; i++)
+      smallValues[i] = new IntegerValue(SMALL_VALUE_MIN + i);
+  }
   
   public IntegerValue(long value){
     this.value = value;
   }
 
+  static public IntegerValue valueOf(long value){
+    if (value >= SMALL_VALUE_MIN && value <= SMALL_VALUE_MAX)
+      return smallValues[(int)value - SMALL_VALUE_MIN];
+    else
+      return new IntegerValue(value);
+  }
+
   public TypeNode getType(){
     return IntegerTypeNode.one;
   }
@@ -75,13 +89,6 @@ public class IntegerValue extends NumberValue {
     return super.getNamedValue(scriptState, name);
   }
 
-  public Value getMethodValue(ScriptState scriptState, String name, List<Value> arguments) throws RuntimeException {
-    int numArguments = arguments.size();
-    if (name.equals("sqrt") && numArguments == 0)
-      return new FloatValue(Math.sqrt(this.getFloatValue()));
-    else
-      return super.getMethodValue(scriptState, name, arguments);
-  }
 
   public Value add(Value otherValue){
     return new IntegerValue(value + otherValue.getLongValue());
@@ -172,278 +172,318 @@ public class ListValue extends Value {
       return super.getNamedValue(scriptState, name);
   }
 
-  public Value getMethodValue(ScriptState scriptState, String name, List<Value> arguments) throws RuntimeException {
-    int numArguments = arguments.size();
-    if ((name.equals("length") || name.equals("size")) && numArguments == 0)
-      return new IntegerValue(value.size());
-    else if ((name.equals("add") || name.equals("put") || name.equals("set")) && numArguments == 1){
-      // Append the new value
-      appendValue(arguments.get(0));
-      // TODO: Find out what this Java return value is really all about
-      return TrueValue.one;
-    } if ((name.equals("avg") || name.equals("average")) && numArguments == 0){
-      // See if any elements in list
-      int numElements = value.size();
-      if (numElements == 0)
-        // No, then it has no average value
-        return NullValue.one;
-
-      // Iterate over list to sum values
-      Value sum = new IntegerValue(0);
-      for (Value valueNode: value)
-        sum = AddNode.add(sum, valueNode);
+  static public final ValueMethodTable methodTable = new ValueMethodTable("list", Value.methodTable);
 
-      // Calculate and return the average
-      return DivideNode.divide(sum, new IntegerValue(numElements));
-    } else if (name.equals("clear") && numArguments == 0){
-      // Clear the list
-      value.clear();
+  static {
+    methodTable.add(new ValueMethod<ListValue>("length", 0){
+      public Value invoke(ScriptState scriptState, ListValue target, List<Value> arguments) throws RuntimeException {
+        return new IntegerValue(target.value.size());
+      }
+    }, "size");
+    methodTable.add(new ValueMethod<ListValue>("add", 1){
+      public Value invoke(ScriptState scriptState, ListValue target, List<Value> arguments) throws RuntimeException {
+        // Append the new value
+        target.appendValue(arguments.get(0));
+        // TODO: Find out what this Java return value is really all about
+        return TrueValue.one;
+      }
+    }, "put", "set");
+    methodTable.add(new ValueMethod<ListValue>("avg", 0){
+      public Value invoke(ScriptState scriptState, ListValue target, List<Value> arguments) throws RuntimeException {
+        // See if any elements in list
+        int numElements = target.value.size();
+        if (numElements == 0)
+          // No, then it has no average value
+          return NullValue.one;
+
+        // Iterate over list to sum values
+        Value sum = new IntegerValue(0);
+        for (Value valueNode: target.value)
+          sum = AddNode.add(sum, valueNode);
+
+        // Calculate and return the average
+        return DivideNode.divide(sum, new IntegerValue(numElements));
+      }
+    }, "average");
+    methodTable.add(new ValueMethod<ListValue>("clear", 0){
+      public Value invoke(ScriptState scriptState, ListValue target, List<Value> arguments) throws RuntimeException {
+        // Clear the list
+        target.value.clear();
 
-      // No return value
-      return NullValue.one;
-      // TODO: Add "contains"
-    } else if (name.equals("concat") && numArguments <= 1){
-      // Combine all elements into a single string specified delimiter (or space) between them
-      StringBuilder sb = new StringBuilder();
-      String delimiter = " ";
-      if (numArguments == 1)
-        delimiter = arguments.get(0).getStringValue();
-      for (Value valueNode: value){
-        if (sb.length() > 0)
-          sb.append(delimiter);
-        sb.append(valueNode.toString());
+        // No return value
+        return NullValue.one;
+        // TODO: Add "contains"
       }
+    });
+    methodTable.add(new ValueMethod<ListValue>("concat", 0, 1){
+      public Value invoke(ScriptState scriptState, ListValue target, List<Value> arguments) throws RuntimeException {
+        int numArguments = arguments.size();
+        // Combine all elements into a single string specified delimiter (or space) between them
+        StringBuilder sb = new StringBuilder();
+        String delimiter = " ";
+        if (numArguments == 1)
+          delimiter = arguments.get(0).getStringValue();
+        for (Value valueNode: target.value){
+          if (sb.length() > 0)
+            sb.append(delimiter);
+          sb.append(valueNode.toString());
+        }
 
-      // Return the combined string
-      return new StringValue(sb.toString());
-    } else if (name.equals("count") && (numArguments == 1 || numArguments == 2)){
-      // Get the search term (string or list)
-      Value term = arguments.get(0);
+        // Return the combined string
+        return new StringValue(sb.toString());
+      }
+    });
+    methodTable.add(new ValueMethod<ListValue>("count", 1, 2){
+      public Value invoke(ScriptState scriptState, ListValue target, List<Value> arguments) throws RuntimeException {
+        int numArguments = arguments.size();
+        // Get the search term (string or list)
+        Value term = arguments.get(0);
       
-      // Get the optional starting index
-      int startIndex = 0;
-      if (numArguments == 2)
-        startIndex = arguments.get(1).getIntValue();
-      if (startIndex < 0)
-        startIndex = 0;
+        // Get the optional starting index
+        int startIndex = 0;
+        if (numArguments == 2)
+          startIndex = arguments.get(1).getIntValue();
+        if (startIndex < 0)
+          startIndex = 0;
       
-      // Handle string and list (phrase) search as distinct cases
-      int count = 0;
-      if (term instanceof ListValue){
-        // Search for a phrase
-        // No match if search phrase is empty
-        ListValue valuePhrase = (ListValue)term;
-        int numElementsPhrase = valuePhrase.value.size();
-        if (numElementsPhrase == 0)
-          return new IntegerValue(0);
+        // Handle string and list (phrase) search as distinct cases
+        int count = 0;
+        if (term instanceof ListValue){
+          // Search for a phrase
+          // No match if search phrase is empty
+          ListValue valuePhrase = (ListValue)term;
+          int numElementsPhrase = valuePhrase.value.size();
+          if (numElementsPhrase == 0)
+            return new IntegerValue(0);
         
-        // No need to search if phrase is longer than list (starting at start index)
-        int numElements = value.size();
-        if (numElementsPhrase > numElements - startIndex)
-          return new IntegerValue(0);
+          // No need to search if phrase is longer than list (starting at start index)
+          int numElements = target.value.size();
+          if (numElementsPhrase > numElements - startIndex)
+            return new IntegerValue(0);
 
-        // Get local copy of the strings in the phrase
-        List<String> phraseStrings = valuePhrase.getStrings(0, numElementsPhrase - 1);
+          // Get local copy of the strings in the phrase
+          List<String> phraseStrings = valuePhrase.getStrings(0, numElementsPhrase - 1);
         
-        // Pre-fetch the initial candidate subset of list to match against
-        List<String> thisStrings = getStrings(startIndex, startIndex + numElementsPhrase - 1);
+          // Pre-fetch the initial candidate subset of list to match against
+          List<String> thisStrings = target.getStrings(startIndex, startIndex + numElementsPhrase - 1);
         
-        // Search through the list for a match
-        for (int i = startIndex; i < numElements - numElementsPhrase + 1; i++){
-          // Check match of this subset
-          boolean match = true;
-          for (int j = 0; j < numElementsPhrase; j++)
-            if (! thisStrings.get(j).equals(phraseStrings.get(j))){
-              match = false;
-              break;
-            }
-          if (match)
-            count++;
+          // Search through the list for a match
+          for (int i = startIndex; i < numElements - numElementsPhrase + 1; i++){
+            // Check match of this subset
+            boolean match = true;
+            for (int j = 0; j < numElementsPhrase; j++)
+              if (! thisStrings.get(j).equals(phraseStrings.get(j))){
+                match = false;
+                break;
+              }
+            if (match)
+              count++;
           
-          // Now fetch the next string from this list and shift onto pre-fetched list
-          if (i < numElements - numElementsPhrase){
-            thisStrings.remove(0);
-            thisStrings.add(value.get(i + numElementsPhrase).getStringValue());
+            // Now fetch the next string from this list and shift onto pre-fetched list
+            if (i < numElements - numElementsPhrase){
+              thisStrings.remove(0);
+              thisStrings.add(target.value.get(i + numElementsPhrase).getStringValue());
+            }
           }
+        } else {
+          // Search for a single term
+          String termText = term.getStringValue();
+          int numElements = target.value.size();
+          for (int i = startIndex; i < numElements; i++)
+            if (target.value.get(i).toString().equals(termText))
+              count++;
         }
-      } else {
-        // Search for a single term
-        String termText = term.getStringValue();
-        int numElements = value.size();
-        for (int i = startIndex; i < numElements; i++)
-          if (value.get(i).toString().equals(termText))
-            count++;
-      }
       
-      // Return the count of the matched term(s)
-      return new IntegerValue(count);
-    } else if (name.equals("find") && (numArguments == 1 || numArguments == 2)){
-      // Get the search term (string or list)
-      Value term = arguments.get(0);
+        // Return the count of the matched term(s)
+        return new IntegerValue(count);
+      }
+    });
+    methodTable.add(new ValueMethod<ListValue>("find", 1, 2){
+      public Value invoke(ScriptState scriptState, ListValue target, List<Value> arguments) throws RuntimeException {
+        int numArguments = arguments.size();
+        // Get the search term (string or list)
+        Value term = arguments.get(0);
       
-      // Get the optional starting index
-      int startIndex = 0;
-      if (numArguments == 2)
-        startIndex = arguments.get(1).getIntValue();
-      if (startIndex < 0)
-        startIndex = 0;
+        // Get the optional starting index
+        int startIndex = 0;
+        if (numArguments == 2)
+          startIndex = arguments.get(1).getIntValue();
+        if (startIndex < 0)
+          startIndex = 0;
       
-      // Handle string and list (phrase) search as distinct cases
-      int foundIndex = -1;
-      if (term instanceof ListValue){
-        // Search for a phrase
-        // No match if search phrase is empty
-        ListValue valuePhrase = (ListValue)term;
-        int numElementsPhrase = valuePhrase.value.size();
-        if (numElementsPhrase == 0)
-          return new IntegerValue(-1);
+        // Handle string and list (phrase) search as distinct cases
+        int foundIndex = -1;
+        if (term instanceof ListValue){
+          // Search for a phrase
+          // No match if search phrase is empty
+          ListValue valuePhrase = (ListValue)term;
+          int numElementsPhrase = valuePhrase.value.size();
+          if (numElementsPhrase == 0)
+            return new IntegerValue(-1);
         
-        // No need to search if phrase is longer than list (starting at start index)
-        int numElements = value.size();
-        if (numElementsPhrase > numElements - startIndex)
-          return new IntegerValue(-1);
+          // No need to search if phrase is longer than list (starting at start index)
+          int numElements = target.value.size();
+          if (numElementsPhrase > numElements - startIndex)
+            return new IntegerValue(-1);
 
-        // Get local copy of the strings in the phrase
-        List<String> phraseStrings = valuePhrase.getStrings(0, numElementsPhrase - 1);
+          // Get local copy of the strings in the phrase
+          List<String> phraseStrings = valuePhrase.getStrings(0, numElementsPhrase - 1);
         
-        // Pre-fetch the initial candidate subset of list to match against
-        List<String> thisStrings = getStrings(startIndex, startIndex + numElementsPhrase - 1);
+          // Pre-fetch the initial candidate subset of list to match against
+          List<String> thisStrings = target.getStrings(startIndex, startIndex + numElementsPhrase - 1);
         
-        // Search through the list for a match
-        for (int i = startIndex; i < numElements - numElementsPhrase + 1; i++){
-          // Check match of this subset
-          boolean match = true;
-          for (int j = 0; j < numElementsPhrase; j++)
-            if (! thisStrings.get(j).equals(phraseStrings.get(j))){
-              match = false;
+          // Search through the list for a match
+          for (int i = startIndex; i < numElements - numElementsPhrase + 1; i++){
+            // Check match of this subset
+            boolean match = true;
+            for (int j = 0; j < numElementsPhrase; j++)
+              if (! thisStrings.get(j).equals(phraseStrings.get(j))){
+                match = false;
+                break;
+              }
+            if (match){
+              foundIndex = i;
               break;
             }
-          if (match){
-            foundIndex = i;
-            break;
-          }
 
-          // Now fetch the next string from this list and shift onto pre-fetched list
-          if (i < numElements - numElementsPhrase){
-            thisStrings.remove(0);
-            thisStrings.add(value.get(i + numElementsPhrase).getStringValue());
+            // Now fetch the next string from this list and shift onto pre-fetched list
+            if (i < numElements - numElementsPhrase){
+              thisStrings.remove(0);
+              thisStrings.add(target.value.get(i + numElementsPhrase).getStringValue());
+            }
           }
-        }
-      } else {
-        // Search for a single term
-        String termText = term.getStringValue();
-        int numElements = value.size();
-        for (int i = startIndex; i < numElements; i++){
-          if (value.get(i).toString().equals(termText)){
-            foundIndex = i;
-            break;
+        } else {
+          // Search for a single term
+          String termText = term.getStringValue();
+          int numElements = target.value.size();
+          for (int i = startIndex; i < numElements; i++){
+            if (target.value.get(i).toString().equals(termText)){
+              foundIndex = i;
+              break;
+            }
           }
         }
-      }
       
-      // Return the index of the matched term(s)
-      return new IntegerValue(foundIndex);
-    } else if (name.equals("get") && numArguments == 1){
-      // Fetch element at that index
-      int len = value.size();
-      int index = arguments.get(0).getIntValue();
-      if (index < 0)
-        throw new RuntimeException("List index less than zero: " + index);
-      else if (index >= len)
-        throw new RuntimeException("List index of " + index + " is greater than list length of " + len + " (minus one)");
-      else
-        return (Value)value.get(index);
-    } else if (name.equals("get") && numArguments == 2){
-      // if first argument is a string, treat as a lookup of list of maps
-      if (arguments.get(0) instanceof StringValue){
-        // First argument is the map field name
-        String fieldName = arguments.get(0).getStringValue();
-
-        // Second argument is the value for that field to search for
-        Value fieldValueNode = arguments.get(1);
-
-        // Search through the list
-        Value foundElementValueNode = NullValue.one;
-        for (Value elementValueNode: value){
-          if (elementValueNode instanceof MapValue){
-            MapValue mapValueNode = (MapValue)elementValueNode;
-            Value aFieldValueNode = mapValueNode.value.get(fieldName);
-            if (aFieldValueNode != null && aFieldValueNode.compareValue(fieldValueNode) == 0){
-              foundElementValueNode = elementValueNode;
-              break;
+        // Return the index of the matched term(s)
+        return new IntegerValue(foundIndex);
+      }
+    });
+    methodTable.add(new ValueMethod<ListValue>("get", 1){
+      public Value invoke(ScriptState scriptState, ListValue target, List<Value> arguments) throws RuntimeException {
+        // Fetch element at that index
+        int len = target.value.size();
+        int index = arguments.get(0).getIntValue();
+        if (index < 0)
+          throw new RuntimeException("List index less than zero: " + index);
+        else if (index >= len)
+          throw new RuntimeException("List index of " + index + " is greater than list length of " + len + " (minus one)");
+        else
+          return (Value)target.value.get(index);
+      }
+    });
+    methodTable.add(new ValueMethod<ListValue>("get", 2){
+      public Value invoke(ScriptState scriptState, ListValue target, List<Value> arguments) throws RuntimeException {
+        // if first argument is a string, treat as a lookup of list of maps
+        if (arguments.get(0) instanceof StringValue){
+          // First argument is the map field name
+          String fieldName = arguments.get(0).getStringValue();
+
+          // Second argument is the value for that field to search for
+          Value fieldValueNode = arguments.get(1);
+
+          // Search through the list
+          Value foundElementValueNode = NullValue.one;
+          for (Value elementValueNode: target.value){
+            if (elementValueNode instanceof MapValue){
+              MapValue mapValueNode = (MapValue)elementValueNode;
+              Value aFieldValueNode = mapValueNode.value.get(fieldName);
+              if (aFieldValueNode != null && aFieldValueNode.compareValue(fieldValueNode) == 0){
+                foundElementValueNode = elementValueNode;
+                break;
+              }
             }
           }
-        }
 
-        // Return the element we found (or a null value node)
-        return foundElementValueNode;
-      } else {
-        // Create new list which is a selected range from the list
-        int len = value.size();
+          // Return the element we found (or a null value node)
+          return foundElementValueNode;
+        } else {
+          // Create new list which is a selected range from the list
+          int len = target.value.size();
+          int index = arguments.get(0).getIntValue();
+          if (index < 0)
+            throw new RuntimeException("List index less than zero: " + index);
+          else if (index >= len)
+            throw new RuntimeException("List index of " + index + " is greater than list length of " + len + " (minus one)");
+          int endIndex = arguments.get(1).getIntValue();
+          if (endIndex < 0)
+            throw new RuntimeException("List index less than zero: " + endIndex);
+          else if (endIndex > len)
+            throw new RuntimeException("List index of " + endIndex + " is greater than list length of " + len + " minus 1");
+          List<Value> newValue = new ArrayList<Value>();
+          for (int i = index; i < endIndex; i++)
+            newValue.add(target.value.get(i));
+          return new ListValue(target.type, newValue);
+        }
+      }
+    });
+    methodTable.add(new ValueMethod<ListValue>("add", 2){
+      public Value invoke(ScriptState scriptState, ListValue target, List<Value> arguments) throws RuntimeException {
+        // Replace element at that index
+        int len = target.value.size();
         int index = arguments.get(0).getIntValue();
         if (index < 0)
           throw new RuntimeException("List index less than zero: " + index);
         else if (index >= len)
           throw new RuntimeException("List index of " + index + " is greater than list length of " + len + " (minus one)");
-        int endIndex = arguments.get(1).getIntValue();
-        if (endIndex < 0)
-          throw new RuntimeException("List index less than zero: " + endIndex);
-        else if (endIndex > len)
-          throw new RuntimeException("List index of " + endIndex + " is greater than list length of " + len + " minus 1");
-        List<Value> newValue = new ArrayList<Value>();
-        for (int i = index; i < endIndex; i++)
-          newValue.add(value.get(i));
-        return new ListValue(type, newValue);
-      }
-    } else if ((name.equals("add") || name.equals("put") || name.equals("set")) && numArguments == 2){
-      // Replace element at that index
-      int len = value.size();
-      int index = arguments.get(0).getIntValue();
-      if (index < 0)
-        throw new RuntimeException("List index less than zero: " + index);
-      else if (index >= len)
-        throw new RuntimeException("List index of " + index + " is greater than list length of " + len + " (minus one)");
       
-      Value newValue = arguments.get(1);
-      value.set(index, newValue);
-
-      // Return the new element
-      // TODO: Consider whether this should return the list
-      return newValue;
-    } else if (name.equals("remove") && numArguments == 1){
-      // Get the index of element to remove
-      int index = arguments.get(0).getIntValue();
-
-      // Validate the index
-      int numElements = value.size();
-      if (index < 0)
-        throw new RuntimeException("List index less than zero: " + index);
-      else if (index >= numElements)
-        throw new RuntimeException("List index of " + index + " is greater than list length of " + numElements + " (minus one)");
+        Value newValue = arguments.get(1);
+        target.value.set(index, newValue);
 
-      // Remove the value
-      Value removedValue = value.remove(index);
+        // Return the new element
+        // TODO: Consider whether this should return the list
+        return newValue;
+      }
+    }, "put", "set");
+    methodTable.add(new ValueMethod<ListValue>("remove", 1){
+      public Value invoke(ScriptState scriptState, ListValue target, List<Value> arguments) throws RuntimeException {
+        // Get the index of element to remove
+        int index = arguments.get(0).getIntValue();
 
-      // Return the removed value
-      return removedValue;
+        // Validate the index
+        int numElements = target.value.size();
+        if (index < 0)
+          throw new RuntimeException("List index less than zero: " + index);
+        else if (index >= numElements)
+          throw new RuntimeException("List index of " + index + " is greater than list length of " + numElements + " (minus one)");
 
-    } else if (name.equals("sum") && numArguments == 0){
-      // See if any elements in list
-      int numElements = value.size();
-      if (numElements == 0)
-        // No, then it has no average value
-        return NullValue.one;
+        // Remove the value
+        Value removedValue = target.value.remove(index);
 
-      // Iterate over list to sum values
-      Value sum = new IntegerValue(0);
-      for (Value valueNode: value)
-        sum = AddNode.add(sum, valueNode);
+        // Return the removed value
+        return removedValue;
+      }
+    });
+    methodTable.add(new ValueMethod<ListValue>("sum", 0){
+      public Value invoke(ScriptState scriptState, ListValue target, List<Value> arguments) throws RuntimeException {
+        // See if any elements in list
+        int numElements = target.value.size();
+        if (numElements == 0)
+          // No, then it has no average value
+          return NullValue.one;
+
+        // Iterate over list to sum values
+        Value sum = new IntegerValue(0);
+        for (Value valueNode: target.value)
+          sum = AddNode.add(sum, valueNode);
+
+        // Return the sum
+        return sum;
+      }
+    });
+  }
 
-      // Return the sum
-      return sum;
-    } else
-      // TODO: Add 'get', 'set', and 'put' operations
-      return super.getMethodValue(scriptState, name, arguments);
+  public ValueMethodTable getMethodTable(){
+    return methodTable;
   }
 
   public Value getSubscriptedValue(ScriptState scriptState, List<Value> subscriptValues) throws RuntimeException {
@@ -607,9 +647,13 @@ public class ListValue extends Value {
   public boolean equals(Value valueNode){
     // Other value must also be a list
     if (valueNode instanceof ListValue){
+      // Same list is trivially equal
+      ListValue value2 = (ListValue)valueNode;
+      if (value2 == this || value2.value == value)
+        return true;
+
       // Sizes must agree
       int len1 = value.size();
-      ListValue value2 = (ListValue)valueNode;
       int len2 = value2.value.size();
       if (len1 != len2)
         return false;
@@ -154,67 +154,91 @@ public class MapValue extends Value {
       return super.getNamedValue(scriptState, name);
   }
 
-  public Value getMethodValue(ScriptState scriptState, String name, List<Value> arguments) throws RuntimeException {
-    int numArguments = arguments.size();
-    if ((name.equals("length") || name.equals("size")) && numArguments == 0)
-      return new IntegerValue(value.size());
-    else if ((name.equals("add") || name.equals("put") || name.equals("set")) && numArguments == 2){
-      // Append the new value
-      value.put(arguments.get(0).getStringValue(), arguments.get(1));
-      // TODO: Find out what this Java return value is really all about
-      return TrueValue.one;
-    } else if (name.equals("clear") && numArguments == 0){
-      // Clear the list
-      value.clear();
-      
-      // No return value
-      return NullValue.one;
-      // TODO: Add "contains"
-    } else if (name.equals("concat") && numArguments <= 1){
-      // Combine all elements into a single string specified delimiter (or comma) between them
-      // Combine all elements into a single string with comma as a delimiter
-      // key:value,...
-      String delimiter = ",";
-      if (numArguments == 1)
-        delimiter = arguments.get(0).getStringValue();
-      StringBuilder sb = new StringBuilder();
-      for (String key: value){
-        if (sb.length() > 0)
-          sb.append(delimiter);
-        sb.append(key);
-        sb.append(':');
-        sb.append(value.get(key));
+  static public final ValueMethodTable methodTable = new ValueMethodTable("map", Value.methodTable);
+
+  static {
+    methodTable.add(new ValueMethod<MapValue>("length", 0){
+      public Value invoke(ScriptState scriptState, MapValue target, List<Value> arguments) throws RuntimeException {
+        return new IntegerValue(target.value.size());
+      }
+    }, "size");
+    methodTable.add(new ValueMethod<MapValue>("add", 2){
+      public Value invoke(ScriptState scriptState, MapValue target, List<Value> arguments) throws RuntimeException {
+        // Append the new value
+        target.value.put(arguments.get(0).getStringValue(), arguments.get(1));
+        // TODO: Find out what this Java return value is really all about
+        return TrueValue.one;
       }
+    }, "put", "set");
+    methodTable.add(new ValueMethod<MapValue>("clear", 0){
+      public Value invoke(ScriptState scriptState, MapValue target, List<Value> arguments) throws RuntimeException {
+        // Clear the list
+        target.value.clear();
       
-      // Return the combined string
-      return new StringValue(sb.toString());
-    } else if (name.equals("get") && numArguments == 1){
-      // Fetch element with that key
-      String key = arguments.get(0).getStringValue();
-      if (value.containsKey(key))
-        return (Value)value.get(key);
-      else
+        // No return value
         return NullValue.one;
-    } else if (name.equals("keys") && numArguments == 0){
-      // Build list of key string values
-      List<Value> keysList = new ArrayList<Value>();
-      for (String key: value.keySet())
-        keysList.add(new StringValue(key));
-
-      // Generate and return the new value node for list of the key strings for map
-      return new ListValue(StringTypeNode.one, keysList);
-    } else if (name.equals("remove") && numArguments == 1){
-      // Get the key of element to remove
-      String key = arguments.get(0).getStringValue();
-
-      // Remove the value
-      Value removedValue = value.remove(key);
+        // TODO: Add "contains"
+      }
+    });
+    methodTable.add(new ValueMethod<MapValue>("concat", 0, 1){
+      public Value invoke(ScriptState scriptState, MapValue target, List<Value> arguments) throws RuntimeException {
+        int numArguments = arguments.size();
+        // Combine all elements into a single string specified delimiter (or comma) between them
+        // Combine all elements into a single string with comma as a delimiter
+        // key:value,...
+        String delimiter = ",";
+        if (numArguments == 1)
+          delimiter = arguments.get(0).getStringValue();
+        StringBuilder sb = new StringBuilder();
+        for (String key: target.value){
+          if (sb.length() > 0)
+            sb.append(delimiter);
+          sb.append(key);
+          sb.append(':');
+          sb.append(target.value.get(key));
+        }
       
-      // Return the removed value
-      return removedValue;
+        // Return the combined string
+        return new StringValue(sb.toString());
+      }
+    });
+    methodTable.add(new ValueMethod<MapValue>("get", 1){
+      public Value invoke(ScriptState scriptState, MapValue target, List<Value> arguments) throws RuntimeException {
+        // Fetch element with that key
+        String key = arguments.get(0).getStringValue();
+        if (target.value.containsKey(key))
+          return (Value)target.value.get(key);
+        else
+          return NullValue.one;
+      }
+    });
+    methodTable.add(new ValueMethod<MapValue>("keys", 0){
+      public Value invoke(ScriptState scriptState, MapValue target, List<Value> arguments) throws RuntimeException {
+        // Build list of key string values
+        List<Value> keysList = new ArrayList<Value>();
+        for (String key: target.value.keySet())
+          keysList.add(new StringValue(key));
+
+        // Generate and return the new value node for list of the key strings for map
+        return new ListValue(StringTypeNode.one, keysList);
+      }
+    });
+    methodTable.add(new ValueMethod<MapValue>("remove", 1){
+      public Value invoke(ScriptState scriptState, MapValue target, List<Value> arguments) throws RuntimeException {
+        // Get the key of element to remove
+        String key = arguments.get(0).getStringValue();
+
+        // Remove the value
+        Value removedValue = target.value.remove(key);
+      
+        // Return the removed value
+        return removedValue;
+      }
+    });
+  }
 
-    } else
-      return super.getMethodValue(scriptState, name, arguments);
+  public ValueMethodTable getMethodTable(){
+    return methodTable;
   }
 
   public Value getSubscriptedValue(ScriptState scriptState, List<Value> subscriptValues) throws RuntimeException {
@@ -359,9 +383,13 @@ public class MapValue extends Value {
   public boolean equals(Value valueNode){
     // Other value must also be a map
     if (valueNode instanceof MapValue){
+      // Same map is trivially equal
+      MapValue value2 = (MapValue)valueNode;
+      if (value2 == this || value2.value == value)
+        return true;
+
       // Sizes must agree
       int len1 = value.size();
-      MapValue value2 = (MapValue)valueNode;
       int len2 = value2.value.size();
       if (len1 != len2)
         return false;
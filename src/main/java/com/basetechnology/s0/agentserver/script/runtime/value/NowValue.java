@@ -20,6 +20,7 @@ import java.util.List;
 
 import com.basetechnology.s0.agentserver.RuntimeException;
 import com.basetechnology.s0.agentserver.script.runtime.ScriptState;
+import com.basetechnology.s0.agentserver.util.Clock;
 
 public class NowValue extends Value {
 
@@ -30,11 +31,11 @@ public class NowValue extends Value {
   }
 
   public Value getDefaultValue(){
-    return new IntegerValue(System.currentTimeMillis());
+    return new IntegerValue(Clock.now());
   }
 
   public Object getValue(){
-    return new IntegerValue(System.currentTimeMillis());
+    return new IntegerValue(Clock.now());
   }
 
   public boolean getBooleanValue(){
@@ -42,7 +43,7 @@ public class NowValue extends Value {
   }
 
   public long getLongValue(){
-    return System.currentTimeMillis();
+    return Clock.now();
   }
 
   public double getDoubleValue(){
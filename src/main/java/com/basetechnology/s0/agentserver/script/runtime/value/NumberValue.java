@@ -16,8 +16,25 @@
 
 package com.basetechnology.s0.agentserver.script.runtime.value;
 
+import java.util.List;
+
+import com.basetechnology.s0.agentserver.RuntimeException;
+import com.basetechnology.s0.agentserver.script.runtime.ScriptState;
 
 public class NumberValue extends Value {
+  static public final ValueMethodTable methodTable = new ValueMethodTable("number", Value.methodTable);
+
+  static {
+    methodTable.add(new ValueMethod<NumberValue>("sqrt", 0){
+      public Value invoke(ScriptState scriptState, NumberValue target, List<Value> arguments) throws RuntimeException {
+        return new FloatValue(Math.sqrt(target.getFloatValue()));
+      }
+    });
+  }
+
+  public ValueMethodTable getMethodTable(){
+    return methodTable;
+  }
 
   public String toText(){
     return toString();
@@ -20,15 +20,20 @@ import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import org.apache.log4j.Logger;
 
 import com.basetechnology.s0.agentserver.RuntimeException;
+import com.basetechnology.s0.agentserver.script.intermediate.ExpressionNode;
 import com.basetechnology.s0.agentserver.script.intermediate.StringTypeNode;
 import com.basetechnology.s0.agentserver.script.intermediate.TypeNode;
+import com.basetechnology.s0.agentserver.script.runtime.PatternCache;
 import com.basetechnology.s0.agentserver.script.runtime.ScriptState;
 import com.basetechnology.s0.agentserver.util.JsonUtils;
 import com.basetechnology.s0.agentserver.util.StringUtils;
@@ -41,12 +46,109 @@ public class StringValue extends Value {
 
   public String value;
 
+  // Append buffer whose first bufferLength characters are this string, which is only copied out to
+  // value when the string is used, so that building a string up a piece at a time copies each piece
+  // once rather than the whole string on each step
+  protected StringBuilder buffer;
+  protected int bufferLength;
+  protected String bufferValue;
+
+  // Shorter strings are simply concatenated
+  static public final int MIN_BUFFER_LENGTH = 256;
+
+  // Compiled regex for a literal passed as a pattern to one of the regex methods
+  public volatile Pattern pattern;
+
   static public StringValue empty = new StringValue("");
+
+  // Regex methods and how many of their leading arguments are patterns
+  static public final Map<String, Integer> regexMethodNumPatterns = new HashMap<String, Integer>();
+  static {
+    regexMethodNumPatterns.put("afterRegex", 1);
+    regexMethodNumPatterns.put("beforeRegex", 1);
+    regexMethodNumPatterns.put("betweenRegex", 2);
+    regexMethodNumPatterns.put("endIndexOfRegex", 1);
+    regexMethodNumPatterns.put("indexOfRegex", 1);
+    regexMethodNumPatterns.put("matches", 1);
+  }
+
+  static public void precompilePatterns(String methodName, List<ExpressionNode> arguments){
+    // Compile literal patterns once when the call is parsed rather than on every call
+    Integer numPatterns = regexMethodNumPatterns.get(methodName);
+    if (numPatterns == null || arguments == null)
+      return;
+    for (int i = 0; i < numPatterns && i < arguments.size(); i++){
+      ExpressionNode argument = arguments.get(i);
+      if (argument.getClass() == StringValue.class && ((StringValue)argument).value != null){
+        StringValue literal = (StringValue)argument;
+        try {
+          literal.pattern = PatternCache.shared.getPattern(literal.value);
+        } catch (PatternSyntaxException e){
+          // Leave a bad pattern to be reported when the method is called
+        }
+      }
+    }
+  }
+
+  static public Pattern getPattern(Value patternValue, String regex){
+    // Use the pattern compiled at parse time unless the literal has since been changed in place
+    if (patternValue instanceof StringValue){
+      Pattern pattern = ((StringValue)patternValue).pattern;
+      if (pattern != null && pattern.pattern().equals(regex))
+        return pattern;
+    }
+    return PatternCache.shared.getPattern(regex);
+  }
   
   public StringValue(String value){
     this.value = value;
   }
 
+  protected StringValue(StringBuilder buffer, int bufferLength, String value){
+    this.buffer = buffer;
+    this.bufferLength = bufferLength;
+    this.value = value;
+    this.bufferValue = value;
+  }
+
+  public void flatten(){
+    // Copy the text out of the append buffer the first time it is needed
+    if (value == null && buffer != null){
+      String flatValue;
+      synchronized (buffer){
+        flatValue = buffer.substring(0, bufferLength);
+      }
+      bufferValue = flatValue;
+      value = flatValue;
+    }
+  }
+
+  protected boolean isBufferValid(){
+    // Methods that change a string in place replace value, which detaches it from the buffer
+    return buffer != null && (value == null || value == bufferValue);
+  }
+
+  public StringValue concat(String text){
+    // Append in place if nothing has been appended to the buffer after this string
+    if (isBufferValid()){
+      synchronized (buffer){
+        if (buffer.length() == bufferLength){
+          buffer.append(text);
+          return new StringValue(buffer, buffer.length(), null);
+        }
+      }
+    }
+
+    // Start a new buffer with room to grow once the string is long enough to be worth it
+    String leftValue = getStringValue();
+    if (leftValue == null || text == null || leftValue.length() + text.length() < MIN_BUFFER_LENGTH)
+      return new StringValue(leftValue + text);
+    int length = leftValue.length() + text.length();
+    StringBuilder newBuffer = new StringBuilder(length * 2);
+    newBuffer.append(leftValue).append(text);
+    return new StringValue(newBuffer, length, null);
+  }
+
   public TypeNode getType(){
     return StringTypeNode.one;
   }
@@ -56,30 +158,36 @@ public class StringValue extends Value {
   }
 
   public Object getValue(){
+    flatten();
     return value;
   }
 
   // TODO: Reconsider whether string.boolean is a parse or simply a check for non-null and non-empty
   public boolean getBooleanValue(){
+    flatten();
     return value != null && (value.trim().equalsIgnoreCase("true") || value.trim().equalsIgnoreCase("on"));
   }
 
   public long getLongValue(){
+    flatten();
     // Remove commas and fraction
     // TODO: Should round
     return (long)Double.parseDouble(StringUtils.removeCommas(value));
   }
 
   public double getDoubleValue(){
+    flatten();
     // Remove commas
     return Double.parseDouble(StringUtils.removeCommas(value));
   }
 
   public String getStringValue(){
+    flatten();
     return value;
   }
 
   public Value getNamedValue(ScriptState scriptState, String name) throws RuntimeException {
+    flatten();
     if (name.equals("copy"))
       return new StringValue(value);
     else if (name.equals("html")){
@@ -132,400 +240,479 @@ public class StringValue extends Value {
       return super.getNamedValue(scriptState, name);
   }
 
-  public Value getMethodValue(ScriptState scriptState, String name, List<Value> arguments) throws RuntimeException {
-    int numArguments = arguments.size();
-    if ((name.equals("length") || name.equals("size")) && numArguments == 0){
-      return new IntegerValue(value.length());
-    } else if (name.equals("after") && (numArguments == 1 || numArguments == 2)){
-      // Extract and return text after the first occurrence of a substring
-      String s = arguments.get(0).getStringValue();
+  static public final ValueMethodTable methodTable = new ValueMethodTable("string", Value.methodTable);
+
+  static {
+    methodTable.add(new ValueMethod<StringValue>("length", 0){
+      public Value invoke(ScriptState scriptState, StringValue target, List<Value> arguments) throws RuntimeException {
+        return new IntegerValue(target.value.length());
+      }
+    }, "size");
+    methodTable.add(new ValueMethod<StringValue>("after", 1, 2){
+      public Value invoke(ScriptState scriptState, StringValue target, List<Value> arguments) throws RuntimeException {
+        int numArguments = arguments.size();
+        // Extract and return text after the first occurrence of a substring
+        String s = arguments.get(0).getStringValue();
+      
+        // Optional 'from' index as second argument
+        int len = target.value.length();
+        int fromIndex = numArguments == 1 ? 0 : arguments.get(1).getIntValue();
+        if (fromIndex < 0)
+          throw new RuntimeException("String index for before is less than zero: " + fromIndex);
+        else if (fromIndex > len)
+          throw new RuntimeException("String index of " + fromIndex + " for before is greater than string length of " + len);
+      
+        // Watch out for empty substrings
+        if (s == null)
+          return StringValue.empty;
+        if (len == 0)
+          return StringValue.empty;
       
-      // Optional 'from' index as second argument
-      int len = value.length();
-      int fromIndex = numArguments == 1 ? 0 : arguments.get(1).getIntValue();
-      if (fromIndex < 0)
-        throw new RuntimeException("String index for before is less than zero: " + fromIndex);
-      else if (fromIndex > len)
-        throw new RuntimeException("String index of " + fromIndex + " for before is greater than string length of " + len);
-      
-      // Watch out for empty substrings
-      if (s == null)
-        return StringValue.empty;
-      if (len == 0)
-        return StringValue.empty;
-      
-      // Find the substring
-      int index = value.indexOf(s, fromIndex);
-      if (index < 0)
-        // Substring not found
-        return StringValue.empty;
-      else
-        // Extract and return the text after the substring
-        return new StringValue(value.substring(index + s.length()));
-    } else if (name.equals("afterRegex") && (numArguments == 1 || numArguments == 2)){
-      // Extract and return text after the first occurrence of a regex
-      String pat = arguments.get(0).getStringValue();
+        // Find the substring
+        int index = target.value.indexOf(s, fromIndex);
+        if (index < 0)
+          // Substring not found
+          return StringValue.empty;
+        else
+          // Extract and return the text after the substring
+          return new StringValue(target.value.substring(index + s.length()));
+      }
+    });
+    methodTable.add(new ValueMethod<StringValue>("afterRegex", 1, 2){
+      public Value invoke(ScriptState scriptState, StringValue target, List<Value> arguments) throws RuntimeException {
+        int numArguments = arguments.size();
+        // Extract and return text after the first occurrence of a regex
+        String pat = arguments.get(0).getStringValue();
+      
+        // Optional 'from' index as second argument
+        int len = target.value.length();
+        int fromIndex = numArguments == 1 ? 0 : arguments.get(1).getIntValue();
+        if (fromIndex < 0)
+          throw new RuntimeException("String index for before is less than zero: " + fromIndex);
+        else if (fromIndex > len)
+          throw new RuntimeException("String index of " + fromIndex + " for before is greater than string length of " + len);
+      
+        // Watch out for empty regex patterns
+        if (pat == null)
+          return StringValue.empty;
+        if (len == 0)
+          return StringValue.empty;
       
-      // Optional 'from' index as second argument
-      int len = value.length();
-      int fromIndex = numArguments == 1 ? 0 : arguments.get(1).getIntValue();
-      if (fromIndex < 0)
-        throw new RuntimeException("String index for before is less than zero: " + fromIndex);
-      else if (fromIndex > len)
-        throw new RuntimeException("String index of " + fromIndex + " for before is greater than string length of " + len);
-      
-      // Watch out for empty regex patterns
-      if (pat == null)
-        return StringValue.empty;
-      if (len == 0)
-        return StringValue.empty;
-      
-      // Find the regex substring
-      Pattern p = Pattern.compile(pat);
-      Matcher m = p.matcher(value);
-      if (m.find(fromIndex))
-        // Extract and return the text after the substring
-        return new StringValue(value.substring(m.end()));
-      else
-        // Pattern not found
-        return StringValue.empty;
-    } else if (name.equals("before") && (numArguments == 1 || numArguments == 2)){
-      // Extract and return text  before the first occurrence of a substring
-      String s = arguments.get(0).getStringValue();
+        // Find the regex substring
+        Pattern p = getPattern(arguments.get(0), pat);
+        Matcher m = p.matcher(target.value);
+        if (m.find(fromIndex))
+          // Extract and return the text after the substring
+          return new StringValue(target.value.substring(m.end()));
+        else
+          // Pattern not found
+          return StringValue.empty;
+      }
+    });
+    methodTable.add(new ValueMethod<StringValue>("before", 1, 2){
+      public Value invoke(ScriptState scriptState, StringValue target, List<Value> arguments) throws RuntimeException {
+        int numArguments = arguments.size();
+        // Extract and return text  before the first occurrence of a substring
+        String s = arguments.get(0).getStringValue();
+      
+        // Optional 'from' index as second argument
+        int len = target.value.length();
+        int fromIndex = numArguments == 1 ? 0 : arguments.get(1).getIntValue();
+        if (fromIndex < 0)
+          throw new RuntimeException("String index for before is less than zero: " + fromIndex);
+        else if (fromIndex > len)
+          throw new RuntimeException("String index of " + fromIndex + " for before is greater than string length of " + len);
+      
+        // Watch out for empty substrings
+        if (s == null)
+          return StringValue.empty;
+        if (len == 0)
+          return StringValue.empty;
       
-      // Optional 'from' index as second argument
-      int len = value.length();
-      int fromIndex = numArguments == 1 ? 0 : arguments.get(1).getIntValue();
-      if (fromIndex < 0)
-        throw new RuntimeException("String index for before is less than zero: " + fromIndex);
-      else if (fromIndex > len)
-        throw new RuntimeException("String index of " + fromIndex + " for before is greater than string length of " + len);
-      
-      // Watch out for empty substrings
-      if (s == null)
-        return StringValue.empty;
-      if (len == 0)
-        return StringValue.empty;
-      
-      // Find the substring
-      int index = value.indexOf(s, fromIndex);
-      if (index < 0)
-        // Substring not found
-        return StringValue.empty;
-      else
-        // Extract and return the text before the substring
-        return new StringValue(value.substring(0, index));
-    } else if (name.equals("beforeRegex") && (numArguments == 1 || numArguments == 2)){
-      // Extract and return text before the first occurrence of a regex
-      String pat = arguments.get(0).getStringValue();
+        // Find the substring
+        int index = target.value.indexOf(s, fromIndex);
+        if (index < 0)
+          // Substring not found
+          return StringValue.empty;
+        else
+          // Extract and return the text before the substring
+          return new StringValue(target.value.substring(0, index));
+      }
+    });
+    methodTable.add(new ValueMethod<StringValue>("beforeRegex", 1, 2){
+      public Value invoke(ScriptState scriptState, StringValue target, List<Value> arguments) throws RuntimeException {
+        int numArguments = arguments.size();
+        // Extract and return text before the first occurrence of a regex
+        String pat = arguments.get(0).getStringValue();
+      
+        // Optional 'from' index as second argument
+        int len = target.value.length();
+        int fromIndex = numArguments == 1 ? 0 : arguments.get(1).getIntValue();
+        if (fromIndex < 0)
+          throw new RuntimeException("String index for before is less than zero: " + fromIndex);
+        else if (fromIndex > len)
+          throw new RuntimeException("String index of " + fromIndex + " for before is greater than string length of " + len);
+      
+        // Watch out for empty regex patterns
+        if (pat == null)
+          return StringValue.empty;
+        if (len == 0)
+          return StringValue.empty;
       
-      // Optional 'from' index as second argument
-      int len = value.length();
-      int fromIndex = numArguments == 1 ? 0 : arguments.get(1).getIntValue();
-      if (fromIndex < 0)
-        throw new RuntimeException("String index for before is less than zero: " + fromIndex);
-      else if (fromIndex > len)
-        throw new RuntimeException("String index of " + fromIndex + " for before is greater than string length of " + len);
-      
-      // Watch out for empty regex patterns
-      if (pat == null)
-        return StringValue.empty;
-      if (len == 0)
-        return StringValue.empty;
-      
-      // Find the regex substring
-      Pattern p = Pattern.compile(pat);
-      Matcher m = p.matcher(value);
-      if (m.find(fromIndex))
-        // Extract and return the text before the substring
-        return new StringValue(value.substring(0, m.start()));
-      else
-        // Pattern not found
-        return StringValue.empty;
-    } else if (name.equals("between") && (numArguments == 2 || numArguments == 3)){
-      // Extract and return text between the first occurrence of two substrings
-      String s1 = arguments.get(0).getStringValue();
-      String s2 = arguments.get(1).getStringValue();
-      
-      // Optional 'from' index as third argument
-      int len = value.length();
-      int fromIndex = numArguments == 2 ? 0 : arguments.get(2).getIntValue();
-      if (fromIndex < 0)
-        throw new RuntimeException("String index for between is less than zero: " + fromIndex);
-      else if (fromIndex > len)
-        throw new RuntimeException("String index of " + fromIndex + " for between is greater than string length of " + len);
-      
-      // Watch out for empty substrings
-      if (s1 == null)
-        return StringValue.empty;
-      if (len == 0)
-        return StringValue.empty;
-      
-      // Find the first substring
-      int index = value.indexOf(s1, fromIndex);
-      if (index < 0)
-        // Substring not found
-        return StringValue.empty;
-      
-      // Now find the second substring starting with end of the first
-      int index2 = value.indexOf(s2, index + s1.length());
-      if (index2 < 0)
-        // Second substring not found
-        return StringValue.empty;
-
-      // Extract and return the text between the two substrings
-      return new StringValue(value.substring(index + s1.length(), index2));
-    } else if (name.equals("betweenRegex") && (numArguments == 2 || numArguments == 3)){
-      // Extract and return text between the first occurrence of two regexes
-      String pat1 = arguments.get(0).getStringValue();
-      String pat2 = arguments.get(1).getStringValue();
-      
-      // Optional 'from' index as third argument
-      int len = value.length();
-      int fromIndex = numArguments == 2 ? 0 : arguments.get(2).getIntValue();
-      if (fromIndex < 0)
-        throw new RuntimeException("String index for between is less than zero: " + fromIndex);
-      else if (fromIndex > len)
-        throw new RuntimeException("String index of " + fromIndex + " for between is greater than string length of " + len);
-      
-      // Watch out for empty regex patterns
-      if (pat1 == null)
-        return StringValue.empty;
-      if (pat2 == null)
-        return StringValue.empty;
-      if (len == 0)
-        return StringValue.empty;
-
-      // Find the first pattern
-      Pattern p1 = Pattern.compile(pat1);
-      Matcher m1 = p1.matcher(value);
-      if (m1.find(fromIndex)){
-        // Find the second pattern
-        Pattern p2 = Pattern.compile(pat2);
-        Matcher m2 = p2.matcher(value);
-        if (m2.find(m1.end())){
-          // Extract and return the text between the two regex matches
-          return new StringValue(value.substring(m1.end(), m2.start()));
-        } else
+        // Find the regex substring
+        Pattern p = getPattern(arguments.get(0), pat);
+        Matcher m = p.matcher(target.value);
+        if (m.find(fromIndex))
+          // Extract and return the text before the substring
+          return new StringValue(target.value.substring(0, m.start()));
+        else
           // Pattern not found
           return StringValue.empty;
-      } else
-        // Pattern not found
-        return StringValue.empty;
-    } else if (name.equals("copy") && numArguments == 0){
-      return new StringValue(value);
-    } else if (name.equals("endIndexOfRegex") && (numArguments == 1 || numArguments == 2)){
-      // Returns the index of the end of the first occurrence of a regex, or -1 if not found
-      String pat = arguments.get(0).getStringValue();
+      }
+    });
+    methodTable.add(new ValueMethod<StringValue>("between", 2, 3){
+      public Value invoke(ScriptState scriptState, StringValue target, List<Value> arguments) throws RuntimeException {
+        int numArguments = arguments.size();
+        // Extract and return text between the first occurrence of two substrings
+        String s1 = arguments.get(0).getStringValue();
+        String s2 = arguments.get(1).getStringValue();
+      
+        // Optional 'from' index as third argument
+        int len = target.value.length();
+        int fromIndex = numArguments == 2 ? 0 : arguments.get(2).getIntValue();
+        if (fromIndex < 0)
+          throw new RuntimeException("String index for between is less than zero: " + fromIndex);
+        else if (fromIndex > len)
+          throw new RuntimeException("String index of " + fromIndex + " for between is greater than string length of " + len);
+      
+        // Watch out for empty substrings
+        if (s1 == null)
+          return StringValue.empty;
+        if (len == 0)
+          return StringValue.empty;
       
-      // Optional 'from' index as second argument
-      int len = value.length();
-      int fromIndex = numArguments == 1 ? 0 : arguments.get(1).getIntValue();
-      if (fromIndex < 0)
-        throw new RuntimeException("String index for indexOf is less than zero: " + fromIndex);
-      else if (fromIndex > len)
-        throw new RuntimeException("String index of " + fromIndex + " for indexOf is greater than string length of " + len);
-      
-      // Watch out for empty regex
-      if (pat == null || pat.length() == 0)
-        return new IntegerValue(-1);
-      if (len == 0)
-        return new IntegerValue(-1);
-      
-      
-      // Find the regex substring
-      Pattern p = Pattern.compile(pat);
-      Matcher m = p.matcher(value);
-      if (m.find(fromIndex))
-        // Return index of the end of the first occurrence of the regex pattern
-        return new IntegerValue(m.end());
-      else
-        // Pattern not found
-        return new IntegerValue(-1);
-    } else if (name.equals("equals") && numArguments == 1){
-      String otherString = arguments.get(0).getStringValue();
-      return BooleanValue.create(value.equals(otherString));
-    } else if (name.equals("equalsIgnoreCase") && numArguments == 1){
-      String otherString = arguments.get(0).getStringValue();
-      return BooleanValue.create(value.equalsIgnoreCase(otherString));
-    } else if ((name.equals("get") || name.equals("charAt")) && numArguments == 1){
-      int len = value.length();
-      int index = arguments.get(0).getIntValue();
-      if (index < 0)
-        throw new RuntimeException("String index is less than zero: " + index);
-      else if (index >= len)
-        throw new RuntimeException("String index of " + index + " is greater than string length of " + len + " minus 1");
+        // Find the first substring
+        int index = target.value.indexOf(s1, fromIndex);
+        if (index < 0)
+          // Substring not found
+          return StringValue.empty;
       
-      return new StringValue(value.substring(index, index + 1));
-    } else if (name.equals("get") && numArguments == 2){
-      int len = value.length();
-      int beginIndex = arguments.get(0).getIntValue();
-      if (beginIndex < 0)
-        throw new RuntimeException("String index is less than zero: " + beginIndex);
-      else if (beginIndex >= len)
-        throw new RuntimeException("String index of " + beginIndex + " is greater than string length of " + len + " minus 1");
-      int endIndex = arguments.get(1).getIntValue();
-      if (endIndex < 0)
-        throw new RuntimeException("String index is less than zero: " + endIndex);
-      else if (endIndex > len)
-        throw new RuntimeException("String index of " + endIndex + " is greater than string length of " + len);
+        // Now find the second substring starting with end of the first
+        int index2 = target.value.indexOf(s2, index + s1.length());
+        if (index2 < 0)
+          // Second substring not found
+          return StringValue.empty;
+
+        // Extract and return the text between the two substrings
+        return new StringValue(target.value.substring(index + s1.length(), index2));
+      }
+    });
+    methodTable.add(new ValueMethod<StringValue>("betweenRegex", 2, 3){
+      public Value invoke(ScriptState scriptState, StringValue target, List<Value> arguments) throws RuntimeException {
+        int numArguments = arguments.size();
+        // Extract and return text between the first occurrence of two regexes
+        String pat1 = arguments.get(0).getStringValue();
+        String pat2 = arguments.get(1).getStringValue();
+      
+        // Optional 'from' index as third argument
+        int len = target.value.length();
+        int fromIndex = numArguments == 2 ? 0 : arguments.get(2).getIntValue();
+        if (fromIndex < 0)
+          throw new RuntimeException("String index for between is less than zero: " + fromIndex);
+        else if (fromIndex > len)
+          throw new RuntimeException("String index of " + fromIndex + " for between is greater than string length of " + len);
+      
+        // Watch out for empty regex patterns
+        if (pat1 == null)
+          return StringValue.empty;
+        if (pat2 == null)
+          return StringValue.empty;
+        if (len == 0)
+          return StringValue.empty;
+
+        // Find the first pattern
+        Pattern p1 = getPattern(arguments.get(0), pat1);
+        Matcher m1 = p1.matcher(target.value);
+        if (m1.find(fromIndex)){
+          // Find the second pattern
+          Pattern p2 = getPattern(arguments.get(1), pat2);
+          Matcher m2 = p2.matcher(target.value);
+          if (m2.find(m1.end())){
+            // Extract and return the text between the two regex matches
+            return new StringValue(target.value.substring(m1.end(), m2.start()));
+          } else
+            // Pattern not found
+            return StringValue.empty;
+        } else
+          // Pattern not found
+          return StringValue.empty;
+      }
+    });
+    methodTable.add(new ValueMethod<StringValue>("copy", 0){
+      public Value invoke(ScriptState scriptState, StringValue target, List<Value> arguments) throws RuntimeException {
+        return new StringValue(target.value);
+      }
+    });
+    methodTable.add(new ValueMethod<StringValue>("endIndexOfRegex", 1, 2){
+      public Value invoke(ScriptState scriptState, StringValue target, List<Value> arguments) throws RuntimeException {
+        int numArguments = arguments.size();
+        // Returns the index of the end of the first occurrence of a regex, or -1 if not found
+        String pat = arguments.get(0).getStringValue();
+      
+        // Optional 'from' index as second argument
+        int len = target.value.length();
+        int fromIndex = numArguments == 1 ? 0 : arguments.get(1).getIntValue();
+        if (fromIndex < 0)
+          throw new RuntimeException("String index for indexOf is less than zero: " + fromIndex);
+        else if (fromIndex > len)
+          throw new RuntimeException("String index of " + fromIndex + " for indexOf is greater than string length of " + len);
+      
+        // Watch out for empty regex
+        if (pat == null || pat.length() == 0)
+          return new IntegerValue(-1);
+        if (len == 0)
+          return new IntegerValue(-1);
+      
+      
+        // Find the regex substring
+        Pattern p = getPattern(arguments.get(0), pat);
+        Matcher m = p.matcher(target.value);
+        if (m.find(fromIndex))
+          // Return index of the end of the first occurrence of the regex pattern
+          return new IntegerValue(m.end());
+        else
+          // Pattern not found
+          return new IntegerValue(-1);
+      }
+    });
+    methodTable.add(new ValueMethod<StringValue>("equals", 1){
+      public Value invoke(ScriptState scriptState, StringValue target, List<Value> arguments) throws RuntimeException {
+        String otherString = arguments.get(0).getStringValue();
+        return BooleanValue.create(target.value.equals(otherString));
+      }
+    });
+    methodTable.add(new ValueMethod<StringValue>("equalsIgnoreCase", 1){
+      public Value invoke(ScriptState scriptState, StringValue target, List<Value> arguments) throws RuntimeException {
+        String otherString = arguments.get(0).getStringValue();
+        return BooleanValue.create(target.value.equalsIgnoreCase(otherString));
+      }
+    });
+    methodTable.add(new ValueMethod<StringValue>("get", 1){
+      public Value invoke(ScriptState scriptState, StringValue target, List<Value> arguments) throws RuntimeException {
+        int len = target.value.length();
+        int index = arguments.get(0).getIntValue();
+        if (index < 0)
+          throw new RuntimeException("String index is less than zero: " + index);
+        else if (index >= len)
+          throw new RuntimeException("String index of " + index + " is greater than string length of " + len + " minus 1");
       
-      return new StringValue(value.substring(beginIndex, endIndex));
-    } else if (name.equals("indexOf") && (numArguments == 1 || numArguments == 2)){
-      // Returns the index of the first occurrence of a substring, or -1 if not found
-      String s = arguments.get(0).getStringValue();
+        return new StringValue(target.value.substring(index, index + 1));
+      }
+    }, "charAt");
+    methodTable.add(new ValueMethod<StringValue>("get", 2){
+      public Value invoke(ScriptState scriptState, StringValue target, List<Value> arguments) throws RuntimeException {
+        int len = target.value.length();
+        int beginIndex = arguments.get(0).getIntValue();
+        if (beginIndex < 0)
+          throw new RuntimeException("String index is less than zero: " + beginIndex);
+        else if (beginIndex >= len)
+          throw new RuntimeException("String index of " + beginIndex + " is greater than string length of " + len + " minus 1");
+        int endIndex = arguments.get(1).getIntValue();
+        if (endIndex < 0)
+          throw new RuntimeException("String index is less than zero: " + endIndex);
+        else if (endIndex > len)
+          throw new RuntimeException("String index of " + endIndex + " is greater than string length of " + len);
       
-      // Optional 'from' index as second argument
-      int len = value.length();
-      int fromIndex = numArguments == 1 ? 0 : arguments.get(1).getIntValue();
-      if (fromIndex < 0)
-        throw new RuntimeException("String index for indexOf is less than zero: " + fromIndex);
-      else if (fromIndex > len)
-        throw new RuntimeException("String index of " + fromIndex + " for indexOf is greater than string length of " + len);
-      
-      // Watch out for empty substrings
-      if (s == null)
-        return new IntegerValue(-1);
-      if (len == 0)
-        return new IntegerValue(-1);
-      
-      // Find and return the index of the substring
-      int index = value.indexOf(s, fromIndex);
-      return new IntegerValue(index);
-    } else if (name.equals("indexOfRegex") && (numArguments == 1 || numArguments == 2)){
-      // Returns the index of the first occurrence of a regex, or -1 if not found
-      String pat = arguments.get(0).getStringValue();
-      
-      // Optional 'from' index as second argument
-      int len = value.length();
-      int fromIndex = numArguments == 1 ? 0 : arguments.get(1).getIntValue();
-      if (fromIndex < 0)
-        throw new RuntimeException("String index for indexOf is less than zero: " + fromIndex);
-      else if (fromIndex > len)
-        throw new RuntimeException("String index of " + fromIndex + " for indexOf is greater than string length of " + len);
-      
-      // Watch out for empty regex
-      if (pat == null || pat.length() == 0)
-        return new IntegerValue(-1);
-      if (len == 0)
-        return new IntegerValue(-1);
-      
-      
-      // Find the regex substring
-      Pattern p = Pattern.compile(pat);
-      Matcher m = p.matcher(value);
-      if (m.find(fromIndex))
-        // Return index of first occurrence of the regex pattern
-        return new IntegerValue(m.start());
-      else
-        // Pattern not found
-        return new IntegerValue(-1);
-    } else if (name.equals("insert") && numArguments == 2){
-      int index = arguments.get(0).getIntValue();
-      String s = arguments.get(1).getStringValue();
-      int len = value.length();
-      if (index < 0)
-        throw new RuntimeException("String index for insert is less than zero: " + index);
-      else if (index > len)
-        throw new RuntimeException("String index of " + index + " for insert is greater than string length of " + len);
-      else {
-        // Insert new string into existing string at specified index
-        value = value.substring(0, index) + s + value.substring(index);
+        return new StringValue(target.value.substring(beginIndex, endIndex));
+      }
+    });
+    methodTable.add(new ValueMethod<StringValue>("indexOf", 1, 2){
+      public Value invoke(ScriptState scriptState, StringValue target, List<Value> arguments) throws RuntimeException {
+        int numArguments = arguments.size();
+        // Returns the index of the first occurrence of a substring, or -1 if not found
+        String s = arguments.get(0).getStringValue();
+      
+        // Optional 'from' index as second argument
+        int len = target.value.length();
+        int fromIndex = numArguments == 1 ? 0 : arguments.get(1).getIntValue();
+        if (fromIndex < 0)
+          throw new RuntimeException("String index for indexOf is less than zero: " + fromIndex);
+        else if (fromIndex > len)
+          throw new RuntimeException("String index of " + fromIndex + " for indexOf is greater than string length of " + len);
+      
+        // Watch out for empty substrings
+        if (s == null)
+          return new IntegerValue(-1);
+        if (len == 0)
+          return new IntegerValue(-1);
+      
+        // Find and return the index of the substring
+        int index = target.value.indexOf(s, fromIndex);
+        return new IntegerValue(index);
+      }
+    });
+    methodTable.add(new ValueMethod<StringValue>("indexOfRegex", 1, 2){
+      public Value invoke(ScriptState scriptState, StringValue target, List<Value> arguments) throws RuntimeException {
+        int numArguments = arguments.size();
+        // Returns the index of the first occurrence of a regex, or -1 if not found
+        String pat = arguments.get(0).getStringValue();
+      
+        // Optional 'from' index as second argument
+        int len = target.value.length();
+        int fromIndex = numArguments == 1 ? 0 : arguments.get(1).getIntValue();
+        if (fromIndex < 0)
+          throw new RuntimeException("String index for indexOf is less than zero: " + fromIndex);
+        else if (fromIndex > len)
+          throw new RuntimeException("String index of " + fromIndex + " for indexOf is greater than string length of " + len);
+      
+        // Watch out for empty regex
+        if (pat == null || pat.length() == 0)
+          return new IntegerValue(-1);
+        if (len == 0)
+          return new IntegerValue(-1);
+      
+      
+        // Find the regex substring
+        Pattern p = getPattern(arguments.get(0), pat);
+        Matcher m = p.matcher(target.value);
+        if (m.find(fromIndex))
+          // Return index of first occurrence of the regex pattern
+          return new IntegerValue(m.start());
+        else
+          // Pattern not found
+          return new IntegerValue(-1);
+      }
+    });
+    methodTable.add(new ValueMethod<StringValue>("insert", 2){
+      public Value invoke(ScriptState scriptState, StringValue target, List<Value> arguments) throws RuntimeException {
+        int index = arguments.get(0).getIntValue();
+        String s = arguments.get(1).getStringValue();
+        int len = target.value.length();
+        if (index < 0)
+          throw new RuntimeException("String index for insert is less than zero: " + index);
+        else if (index > len)
+          throw new RuntimeException("String index of " + index + " for insert is greater than string length of " + len);
+        else {
+          // Insert new string into existing string at specified index
+          target.value = target.value.substring(0, index) + s + target.value.substring(index);
         
-        // Return this string object as the result
-        return this;
+          // Return this string object as the result
+          return target;
+        }
       }
-    } else if (name.equals("lower")){
-      // Lower case the existing value
-      value = value.toLowerCase();
-
-      // Return this string object as the result
-      return this;
-    } else if (name.equals("matches") && numArguments == 1){
-      // Returns true if regex pattern argument matches the entire string
-      String pat = arguments.get(0).getStringValue();
-      
-      // Watch out for missing pattern
-      if (pat == null)
-        return FalseValue.one;
+    });
+    methodTable.add(new ValueMethod<StringValue>("lower", 0, -1){
+      public Value invoke(ScriptState scriptState, StringValue target, List<Value> arguments) throws RuntimeException {
+        // Lower case the existing value
+        target.value = target.value.toLowerCase();
 
-      // Try the match and return the result
-      return BooleanValue.create(value.matches(pat));
-    } else if ((name.equals("put") || name.equals("set")) && numArguments == 2){
-      int len = value.length();
-      int index = arguments.get(0).getIntValue();
-      if (index < 0)
-        throw new RuntimeException("String index is less than zero: " + index);
-      else if (index >= len)
-        throw new RuntimeException("String index of " + index + " is greater than string length of " + len + " minus 1");
-      String newSubstring = arguments.get(1).getStringValue();
+        // Return this string object as the result
+        return target;
+      }
+    });
+    methodTable.add(new ValueMethod<StringValue>("matches", 1){
+      public Value invoke(ScriptState scriptState, StringValue target, List<Value> arguments) throws RuntimeException {
+        // Returns true if regex pattern argument matches the entire string
+        String pat = arguments.get(0).getStringValue();
+      
+        // Watch out for missing pattern
+        if (pat == null)
+          return FalseValue.one;
+
+        // Try the match and return the result
+        return BooleanValue.create(getPattern(arguments.get(0), pat).matcher(target.value).matches());
+      }
+    });
+    methodTable.add(new ValueMethod<StringValue>("put", 2){
+      public Value invoke(ScriptState scriptState, StringValue target, List<Value> arguments) throws RuntimeException {
+        int len = target.value.length();
+        int index = arguments.get(0).getIntValue();
+        if (index < 0)
+          throw new RuntimeException("String index is less than zero: " + index);
+        else if (index >= len)
+          throw new RuntimeException("String index of " + index + " is greater than string length of " + len + " minus 1");
+        String newSubstring = arguments.get(1).getStringValue();
 
-      // Update string value in-place
-      value = value.substring(0, index) + newSubstring + value.substring(index + 1); 
+        // Update string value in-place
+        target.value = target.value.substring(0, index) + newSubstring + target.value.substring(index + 1); 
       
-      // Return the current string with its revised value
-      return this;
-    } else if ((name.equals("put") || name.equals("set")) && numArguments == 3){
-      int len = value.length();
-      int beginIndex = arguments.get(0).getIntValue();
-      if (beginIndex < 0)
-        throw new RuntimeException("String index is less than zero: " + beginIndex);
-      else if (beginIndex >= len)
-        throw new RuntimeException("String index of " + beginIndex + " is greater than string length of " + len + " minus 1");
-      int endIndex = arguments.get(1).getIntValue();
-      if (endIndex < 0)
-        throw new RuntimeException("String index is less than zero: " + endIndex);
-      else if (endIndex > len)
-        throw new RuntimeException("String index of " + endIndex + " is greater than string length of " + len);
-      String newSubstring = arguments.get(2).getStringValue();
+        // Return the current string with its revised value
+        return target;
+      }
+    }, "set");
+    methodTable.add(new ValueMethod<StringValue>("put", 3){
+      public Value invoke(ScriptState scriptState, StringValue target, List<Value> arguments) throws RuntimeException {
+        int len = target.value.length();
+        int beginIndex = arguments.get(0).getIntValue();
+        if (beginIndex < 0)
+          throw new RuntimeException("String index is less than zero: " + beginIndex);
+        else if (beginIndex >= len)
+          throw new RuntimeException("String index of " + beginIndex + " is greater than string length of " + len + " minus 1");
+        int endIndex = arguments.get(1).getIntValue();
+        if (endIndex < 0)
+          throw new RuntimeException("String index is less than zero: " + endIndex);
+        else if (endIndex > len)
+          throw new RuntimeException("String index of " + endIndex + " is greater than string length of " + len);
+        String newSubstring = arguments.get(2).getStringValue();
 
-      // Update string value in-place
-      value = value.substring(0, beginIndex) + newSubstring + value.substring(endIndex); 
+        // Update string value in-place
+        target.value = target.value.substring(0, beginIndex) + newSubstring + target.value.substring(endIndex); 
       
-      // Return the current string with its revised value
-      return this;
-    } else if (name.equals("remove") && (numArguments == 1 || numArguments == 2)){
-      int index = arguments.get(0).getIntValue();
-      int endIndex = numArguments == 2 ? arguments.get(1).getIntValue() : index + 1;
-      int len = value.length();
-      if (index < 0)
-        throw new RuntimeException("String index for remove is less than zero: " + index);
-      else if (index >= len)
-        throw new RuntimeException("String index of " + index + " for remove is greater than string length of " + len + " (minus one)");
-      if (endIndex < 0)
-        throw new RuntimeException("String index for remove less than zero: " + endIndex);
-      else if (endIndex > len)
-        throw new RuntimeException("String index of " + endIndex + " for remove is greater than string length of " + len);
-      else {
-        // Remove the specified substring range from existing string
-        value = value.substring(0, index) + value.substring(endIndex);
+        // Return the current string with its revised value
+        return target;
+      }
+    }, "set");
+    methodTable.add(new ValueMethod<StringValue>("remove", 1, 2){
+      public Value invoke(ScriptState scriptState, StringValue target, List<Value> arguments) throws RuntimeException {
+        int numArguments = arguments.size();
+        int index = arguments.get(0).getIntValue();
+        int endIndex = numArguments == 2 ? arguments.get(1).getIntValue() : index + 1;
+        int len = target.value.length();
+        if (index < 0)
+          throw new RuntimeException("String index for remove is less than zero: " + index);
+        else if (index >= len)
+          throw new RuntimeException("String index of " + index + " for remove is greater than string length of " + len + " (minus one)");
+        if (endIndex < 0)
+          throw new RuntimeException("String index for remove less than zero: " + endIndex);
+        else if (endIndex > len)
+          throw new RuntimeException("String index of " + endIndex + " for remove is greater than string length of " + len);
+        else {
+          // Remove the specified substring range from existing string
+          target.value = target.value.substring(0, index) + target.value.substring(endIndex);
 
-        // Return this string object as the result
-        return this;
+          // Return this string object as the result
+          return target;
+        }
       }
-    } else if (name.equals("split") && numArguments == 1){
-      // Splits a string into a list of substrings based on a delimiter regex pattern
-      String pat = arguments.get(0).getStringValue();
+    });
+    methodTable.add(new ValueMethod<StringValue>("split", 1){
+      public Value invoke(ScriptState scriptState, StringValue target, List<Value> arguments) throws RuntimeException {
+        // Splits a string into a list of substrings based on a delimiter regex pattern
+        String pat = arguments.get(0).getStringValue();
+
+        // Treat missing or empty pattern as no split - return a list with the original string as single element
+        if (pat == null || pat.length() == 0){
+          List<Value> stringList = new ArrayList<Value>();
+          stringList.add(new StringValue(target.value));
+          return new ListValue(StringTypeNode.one, stringList);
+        }
 
-      // Treat missing or empty pattern as no split - return a list with the original string as single element
-      if (pat == null || pat.length() == 0){
+        // Do the split
+        String[] strings = target.value.split(pat);
+      
+        // Return the strings as a list - but don't return a single empty string if input was empty
         List<Value> stringList = new ArrayList<Value>();
-        stringList.add(new StringValue(value));
+        if (strings.length > 1 || strings[0].length() > 0)
+          for (String s: strings)
+            stringList.add(new StringValue(s));
         return new ListValue(StringTypeNode.one, stringList);
       }
-
-      // Do the split
-      String[] strings = value.split(pat);
-      
-      // Return the strings as a list - but don't return a single empty string if input was empty
-      List<Value> stringList = new ArrayList<Value>();
-      if (strings.length > 1 || strings[0].length() > 0)
-        for (String s: strings)
-          stringList.add(new StringValue(s));
-      return new ListValue(StringTypeNode.one, stringList);
-    } else if ((name.equals("substr") || name.equals("substring")) && (numArguments == 1 || numArguments == 2)){
+    });
+    methodTable.add(new ValueMethod<StringValue>("substr", 1, 2){
+      public Value invoke(ScriptState scriptState, StringValue target, List<Value> arguments) throws RuntimeException {
+        int numArguments = arguments.size();
         int index = arguments.get(0).getIntValue();
-        int len = value.length();
+        int len = target.value.length();
         int endIndex = numArguments == 1 ? len : arguments.get(1).getIntValue();
         if (index < 0)
           throw new RuntimeException("String index for " + name + " is less than zero: " + index);
@@ -537,22 +724,32 @@ public class StringValue extends Value {
           throw new RuntimeException("String index of " + endIndex + " for " + name + " is greater than string length of " + len);
         else {
           // Extract substring of existing string
-          String subString = value.substring(index, endIndex);
-          
+          String subString = target.value.substring(index, endIndex);
+        
           // Generate a new string value node and return the substring in it
           return new StringValue(subString);
         }
-    } else if (name.equals("upper")){
-      // Upper case the existing value
-      value = value.toUpperCase();
+      }
+    }, "substring");
+    methodTable.add(new ValueMethod<StringValue>("upper", 0, -1){
+      public Value invoke(ScriptState scriptState, StringValue target, List<Value> arguments) throws RuntimeException {
+        // Upper case the existing value
+        target.value = target.value.toUpperCase();
 
-      // Return this string object as the result
-      return this;
-    } else
-      return super.getMethodValue(scriptState, name, arguments);
+        // Return this string object as the result
+        return target;
+      }
+    });
+  }
+
+  public ValueMethodTable getMethodTable(){
+    // Methods all work on value
+    flatten();
+    return methodTable;
   }
 
   public Value getSubscriptedValue(ScriptState scriptState, List<Value> subscriptValues) throws RuntimeException {
+    flatten();
     int numSubscripts = subscriptValues.size();
     if (numSubscripts == 1){
       // Fetch character at that index
@@ -583,6 +780,7 @@ public class StringValue extends Value {
   }
 
   public Value putSubscriptedValue(ScriptState scriptState, List<Value> subscriptValues, Value newValue) throws RuntimeException {
+    flatten();
     int numSubscripts = subscriptValues.size();
     if (numSubscripts == 1){
       // Replace character at that index
@@ -635,16 +833,28 @@ public class StringValue extends Value {
     return leftValue.compareTo(rightValue);
   }
 
+  public Value evaluateExpression(ScriptState scriptState){
+    // Parse trees are cached and shared, and some methods change a string in place, so each
+    // evaluation of a string literal gets its own copy, keeping any pattern compiled for it
+    StringValue copy = (StringValue)copyOnAssignment();
+    copy.pattern = pattern;
+    return copy;
+  }
+
   public Value copyOnAssignment(){
     // For most values, no need to make a copy of actual value on assignment, only strings 
+    // A copy can share the append buffer, since whichever is appended to first leaves the other behind
+    if (isBufferValid())
+      return new StringValue(buffer, bufferLength, value);
     return new StringValue(value);
   }
 
   public Value clone(){
-    return new StringValue(value);
+    return new StringValue(getStringValue());
   }
 
   public boolean equals(Value valueNode){
+    flatten();
     if (valueNode instanceof StringValue){
       String otherValue = valueNode.getStringValue();
       if (value == null)
@@ -658,6 +868,7 @@ public class StringValue extends Value {
   }
   
   public String toJson(){
+    flatten();
     StringBuilder sb = new StringBuilder("\"");
     if (value == null ){
       log.error("value of StingValue is null");
@@ -675,6 +886,7 @@ public class StringValue extends Value {
   }
 
   public String toString(){
+    flatten();
     return value;
   }
 
@@ -683,6 +895,7 @@ public class StringValue extends Value {
   }
 
   public String toXml(){
+    flatten();
     return XmlUtils.escapeEntities(value);
   }
 
@@ -102,16 +102,40 @@ public class Value extends ExpressionNode {
       throw new RuntimeException("No item named '" + name + "' for value of type " + getTypeString());
   }
 
-  public Value getMethodValue(ScriptState scriptState, String name, List<Value> arguments) throws RuntimeException {
-    int numArguments = arguments.size();
-    if (name.equals("type") && numArguments == 0)
-      return new StringValue(getTypeString());
-    else if ((name.equals("toJson") || name.equals("json")) && numArguments == 0)
-      return new StringValue(toJson());
-    else if (name.equals("toString") && numArguments == 0)
-      return new StringValue(toString());
-    else
+  static public final ValueMethodTable methodTable = new ValueMethodTable("object", null);
+
+  static {
+    methodTable.add(new ValueMethod<Value>("type", 0){
+      public Value invoke(ScriptState scriptState, Value target, List<Value> arguments) throws RuntimeException {
+        return new StringValue(target.getTypeString());
+      }
+    });
+    methodTable.add(new ValueMethod<Value>("toJson", 0){
+      public Value invoke(ScriptState scriptState, Value target, List<Value> arguments) throws RuntimeException {
+        return new StringValue(target.toJson());
+      }
+    }, "json");
+    methodTable.add(new ValueMethod<Value>("toString", 0){
+      public Value invoke(ScriptState scriptState, Value target, List<Value> arguments) throws RuntimeException {
+        return new StringValue(target.toString());
+      }
+    });
+  }
+
+  // Methods that scripts can call on values of this type
+  public ValueMethodTable getMethodTable(){
+    return methodTable;
+  }
+
+  public ValueMethod<?> getMethod(String name, int numArguments) throws RuntimeException {
+    ValueMethod<?> method = getMethodTable().get(name, numArguments);
+    if (method == null)
       throw new RuntimeException("No method named '" + name + "' with " + numArguments + " arguments for value of type " + getTypeString());
+    return method;
+  }
+
+  public Value getMethodValue(ScriptState scriptState, String name, List<Value> arguments) throws RuntimeException {
+    return getMethod(name, arguments.size()).call(scriptState, this, arguments);
   }
 
   public Value getSubscriptedValue(ScriptState scriptState, List<Value> subscriptValues) throws RuntimeException {
@@ -0,0 +1,67 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.script.runtime.value;
+
+import java.util.List;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.basetechnology.s0.agentserver.RuntimeException;
+import com.basetechnology.s0.agentserver.script.runtime.ScriptState;
+import com.basetechnology.s0.agentserver.util.JsonListMap;
+
+public abstract class ValueMethod<T extends Value> {
+  public String name;
+  public int minArgs;
+  public int maxArgs;
+
+  public ValueMethod(String name, int numArgs){
+    this(name, numArgs, numArgs);
+  }
+
+  // Use a maxArgs of -1 for methods that take any number of arguments
+  public ValueMethod(String name, int minArgs, int maxArgs){
+    this.name = name;
+    this.minArgs = minArgs;
+    this.maxArgs = maxArgs;
+  }
+
+  public boolean acceptsArguments(int numArgs){
+    return numArgs >= minArgs && (maxArgs < 0 || numArgs <= maxArgs);
+  }
+
+  public abstract Value invoke(ScriptState scriptState, T target, List<Value> arguments) throws RuntimeException;
+
+  // Tables only hold methods for their own value class and its subclasses, so the cast is safe
+  @SuppressWarnings("unchecked")
+  public Value call(ScriptState scriptState, Value target, List<Value> arguments) throws RuntimeException {
+    return invoke(scriptState, (T)target, arguments);
+  }
+
+  public JSONObject toJson(String name) throws JSONException {
+    JSONObject methodJson = new JsonListMap();
+    methodJson.put("name", name);
+    methodJson.put("min_args", minArgs);
+    methodJson.put("max_args", maxArgs);
+    return methodJson;
+  }
+
+  public String toString(){
+    return name + "/" + minArgs + (maxArgs == minArgs ? "" : maxArgs < 0 ? "+" : "-" + maxArgs);
+  }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.script.runtime.value;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.basetechnology.s0.agentserver.util.JsonListMap;
+
+public class ValueMethodTable {
+  public String typeName;
+  public ValueMethodTable parent;
+  protected Map<String, List<ValueMethod<?>>> methods = new LinkedHashMap<String, List<ValueMethod<?>>>();
+
+  public ValueMethodTable(String typeName, ValueMethodTable parent){
+    this.typeName = typeName;
+    this.parent = parent;
+  }
+
+  public synchronized void add(ValueMethod<?> method, String... aliases){
+    put(method.name, method);
+    for (String alias: aliases)
+      put(alias, method);
+  }
+
+  protected void put(String name, ValueMethod<?> method){
+    List<ValueMethod<?>> namedMethods = methods.get(name);
+    if (namedMethods == null){
+      namedMethods = new ArrayList<ValueMethod<?>>();
+      methods.put(name, namedMethods);
+    }
+    namedMethods.add(method);
+  }
+
+  public synchronized ValueMethod<?> get(String name, int numArgs){
+    // Check this type's own methods first, then those it inherits
+    List<ValueMethod<?>> namedMethods = methods.get(name);
+    if (namedMethods != null)
+      for (ValueMethod<?> method: namedMethods)
+        if (method.acceptsArguments(numArgs))
+          return method;
+    return parent == null ? null : parent.get(name, numArgs);
+  }
+
+  public synchronized int size(){
+    int count = 0;
+    for (List<ValueMethod<?>> namedMethods: methods.values())
+      count += namedMethods.size();
+    return count;
+  }
+
+  public synchronized JSONObject toJson() throws JSONException {
+    JSONObject tableJson = new JsonListMap();
+    tableJson.put("type", typeName);
+    if (parent != null)
+      tableJson.put("inherits", parent.typeName);
+    JSONArray methodsJson = new JSONArray();
+    for (String name: methods.keySet())
+      for (ValueMethod<?> method: methods.get(name))
+        methodsJson.put(method.toJson(name));
+    tableJson.put("methods", methodsJson);
+    return tableJson;
+  }
+
+  // Method tables of all the script value types
+  static public List<ValueMethodTable> getTables(){
+    List<ValueMethodTable> tables = new ArrayList<ValueMethodTable>();
+    tables.add(Value.methodTable);
+    tables.add(NumberValue.methodTable);
+    tables.add(StringValue.methodTable);
+    tables.add(ListValue.methodTable);
+    tables.add(MapValue.methodTable);
+    tables.add(WebValue.methodTable);
+    return tables;
+  }
+
+  static public JSONObject getTablesJson() throws JSONException {
+    JSONArray tablesJson = new JSONArray();
+    for (ValueMethodTable table: getTables())
+      tablesJson.put(table.toJson());
+    JSONObject methodsJson = new JsonListMap();
+    methodsJson.put("types", tablesJson);
+    return methodsJson;
+  }
+}
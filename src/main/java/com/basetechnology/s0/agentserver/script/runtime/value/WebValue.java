@@ -81,99 +81,127 @@ public class WebValue extends Value {
       return super.getNamedValue(scriptState, name);
   }
 
-  public Value getMethodValue(ScriptState scriptState, String name, List<Value> arguments) throws RuntimeException {
-    int numArguments = arguments.size();
-    if ((name.equals("length") || name.equals("size")) && numArguments == 0)
-      // TODO
-      return new IntegerValue(0);
-    else if ((name.equals("add") || name.equals("put") || name.equals("set")) && numArguments == 2){
-      // TODO
-      // TODO: Find out what this Java return value is really all about
-      return TrueValue.one;
-    } else if (name.equals("clear") && numArguments == 0){
-      // TODO
+  static public final ValueMethodTable methodTable = new ValueMethodTable("web", Value.methodTable);
+
+  static {
+    methodTable.add(new ValueMethod<WebValue>("length", 0){
+      public Value invoke(ScriptState scriptState, WebValue target, List<Value> arguments) throws RuntimeException {
+        // TODO
+        return new IntegerValue(0);
+      }
+    }, "size");
+    methodTable.add(new ValueMethod<WebValue>("add", 2){
+      public Value invoke(ScriptState scriptState, WebValue target, List<Value> arguments) throws RuntimeException {
+        // TODO
+        // TODO: Find out what this Java return value is really all about
+        return TrueValue.one;
+      }
+    }, "put", "set");
+    methodTable.add(new ValueMethod<WebValue>("clear", 0){
+      public Value invoke(ScriptState scriptState, WebValue target, List<Value> arguments) throws RuntimeException {
+        // TODO
       
-      // No return value
-      return NullValue.one;
-      // TODO: Add "contains"
-    } else if (name.equals("get") && (numArguments >= 1 || numArguments <= 4)){
-      // Get the URL of the web page to fetch
-      String url = arguments.get(0).getStringValue();
+        // No return value
+        return NullValue.one;
+        // TODO: Add "contains"
+      }
+    });
+    methodTable.add(new ValueMethod<WebValue>("get", 1, 4){
+      public Value invoke(ScriptState scriptState, WebValue target, List<Value> arguments) throws RuntimeException {
+        int numArguments = arguments.size();
+        // Get the URL of the web page to fetch
+        String url = arguments.get(0).getStringValue();
       
-      // Get the optional useCache flag
-      boolean useCache = true;
-      if (numArguments >= 2)
-        useCache = arguments.get(1).getBooleanValue();
+        // Get the optional useCache flag
+        boolean useCache = true;
+        if (numArguments >= 2)
+          useCache = arguments.get(1).getBooleanValue();
     
-      // Get the optional page refresh interval
-      long refreshInterval = -1;
-      if (numArguments >= 3)
-        refreshInterval = arguments.get(2).getLongValue();
+        // Get the optional page refresh interval
+        long refreshInterval = -1;
+        if (numArguments >= 3)
+          refreshInterval = arguments.get(2).getLongValue();
       
-      // Get the optional wait flag
-      boolean wait = this.wait;
-      if (numArguments >= 4)
-        wait = arguments.get(3).getBooleanValue();
+        // Get the optional wait flag
+        boolean wait = target.wait;
+        if (numArguments >= 4)
+          wait = arguments.get(3).getBooleanValue();
         
-      // Fetch the specified web page
-      String s = fetchWebPage(scriptState, url, useCache, refreshInterval, wait);
-      if (s == null || s.length() == 0)
-        return NullValue.one;
-      else
-        return new StringValue(s);
-    } else if (name.equals("post") && (numArguments >= 1 || numArguments <= 4)){
-      // Get the URL of the web page to fetch
-      String url = arguments.get(0).getStringValue();
+        // Fetch the specified web page
+        String s = target.fetchWebPage(scriptState, url, useCache, refreshInterval, wait);
+        if (s == null || s.length() == 0)
+          return NullValue.one;
+        else
+          return new StringValue(s);
+      }
+    });
+    methodTable.add(new ValueMethod<WebValue>("post", 1, 4){
+      public Value invoke(ScriptState scriptState, WebValue target, List<Value> arguments) throws RuntimeException {
+        int numArguments = arguments.size();
+        // Get the URL of the web page to fetch
+        String url = arguments.get(0).getStringValue();
 
-      // Get the optional data to post
-      String data = null;
-      if (numArguments >= 2)
-        data = arguments.get(1).getStringValue();
+        // Get the optional data to post
+        String data = null;
+        if (numArguments >= 2)
+          data = arguments.get(1).getStringValue();
 
-      // Get the optional page refresh interval
-      long refreshInterval = -1;
-      if (numArguments >= 3)
-        refreshInterval = arguments.get(2).getLongValue();
+        // Get the optional page refresh interval
+        long refreshInterval = -1;
+        if (numArguments >= 3)
+          refreshInterval = arguments.get(2).getLongValue();
       
-      // Get the optional wait flag
-      boolean wait = this.wait;
-      if (numArguments == 4)
-        wait = arguments.get(3).getBooleanValue();
+        // Get the optional wait flag
+        boolean wait = target.wait;
+        if (numArguments == 4)
+          wait = arguments.get(3).getBooleanValue();
         
-      // Post to the specified URL
-      String s = postUrl(scriptState, url, data, refreshInterval, wait);
-      if (s == null || s.length() == 0)
-        return NullValue.one;
-      else
-        return new StringValue(s);
-    } else if (name.equals("isAccessible") && numArguments == 1){
-      // Get the URL of the web page to fetch
-      String url = arguments.get(0).getStringValue();
+        // Post to the specified URL
+        String s = target.postUrl(scriptState, url, data, refreshInterval, wait);
+        if (s == null || s.length() == 0)
+          return NullValue.one;
+        else
+          return new StringValue(s);
+      }
+    });
+    methodTable.add(new ValueMethod<WebValue>("isAccessible", 1){
+      public Value invoke(ScriptState scriptState, WebValue target, List<Value> arguments) throws RuntimeException {
+        // Get the URL of the web page to fetch
+        String url = arguments.get(0).getStringValue();
 
-      // Determine if the specified web page is accessible
-      boolean urlIsAccessible = isAccessible(scriptState, url);
-      return BooleanValue.create(urlIsAccessible);
-    } else if (name.equals("keys") && numArguments == 0){
-      // TODO
-      // Build list of key string values
-      List<Value> keysList = new ArrayList<Value>();
+        // Determine if the specified web page is accessible
+        boolean urlIsAccessible = target.isAccessible(scriptState, url);
+        return BooleanValue.create(urlIsAccessible);
+      }
+    });
+    methodTable.add(new ValueMethod<WebValue>("keys", 0){
+      public Value invoke(ScriptState scriptState, WebValue target, List<Value> arguments) throws RuntimeException {
+        // TODO
+        // Build list of key string values
+        List<Value> keysList = new ArrayList<Value>();
       
-      // Generate and return the new value node for list of the key strings for map
-      return new ListValue(StringTypeNode.one, keysList);
-    } else if (name.equals("remove") && numArguments == 1){
-      // TODO
-      // Get the key of element to remove
-      String key = arguments.get(0).getStringValue();
+        // Generate and return the new value node for list of the key strings for map
+        return new ListValue(StringTypeNode.one, keysList);
+      }
+    });
+    methodTable.add(new ValueMethod<WebValue>("remove", 1){
+      public Value invoke(ScriptState scriptState, WebValue target, List<Value> arguments) throws RuntimeException {
+        // TODO
+        // Get the key of element to remove
+        String key = arguments.get(0).getStringValue();
 
-      // Remove the value
-      // TODO
-      Value removedValue = NullValue.one;
+        // Remove the value
+        // TODO
+        Value removedValue = NullValue.one;
       
-      // Return the removed value
-      return removedValue;
+        // Return the removed value
+        return removedValue;
+      }
+    });
+  }
 
-    } else
-      return super.getMethodValue(scriptState, name, arguments);
+  public ValueMethodTable getMethodTable(){
+    return methodTable;
   }
 
   public Value getSubscriptedValue(ScriptState scriptState, List<Value> subscriptValues) throws RuntimeException {
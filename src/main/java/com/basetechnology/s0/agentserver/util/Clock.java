@@ -0,0 +1,66 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.util;
+
+import com.basetechnology.s0.agentserver.AgentServerException;
+
+public abstract class Clock {
+  public static final String SYSTEM_CLOCK_TYPE = "system";
+  public static final String SIMULATED_CLOCK_TYPE = "simulated";
+  public static final String DEFAULT_CLOCK_TYPE = SYSTEM_CLOCK_TYPE;
+
+  // Clock used for all timing decisions, which is the system clock unless a simulation is being run
+  static volatile Clock current = SystemClock.one;
+
+  static public Clock get(){
+    return current;
+  }
+
+  static public void set(Clock clock){
+    current = clock;
+  }
+
+  static public long now(){
+    return current.currentTimeMillis();
+  }
+
+  static public void sleep(long millis) throws InterruptedException {
+    current.sleepMillis(millis);
+  }
+
+  static public Clock create(String type, long startTime) throws AgentServerException {
+    if (type == null || type.trim().length() == 0)
+      type = DEFAULT_CLOCK_TYPE;
+    type = type.trim().toLowerCase();
+    if (type.equals(SYSTEM_CLOCK_TYPE))
+      return SystemClock.one;
+    else if (type.equals(SIMULATED_CLOCK_TYPE))
+      return new SimulatedClock(startTime);
+    else
+      throw new AgentServerException("Unknown clock type: '" + type + "'");
+  }
+
+  abstract public String getType();
+
+  abstract public long currentTimeMillis();
+
+  abstract public void sleepMillis(long millis) throws InterruptedException;
+
+  public boolean isSimulated(){
+    return false;
+  }
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.util;
+
+import java.util.AbstractList;
+
+public class RingBuffer<T> extends AbstractList<T> {
+  // Fixed array of slots, with the oldest element at 'first'
+  // Note: Once full, each add overwrites the oldest element rather than shifting the rest down
+  protected Object[] elements;
+  protected int first;
+  protected int count;
+
+  public RingBuffer(int capacity){
+    if (capacity < 1)
+      throw new IllegalArgumentException("Ring buffer capacity must be at least 1: " + capacity);
+    this.elements = new Object[capacity];
+    this.first = 0;
+    this.count = 0;
+  }
+
+  public int capacity(){
+    return elements.length;
+  }
+
+  public boolean add(T element){
+    if (count < elements.length){
+      elements[(first + count) % elements.length] = element;
+      count++;
+    } else {
+      elements[first] = element;
+      first = (first + 1) % elements.length;
+    }
+    modCount++;
+    return true;
+  }
+
+  @SuppressWarnings("unchecked")
+  public T get(int index){
+    if (index < 0 || index >= count)
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+    return (T)elements[(first + index) % elements.length];
+  }
+
+  public int size(){
+    return count;
+  }
+
+  public void clear(){
+    for (int i = 0; i < elements.length; i++)
+      elements[i] = null;
+    first = 0;
+    count = 0;
+    modCount++;
+  }
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SimulatedClock extends Clock {
+  // Simulated time only moves forward, when advanced explicitly or by a sleep
+  AtomicLong time;
+
+  public SimulatedClock(long startTime){
+    this.time = new AtomicLong(startTime);
+  }
+
+  public String getType(){
+    return SIMULATED_CLOCK_TYPE;
+  }
+
+  public long currentTimeMillis(){
+    return time.get();
+  }
+
+  public void sleepMillis(long millis){
+    // Sleeping takes no real time, it just moves the simulation along
+    advance(millis);
+  }
+
+  public boolean isSimulated(){
+    return true;
+  }
+
+  public long advance(long millis){
+    return millis > 0 ? time.addAndGet(millis) : time.get();
+  }
+
+  public long advanceTo(long newTime){
+    // Never move backwards, even if another thread advanced the clock further in the meantime
+    while (true){
+      long oldTime = time.get();
+      if (newTime <= oldTime)
+        return oldTime;
+      if (time.compareAndSet(oldTime, newTime))
+        return newTime;
+    }
+  }
+}
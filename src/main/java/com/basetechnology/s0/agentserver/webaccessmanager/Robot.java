@@ -27,6 +27,7 @@ import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
 
+import com.basetechnology.s0.agentserver.util.Clock;
 import com.basetechnology.s0.agentserver.util.DateUtils;
 import com.basetechnology.s0.agentserver.util.ListMap;
 
@@ -185,7 +186,8 @@ public class Robot {
   }
   
   public boolean isAccessAllowedNow(){
-    // Perform throttling and optional wait, if necessary
+    // Perform throttling and optional wait, if necessary - in real time even with a simulated
+    // clock, since this protects real web sites
     long now = System.currentTimeMillis();
     long delta = now - lastAccess;
     long sleepIntervalCrawl = crawlDelayMs - delta;
@@ -363,7 +365,7 @@ public class Robot {
       webSite.webAccessManager.lastAccess = now;
 
       // Create a WebPage for this page
-      WebPage webPage = new WebPage(webSite, url, refreshInterval, System.currentTimeMillis(),
+      WebPage webPage = new WebPage(webSite, url, refreshInterval, Clock.now(),
           response, statusCode, reasonPhrase, text);
 
       // Get the expiration, if any, from the page (header)
@@ -543,7 +545,7 @@ public class Robot {
         log.info("HTTP response entity for status code " + statusCode + ": " + text);
 
       // Create a WebPage for this page
-      WebPage webPage = new WebPage(webSite, url, refreshInterval, System.currentTimeMillis(),
+      WebPage webPage = new WebPage(webSite, url, refreshInterval, Clock.now(),
           response, statusCode, reasonPhrase, text);
 
       // Record time of most recent access
@@ -27,6 +27,7 @@ import org.json.JSONObject;
 import com.basetechnology.s0.agentserver.AgentServer;
 import com.basetechnology.s0.agentserver.AgentServerException;
 import com.basetechnology.s0.agentserver.User;
+import com.basetechnology.s0.agentserver.util.Clock;
 import com.basetechnology.s0.agentserver.util.ListMap;
 
 public class WebAccessManager {
@@ -96,7 +97,7 @@ public class WebAccessManager {
 
         if (refreshInterval < 0)
           refreshInterval = webPage.refreshInterval;
-        long now = System.currentTimeMillis();
+        long now = Clock.now();
         long delta = now - webPage.time;
         if (delta < refreshInterval || ! webSite.getRobot().isAccessAllowedNow()){
           // Fresh enough to keep using the page from the cache, or robots.txt or admin say no
@@ -16,12 +16,14 @@
 
 package com.basetechnology.s0.agentserver.webaccessmanager;
 
+import com.basetechnology.s0.agentserver.util.Clock;
+
 public class WebPageCache {
   public WebPage webPage;
   public long time;
   
   public WebPageCache(WebPage webPage){
-    this(webPage, System.currentTimeMillis());
+    this(webPage, Clock.now());
   }
   
   public WebPageCache(WebPage webPage, long time){
@@ -17,9 +17,13 @@
 package com.basetechnology.s0.agentserver;
 
 import java.io.File;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 import org.apache.log4j.Logger;
+import org.json.JSONObject;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -42,8 +46,11 @@ import com.basetechnology.s0.agentserver.OutputRecord;
 import com.basetechnology.s0.agentserver.User;
 import com.basetechnology.s0.agentserver.activities.AgentActivity;
 import com.basetechnology.s0.agentserver.activities.AgentActivityRunScript;
+import com.basetechnology.s0.agentserver.activities.AgentActivityTimer;
 import com.basetechnology.s0.agentserver.appserver.AgentAppServer;
 import com.basetechnology.s0.agentserver.config.AgentServerProperties;
+import com.basetechnology.s0.agentserver.scheduler.AgentActivityJournal;
+import com.basetechnology.s0.agentserver.scheduler.AgentPropagationWave;
 import com.basetechnology.s0.agentserver.scheduler.AgentScheduler;
 import com.basetechnology.s0.agentserver.script.intermediate.SymbolValues;
 import com.basetechnology.s0.agentserver.script.runtime.value.BooleanValue;
@@ -51,6 +58,8 @@ import com.basetechnology.s0.agentserver.script.runtime.value.FloatValue;
 import com.basetechnology.s0.agentserver.script.runtime.value.IntegerValue;
 import com.basetechnology.s0.agentserver.script.runtime.value.StringValue;
 import com.basetechnology.s0.agentserver.script.runtime.value.Value;
+import com.basetechnology.s0.agentserver.util.Clock;
+import com.basetechnology.s0.agentserver.util.SystemClock;
 import static org.junit.Assert.*;
 
 @Ignore
@@ -118,6 +127,9 @@ public class AgentSchedulerTest {
     assertTrue("Persistent store not deleted: " + AgentServerProperties.DEFAULT_PERSISTENT_STORE_PATH, ! pf.exists());
     agentAppServer = null;
     agentServer = null;
+
+    // Don't let a simulated clock leak into other tests
+    Clock.set(SystemClock.one);
   }
 
   @Test
@@ -153,7 +165,7 @@ public class AgentSchedulerTest {
     Thread.sleep(250);
 
     // Make sure no activities were run
-    assertEquals("Number of uncompleted activities", 2, agentScheduler.queue.size());
+    assertEquals("Number of uncompleted activities", 2, agentScheduler.getNumScheduledActivities());
     assertEquals("Number of completed activities", 0, agentScheduler.completedActivities.size());
 
     // Un-suspend scheduler to let activities run
@@ -161,7 +173,7 @@ public class AgentSchedulerTest {
 
     // Make sure dummy activity completed
     agentScheduler.waitUntilDone(2 * 1000);
-    assertEquals("Number of uncompleted activities", 0, agentScheduler.queue.size());
+    assertEquals("Number of uncompleted activities", 0, agentScheduler.getNumScheduledActivities());
     assertEquals("Number of completed activities", 2, agentScheduler.completedActivities.size());
     
     // Done. Tell the scheduler to stop
@@ -184,7 +196,7 @@ public class AgentSchedulerTest {
     AgentScheduler agentScheduler = agentServer.agentScheduler;
 
     // Make sure no activities were run
-    assertEquals("Number of uncompleted activities", 0, agentScheduler.queue.size());
+    assertEquals("Number of uncompleted activities", 0, agentScheduler.getNumScheduledActivities());
     assertEquals("Number of completed activities", 0, agentScheduler.completedActivities.size());
 
     // Make sure no scripts were run
@@ -211,7 +223,7 @@ public class AgentSchedulerTest {
     agentScheduler.waitUntilDone(4 * 1000);
 
     // Make sure the two init script activities ran
-    assertEquals("Number of uncompleted activities", 0, agentScheduler.queue.size());
+    assertEquals("Number of uncompleted activities", 0, agentScheduler.getNumScheduledActivities());
     assertEquals("Number of completed activities", 2, agentScheduler.completedActivities.size());
 
     // Make sure both 'init' scripts were run
@@ -221,11 +233,11 @@ public class AgentSchedulerTest {
     assertEquals("Number of script start times recorded", 1, dummyAgentInit1Instance.scriptStartTime.size());
     assertTrue("Script start time is missing", dummyAgentInit1Instance.scriptStartTime.containsKey("init"));
     long deltaTime = (Long)dummyAgentInit1Instance.scriptStartTime.get("init") - baseTime;
-    assertTrue("Script start time is not near current time", deltaTime > 25 && deltaTime < nearDeltaTime);
+    assertTrue("Script start time is not near current time", deltaTime >= 25 && deltaTime < nearDeltaTime);
     assertEquals("Number of script end times recorded", 1, dummyAgentInit1Instance.scriptEndTime.size());
     assertTrue("Script end time is missing", dummyAgentInit1Instance.scriptEndTime.containsKey("init"));
     deltaTime = (Long)dummyAgentInit1Instance.scriptEndTime.get("init") - baseTime;
-    assertTrue("Script end time is not near current time", deltaTime > 25 && deltaTime < nearDeltaTime);
+    assertTrue("Script end time is not near current time", deltaTime >= 25 && deltaTime < nearDeltaTime);
     assertEquals("Number of script return values", 1, dummyAgentInit1Instance.scriptReturnValue.size());
     assertTrue("Script return value is missing", dummyAgentInit1Instance.scriptReturnValue.containsKey("init"));
     Value returnValueNode = dummyAgentInit1Instance.scriptReturnValue.get("init");
@@ -237,11 +249,11 @@ public class AgentSchedulerTest {
     assertEquals("Number of script start times recorded", 1, dummyAgentInit2Instance.scriptStartTime.size());
     assertTrue("Script start time is missing", dummyAgentInit2Instance.scriptStartTime.containsKey("init"));
     deltaTime = (Long)dummyAgentInit2Instance.scriptStartTime.get("init") - baseTime;
-    assertTrue("Script start time is not near current time", deltaTime > 25 && deltaTime < nearDeltaTime);
+    assertTrue("Script start time is not near current time", deltaTime >= 25 && deltaTime < nearDeltaTime);
     assertEquals("Number of script end times recorded", 1, dummyAgentInit2Instance.scriptEndTime.size());
     assertTrue("Script end time is missing", dummyAgentInit2Instance.scriptEndTime.containsKey("init"));
     deltaTime = (Long)dummyAgentInit2Instance.scriptEndTime.get("init") - baseTime;
-    assertTrue("Script end time is not near current time", deltaTime > 25 && deltaTime < nearDeltaTime);
+    assertTrue("Script end time is not near current time", deltaTime >= 25 && deltaTime < nearDeltaTime);
     assertEquals("Number of script return values", 1, dummyAgentInit2Instance.scriptReturnValue.size());
     assertTrue("Script return value is missing", dummyAgentInit2Instance.scriptReturnValue.containsKey("init"));
     returnValueNode = dummyAgentInit2Instance.scriptReturnValue.get("init");
@@ -262,7 +274,7 @@ public class AgentSchedulerTest {
     Thread.sleep(250);
 
     // Make sure no activities were run since scheduler is supposed to be suspended
-    assertEquals("Number of uncompleted activities", 2, agentScheduler.queue.size());
+    assertEquals("Number of uncompleted activities", 2, agentScheduler.getNumScheduledActivities());
     assertEquals("Number of completed activities", 2, agentScheduler.completedActivities.size());
 
     // Record current time
@@ -276,7 +288,7 @@ public class AgentSchedulerTest {
 
     // Make sure dummy activity completed
     agentScheduler.waitUntilDone(2 * 1000);
-    assertEquals("Number of uncompleted activities", 0, agentScheduler.queue.size());
+    assertEquals("Number of uncompleted activities", 0, agentScheduler.getNumScheduledActivities());
     assertEquals("Number of completed activities", 4, agentScheduler.completedActivities.size());
 
     // Make sure all 'init' scripts, two 'init' plus two dummy, were run
@@ -288,17 +300,17 @@ public class AgentSchedulerTest {
     assertEquals("Number of script start times recorded", 2, dummyAgentInit1Instance.scriptStartTime.size());
     assertTrue("Script start time is missing", dummyAgentInit1Instance.scriptStartTime.containsKey("init"));
     deltaTime = (Long)dummyAgentInit1Instance.scriptStartTime.get("init") - baseTime;
-    assertTrue("Script start time is not near current time - deltaTime: " + deltaTime, deltaTime > 25 && deltaTime < nearDeltaTime);
+    assertTrue("Script start time is not near current time - deltaTime: " + deltaTime, deltaTime >= 25 && deltaTime < nearDeltaTime);
     assertTrue("Script start time is missing", dummyAgentInit1Instance.scriptStartTime.containsKey("script1"));
     deltaTime = (Long)dummyAgentInit1Instance.scriptStartTime.get("script1") - baseTime2;
     assertTrue("Script start time is not near current time - deltaTime: " + deltaTime, deltaTime > 10 && deltaTime < nearDeltaTime);
     assertEquals("Number of script end times recorded", 2, dummyAgentInit1Instance.scriptEndTime.size());
     assertTrue("Script end time is missing", dummyAgentInit1Instance.scriptEndTime.containsKey("init"));
     deltaTime = (Long)dummyAgentInit1Instance.scriptEndTime.get("init") - baseTime;
-    assertTrue("Script end time is not near current time - deltaTime: " + deltaTime, deltaTime > 25 && deltaTime < nearDeltaTime);
+    assertTrue("Script end time is not near current time - deltaTime: " + deltaTime, deltaTime >= 25 && deltaTime < nearDeltaTime);
     assertTrue("Script end time is missing", dummyAgentInit1Instance.scriptEndTime.containsKey("script1"));
     deltaTime = (Long)dummyAgentInit1Instance.scriptEndTime.get("script1") - baseTime2;
-    assertTrue("Script end time is not near current time - deltaTime: " + deltaTime, deltaTime > 25 && deltaTime < nearDeltaTime);
+    assertTrue("Script end time is not near current time - deltaTime: " + deltaTime, deltaTime >= 25 && deltaTime < nearDeltaTime);
     assertEquals("Number of script return values", 2, dummyAgentInit1Instance.scriptReturnValue.size());
     assertTrue("Script return value is missing", dummyAgentInit1Instance.scriptReturnValue.containsKey("init"));
     returnValueNode = dummyAgentInit1Instance.scriptReturnValue.get("init");
@@ -316,17 +328,17 @@ public class AgentSchedulerTest {
     assertEquals("Number of script start times recorded", 2, dummyAgentInit2Instance.scriptStartTime.size());
     assertTrue("Script start time is missing", dummyAgentInit2Instance.scriptStartTime.containsKey("init"));
     deltaTime = (Long)dummyAgentInit2Instance.scriptStartTime.get("init") - baseTime;
-    assertTrue("Script start time is not near current time - deltaTime: " + deltaTime, deltaTime > 25 && deltaTime < nearDeltaTime);
+    assertTrue("Script start time is not near current time - deltaTime: " + deltaTime, deltaTime >= 25 && deltaTime < nearDeltaTime);
     assertTrue("Script start time is missing", dummyAgentInit2Instance.scriptStartTime.containsKey("script2"));
     deltaTime = (Long)dummyAgentInit2Instance.scriptStartTime.get("script2") - baseTime2;
-    assertTrue("Script start time is not near current time - deltaTime: " + deltaTime, deltaTime > 25 && deltaTime < nearDeltaTime);
+    assertTrue("Script start time is not near current time - deltaTime: " + deltaTime, deltaTime >= 25 && deltaTime < nearDeltaTime);
     assertEquals("Number of script end times recorded", 2, dummyAgentInit2Instance.scriptEndTime.size());
     assertTrue("Script end time is missing", dummyAgentInit2Instance.scriptEndTime.containsKey("init"));
     deltaTime = (Long)dummyAgentInit2Instance.scriptEndTime.get("init") - baseTime;
-    assertTrue("Script end time is not near current time - deltaTime: " + deltaTime, deltaTime > 25 && deltaTime < nearDeltaTime);
+    assertTrue("Script end time is not near current time - deltaTime: " + deltaTime, deltaTime >= 25 && deltaTime < nearDeltaTime);
     assertTrue("Script end time is missing", dummyAgentInit2Instance.scriptEndTime.containsKey("script2"));
     deltaTime = (Long)dummyAgentInit2Instance.scriptEndTime.get("script2") - baseTime2;
-    assertTrue("Script end time is not near current time - deltaTime: " + deltaTime, deltaTime > 25 && deltaTime < nearDeltaTime);
+    assertTrue("Script end time is not near current time - deltaTime: " + deltaTime, deltaTime >= 25 && deltaTime < nearDeltaTime);
     assertEquals("Number of script return values", 2, dummyAgentInit2Instance.scriptReturnValue.size());
     assertTrue("Script return value is missing", dummyAgentInit2Instance.scriptReturnValue.containsKey("init"));
     returnValueNode = dummyAgentInit2Instance.scriptReturnValue.get("init");
@@ -366,7 +378,7 @@ public class AgentSchedulerTest {
     agentScheduler.waitUntilDone(4 * 1000);
 
     // Make sure the two init script activities ran
-    assertEquals("Number of uncompleted activities", 0, agentScheduler.queue.size());
+    assertEquals("Number of uncompleted activities", 0, agentScheduler.getNumScheduledActivities());
     assertEquals("Number of completed activities", 2, agentScheduler.completedActivities.size());
 
     // Make sure both 'init' scripts were run
@@ -406,18 +418,18 @@ public class AgentSchedulerTest {
     AgentActivity dummyActivityScript1 = new AgentActivityRunScript(dummyAgentInit1Instance, 0, "Dummy-1-Script", "script1");
     AgentActivity dummyActivityScript2 = new AgentActivityRunScript(dummyAgentInit2Instance, 0, "Dummy-2-Script", "script2");
 
+    // Suspend scheduler to prevent activities from running
+    agentScheduler.pause();
+
     // Schedule a couple of immediate dummy events
     agentScheduler.add(dummyActivityScript1);
     agentScheduler.add(dummyActivityScript2);
 
-    // Suspend scheduler to prevent activities from running
-    agentScheduler.pause();
-
     // Wait a little while
     Thread.sleep(250);
 
     // Make sure no activities were run since scheduler is supposed to be suspended
-    assertEquals("Number of uncompleted activities", 2, agentScheduler.queue.size());
+    assertEquals("Number of uncompleted activities", 2, agentScheduler.getNumScheduledActivities());
     assertEquals("Number of completed activities", 2, agentScheduler.completedActivities.size());
 
     // Record current time
@@ -431,7 +443,7 @@ public class AgentSchedulerTest {
 
     // Make sure dummy activity completed
     agentScheduler.waitUntilDone(2 * 1000);
-    assertEquals("Number of uncompleted activities", 0, agentScheduler.queue.size());
+    assertEquals("Number of uncompleted activities", 0, agentScheduler.getNumScheduledActivities());
     assertEquals("Number of completed activities", 4, agentScheduler.completedActivities.size());
 
     // Make sure all 'init' scripts, two 'init' plus two dummy, were run
@@ -446,14 +458,14 @@ public class AgentSchedulerTest {
     assertTrue("Script start time is not near current time - deltaTime: " + deltaTime, deltaTime >= 0 && deltaTime < nearDeltaTime);
     assertTrue("Script start time is missing", dummyAgentInit1Instance.scriptStartTime.containsKey("script1"));
     deltaTime = (Long)dummyAgentInit1Instance.scriptStartTime.get("script1") - baseTime2;
-    assertTrue("Script start time is not near current time - deltaTime: " + deltaTime, deltaTime > 25 && deltaTime < nearDeltaTime);
+    assertTrue("Script start time is not near current time - deltaTime: " + deltaTime, deltaTime >= 25 && deltaTime < nearDeltaTime);
     assertEquals("Number of script end times recorded", 2, dummyAgentInit1Instance.scriptEndTime.size());
     assertTrue("Script end time is missing", dummyAgentInit1Instance.scriptEndTime.containsKey("init"));
     deltaTime = (Long)dummyAgentInit1Instance.scriptEndTime.get("init") - baseTime;
     assertTrue("Script end time is not near current time: " + deltaTime, deltaTime >= 0 && deltaTime < nearDeltaTime);
     assertTrue("Script end time is missing", dummyAgentInit1Instance.scriptEndTime.containsKey("script1"));
     deltaTime = (Long)dummyAgentInit1Instance.scriptEndTime.get("script1") - baseTime2;
-    assertTrue("Script end time is not near current time - deltaTime: " + deltaTime, deltaTime > 25 && deltaTime < nearDeltaTime);
+    assertTrue("Script end time is not near current time - deltaTime: " + deltaTime, deltaTime >= 25 && deltaTime < nearDeltaTime);
     assertEquals("Number of script return values", 2, dummyAgentInit1Instance.scriptReturnValue.size());
     assertTrue("Script return value is missing", dummyAgentInit1Instance.scriptReturnValue.containsKey("init"));
     returnValueNode = dummyAgentInit1Instance.scriptReturnValue.get("init");
@@ -507,7 +519,7 @@ public class AgentSchedulerTest {
     AgentScheduler agentScheduler = agentServer.agentScheduler;
 
     // Make sure no activities were run
-    assertEquals("Number of uncompleted activities", 0, agentScheduler.queue.size());
+    assertEquals("Number of uncompleted activities", 0, agentScheduler.getNumScheduledActivities());
     assertEquals("Number of completed activities", 0, agentScheduler.completedActivities.size());
 
     // Create an agent that has a disabled timer and make sure it doesn't run
@@ -535,7 +547,7 @@ public class AgentSchedulerTest {
     Thread.sleep(1250);
 
     // Make sure that only the 'init' script ran
-    assertEquals("Number of uncompleted activities", 0, agentScheduler.queue.size());
+    assertEquals("Number of uncompleted activities", 0, agentScheduler.getNumScheduledActivities());
     assertEquals("Number of completed activities", 1, agentScheduler.completedActivities.size());
 
     // Make sure no timers were triggered
@@ -559,7 +571,7 @@ public class AgentSchedulerTest {
     AgentScheduler agentScheduler = agentServer.agentScheduler;
 
     // Make sure no activities were run
-    assertEquals("Number of uncompleted activities", 0, agentScheduler.queue.size());
+    assertEquals("Number of uncompleted activities", 0, agentScheduler.getNumScheduledActivities());
     assertEquals("Number of completed activities", 0, agentScheduler.completedActivities.size());
 
     // Create an agent that has a timer
@@ -624,7 +636,7 @@ public class AgentSchedulerTest {
     AgentScheduler agentScheduler = agentServer.agentScheduler;
 
     // Make sure no activities were run
-    assertEquals("Number of uncompleted activities", 0, agentScheduler.queue.size());
+    assertEquals("Number of uncompleted activities", 0, agentScheduler.getNumScheduledActivities());
     assertEquals("Number of completed activities", 0, agentScheduler.completedActivities.size());
 
     // Create an agent that has four timers, one that never has a chance to fire
@@ -747,7 +759,7 @@ public class AgentSchedulerTest {
     AgentScheduler agentScheduler = agentServer.agentScheduler;
 
     // Make sure no activities were run
-    assertEquals("Number of uncompleted activities", 0, agentScheduler.queue.size());
+    assertEquals("Number of uncompleted activities", 0, agentScheduler.getNumScheduledActivities());
     assertEquals("Number of completed activities", 0, agentScheduler.completedActivities.size());
 
     // Test condition without name
@@ -841,7 +853,7 @@ public class AgentSchedulerTest {
     AgentScheduler agentScheduler = agentServer.agentScheduler;
 
     // Make sure no activities were run
-    assertEquals("Number of uncompleted activities", 0, agentScheduler.queue.size());
+    assertEquals("Number of uncompleted activities", 0, agentScheduler.getNumScheduledActivities());
     assertEquals("Number of completed activities", 0, agentScheduler.completedActivities.size());
 
     // Create an agent that has a disabled condition and make sure it doesn't run
@@ -871,7 +883,7 @@ public class AgentSchedulerTest {
     Thread.sleep(1250);
 
     // Make sure that only the 'init' script ran
-    assertEquals("Number of uncompleted activities", 0, agentScheduler.queue.size());
+    assertEquals("Number of uncompleted activities", 0, agentScheduler.getNumScheduledActivities());
     assertEquals("Number of completed activities", 1, agentScheduler.completedActivities.size());
 
     // Make sure no conditions were triggered
@@ -892,7 +904,7 @@ public class AgentSchedulerTest {
     AgentScheduler agentScheduler = agentServer.agentScheduler;
 
     // Make sure no activities were run
-    assertEquals("Number of uncompleted activities", 0, agentScheduler.queue.size());
+    assertEquals("Number of uncompleted activities", 0, agentScheduler.getNumScheduledActivities());
     assertEquals("Number of completed activities", 0, agentScheduler.completedActivities.size());
 
     // Create an agent that has a condition
@@ -962,7 +974,7 @@ public class AgentSchedulerTest {
     AgentScheduler agentScheduler = agentServer.agentScheduler;
 
     // Make sure no activities were run
-    assertEquals("Number of uncompleted activities", 0, agentScheduler.queue.size());
+    assertEquals("Number of uncompleted activities", 0, agentScheduler.getNumScheduledActivities());
     assertEquals("Number of completed activities", 0, agentScheduler.completedActivities.size());
 
     // Create an agent that has a complex condition which always evaluates to false
@@ -1033,7 +1045,7 @@ public class AgentSchedulerTest {
     AgentScheduler agentScheduler = agentServer.agentScheduler;
 
     // Make sure no activities were run
-    assertEquals("Number of uncompleted activities", 0, agentScheduler.queue.size());
+    assertEquals("Number of uncompleted activities", 0, agentScheduler.getNumScheduledActivities());
     assertEquals("Number of completed activities", 0, agentScheduler.completedActivities.size());
 
     // Create an agent that has a condition
@@ -1099,7 +1111,7 @@ public class AgentSchedulerTest {
     AgentScheduler agentScheduler = agentServer.agentScheduler;
 
     // Make sure no activities were run
-    assertEquals("Number of uncompleted activities", 0, agentScheduler.queue.size());
+    assertEquals("Number of uncompleted activities", 0, agentScheduler.getNumScheduledActivities());
     assertEquals("Number of completed activities", 0, agentScheduler.completedActivities.size());
 
     // Create an agent that has a complex condition which always evaluates to false
@@ -1179,7 +1191,7 @@ public class AgentSchedulerTest {
     AgentScheduler agentScheduler = agentServer.agentScheduler;
 
     // Make sure no activities were run
-    assertEquals("Number of uncompleted activities", 0, agentScheduler.queue.size());
+    assertEquals("Number of uncompleted activities", 0, agentScheduler.getNumScheduledActivities());
     assertEquals("Number of completed activities", 0, agentScheduler.completedActivities.size());
 
     // Create an agent that has a complex condition which always evaluates to false
@@ -1260,7 +1272,7 @@ public class AgentSchedulerTest {
     AgentScheduler agentScheduler = agentServer.agentScheduler;
 
     // Make sure no activities were run
-    assertEquals("Number of uncompleted activities", 0, agentScheduler.queue.size());
+    assertEquals("Number of uncompleted activities", 0, agentScheduler.getNumScheduledActivities());
     assertEquals("Number of completed activities", 0, agentScheduler.completedActivities.size());
 
     // Create an agent that has four conditions, one that never has a chance to fire
@@ -1392,7 +1404,7 @@ public class AgentSchedulerTest {
     AgentScheduler agentScheduler = agentServer.agentScheduler;
 
     // Make sure no activities were run
-    assertEquals("Number of uncompleted activities", 0, agentScheduler.queue.size());
+    assertEquals("Number of uncompleted activities", 0, agentScheduler.getNumScheduledActivities());
     assertEquals("Number of completed activities", 0, agentScheduler.completedActivities.size());
 
     // Create an agent that has four conditions which are always false, so none fire
@@ -1521,6 +1533,174 @@ public class AgentSchedulerTest {
     assertEquals("agentScheduler status ", "shutdown", agentServer.getStatus());
   }
 
+  @Test
+  public void testActivityDeadline() throws Exception {
+
+    // Test that an activity which runs past its deadline is aborted, and that its timer keeps firing
+
+    // Create a test user
+    User user = agentServer.addUser("Test-User");
+
+    // Get the agent scheduler
+    AgentScheduler agentScheduler = agentServer.agentScheduler;
+    assertEquals("Number of aborted activities", 0, agentScheduler.getNumAbortedActivities());
+
+    // Create an agent whose timer script first sleeps far longer than the agent's activity deadline
+    AgentDefinition agDef = agentServer.addAgentDefinition(
+        "{\"user\": \"Test-User\"," +
+            "\"name\": \"SlowAgent\", " +
+            "\"memory\": [{\"name\": \"count\", \"type\": \"integer\", \"default_value\": 0}, {\"name\": \"runs\", \"type\": \"integer\", \"default_value\": 0}], " +
+            "\"timers\": [{\"name\": \"timer-1\", \"interval\": 10, \"description\": \"10 ms timer\", \"script\": \"memory.runs++; if (memory.runs == 1){sleep(5000); memory.count++;}\", \"enabled\": true}], " +
+        "\"enabled\": false, \"activity_deadline\": 200}");
+    assertEquals("Agent activity deadline", 200, agDef.activityDeadline.longValue());
+    AgentInstance agInst = agentServer.getAgentInstance(user, agDef);
+
+    // Let the timer fire and start sleeping
+    long startTime = System.currentTimeMillis();
+    agInst.enable();
+    Thread.sleep(100);
+    assertTrue("Timer activity is not running", agInst.currentActivity != null);
+    AgentActivity activity = agInst.currentActivity;
+
+    // Watchdog aborts the activity soon after its deadline, well before the sleep would end
+    Thread.sleep(400);
+    assertEquals("Number of aborted activities", 1, agentScheduler.getNumAbortedActivities());
+    assertTrue("Activity took too long to abort: " + (System.currentTimeMillis() - startTime), System.currentTimeMillis() - startTime < 1000);
+
+    // Interrupted script stops at its next operation rather than finishing
+    assertEquals("Memory count", 0, agInst.categorySymbolValues.get("memory").get("count").getIntValue());
+
+    // Aborted timer is re-armed for its next interval rather than cancelled
+    long runs = agInst.categorySymbolValues.get("memory").get("runs").getLongValue();
+    assertTrue("Timer did not run again after the abort: " + runs, runs >= 2);
+    assertTrue("Timer was disabled", agInst.timerStatus.get("timer-1").enabled);
+    assertTrue("Timer hits: " + agInst.timerStatus.get("timer-1").hits, agInst.timerStatus.get("timer-1").hits >= 2);
+    assertFalse("Re-armed timer in completed list", agentScheduler.completedActivities.contains(activity));
+    assertEquals("Number of aborted activities", 1, agentScheduler.getNumAbortedActivities());
+
+    // Tell the scheduler to stop
+    agentServer.shutdown();
+    assertEquals("agentScheduler status ", "shutdown", agentServer.getStatus());
+  }
+
+  @Test
+  public void testAbortedActivityHoldsAgent() throws Exception {
+
+    // Test that an aborted activity keeps its agent until its worker returns, so the agent's next activity can't overlap it
+
+    // Create a test user
+    User user = agentServer.addUser("Test-User");
+
+    // Get the agent scheduler
+    AgentScheduler agentScheduler = agentServer.agentScheduler;
+    assertEquals("Number of aborted activities", 0, agentScheduler.getNumAbortedActivities());
+
+    // Create an agent with a short activity deadline
+    AgentDefinition agDef = agentServer.addAgentDefinition(
+        "{\"user\": \"Test-User\", \"name\": \"StubbornAgent\", \"activity_deadline\": 100}");
+    AgentInstance agInst = agentServer.getAgentInstance(user, agDef);
+    Thread.sleep(100);
+
+    // An activity that ignores the watchdog's interrupt, as one blocked in native I/O might
+    final CountDownLatch release = new CountDownLatch(1);
+    AgentActivity stubbornActivity = new AgentActivity(agInst, 0, "Stubborn activity"){
+      public boolean performActivity(){
+        startActivity();
+        boolean released = false;
+        while (! released){
+          try {
+            release.await();
+            released = true;
+          } catch (InterruptedException e){
+            // Keep waiting
+          }
+        }
+        finishActivity();
+        return true;
+      }
+    };
+    AgentActivity nextActivity = new AgentActivity(agInst, 0, "Next activity");
+    agentScheduler.add(stubbornActivity);
+    Thread.sleep(50);
+    assertTrue("Stubborn activity is not running", agInst.currentActivity == stubbornActivity);
+    agentScheduler.add(nextActivity);
+
+    // Watchdog aborts the stubborn activity, but the agent is held while its worker keeps running
+    Thread.sleep(300);
+    assertEquals("Number of aborted activities", 1, agentScheduler.getNumAbortedActivities());
+    assertEquals("Stubborn activity status", AgentActivity.StatusTypes.ABORTED, stubbornActivity.status);
+    assertTrue("Agent released before its aborted worker returned", agInst.currentActivity == stubbornActivity);
+    assertEquals("Next activity status", AgentActivity.StatusTypes.NOT_STARTED, nextActivity.status);
+
+    // Once the worker returns, the agent runs its next activity
+    release.countDown();
+    Thread.sleep(200);
+    assertEquals("Stubborn activity status", AgentActivity.StatusTypes.ABORTED, stubbornActivity.status);
+    assertTrue("Aborted activity not in completed list", agentScheduler.completedActivities.contains(stubbornActivity));
+    assertEquals("Next activity status", AgentActivity.StatusTypes.COMPLETED, nextActivity.status);
+    assertTrue("Agent not released", agInst.currentActivity == null);
+
+    // Tell the scheduler to stop
+    agentServer.shutdown();
+    assertEquals("agentScheduler status ", "shutdown", agentServer.getStatus());
+  }
+
+  @Test
+  public void testActivityJournal() throws Exception {
+
+    // Test that timers keep their schedule over a restart and that 'init' is not run again
+
+    // Create a test user
+    agentServer.addUser("Test-User");
+
+    // Create an agent with an 'init' script, a slow timer, and a timer that will be overdue after the restart
+    agentServer.addAgentDefinition(
+        "{\"user\": \"Test-User\"," +
+            "\"name\": \"JournalTest\", " +
+            "\"scripts\": [{\"name\": \"init\", \"script\": \"return 'ran-init';\"}], " +
+        "\"timers\": [{\"name\": \"slow\", \"interval\": 60000, \"script\": \"return 'hit slow';\"}, " +
+            "{\"name\": \"fast\", \"interval\": 2000, \"script\": \"return 'hit fast';\"}]}");
+    long createTime = System.currentTimeMillis();
+    AgentInstance agInst = agentServer.getAgentInstance("{\"user\": \"Test-User\", \"name\": \"JournalTest\", \"definition\": \"JournalTest\"}");
+
+    // Let 'init' and the first hit of the fast timer run
+    Thread.sleep(2300);
+    assertTrue("Agent did not run 'init'", agInst.ranInit);
+    assertEquals("Fast timer hits", 1, agInst.timerStatus.get("fast").hits);
+
+    // Stop the server, and stay down long enough for the fast timer to come due
+    agentAppServer.shutdown();
+    Thread.sleep(2000);
+
+    // Restart the server from the same persistent store
+    agentAppServer.start();
+    AgentScheduler agentScheduler = agentServer.agentScheduler;
+    assertTrue("Activity journal is not enabled", agentScheduler.journal != null);
+    agInst = agentServer.getAgentInstance("Test-User", "JournalTest");
+    assertTrue("Agent instance was not restored", agInst != null);
+
+    // Agent already ran 'init', so it is not run again
+    assertTrue("Agent is still starting", agInst.ranInit);
+    assertEquals("Script status", null, agInst.scriptStatus.get("init"));
+
+    // Overdue fast timer catches up right away rather than a full interval after the restart
+    Thread.sleep(500);
+    assertEquals("Fast timer hits", 1, agInst.timerStatus.get("fast").hits);
+    for (AgentActivity activity: agentScheduler.completedActivities)
+      assertTrue("Unexpected activity ran after restart: " + activity.description, activity instanceof AgentActivityTimer);
+
+    // Slow timer is still due on its original schedule
+    JSONObject entryJson = agentServer.persistence.getJson(AgentActivityJournal.TABLE_NAME, "Test-User|JournalTest");
+    assertTrue("Activity journal entry is missing", entryJson != null);
+    assertEquals("Journaled 'init'", true, entryJson.getBoolean("ran_init"));
+    long slowWhen = entryJson.getJSONObject("timers").getLong("slow");
+    assertTrue("Slow timer lost its phase: " + (slowWhen - createTime), slowWhen - createTime >= 60000 && slowWhen - createTime < 60000 + 500);
+
+    // Tell the scheduler to stop
+    agentServer.shutdown();
+    assertEquals("agentScheduler status ", "shutdown", agentServer.getStatus());
+  }
+
   @Test
   public void testDataSource1() throws Exception {
 
@@ -1533,7 +1713,7 @@ public class AgentSchedulerTest {
     AgentScheduler agentScheduler = agentServer.agentScheduler;
 
     // Make sure no activities were run
-    assertEquals("Number of uncompleted activities", 0, agentScheduler.queue.size());
+    assertEquals("Number of uncompleted activities", 0, agentScheduler.getNumScheduledActivities());
     assertEquals("Number of completed activities", 0, agentScheduler.completedActivities.size());
     // Record start time
     long startTime = System.currentTimeMillis();
@@ -1732,6 +1912,283 @@ public class AgentSchedulerTest {
     assertEquals("agentScheduler status ", "shutdown", agentServer.getStatus());
   }
 
+  @Test
+  public void testDataSourceCoalescing() throws Exception {
+
+    // Test that rapid changes of a data source are coalesced into a single pending trigger for its dependent
+
+    // Create a test user
+    User user = agentServer.addUser("Test-User");
+
+    // Get the agent scheduler
+    AgentScheduler agentScheduler = agentServer.agentScheduler;
+    assertEquals("Number of input-changed triggers", 0, agentScheduler.getNumInputChangedTriggers());
+    assertEquals("Number of coalesced input-changed triggers", 0, agentScheduler.getNumInputChangedCoalesced());
+
+    // Create a data source that uses a fast timer to sequence output through several values
+    AgentDefinition dsDef = agentServer.addAgentDefinition(
+        "{\"user\": \"Test-User\"," +
+            "\"name\": \"DataSource1\", " +
+            "\"memory\": [{\"name\": \"count\", \"type\": \"integer\", \"default_value\": 0}], " +
+            "\"outputs\": [{\"name\": \"field1\", \"type\": \"integer\", \"default_value\": -1}], " +
+            "\"timers\": [{\"name\": \"timer-1\", \"interval\": 10, \"description\": \"10 ms timer\", \"script\": \"if (memory.count < 6) outputs.field1 = ++memory.count;\", \"enabled\": true}], " +
+        "\"enabled\": false}");
+
+    // Now create an agent with a long trigger interval that copies its input to output
+    AgentDefinition agDef = agentServer.addAgentDefinition(
+        "{\"user\": \"Test-User\"," +
+            "\"name\": \"TestAgent\", " +
+            "\"inputs\": [{\"name\": \"input1\", \"data_source\": \"DataSource1\"}], " +
+            "\"outputs\": [{\"name\": \"outField1\", \"type\": \"integer\", \"default_value\": -123}], " +
+            "\"scripts\": [{\"name\": \"inputs_changed\", \"script\": \"outputs.outField1 = inputs.input1['field1'];\"}], " +
+        "\"enabled\": false, \"trigger_interval\": 300}");
+
+    // Instantiate the agent and the data source it references
+    AgentInstance agInst = agentServer.getAgentInstance(user, agDef);
+    AgentInstance dsInst = agentServer.agentInstances.get(user.id).getByDefinitionName("DataSource1");
+
+    // Enable the agent and then the data source
+    agInst.enable();
+    dsInst.enable();
+
+    // Let the data source finish counting and the single pending trigger fire
+    Thread.sleep(800);
+    dsInst.disable();
+    Thread.sleep(100);
+
+    // Agent sees only the final value of the data source
+    assertEquals("Value of data source output field1", 6, dsInst.getOutput("field1").getIntValue());
+    assertEquals("Value of agent output outField1", 6, agInst.getOutput("outField1").getIntValue());
+    assertEquals("Count of agent history", 2, agInst.outputHistory.size());
+
+    // All but the first trigger were merged into the pending activity
+    long numTriggers = agentScheduler.getNumInputChangedTriggers();
+    long numCoalesced = agentScheduler.getNumInputChangedCoalesced();
+    assertTrue("Number of input-changed triggers: " + numTriggers, numTriggers >= 6);
+    assertEquals("Number of coalesced input-changed triggers", numTriggers - 1, numCoalesced);
+    assertTrue("Pending input-changed activity not cleared", agInst.pendingInputChanged.isEmpty());
+
+    // Tell the scheduler to stop
+    agentServer.shutdown();
+    assertEquals("agentScheduler status ", "shutdown", agentServer.getStatus());
+  }
+
+  @Test
+  public void testDataSourceDiamond() throws Exception {
+
+    // Test that a data source feeding an agent through two paths triggers it once per change, with consistent inputs
+
+    // Create a test user
+    User user = agentServer.addUser("Test-User");
+
+    // Get the agent scheduler
+    AgentScheduler agentScheduler = agentServer.agentScheduler;
+    long numWaves = agentScheduler.metrics.waveLatency.getCount();
+
+    // Create a data source that counts through several values
+    agentServer.addAgentDefinition(
+        "{\"user\": \"Test-User\"," +
+            "\"name\": \"DataSourceA\", " +
+            "\"memory\": [{\"name\": \"count\", \"type\": \"integer\", \"default_value\": 0}], " +
+            "\"outputs\": [{\"name\": \"x\", \"type\": \"integer\", \"default_value\": 0}], " +
+            "\"timers\": [{\"name\": \"timer-1\", \"interval\": 100, \"description\": \"100 ms timer\", \"script\": \"if (memory.count < 4) outputs.x = ++memory.count;\", \"enabled\": true}], " +
+        "\"enabled\": false}");
+
+    // Two agents that each derive a value from the data source
+    agentServer.addAgentDefinition(
+        "{\"user\": \"Test-User\"," +
+            "\"name\": \"AgentB\", " +
+            "\"inputs\": [{\"name\": \"a\", \"data_source\": \"DataSourceA\"}], " +
+            "\"outputs\": [{\"name\": \"y\", \"type\": \"integer\", \"default_value\": 0}], " +
+            "\"scripts\": [{\"name\": \"inputs_changed\", \"script\": \"outputs.y = inputs.a['x'] * 2;\"}], " +
+        "\"enabled\": false, \"trigger_interval\": 1}");
+    agentServer.addAgentDefinition(
+        "{\"user\": \"Test-User\"," +
+            "\"name\": \"AgentC\", " +
+            "\"inputs\": [{\"name\": \"a\", \"data_source\": \"DataSourceA\"}], " +
+            "\"outputs\": [{\"name\": \"z\", \"type\": \"integer\", \"default_value\": 0}], " +
+            "\"scripts\": [{\"name\": \"inputs_changed\", \"script\": \"outputs.z = inputs.a['x'] * 3;\"}], " +
+        "\"enabled\": false, \"trigger_interval\": 1}");
+
+    // And an agent that combines both, counting its runs and any that see inputs from different changes
+    AgentDefinition agDef = agentServer.addAgentDefinition(
+        "{\"user\": \"Test-User\"," +
+            "\"name\": \"AgentD\", " +
+            "\"inputs\": [{\"name\": \"b\", \"data_source\": \"AgentB\"}, {\"name\": \"c\", \"data_source\": \"AgentC\"}], " +
+            "\"memory\": [{\"name\": \"runs\", \"type\": \"integer\", \"default_value\": 0}, " +
+            "              {\"name\": \"glitches\", \"type\": \"integer\", \"default_value\": 0}], " +
+            "\"outputs\": [{\"name\": \"sum\", \"type\": \"integer\", \"default_value\": 0}], " +
+            "\"scripts\": [{\"name\": \"inputs_changed\", \"script\": \"memory.runs++; if (inputs.b['y'] * 3 != inputs.c['z'] * 2) memory.glitches++; outputs.sum = inputs.b['y'] + inputs.c['z'];\"}], " +
+        "\"enabled\": false, \"trigger_interval\": 1}");
+
+    // Instantiate the combining agent, which instantiates the others
+    AgentInstance agInst = agentServer.getAgentInstance(user, agDef);
+    AgentInstanceList instances = agentServer.agentInstances.get(user.id);
+    assertEquals("Count of instantiated instances", 4, instances.size());
+    AgentInstance dsInst = instances.getByDefinitionName("DataSourceA");
+
+    // Data source's dependents are ordered by depth
+    List<List<AgentInstance>> levels = AgentPropagationWave.getLevels(dsInst);
+    assertEquals("Number of wave levels", 3, levels.size());
+    assertEquals("Instances at level 1", 2, levels.get(1).size());
+    assertEquals("Instances at level 2", 1, levels.get(2).size());
+    assertSame("Instance at level 2", agInst, levels.get(2).get(0));
+
+    // Enable the agents and then the data source
+    agInst.enable();
+    instances.getByDefinitionName("AgentB").enable();
+    instances.getByDefinitionName("AgentC").enable();
+    dsInst.enable();
+
+    // Let the data source finish counting
+    Thread.sleep(900);
+    dsInst.disable();
+    Thread.sleep(100);
+
+    // Combining agent ran once per change of the data source, never with inputs from different changes
+    assertEquals("Value of data source output x", 4, dsInst.getOutput("x").getIntValue());
+    assertEquals("Value of agent output sum", 20, agInst.getOutput("sum").getIntValue());
+    assertEquals("Combining agent runs", 4, agInst.getMemory("runs").getIntValue());
+    assertEquals("Combining agent glitches", 0, agInst.getMemory("glitches").getIntValue());
+
+    // Each change of the data source was one wave of three evaluations
+    assertEquals("Number of waves", numWaves + 4, agentScheduler.metrics.waveLatency.getCount());
+    assertEquals("Largest wave", 3, agentScheduler.metrics.waveSize.getMax());
+
+    // Tell the scheduler to stop
+    agentServer.shutdown();
+    assertEquals("agentScheduler status ", "shutdown", agentServer.getStatus());
+  }
+
+  @Test
+  public void testSchedulerShards() throws Exception {
+
+    // Test that agents spread over several scheduler shards still see changes of a data source on another shard
+
+    // Create a test user
+    User user = agentServer.addUser("Test-User");
+
+    // Restart the agent scheduler with four shards
+    AgentScheduler agentScheduler = agentServer.agentScheduler;
+    assertEquals("Number of shards", agentScheduler.getConfiguredNumShards(), agentScheduler.getNumShards());
+    agentServer.config.put("scheduler_shards", "4");
+    agentScheduler.shutdown();
+    agentScheduler.start();
+    assertEquals("Number of shards", 4, agentScheduler.getNumShards());
+    assertEquals("agentScheduler status ", "running", agentServer.getStatus());
+
+    // Create a data source that counts through several values
+    agentServer.addAgentDefinition(
+        "{\"user\": \"Test-User\"," +
+            "\"name\": \"DataSource1\", " +
+            "\"memory\": [{\"name\": \"count\", \"type\": \"integer\", \"default_value\": 0}], " +
+            "\"outputs\": [{\"name\": \"field1\", \"type\": \"integer\", \"default_value\": -1}], " +
+            "\"timers\": [{\"name\": \"timer-1\", \"interval\": 20, \"description\": \"20 ms timer\", \"script\": \"if (memory.count < 6) outputs.field1 = ++memory.count;\", \"enabled\": true}], " +
+        "\"enabled\": false}");
+
+    // Create several agents that copy the data source to their outputs
+    int numAgents = 8;
+    AgentInstance[] agInsts = new AgentInstance[numAgents];
+    for (int i = 0; i < numAgents; i++){
+      AgentDefinition agDef = agentServer.addAgentDefinition(
+          "{\"user\": \"Test-User\"," +
+              "\"name\": \"TestAgent" + i + "\", " +
+              "\"inputs\": [{\"name\": \"input1\", \"data_source\": \"DataSource1\"}], " +
+              "\"outputs\": [{\"name\": \"outField1\", \"type\": \"integer\", \"default_value\": -123}], " +
+              "\"scripts\": [{\"name\": \"inputs_changed\", \"script\": \"outputs.outField1 = inputs.input1['field1'];\"}], " +
+          "\"enabled\": false, \"trigger_interval\": 1}");
+      agInsts[i] = agentServer.getAgentInstance(user, agDef);
+    }
+    AgentInstance dsInst = agentServer.agentInstances.get(user.id).getByDefinitionName("DataSource1");
+
+    // Agents are pinned to more than one shard
+    Set<Integer> shardIndexes = new HashSet<Integer>();
+    shardIndexes.add(agentScheduler.getShard(dsInst).index);
+    for (AgentInstance agInst: agInsts)
+      shardIndexes.add(agentScheduler.getShard(agInst).index);
+    assertTrue("Agents all on one shard", shardIndexes.size() > 1);
+
+    // Enable the agents and then the data source
+    for (AgentInstance agInst: agInsts)
+      agInst.enable();
+    dsInst.enable();
+
+    // Let the data source finish counting
+    Thread.sleep(600);
+    assertEquals("Value of data source output field1", 6, dsInst.getOutput("field1").getIntValue());
+    for (AgentInstance agInst: agInsts)
+      assertEquals("Value of agent output outField1 for " + agInst.name, 6, agInst.getOutput("outField1").getIntValue());
+    assertTrue("Number of input-changed triggers", agentScheduler.getNumInputChangedTriggers() >= numAgents * 6);
+
+    // Pause and resume apply to all shards
+    agentScheduler.pause();
+    Thread.sleep(50);
+    assertEquals("agentScheduler status ", "paused", agentServer.getStatus());
+    agentScheduler.resume();
+    Thread.sleep(50);
+    assertEquals("agentScheduler status ", "running", agentServer.getStatus());
+
+    // Deleting the data source flushes its timer from its shard
+    dsInst.disable();
+    agentServer.removeAgentInstance(dsInst);
+    agentScheduler.waitUntilDone();
+    assertEquals("Number of uncompleted activities", 0, agentScheduler.getNumPendingActivities());
+
+    // Tell the scheduler to stop
+    agentServer.shutdown();
+    assertEquals("agentScheduler status ", "shutdown", agentServer.getStatus());
+  }
+
+  @Test
+  public void testSimulatedClock() throws Exception {
+
+    // Test that a simulated clock runs a day of hourly timers in a fraction of a second
+
+    // Create a test user
+    User user = agentServer.addUser("Test-User");
+
+    // Restart the agent scheduler with a simulated clock
+    AgentScheduler agentScheduler = agentServer.agentScheduler;
+    assertFalse("Clock is simulated", Clock.get().isSimulated());
+    agentServer.config.put("scheduler_clock", "simulated");
+    agentScheduler.shutdown();
+    agentScheduler.start();
+    assertTrue("Clock is not simulated", Clock.get().isSimulated());
+    assertEquals("agentScheduler status ", "running", agentServer.getStatus());
+    long startTime = Clock.now();
+
+    // Create an agent with an hourly timer that records when it fires
+    AgentDefinition agDef = agentServer.addAgentDefinition(
+        "{\"user\": \"Test-User\"," +
+            "\"name\": \"HourlyAgent\", " +
+            "\"memory\": [{\"name\": \"count\", \"type\": \"integer\", \"default_value\": 0}, " +
+            "{\"name\": \"first\", \"type\": \"integer\", \"default_value\": 0}, " +
+            "{\"name\": \"last\", \"type\": \"integer\", \"default_value\": 0}], " +
+            "\"timers\": [{\"name\": \"hourly\", \"interval\": 3600000, \"description\": \"Hourly timer\", \"script\": " +
+            "\"if (memory.count < 24){if (memory.count == 0) memory.first = now; memory.last = now; memory.count++;}\", \"enabled\": true}], " +
+        "\"enabled\": true}");
+    AgentInstance agInst = agentServer.getAgentInstance(user, agDef);
+
+    // A simulated day passes in well under a real second
+    long realStartTime = System.currentTimeMillis();
+    for (int i = 0; i < 100 && agInst.getMemory("count").getIntValue() < 24; i++)
+      Thread.sleep(50);
+    long realElapsed = System.currentTimeMillis() - realStartTime;
+    assertEquals("Number of hourly timer hits", 24, agInst.getMemory("count").getIntValue());
+    assertTrue("Simulated day took too long: " + realElapsed + " ms", realElapsed < 5000);
+
+    // The timer fired exactly on schedule in simulated time
+    long first = agInst.getMemory("first").getLongValue();
+    long last = agInst.getMemory("last").getLongValue();
+    assertTrue("First hit was not at least an hour after start: " + (first - startTime), first - startTime >= 3600000);
+    assertEquals("Simulated time between first and last hits", 23 * 3600000L, last - first);
+    assertTrue("Clock did not advance a day", Clock.now() - startTime >= 24 * 3600000L);
+
+    // Tell the scheduler to stop
+    agentServer.shutdown();
+    assertEquals("agentScheduler status ", "shutdown", agentServer.getStatus());
+  }
+
   @Test
   public void testDataSource2() throws Exception {
 
@@ -1744,7 +2201,7 @@ public class AgentSchedulerTest {
     AgentScheduler agentScheduler = agentServer.agentScheduler;
 
     // Make sure no activities were run
-    assertEquals("Number of uncompleted activities", 0, agentScheduler.queue.size());
+    assertEquals("Number of uncompleted activities", 0, agentScheduler.getNumScheduledActivities());
     assertEquals("Number of completed activities", 0, agentScheduler.completedActivities.size());
     // Record start time
     long startTime = System.currentTimeMillis();
@@ -1941,7 +2398,7 @@ public class AgentSchedulerTest {
     AgentScheduler agentScheduler = agentServer.agentScheduler;
 
     // Make sure no activities were run
-    assertEquals("Number of uncompleted activities", 0, agentScheduler.queue.size());
+    assertEquals("Number of uncompleted activities", 0, agentScheduler.getNumScheduledActivities());
     assertEquals("Number of completed activities", 0, agentScheduler.completedActivities.size());
     // Record start time
     long startTime = System.currentTimeMillis();
@@ -2131,7 +2588,7 @@ public class AgentSchedulerTest {
     AgentScheduler agentScheduler = agentServer.agentScheduler;
 
     // Make sure no activities were run
-    assertEquals("Number of uncompleted activities", 0, agentScheduler.queue.size());
+    assertEquals("Number of uncompleted activities", 0, agentScheduler.getNumScheduledActivities());
     assertEquals("Number of completed activities", 0, agentScheduler.completedActivities.size());
     // Record start time
     long startTime = System.currentTimeMillis();
@@ -2318,7 +2775,7 @@ public class AgentSchedulerTest {
       AgentScheduler agentScheduler = agentServer.agentScheduler;
 
       // Make sure no activities were run
-      assertEquals("Number of uncompleted activities", 0, agentScheduler.queue.size());
+      assertEquals("Number of uncompleted activities", 0, agentScheduler.getNumScheduledActivities());
       assertEquals("Number of completed activities", 0, agentScheduler.completedActivities.size());
       // Record start time
       long startTime = System.currentTimeMillis();
@@ -19,6 +19,7 @@ package com.basetechnology.s0.agentserver;
 import java.io.File;
 
 import org.apache.log4j.Logger;
+import org.json.JSONObject;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -42,6 +43,8 @@ import com.basetechnology.s0.agentserver.field.Field;
 import com.basetechnology.s0.agentserver.script.intermediate.FloatTypeNode;
 import com.basetechnology.s0.agentserver.script.intermediate.IntegerTypeNode;
 import com.basetechnology.s0.agentserver.script.intermediate.StringTypeNode;
+import com.basetechnology.s0.agentserver.script.intermediate.Symbol;
+import com.basetechnology.s0.agentserver.script.intermediate.SymbolManager;
 import com.basetechnology.s0.agentserver.script.intermediate.SymbolValues;
 import com.basetechnology.s0.agentserver.script.runtime.value.FloatValue;
 import com.basetechnology.s0.agentserver.script.runtime.value.IntegerValue;
@@ -591,6 +594,67 @@ public class AgentServerTest {
     
   }
 
+  @Test
+  public void testSharedScripts() throws Exception {
+    // Create a test user
+    agentServer.addUser("Test-User");
+    
+    // Create an agent definition with a memory field and two instances of it
+    AgentDefinition agDef = agentServer.addAgentDefinition("{\"user\": \"Test-User\", \"name\": \"ag1\", \"scripts\":[{\"name\": \"increment_memory_aa\", \"script\": \"memory.aa++; return memory.aa;\"}], \"memory\": [{\"name\": \"aa\", \"type\": \"int\", \"default_value\": 10}]}");
+    AgentInstance agInst1 = agentServer.getAgentInstance("{\"user\": \"Test-User\", \"name\": \"testAgentName1\", \"definition\": \"ag1\"}");
+    AgentInstance agInst2 = agentServer.getAgentInstance("{\"user\": \"Test-User\", \"name\": \"testAgentName2\", \"definition\": \"ag1\"}");
+
+    // Both instances share the symbols and parsed scripts of the definition
+    assertSame("Symbol manager not shared", agDef.symbolManager, agInst1.symbolManager);
+    assertSame("Symbol manager not shared", agDef.symbolManager, agInst2.symbolManager);
+    assertSame("Parsed scripts not shared", agDef.parsedScripts, agInst1.parsedScripts);
+    assertSame("Parsed scripts not shared", agDef.parsedScripts, agInst2.parsedScripts);
+    assertEquals("Number of parsed scripts", 1, agDef.parsedScripts.size());
+
+    // But each instance keeps its own values
+    assertEquals("Return value", 11, agInst1.runScript("increment_memory_aa").getLongValue());
+    assertEquals("Return value", 12, agInst1.runScript("increment_memory_aa").getLongValue());
+    assertEquals("Return value", 11, agInst2.runScript("increment_memory_aa").getLongValue());
+    assertEquals("memory.aa", 12, agInst1.getMemory("aa").getLongValue());
+    assertEquals("memory.aa", 11, agInst2.getMemory("aa").getLongValue());
+  }
+
+  @Test
+  public void testSharedScriptsUpdate() throws Exception {
+    // Create a test user
+    agentServer.addUser("Test-User");
+    User user = agentServer.getUser("Test-User");
+
+    // Create an agent definition with a script that changes a string literal in place and two instances of it
+    AgentDefinition agDef = agentServer.addAgentDefinition("{\"user\": \"Test-User\", \"name\": \"ag1\", \"scripts\":[{\"name\": \"increment_memory_aa\", \"script\": \"memory.aa++; return memory.aa;\"}, {\"name\": \"insert\", \"script\": \"return 'abc'.insert(0, 'x');\"}], \"memory\": [{\"name\": \"aa\", \"type\": \"int\", \"default_value\": 10}, {\"name\": \"bb\", \"type\": \"int\", \"default_value\": 20}]}");
+    AgentInstance agInst1 = agentServer.getAgentInstance("{\"user\": \"Test-User\", \"name\": \"testAgentName1\", \"definition\": \"ag1\"}");
+    AgentInstance agInst2 = agentServer.getAgentInstance("{\"user\": \"Test-User\", \"name\": \"testAgentName2\", \"definition\": \"ag1\"}");
+
+    // Running the shared script in one instance doesn't change what the other sees
+    assertEquals("Return value", "xabc", agInst1.runScript("insert").getStringValue());
+    assertEquals("Return value", "xabc", agInst1.runScript("insert").getStringValue());
+    assertEquals("Return value", "xabc", agInst2.runScript("insert").getStringValue());
+    assertEquals("Return value", 11, agInst1.runScript("increment_memory_aa").getLongValue());
+
+    // Updating the definition swaps in new symbols rather than changing the ones in use
+    SymbolManager oldSymbolManager = agDef.symbolManager;
+    Symbol aaSymbol = oldSymbolManager.get("memory", "aa");
+    agDef.update(agentServer, AgentDefinition.fromJson(agentServer, user, new JSONObject("{\"memory\": [{\"name\": \"aa\", \"type\": \"int\", \"default_value\": 10}, {\"name\": \"cc\", \"type\": \"int\", \"default_value\": 30}]}"), true));
+    assertNotSame("Symbol manager not replaced", oldSymbolManager, agDef.symbolManager);
+    assertSame("Symbol manager not shared", agDef.symbolManager, agInst1.symbolManager);
+    assertSame("Symbol manager not shared", agDef.symbolManager, agInst2.symbolManager);
+    assertNotNull("Old symbols changed", oldSymbolManager.get("memory", "bb"));
+    assertNull("Old symbols changed", oldSymbolManager.get("memory", "cc"));
+    assertNull("Removed field kept", agDef.symbolManager.get("memory", "bb"));
+    assertNotNull("New field missing", agDef.symbolManager.get("memory", "cc"));
+    assertSame("Unchanged field not carried over", aaSymbol, agDef.symbolManager.get("memory", "aa"));
+
+    // Instances keep their values for unchanged fields
+    assertEquals("Return value", 12, agInst1.runScript("increment_memory_aa").getLongValue());
+    assertEquals("Return value", 11, agInst2.runScript("increment_memory_aa").getLongValue());
+    assertEquals("Return value", "xabc", agInst2.runScript("insert").getStringValue());
+  }
+
   @Test
   public void testHelloWorld() throws Exception {
     // Create a test user
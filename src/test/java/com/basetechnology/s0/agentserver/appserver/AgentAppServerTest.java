@@ -37,6 +37,24 @@ import com.basetechnology.s0.agentserver.AgentServerTestBase;
 import com.basetechnology.s0.agentserver.OutputHistory;
 import com.basetechnology.s0.agentserver.appserver.AgentAppServer;
 import com.basetechnology.s0.agentserver.mailaccessmanager.MailAccessManager;
+import com.basetechnology.s0.agentserver.activities.AgentActivity;
+import com.basetechnology.s0.agentserver.activities.AgentActivityCondition;
+import com.basetechnology.s0.agentserver.activities.AgentActivityNotification;
+import com.basetechnology.s0.agentserver.activities.AgentActivityRunScript;
+import com.basetechnology.s0.agentserver.activities.AgentActivityTimer;
+import com.basetechnology.s0.agentserver.activities.AgentActivityTriggerInputChanged;
+import com.basetechnology.s0.agentserver.scheduler.AgentActivityJournal;
+import com.basetechnology.s0.agentserver.scheduler.AgentActivityQueue;
+import com.basetechnology.s0.agentserver.scheduler.AgentActivityThreadPool;
+import com.basetechnology.s0.agentserver.scheduler.AgentAdmissionControl;
+import com.basetechnology.s0.agentserver.script.compiler.ScriptCompiler;
+import com.basetechnology.s0.agentserver.script.optimizer.ScriptOptimizer;
+import com.basetechnology.s0.agentserver.script.parser.ScriptCache;
+import com.basetechnology.s0.agentserver.script.runtime.PatternCache;
+import com.basetechnology.s0.agentserver.scheduler.AgentReadyQueue;
+import com.basetechnology.s0.agentserver.scheduler.AgentScheduler;
+import com.basetechnology.s0.agentserver.scheduler.AgentUserQueue;
+import com.basetechnology.s0.agentserver.util.Clock;
 import com.basetechnology.s0.agentserver.util.DateUtils;
 import com.basetechnology.s0.agentserver.webaccessmanager.WebSiteAccessConfig;
 
@@ -2220,7 +2238,7 @@ public class AgentAppServerTest extends AgentServerTestBase {
     // Determine if mail access is enabled
     boolean mailAccessEnabled =server.agentServer.config.getMailAccessEnabled();
     
-    int numConfigKeys = 34;
+    int numConfigKeys = 59;
     
     // Test reading of config settings
     String url = baseUrl + "/config";
@@ -2285,6 +2303,56 @@ public class AgentAppServerTest extends AgentServerTestBase {
     assertEquals("default_limit_instance_states_returned", AgentInstance.DEFAULT_LIMIT_INSTANCE_STATES_RETURNED, configJson.getInt("default_limit_instance_states_returned"));
     assertTrue("maximum_limit_instance_states_returned is not present", configJson.has("maximum_limit_instance_states_returned"));
     assertEquals("maximum_limit_instance_states_returned", AgentInstance.DEFAULT_MAXIMUM_LIMIT_INSTANCE_STATES_RETURNED, configJson.getInt("maximum_limit_instance_states_returned"));
+    assertTrue("scheduler_thread_pool_size is not present", configJson.has("scheduler_thread_pool_size"));
+    assertEquals("scheduler_thread_pool_size", AgentActivityThreadPool.DEFAULT_THREAD_POOL_SIZE, configJson.getInt("scheduler_thread_pool_size"));
+    assertTrue("scheduler_thread_pool_type is not present", configJson.has("scheduler_thread_pool_type"));
+    assertEquals("scheduler_thread_pool_type", AgentActivityThreadPool.DEFAULT_THREAD_POOL_TYPE, configJson.getString("scheduler_thread_pool_type"));
+    assertTrue("scheduler_queue_type is not present", configJson.has("scheduler_queue_type"));
+    assertEquals("scheduler_queue_type", AgentActivityQueue.DEFAULT_QUEUE_TYPE, configJson.getString("scheduler_queue_type"));
+    assertTrue("scheduler_default_user_weight is not present", configJson.has("scheduler_default_user_weight"));
+    assertEquals("scheduler_default_user_weight", AgentUserQueue.DEFAULT_USER_WEIGHT, configJson.getInt("scheduler_default_user_weight"));
+    assertTrue("scheduler_default_user_max_concurrency is not present", configJson.has("scheduler_default_user_max_concurrency"));
+    assertEquals("scheduler_default_user_max_concurrency", AgentUserQueue.DEFAULT_USER_MAX_CONCURRENCY, configJson.getInt("scheduler_default_user_max_concurrency"));
+    assertTrue("activity_deadline is not present", configJson.has("activity_deadline"));
+    assertEquals("activity_deadline", AgentActivity.DEFAULT_DEADLINE, configJson.getLong("activity_deadline"));
+    assertTrue("activity_deadline_run_script is not present", configJson.has("activity_deadline_run_script"));
+    assertEquals("activity_deadline_run_script", AgentActivityRunScript.DEFAULT_DEADLINE, configJson.getLong("activity_deadline_run_script"));
+    assertTrue("activity_deadline_timer is not present", configJson.has("activity_deadline_timer"));
+    assertEquals("activity_deadline_timer", AgentActivityTimer.DEFAULT_DEADLINE, configJson.getLong("activity_deadline_timer"));
+    assertTrue("activity_deadline_condition is not present", configJson.has("activity_deadline_condition"));
+    assertEquals("activity_deadline_condition", AgentActivityCondition.DEFAULT_DEADLINE, configJson.getLong("activity_deadline_condition"));
+    assertTrue("activity_deadline_inputs_changed is not present", configJson.has("activity_deadline_inputs_changed"));
+    assertEquals("activity_deadline_inputs_changed", AgentActivityTriggerInputChanged.DEFAULT_DEADLINE, configJson.getLong("activity_deadline_inputs_changed"));
+    assertTrue("activity_deadline_notification is not present", configJson.has("activity_deadline_notification"));
+    assertEquals("activity_deadline_notification", AgentActivityNotification.DEFAULT_DEADLINE, configJson.getLong("activity_deadline_notification"));
+    assertTrue("scheduler_journal_interval is not present", configJson.has("scheduler_journal_interval"));
+    assertEquals("scheduler_journal_interval", AgentActivityJournal.DEFAULT_JOURNAL_INTERVAL, configJson.getLong("scheduler_journal_interval"));
+    assertTrue("scheduler_catch_up_window is not present", configJson.has("scheduler_catch_up_window"));
+    assertEquals("scheduler_catch_up_window", AgentActivityJournal.DEFAULT_CATCH_UP_WINDOW, configJson.getLong("scheduler_catch_up_window"));
+    assertTrue("scheduler_shards is not present", configJson.has("scheduler_shards"));
+    assertEquals("scheduler_shards", AgentScheduler.DEFAULT_NUM_SHARDS, configJson.getInt("scheduler_shards"));
+    assertTrue("scheduler_clock is not present", configJson.has("scheduler_clock"));
+    assertEquals("scheduler_clock", Clock.DEFAULT_CLOCK_TYPE, configJson.getString("scheduler_clock"));
+    assertTrue("scheduler_priority_aging is not present", configJson.has("scheduler_priority_aging"));
+    assertEquals("scheduler_priority_aging", AgentReadyQueue.DEFAULT_AGING_INTERVAL, configJson.getLong("scheduler_priority_aging"));
+    assertTrue("scheduler_max_queued is not present", configJson.has("scheduler_max_queued"));
+    assertEquals("scheduler_max_queued", AgentAdmissionControl.DEFAULT_MAX_QUEUED, configJson.getInt("scheduler_max_queued"));
+    assertTrue("scheduler_max_queued_per_user is not present", configJson.has("scheduler_max_queued_per_user"));
+    assertEquals("scheduler_max_queued_per_user", AgentAdmissionControl.DEFAULT_MAX_QUEUED_PER_USER, configJson.getInt("scheduler_max_queued_per_user"));
+    assertTrue("scheduler_max_queued_per_agent is not present", configJson.has("scheduler_max_queued_per_agent"));
+    assertEquals("scheduler_max_queued_per_agent", AgentAdmissionControl.DEFAULT_MAX_QUEUED_PER_AGENT, configJson.getInt("scheduler_max_queued_per_agent"));
+    assertTrue("scheduler_queue_low_watermark is not present", configJson.has("scheduler_queue_low_watermark"));
+    assertEquals("scheduler_queue_low_watermark", AgentAdmissionControl.DEFAULT_LOW_WATERMARK, configJson.getInt("scheduler_queue_low_watermark"));
+    assertTrue("scheduler_overload_policy is not present", configJson.has("scheduler_overload_policy"));
+    assertEquals("scheduler_overload_policy", AgentAdmissionControl.DEFAULT_OVERLOAD_POLICY, configJson.getString("scheduler_overload_policy"));
+    assertTrue("script_cache_size is not present", configJson.has("script_cache_size"));
+    assertEquals("script_cache_size", ScriptCache.DEFAULT_CAPACITY, configJson.getInt("script_cache_size"));
+    assertTrue("script_compile_threshold is not present", configJson.has("script_compile_threshold"));
+    assertEquals("script_compile_threshold", ScriptCompiler.DEFAULT_COMPILE_THRESHOLD, configJson.getInt("script_compile_threshold"));
+    assertTrue("script_optimize is not present", configJson.has("script_optimize"));
+    assertEquals("script_optimize", ScriptOptimizer.DEFAULT_OPTIMIZE, configJson.getBoolean("script_optimize"));
+    assertTrue("regex_cache_size is not present", configJson.has("regex_cache_size"));
+    assertEquals("regex_cache_size", PatternCache.DEFAULT_CAPACITY, configJson.getInt("regex_cache_size"));
     String initialConfigJsonExpected =
         "{\"name\":\"MyTestAgentServer-0001\"," +
             "\"software\":\"s0\",\"version\":\"0.1.0\"," +
@@ -2318,7 +2386,32 @@ public class AgentAppServerTest extends AgentServerTestBase {
             "\"minimum_host_mail_access_interval\": \"2000\"," +
             "\"minimum_address_mail_access_interval\": \"10000\"," +
             "\"admin_approve_user_create\": \"false\"," +
-            "\"mail_confirm_user_create\": \"false\"}";
+            "\"mail_confirm_user_create\": \"false\"," +
+            "\"scheduler_thread_pool_size\": \"8\"," +
+            "\"scheduler_thread_pool_type\": \"fixed\"," +
+            "\"scheduler_queue_type\": \"heap\"," +
+            "\"scheduler_default_user_weight\": \"1\"," +
+            "\"scheduler_default_user_max_concurrency\": \"0\"," +
+            "\"activity_deadline\": \"300000\"," +
+            "\"activity_deadline_run_script\": \"300000\"," +
+            "\"activity_deadline_timer\": \"60000\"," +
+            "\"activity_deadline_condition\": \"60000\"," +
+            "\"activity_deadline_inputs_changed\": \"60000\"," +
+            "\"activity_deadline_notification\": \"60000\"," +
+            "\"scheduler_journal_interval\": \"5000\"," +
+            "\"scheduler_catch_up_window\": \"10000\"," +
+            "\"scheduler_shards\": \"1\"," +
+            "\"scheduler_clock\": \"system\"," +
+            "\"scheduler_priority_aging\": \"1000\"," +
+            "\"scheduler_max_queued\": \"100000\"," +
+            "\"scheduler_max_queued_per_user\": \"10000\"," +
+            "\"scheduler_max_queued_per_agent\": \"1000\"," +
+            "\"scheduler_queue_low_watermark\": \"75\"," +
+            "\"scheduler_overload_policy\": \"reject\"," +
+            "\"script_cache_size\": \"1000\"," +
+            "\"script_compile_threshold\": \"50\"," +
+            "\"script_optimize\": \"true\"," +
+            "\"regex_cache_size\": \"500\"}";
     assertJsonSourceEquals("config JSON", initialConfigJsonExpected, configJson.toString());
 
     // Try update without password - should fail
@@ -2403,7 +2496,32 @@ public class AgentAppServerTest extends AgentServerTestBase {
             "\"minimum_host_mail_access_interval\": \"2000\"," +
             "\"minimum_address_mail_access_interval\": \"10000\"," +
             "\"admin_approve_user_create\": \"false\"," +
-            "\"mail_confirm_user_create\": \"false\"}";
+            "\"mail_confirm_user_create\": \"false\"," +
+            "\"scheduler_thread_pool_size\": \"8\"," +
+            "\"scheduler_thread_pool_type\": \"fixed\"," +
+            "\"scheduler_queue_type\": \"heap\"," +
+            "\"scheduler_default_user_weight\": \"1\"," +
+            "\"scheduler_default_user_max_concurrency\": \"0\"," +
+            "\"activity_deadline\": \"300000\"," +
+            "\"activity_deadline_run_script\": \"300000\"," +
+            "\"activity_deadline_timer\": \"60000\"," +
+            "\"activity_deadline_condition\": \"60000\"," +
+            "\"activity_deadline_inputs_changed\": \"60000\"," +
+            "\"activity_deadline_notification\": \"60000\"," +
+            "\"scheduler_journal_interval\": \"5000\"," +
+            "\"scheduler_catch_up_window\": \"10000\"," +
+            "\"scheduler_shards\": \"1\"," +
+            "\"scheduler_clock\": \"system\"," +
+            "\"scheduler_priority_aging\": \"1000\"," +
+            "\"scheduler_max_queued\": \"100000\"," +
+            "\"scheduler_max_queued_per_user\": \"10000\"," +
+            "\"scheduler_max_queued_per_agent\": \"1000\"," +
+            "\"scheduler_queue_low_watermark\": \"75\"," +
+            "\"scheduler_overload_policy\": \"reject\"," +
+            "\"script_cache_size\": \"1000\"," +
+            "\"script_compile_threshold\": \"50\"," +
+            "\"script_optimize\": \"true\"," +
+            "\"regex_cache_size\": \"500\"}";
     assertJsonSourceEquals("config JSON", someUpdatedConfigJsonExpected, configJson.toString());
     
     // Update all values
@@ -2446,7 +2564,32 @@ public class AgentAppServerTest extends AgentServerTestBase {
     		"\"minimum_host_mail_access_interval\": \"4400\"," +
     		"\"minimum_address_mail_access_interval\": \"44000\"," +
     		"\"admin_approve_user_create\": \"true\"," +
-    		"\"mail_confirm_user_create\": \"true\"}";
+    		"\"mail_confirm_user_create\": \"true\"," +
+    		"\"scheduler_thread_pool_size\": \"8\"," +
+    		"\"scheduler_thread_pool_type\": \"fixed\"," +
+    		"\"scheduler_queue_type\": \"heap\"," +
+    		"\"scheduler_default_user_weight\": \"1\"," +
+    		"\"scheduler_default_user_max_concurrency\": \"0\"," +
+    		"\"activity_deadline\": \"300000\"," +
+    		"\"activity_deadline_run_script\": \"300000\"," +
+    		"\"activity_deadline_timer\": \"60000\"," +
+    		"\"activity_deadline_condition\": \"60000\"," +
+    		"\"activity_deadline_inputs_changed\": \"60000\"," +
+    		"\"activity_deadline_notification\": \"60000\"," +
+    		"\"scheduler_journal_interval\": \"5000\"," +
+    		"\"scheduler_catch_up_window\": \"10000\"," +
+    		"\"scheduler_shards\": \"1\"," +
+    		"\"scheduler_clock\": \"system\"," +
+    		"\"scheduler_priority_aging\": \"1000\"," +
+    		"\"scheduler_max_queued\": \"100000\"," +
+    		"\"scheduler_max_queued_per_user\": \"10000\"," +
+    		"\"scheduler_max_queued_per_agent\": \"1000\"," +
+    		"\"scheduler_queue_low_watermark\": \"75\"," +
+    		"\"scheduler_overload_policy\": \"reject\"," +
+    		"\"script_cache_size\": \"1000\"," +
+    		"\"script_compile_threshold\": \"50\"," +
+    		"\"script_optimize\": \"true\"," +
+    		"\"regex_cache_size\": \"500\"}";
     assertJsonSourceEquals("config JSON", allUpdatedConfigJsonExpected, configJson.toString());
     
     // Restart server and verify that config settings were persisted
@@ -2464,6 +2607,196 @@ public class AgentAppServerTest extends AgentServerTestBase {
     assertJsonSourceEquals("config JSON", initialConfigJsonExpected, configJson.toString());
   }
   
+  @Test
+  public void testScriptCache() throws Exception {
+    // Setup common info
+    String baseUrl = AgentAppServer.appServerApiBaseUrl;
+    String url = baseUrl + "/script_cache?password=" + server.agentServer.getAdminPassword();
+
+    // Cache statistics are only for the admin
+    doGetJson(baseUrl + "/script_cache", 400);
+    JSONObject cacheJson = doGetJson(url, 200);
+    assertEquals("capacity", ScriptCache.DEFAULT_CAPACITY, cacheJson.getInt("capacity"));
+    long initialHits = cacheJson.getLong("hits");
+
+    // Create an agent whose timer runs the same script over and over
+    doPostJson(baseUrl + "/users?id=test-user-1&password=test-pwd-1", "{}", 201);
+    doPostJson(baseUrl + "/users/test-user-1/agent_definitions?password=test-pwd-1",
+        "{\"user\": \"test-user-1\", \"name\": \"TimerAgent\", " +
+            "\"timers\": [{\"name\": \"t1\", \"interval\": 20, \"script\": \"return 2;\"}]" +
+            "}", 201);
+    doPostJson(baseUrl + "/users/test-user-1/agents?password=test-pwd-1",
+        "{\"user\": \"test-user-1\", \"name\": \"TimerAgent\", \"definition\": \"TimerAgent\"}", 201);
+
+    // Let the timer fire a few times
+    Thread.sleep(300);
+
+    // Only the first run should have parsed the timer script
+    cacheJson = doGetJson(url, 200);
+    assertTrue("Cache size", cacheJson.getInt("size") > 0);
+    assertTrue("No cache hits", cacheJson.getLong("hits") > initialHits + 2);
+    assertTrue("No cache misses", cacheJson.getLong("misses") > 0);
+    assertTrue("hit_ratio is not present", cacheJson.has("hit_ratio"));
+    assertTrue("evictions is not present", cacheJson.has("evictions"));
+    assertTrue("invalidations is not present", cacheJson.has("invalidations"));
+
+    // Deleting the agent definition discards the parse trees of its instances
+    doDeleteJson(baseUrl + "/users/test-user-1/agents/TimerAgent?password=test-pwd-1", 204);
+    doDeleteJson(baseUrl + "/users/test-user-1/agent_definitions/TimerAgent?password=test-pwd-1", 204);
+    cacheJson = doGetJson(url, 200);
+    assertTrue("No invalidations", cacheJson.getLong("invalidations") > 0);
+  }
+
+  @Test
+  public void testScriptMethods() throws Exception {
+    JSONObject methodsJson = doGetJson(AgentAppServer.appServerApiBaseUrl + "/script_methods", 200);
+    JSONArray typesJson = methodsJson.getJSONArray("types");
+    JSONObject stringJson = null;
+    for (int i = 0; i < typesJson.length(); i++)
+      if (typesJson.getJSONObject(i).getString("type").equals("string"))
+        stringJson = typesJson.getJSONObject(i);
+    assertTrue("No methods for string", stringJson != null);
+    assertEquals("inherits", "object", stringJson.getString("inherits"));
+    JSONArray stringMethodsJson = stringJson.getJSONArray("methods");
+    JSONObject afterJson = null;
+    for (int i = 0; i < stringMethodsJson.length(); i++)
+      if (stringMethodsJson.getJSONObject(i).getString("name").equals("after"))
+        afterJson = stringMethodsJson.getJSONObject(i);
+    assertTrue("No after method for string", afterJson != null);
+    assertEquals("min_args", 1, afterJson.getInt("min_args"));
+    assertEquals("max_args", 2, afterJson.getInt("max_args"));
+  }
+
+  @Test
+  public void testRegexCache() throws Exception {
+    // Setup common info
+    String baseUrl = AgentAppServer.appServerApiBaseUrl;
+    String url = baseUrl + "/regex_cache?password=" + server.agentServer.getAdminPassword();
+
+    // Cache statistics are only for the admin
+    doGetJson(baseUrl + "/regex_cache", 400);
+    JSONObject cacheJson = doGetJson(url, 200);
+    assertEquals("capacity", PatternCache.DEFAULT_CAPACITY, cacheJson.getInt("capacity"));
+    long initialHits = cacheJson.getLong("hits");
+
+    // Create an agent whose timer matches the same computed pattern over and over
+    doPostJson(baseUrl + "/users?id=test-user-1&password=test-pwd-1", "{}", 201);
+    doPostJson(baseUrl + "/users/test-user-1/agent_definitions?password=test-pwd-1",
+        "{\"user\": \"test-user-1\", \"name\": \"RegexAgent\", " +
+            "\"timers\": [{\"name\": \"t1\", \"interval\": 20, " +
+            "\"script\": \"string p = 'a+'; return 'aaab'.afterRegex(p);\"}]" +
+            "}", 201);
+    doPostJson(baseUrl + "/users/test-user-1/agents?password=test-pwd-1",
+        "{\"user\": \"test-user-1\", \"name\": \"RegexAgent\", \"definition\": \"RegexAgent\"}", 201);
+
+    // Let the timer fire a few times
+    Thread.sleep(300);
+
+    // Only the first run should have compiled the pattern
+    cacheJson = doGetJson(url, 200);
+    assertTrue("Cache size", cacheJson.getInt("size") > 0);
+    assertTrue("No cache hits", cacheJson.getLong("hits") >= initialHits + 2);
+    assertTrue("hit_ratio is not present", cacheJson.has("hit_ratio"));
+    assertTrue("evictions is not present", cacheJson.has("evictions"));
+  }
+
+  @Test
+  public void testScriptTree() throws Exception {
+    // Setup common info
+    String baseUrl = AgentAppServer.appServerApiBaseUrl;
+    String url = baseUrl + "/script_tree?password=" + server.agentServer.getAdminPassword();
+
+    // Parse trees are only for the admin, and need something to parse
+    doGetJson(baseUrl + "/script_tree?expression=1", 400);
+    doGetJson(url, 400);
+    doGetJson(url + "&expression=1&script=return", 400);
+    doGetJson(url + "&expression=1+%2B", 400);
+
+    // Constants are folded by default
+    JSONObject treeJson = doGetJson(url + "&expression=minutes(1)+%2B+seconds(1)", 200);
+    assertEquals("optimized", true, treeJson.getBoolean("optimized"));
+    assertEquals("node", "IntegerValue", treeJson.getJSONObject("tree").getString("node"));
+    assertEquals("value", "61000", treeJson.getJSONObject("tree").getString("value"));
+
+    // Unless asked not to
+    treeJson = doGetJson(url + "&expression=minutes(1)+%2B+seconds(1)&optimize=false", 200);
+    assertEquals("optimized", false, treeJson.getBoolean("optimized"));
+    assertEquals("node", "AddNode", treeJson.getJSONObject("tree").getString("node"));
+
+    // Dead statements are dropped from scripts
+    treeJson = doGetJson(url + "&script=if+(false)+return+1%3B+return+2%3B", 200);
+    assertEquals("node", "ScriptNode", treeJson.getJSONObject("tree").getString("node"));
+    JSONArray statementsJson = treeJson.getJSONObject("tree").getJSONObject("blockNode").getJSONArray("statementSequence");
+    assertEquals("statements", 1, statementsJson.length());
+    assertEquals("statement", "ReturnStatementNode", statementsJson.getJSONObject(0).getString("node"));
+  }
+
+  @Test
+  public void testSchedulerMetrics() throws Exception {
+    // Setup common info
+    String baseUrl = AgentAppServer.appServerApiBaseUrl;
+    String url = baseUrl + "/scheduler/metrics?password=" + server.agentServer.getAdminPassword();
+
+    // Metrics are only for the admin
+    doGetJson(baseUrl + "/scheduler/metrics", 400);
+
+    // Nothing has run yet
+    JSONObject metricsJson = doGetJson(url, 200);
+    assertEquals("status", "running", metricsJson.getString("status"));
+    assertEquals("completed", 0, metricsJson.getInt("completed"));
+    assertEquals("Timer dispatch lag count", 0, metricsJson.getJSONObject("dispatch_lag").getJSONObject("timer").getLong("count"));
+    assertEquals("user_activities", 0, metricsJson.getJSONObject("user_activities").length());
+
+    // Create an agent with an 'init' script and a fast timer
+    doPostJson(baseUrl + "/users?id=test-user-1&password=test-pwd-1", "{}", 201);
+    doPostJson(baseUrl + "/users/test-user-1/agent_definitions?password=test-pwd-1",
+        "{\"user\": \"test-user-1\", \"name\": \"TimerAgent\", " +
+            "\"scripts\": [{\"name\": \"init\", \"script\": \"return 1;\"}], " +
+            "\"timers\": [{\"name\": \"t1\", \"interval\": 20, \"script\": \"return 2;\"}]" +
+            "}", 201);
+    doPostJson(baseUrl + "/users/test-user-1/agents?password=test-pwd-1",
+        "{\"user\": \"test-user-1\", \"name\": \"TimerAgent\", \"definition\": \"TimerAgent\"}", 201);
+
+    // Let the timer fire a few times
+    Thread.sleep(300);
+    server.agentServer.agentScheduler.pause();
+    Thread.sleep(100);
+
+    metricsJson = doGetJson(url, 200);
+    assertEquals("status", "paused", metricsJson.getString("status"));
+    assertTrue("queue_depth is not present", metricsJson.has("queue_depth"));
+    assertTrue("wave_size is not present", metricsJson.has("wave_size"));
+    assertTrue("wave_latency is not present", metricsJson.has("wave_latency"));
+    JSONObject dispatchLagJson = metricsJson.getJSONObject("dispatch_lag");
+    JSONObject runTimeJson = metricsJson.getJSONObject("run_time");
+    for (String type: new String[]{"timer", "condition", "inputs_changed", "notification", "init"}){
+      assertTrue("Dispatch lag for " + type + " is not present", dispatchLagJson.has(type));
+      assertTrue("Run time for " + type + " is not present", runTimeJson.has(type));
+    }
+    assertEquals("Init dispatch lag count", 1, dispatchLagJson.getJSONObject("init").getLong("count"));
+    assertEquals("Init run time count", 1, runTimeJson.getJSONObject("init").getLong("count"));
+    long numTimerHits = dispatchLagJson.getJSONObject("timer").getLong("count");
+    assertTrue("Timer did not fire repeatedly: " + numTimerHits, numTimerHits >= 3);
+    JSONObject timerRunTimeJson = runTimeJson.getJSONObject("timer");
+    assertTrue("Timer run time count", timerRunTimeJson.getLong("count") >= numTimerHits - 1);
+    assertTrue("Timer run time percentiles out of order", timerRunTimeJson.getLong("p50") <= timerRunTimeJson.getLong("max"));
+    assertEquals("Condition dispatch lag count", 0, dispatchLagJson.getJSONObject("condition").getLong("count"));
+    assertEquals("User activities", 1 + numTimerHits, metricsJson.getJSONObject("user_activities").getLong("test-user-1"));
+    assertEquals("Agent activities", 1 + numTimerHits, metricsJson.getJSONObject("agent_activities").getLong("test-user-1|TimerAgent"));
+    assertEquals("completed", 1, metricsJson.getInt("completed"));
+    server.agentServer.agentScheduler.resume();
+  }
+
+  String checkPriorityBacklog(JSONObject statusJson) throws Exception {
+    // Nothing is waiting in any priority class
+    assertTrue("priority_backlog is not present", statusJson.has("priority_backlog"));
+    JSONObject backlogJson = statusJson.getJSONObject("priority_backlog");
+    assertEquals("Number of priority classes", AgentActivity.NUM_PRIORITIES, backlogJson.length());
+    for (int i = 0; i < AgentActivity.NUM_PRIORITIES; i++)
+      assertEquals("priority_backlog " + AgentActivity.getPriorityName(i), 0, backlogJson.getInt(AgentActivity.getPriorityName(i)));
+    return backlogJson.toString();
+  }
+
   @Test
   public void testStatus() throws Exception {
     // Setup common info
@@ -2485,8 +2818,9 @@ public class AgentAppServerTest extends AgentServerTestBase {
     assertEquals("num_registered_agents", 0, statusJson.getInt("num_registered_agents"));
     assertTrue("num_active_agents is not present", statusJson.has("num_active_agents"));
     assertEquals("num_active_agents", 0, statusJson.getInt("num_active_agents"));
-    assertEquals("Number of elements in status", 6, statusJson.length());
-    assertEquals("Status JSON", "{\"status\":\"running\",\"since\":\"" + since + "\",\"num_registered_users\":0,\"num_active_users\":0,\"num_registered_agents\":0,\"num_active_agents\":0}", statusJson.toString());
+    assertEquals("Number of elements in status", 8, statusJson.length());
+    String backlog = checkPriorityBacklog(statusJson);
+    assertEquals("Status JSON", "{\"status\":\"running\",\"since\":\"" + since + "\",\"num_registered_users\":0,\"num_active_users\":0,\"num_registered_agents\":0,\"num_active_agents\":0,\"user_scheduling\":[],\"priority_backlog\":" + backlog + "}", statusJson.toString());
 
     // Test status for paused server
     url = baseUrl + "/status/pause?password=" + server.agentServer.getAdminPassword();
@@ -2507,7 +2841,8 @@ public class AgentAppServerTest extends AgentServerTestBase {
     assertEquals("num_registered_agents", 0, statusJson.getInt("num_registered_agents"));
     assertTrue("num_active_agents is not present", statusJson.has("num_active_agents"));
     assertEquals("num_active_agents", 0, statusJson.getInt("num_active_agents"));
-    assertEquals("Status JSON", "{\"status\":\"paused\",\"since\":\"" + since + "\",\"num_registered_users\":0,\"num_active_users\":0,\"num_registered_agents\":0,\"num_active_agents\":0}", statusJson.toString());
+    backlog = checkPriorityBacklog(statusJson);
+    assertEquals("Status JSON", "{\"status\":\"paused\",\"since\":\"" + since + "\",\"num_registered_users\":0,\"num_active_users\":0,\"num_registered_agents\":0,\"num_active_agents\":0,\"user_scheduling\":[],\"priority_backlog\":" + backlog + "}", statusJson.toString());
 
     // Test status for resume of paused server
     url = baseUrl + "/status/resume?password=" + server.agentServer.getAdminPassword();
@@ -2528,7 +2863,8 @@ public class AgentAppServerTest extends AgentServerTestBase {
     assertEquals("num_registered_agents", 0, statusJson.getInt("num_registered_agents"));
     assertTrue("num_active_agents is not present", statusJson.has("num_active_agents"));
     assertEquals("num_active_agents", 0, statusJson.getInt("num_active_agents"));
-    assertEquals("Status JSON", "{\"status\":\"running\",\"since\":\"" + since + "\",\"num_registered_users\":0,\"num_active_users\":0,\"num_registered_agents\":0,\"num_active_agents\":0}", statusJson.toString());
+    backlog = checkPriorityBacklog(statusJson);
+    assertEquals("Status JSON", "{\"status\":\"running\",\"since\":\"" + since + "\",\"num_registered_users\":0,\"num_active_users\":0,\"num_registered_agents\":0,\"num_active_agents\":0,\"user_scheduling\":[],\"priority_backlog\":" + backlog + "}", statusJson.toString());
     
     // Test status for shutdown server
     url = baseUrl + "/status/shutdown?password=" + server.agentServer.getAdminPassword();
@@ -2549,7 +2885,8 @@ public class AgentAppServerTest extends AgentServerTestBase {
     assertEquals("num_registered_agents", 0, statusJson.getInt("num_registered_agents"));
     assertTrue("num_active_agents is not present", statusJson.has("num_active_agents"));
     assertEquals("num_active_agents", 0, statusJson.getInt("num_active_agents"));
-    assertEquals("Status JSON", "{\"status\":\"shutdown\",\"since\":\"" + since + "\",\"num_registered_users\":0,\"num_active_users\":0,\"num_registered_agents\":0,\"num_active_agents\":0}", statusJson.toString());
+    backlog = checkPriorityBacklog(statusJson);
+    assertEquals("Status JSON", "{\"status\":\"shutdown\",\"since\":\"" + since + "\",\"num_registered_users\":0,\"num_active_users\":0,\"num_registered_agents\":0,\"num_active_agents\":0,\"user_scheduling\":[],\"priority_backlog\":" + backlog + "}", statusJson.toString());
 
     // Test status after starting server
     url = baseUrl + "/status/start?password=" + server.agentServer.getAdminPassword();
@@ -2570,7 +2907,8 @@ public class AgentAppServerTest extends AgentServerTestBase {
     assertEquals("num_registered_agents", 0, statusJson.getInt("num_registered_agents"));
     assertTrue("num_active_agents is not present", statusJson.has("num_active_agents"));
     assertEquals("num_active_agents", 0, statusJson.getInt("num_active_agents"));
-    assertEquals("Status JSON", "{\"status\":\"running\",\"since\":\"" + since + "\",\"num_registered_users\":0,\"num_active_users\":0,\"num_registered_agents\":0,\"num_active_agents\":0}", statusJson.toString());
+    backlog = checkPriorityBacklog(statusJson);
+    assertEquals("Status JSON", "{\"status\":\"running\",\"since\":\"" + since + "\",\"num_registered_users\":0,\"num_active_users\":0,\"num_registered_agents\":0,\"num_active_agents\":0,\"user_scheduling\":[],\"priority_backlog\":" + backlog + "}", statusJson.toString());
 
     // Test status after restarting server
     url = baseUrl + "/status/restart?password=" + server.agentServer.getAdminPassword();
@@ -2591,7 +2929,8 @@ public class AgentAppServerTest extends AgentServerTestBase {
     assertEquals("num_registered_agents", 0, statusJson.getInt("num_registered_agents"));
     assertTrue("num_active_agents is not present", statusJson.has("num_active_agents"));
     assertEquals("num_active_agents", 0, statusJson.getInt("num_active_agents"));
-    assertEquals("Status JSON", "{\"status\":\"running\",\"since\":\"" + since + "\",\"num_registered_users\":0,\"num_active_users\":0,\"num_registered_agents\":0,\"num_active_agents\":0}", statusJson.toString());
+    backlog = checkPriorityBacklog(statusJson);
+    assertEquals("Status JSON", "{\"status\":\"running\",\"since\":\"" + since + "\",\"num_registered_users\":0,\"num_active_users\":0,\"num_registered_agents\":0,\"num_active_agents\":0,\"user_scheduling\":[],\"priority_backlog\":" + backlog + "}", statusJson.toString());
 
   }
   
@@ -2674,7 +3013,7 @@ public class AgentAppServerTest extends AgentServerTestBase {
     JSONObject statusJson = doGetJson(url, 200);
     assertTrue("Response entity is missing", statusJson != null);
     String since = DateUtils.toRfcString(server.agentServer.startTime);
-    assertEquals("Status JSON", "{\"status\":\"running\",\"since\":\"" + since + "\",\"num_registered_users\":1,\"num_active_users\":0,\"num_registered_agents\":2,\"num_active_agents\":0}", statusJson.toString());
+    assertEquals("Status JSON", "{\"status\":\"running\",\"since\":\"" + since + "\",\"num_registered_users\":1,\"num_active_users\":0,\"num_registered_agents\":2,\"num_active_agents\":0,\"user_scheduling\":[],\"priority_backlog\":" + checkPriorityBacklog(statusJson) + "}", statusJson.toString());
 
     // Check query of agent definitions
     url = baseUrl + "/users/test-user/agent_definitions/test-definition/status?password=test-pwd";
@@ -2801,7 +3140,7 @@ public class AgentAppServerTest extends AgentServerTestBase {
     JSONObject statusJson = doGetJson(url, 200);
     assertTrue("Response entity is missing", statusJson != null);
     String since = DateUtils.toRfcString(server.agentServer.startTime);
-    assertEquals("Status JSON", "{\"status\":\"running\",\"since\":\"" + since + "\",\"num_registered_users\":3,\"num_active_users\":3,\"num_registered_agents\":6,\"num_active_agents\":12}", statusJson.toString());
+    assertEquals("Status JSON", "{\"status\":\"running\",\"since\":\"" + since + "\",\"num_registered_users\":3,\"num_active_users\":3,\"num_registered_agents\":6,\"num_active_agents\":12,\"user_scheduling\":[],\"priority_backlog\":" + checkPriorityBacklog(statusJson) + "}", statusJson.toString());
 
     // Check all agent definitions for all users
     url = baseUrl + "/agent_definitions?password=abracadabra";
@@ -3446,7 +3785,7 @@ public class AgentAppServerTest extends AgentServerTestBase {
     statusJson = doGetJson(url, 200);
     assertTrue("Response entity is missing", statusJson != null);
     since = DateUtils.toRfcString(server.agentServer.startTime);
-    assertEquals("Status JSON", "{\"status\":\"running\",\"since\":\"" + since + "\",\"num_registered_users\":3,\"num_active_users\":3,\"num_registered_agents\":6,\"num_active_agents\":9}", statusJson.toString());
+    assertEquals("Status JSON", "{\"status\":\"running\",\"since\":\"" + since + "\",\"num_registered_users\":3,\"num_active_users\":3,\"num_registered_agents\":6,\"num_active_agents\":9,\"user_scheduling\":[],\"priority_backlog\":" + checkPriorityBacklog(statusJson) + "}", statusJson.toString());
 
     // Test remove of two more instances from each user
     statusJson = doDeleteJson(baseUrl + "/users/test-user-1/agents/test-instance-3?password=test-pwd-1", 204);
@@ -3472,7 +3811,7 @@ public class AgentAppServerTest extends AgentServerTestBase {
     statusJson = doGetJson(url, 200);
     assertTrue("Response entity is missing", statusJson != null);
     since = DateUtils.toRfcString(server.agentServer.startTime);
-    assertEquals("Status JSON", "{\"status\":\"running\",\"since\":\"" + since + "\",\"num_registered_users\":3,\"num_active_users\":3,\"num_registered_agents\":6,\"num_active_agents\":3}", statusJson.toString());
+    assertEquals("Status JSON", "{\"status\":\"running\",\"since\":\"" + since + "\",\"num_registered_users\":3,\"num_active_users\":3,\"num_registered_agents\":6,\"num_active_agents\":3,\"user_scheduling\":[],\"priority_backlog\":" + checkPriorityBacklog(statusJson) + "}", statusJson.toString());
 
     // Check actual remaining instance names
     url = baseUrl + "/agents?password=abracadabra";
@@ -3514,7 +3853,7 @@ public class AgentAppServerTest extends AgentServerTestBase {
     statusJson = doGetJson(url, 200);
     assertTrue("Response entity is missing", statusJson != null);
     since = DateUtils.toRfcString(server.agentServer.startTime);
-    assertEquals("Status JSON", "{\"status\":\"running\",\"since\":\"" + since + "\",\"num_registered_users\":3,\"num_active_users\":0,\"num_registered_agents\":6,\"num_active_agents\":0}", statusJson.toString());
+    assertEquals("Status JSON", "{\"status\":\"running\",\"since\":\"" + since + "\",\"num_registered_users\":3,\"num_active_users\":0,\"num_registered_agents\":6,\"num_active_agents\":0,\"user_scheduling\":[],\"priority_backlog\":" + checkPriorityBacklog(statusJson) + "}", statusJson.toString());
 
   }
 
@@ -3698,7 +4037,7 @@ public class AgentAppServerTest extends AgentServerTestBase {
     // Get agent server status
     JSONObject serverStatusJson = doGetJson(baseUrl + "/status", 200);
     String since = DateUtils.toRfcString(server.agentServer.startTime);
-    assertEquals("Server status", "{\"status\":\"running\",\"since\":\"" + since + "\",\"num_registered_users\":1,\"num_active_users\":1,\"num_registered_agents\":1,\"num_active_agents\":1}", serverStatusJson.toString());
+    assertEquals("Server status", "{\"status\":\"running\",\"since\":\"" + since + "\",\"num_registered_users\":1,\"num_active_users\":1,\"num_registered_agents\":1,\"num_active_agents\":1,\"user_scheduling\":[],\"priority_backlog\":" + checkPriorityBacklog(serverStatusJson) + "}", serverStatusJson.toString());
 
     // Shut down the server
     server.shutdown();
@@ -3727,7 +4066,7 @@ public class AgentAppServerTest extends AgentServerTestBase {
     // Make sure agent server status is unchanged
     serverStatusJson = doGetJson(baseUrl + "/status", 200);
     since = DateUtils.toRfcString(server.agentServer.startTime);
-    assertEquals("Server status", "{\"status\":\"running\",\"since\":\"" + since + "\",\"num_registered_users\":1,\"num_active_users\":1,\"num_registered_agents\":1,\"num_active_agents\":1}", serverStatusJson.toString());
+    assertEquals("Server status", "{\"status\":\"running\",\"since\":\"" + since + "\",\"num_registered_users\":1,\"num_active_users\":1,\"num_registered_agents\":1,\"num_active_agents\":1,\"user_scheduling\":[],\"priority_backlog\":" + checkPriorityBacklog(serverStatusJson) + "}", serverStatusJson.toString());
     
     // Make sure user still exists
     JSONObject userJson = doGetJson(baseUrl + "/users/test-user-1?password=test-pwd-1", 200);
@@ -3774,7 +4113,7 @@ public class AgentAppServerTest extends AgentServerTestBase {
     // Check to see that server status is updated for new object
     serverStatusJson = doGetJson(baseUrl + "/status", 200);
     since = DateUtils.toRfcString(server.agentServer.startTime);
-    assertEquals("Server status", "{\"status\":\"running\",\"since\":\"" + since + "\",\"num_registered_users\":3,\"num_active_users\":2,\"num_registered_agents\":3,\"num_active_agents\":4}", serverStatusJson.toString());
+    assertEquals("Server status", "{\"status\":\"running\",\"since\":\"" + since + "\",\"num_registered_users\":3,\"num_active_users\":2,\"num_registered_agents\":3,\"num_active_agents\":4,\"user_scheduling\":[],\"priority_backlog\":" + checkPriorityBacklog(serverStatusJson) + "}", serverStatusJson.toString());
 
     // Shut down the server
     server.shutdown();
@@ -3803,7 +4142,7 @@ public class AgentAppServerTest extends AgentServerTestBase {
     // Make sure agent server status is unchanged
     serverStatusJson = doGetJson(baseUrl + "/status", 200);
     since = DateUtils.toRfcString(server.agentServer.startTime);
-    assertEquals("Server status", "{\"status\":\"running\",\"since\":\"" + since + "\",\"num_registered_users\":3,\"num_active_users\":2,\"num_registered_agents\":3,\"num_active_agents\":4}", serverStatusJson.toString());
+    assertEquals("Server status", "{\"status\":\"running\",\"since\":\"" + since + "\",\"num_registered_users\":3,\"num_active_users\":2,\"num_registered_agents\":3,\"num_active_agents\":4,\"user_scheduling\":[],\"priority_backlog\":" + checkPriorityBacklog(serverStatusJson) + "}", serverStatusJson.toString());
 
     //TODO: Need state in agent instance JSON
   }
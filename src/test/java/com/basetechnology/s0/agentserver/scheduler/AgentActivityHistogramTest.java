@@ -0,0 +1,116 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.scheduler;
+
+import static org.junit.Assert.*;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import com.basetechnology.s0.agentserver.util.RingBuffer;
+
+public class AgentActivityHistogramTest {
+
+  @Test
+  public void testBuckets() throws Exception {
+    // Small values are exact
+    for (long value = 0; value < AgentActivityHistogram.SUB_BUCKET_COUNT; value++)
+      assertEquals("Bucket high value for " + value, value,
+          AgentActivityHistogram.getBucketHighValue(AgentActivityHistogram.getBucketIndex(value)));
+
+    // Larger values land in a bucket no wider than 1/16 of the value, in order
+    int lastIndex = -1;
+    for (long value = 1; value > 0 && value < Long.MAX_VALUE / 3; value = value * 3 + 1){
+      int index = AgentActivityHistogram.getBucketIndex(value);
+      assertTrue("Bucket index out of range: " + index, index >= 0 && index < AgentActivityHistogram.NUM_BUCKETS);
+      assertTrue("Bucket index out of order for " + value, index > lastIndex);
+      long highValue = AgentActivityHistogram.getBucketHighValue(index);
+      assertTrue("Bucket high value " + highValue + " below " + value, highValue >= value);
+      assertTrue("Bucket high value " + highValue + " too far above " + value, highValue - value <= value / 16);
+      lastIndex = index;
+    }
+    assertEquals("Bucket index of largest value", AgentActivityHistogram.NUM_BUCKETS - 1,
+        AgentActivityHistogram.getBucketIndex(Long.MAX_VALUE));
+    assertEquals("Bucket index of negative value", 0, AgentActivityHistogram.getBucketIndex(-5));
+  }
+
+  @Test
+  public void testPercentiles() throws Exception {
+    AgentActivityHistogram histogram = new AgentActivityHistogram();
+    assertEquals("Empty count", 0, histogram.getCount());
+    assertEquals("Empty median", 0, histogram.getValueAtPercentile(50));
+
+    // Values 1 to 1000
+    for (long value = 1; value <= 1000; value++)
+      histogram.record(value);
+    assertEquals("Count", 1000, histogram.getCount());
+    assertEquals("Max", 1000, histogram.getMax());
+    assertEquals("Mean", 500.5, histogram.getMean(), 0.001);
+    long median = histogram.getValueAtPercentile(50);
+    assertTrue("Median: " + median, median >= 500 && median <= 500 + 500 / 16);
+    long p99 = histogram.getValueAtPercentile(99);
+    assertTrue("99th percentile: " + p99, p99 >= 990 && p99 <= 1000);
+    assertEquals("100th percentile", 1000, histogram.getValueAtPercentile(100));
+
+    JSONObject histogramJson = histogram.toJson();
+    assertEquals("JSON count", 1000, histogramJson.getLong("count"));
+    assertEquals("JSON max", 1000, histogramJson.getLong("max"));
+    assertEquals("JSON median", median, histogramJson.getLong("p50"));
+  }
+
+  @Test
+  public void testConcurrentRecording() throws Exception {
+    // Recording from several threads at once loses no counts
+    final AgentActivityHistogram histogram = new AgentActivityHistogram();
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++){
+      threads[i] = new Thread(){
+        public void run(){
+          for (int j = 0; j < 10000; j++)
+            histogram.record(j % 100);
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread: threads)
+      thread.join();
+    assertEquals("Count", 40000, histogram.getCount());
+    assertEquals("Max", 99, histogram.getMax());
+  }
+
+  @Test
+  public void testRingBuffer() throws Exception {
+    RingBuffer<Integer> ringBuffer = new RingBuffer<Integer>(3);
+    assertEquals("Empty size", 0, ringBuffer.size());
+    ringBuffer.add(1);
+    ringBuffer.add(2);
+    assertEquals("Contents", "[1, 2]", ringBuffer.toString());
+
+    // Oldest entries are overwritten once full
+    ringBuffer.add(3);
+    ringBuffer.add(4);
+    ringBuffer.add(5);
+    assertEquals("Size", 3, ringBuffer.size());
+    assertEquals("Contents", "[3, 4, 5]", ringBuffer.toString());
+    assertEquals("Oldest", 3, ringBuffer.get(0).intValue());
+    assertTrue("Contains newest", ringBuffer.contains(5));
+    assertFalse("Contains dropped", ringBuffer.contains(2));
+
+    ringBuffer.clear();
+    assertEquals("Cleared size", 0, ringBuffer.size());
+  }
+}
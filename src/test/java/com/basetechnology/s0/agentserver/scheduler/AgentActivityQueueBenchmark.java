@@ -0,0 +1,94 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.basetechnology.s0.agentserver.scheduler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.basetechnology.s0.agentserver.AgentServerException;
+import com.basetechnology.s0.agentserver.activities.AgentActivity;
+
+/**
+ * Compares the heap and timing wheel scheduler queues for a large population of periodic
+ * activities, such as agent timers and conditions with second-level intervals.
+ *
+ * Usage: AgentActivityQueueBenchmark [numActivities [simulatedSeconds]]
+ */
+public class AgentActivityQueueBenchmark {
+  static final long TICK = 10;
+
+  static class PeriodicActivity extends AgentActivity {
+    long interval;
+
+    PeriodicActivity(long when, long interval, String description){
+      super(null, when, description);
+      this.interval = interval;
+    }
+  }
+
+  public static void main(String[] args) throws AgentServerException {
+    int numActivities = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    int simulatedSeconds = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+
+    // Run each twice so that the second run is with a warmed up JIT
+    for (int i = 0; i < 2; i++){
+      run(AgentActivityQueue.HEAP_QUEUE_TYPE, numActivities, simulatedSeconds);
+      run(AgentActivityQueue.TIMING_WHEEL_QUEUE_TYPE, numActivities, simulatedSeconds);
+    }
+  }
+
+  static void run(String type, int numActivities, int simulatedSeconds) throws AgentServerException {
+    Random random = new Random(1234);
+    long now = 0;
+    AgentActivityQueue queue = AgentActivityQueue.create(type, now);
+
+    // Periodic activities with intervals from one to ten seconds
+    List<AgentActivity> activities = new ArrayList<AgentActivity>(numActivities);
+    long startTime = System.nanoTime();
+    for (int i = 0; i < numActivities; i++){
+      long interval = 1000 + random.nextInt(9000);
+      AgentActivity activity = new PeriodicActivity(now + interval, interval, "A" + i);
+      activity.sequenceNumber = i;
+      activities.add(activity);
+      queue.add(activity);
+    }
+    long insertTime = System.nanoTime() - startTime;
+
+    // Turn the clock, re-arming each activity in place as it becomes due
+    long numFired = 0;
+    long sequenceNumber = numActivities;
+    startTime = System.nanoTime();
+    long endTime = simulatedSeconds * 1000L;
+    for (now = TICK; now <= endTime; now += TICK)
+      for (AgentActivity activity = queue.pollDue(now); activity != null; activity = queue.pollDue(now)){
+        numFired++;
+        activity.when = now + ((PeriodicActivity)activity).interval;
+        activity.sequenceNumber = sequenceNumber++;
+        queue.add(activity);
+      }
+    long fireTime = System.nanoTime() - startTime;
+
+    // Cancel everything, as when agents are deleted
+    startTime = System.nanoTime();
+    for (AgentActivity activity: activities)
+      queue.remove(activity);
+    long cancelTime = System.nanoTime() - startTime;
+
+    System.out.println(String.format("%-12s %8d activities: insert %7.1f ms, %9d fired in %8.1f ms (%6.0f ns/fire), cancel %8.1f ms",
+        type, numActivities, insertTime / 1e6, numFired, fireTime / 1e6, (double)fireTime / numFired, cancelTime / 1e6));
+  }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.basetechnology.s0.agentserver.scheduler;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.basetechnology.s0.agentserver.activities.AgentActivity;
+
+public class AgentActivityQueueTest {
+
+  List<AgentActivity> drain(AgentActivityQueue queue, long now){
+    List<AgentActivity> activities = new ArrayList<AgentActivity>();
+    for (AgentActivity activity = queue.pollDue(now); activity != null; activity = queue.pollDue(now))
+      activities.add(activity);
+    return activities;
+  }
+
+  void checkQueue(AgentActivityQueue queue, long baseTime){
+    // Nothing queued
+    assertTrue("Queue is not empty", queue.isEmpty());
+    assertEquals("Next due time of empty queue", -1, queue.getNextDueTime());
+    assertEquals("Due activities of empty queue", 0, drain(queue, baseTime).size());
+
+    // Queue activities out of order, including one that is already due
+    AgentActivity activity1 = new AgentActivity(null, baseTime + 100, "A1");
+    AgentActivity activity2 = new AgentActivity(null, baseTime + 30, "A2");
+    AgentActivity activity3 = new AgentActivity(null, 0, "A3");
+    AgentActivity activity4 = new AgentActivity(null, baseTime + 5 * 60 * 1000, "A4");
+    AgentActivity activity5 = new AgentActivity(null, baseTime + 60, "A5");
+    queue.add(activity1);
+    queue.add(activity2);
+    queue.add(activity3);
+    queue.add(activity4);
+    queue.add(activity5);
+    assertEquals("Queue size", 5, queue.size());
+
+    // Only the immediate activity is due now
+    List<AgentActivity> due = drain(queue, baseTime);
+    assertEquals("Due activities", 1, due.size());
+    assertSame("Due activity", activity3, due.get(0));
+    assertTrue("Next due time is too late", queue.getNextDueTime() <= baseTime + 30);
+
+    // Cancel one activity
+    assertTrue("Activity not removed", queue.remove(activity5));
+    assertEquals("Queue size", 3, queue.size());
+
+    // Activities become due in time order, never early
+    assertEquals("Due activities too early", 0, drain(queue, baseTime + 29).size());
+    due = drain(queue, baseTime + 100);
+    assertEquals("Due activities", 2, due.size());
+    assertSame("First due activity", activity2, due.get(0));
+    assertSame("Second due activity", activity1, due.get(1));
+
+    // Far future activity makes it through the higher levels
+    assertEquals("Due activities too early", 0, drain(queue, baseTime + 5 * 60 * 1000 - 1).size());
+    due = drain(queue, baseTime + 5 * 60 * 1000 + 10);
+    assertEquals("Due activities", 1, due.size());
+    assertSame("Far future activity", activity4, due.get(0));
+    assertTrue("Queue is not empty", queue.isEmpty());
+  }
+
+  @Test
+  public void testHeapQueue() throws Exception {
+    checkQueue(AgentActivityQueue.create("heap", 1000000), 1000000);
+  }
+
+  @Test
+  public void testTimingWheel() throws Exception {
+    checkQueue(AgentActivityQueue.create("timing_wheel", 1000000), 1000000);
+  }
+
+  @Test
+  public void testTimingWheelBeyondSpan() throws Exception {
+    // An activity beyond the span of all levels is parked and re-inserted as the wheel turns
+    long baseTime = 0;
+    AgentActivityTimingWheel wheel = new AgentActivityTimingWheel(1, baseTime);
+    long when = baseTime + AgentActivityTimingWheel.MAX_TICKS + 1000;
+    AgentActivity activity = new AgentActivity(null, when, "Far");
+    wheel.add(activity);
+    assertNull("Activity due early", wheel.pollDue(when - 1));
+    assertSame("Activity not due", activity, wheel.pollDue(when));
+    assertTrue("Wheel is not empty", wheel.isEmpty());
+  }
+}
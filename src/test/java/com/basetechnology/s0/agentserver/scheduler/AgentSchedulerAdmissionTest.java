@@ -0,0 +1,198 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.scheduler;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.basetechnology.s0.agentserver.AgentDefinition;
+import com.basetechnology.s0.agentserver.AgentInstance;
+import com.basetechnology.s0.agentserver.AgentServer;
+import com.basetechnology.s0.agentserver.AgentTimer;
+import com.basetechnology.s0.agentserver.User;
+import com.basetechnology.s0.agentserver.activities.AgentActivity;
+import com.basetechnology.s0.agentserver.activities.AgentActivityTimer;
+import com.basetechnology.s0.agentserver.activities.AgentActivityTriggerInputChanged;
+import com.basetechnology.s0.agentserver.appserver.AgentAppServer;
+import com.basetechnology.s0.agentserver.config.AgentServerProperties;
+import com.basetechnology.s0.agentserver.util.Clock;
+
+public class AgentSchedulerAdmissionTest {
+  AgentAppServer agentAppServer;
+  AgentServer agentServer;
+  User user;
+  AgentDefinition agentDefinition;
+
+  @Before
+  public void setUp() throws Exception {
+    File pf = new File(AgentServerProperties.DEFAULT_PERSISTENT_STORE_PATH);
+    pf.delete();
+    assertTrue("Persistent store not deleted: " + AgentServerProperties.DEFAULT_PERSISTENT_STORE_PATH, ! pf.exists());
+
+    agentAppServer = new AgentAppServer();
+    agentServer = agentAppServer.agentServer;
+
+    user = agentServer.addUser("Test-User");
+    agentDefinition = agentServer.addAgentDefinition("{\"user\": \"Test-User\", \"name\": \"TestAgent\", \"enabled\": false}");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (agentAppServer != null)
+      agentAppServer.stop();
+    File pf = new File(AgentServerProperties.DEFAULT_PERSISTENT_STORE_PATH);
+    pf.delete();
+    agentAppServer = null;
+    agentServer = null;
+  }
+
+  AgentSchedulerShard createShard() throws Exception {
+    // Only shard of a scheduler that is never started, so nothing is dispatched behind the test's back
+    AgentScheduler scheduler = new AgentScheduler(agentServer, false);
+    return scheduler.shards[0];
+  }
+
+  AgentInstance createAgent() throws Exception {
+    AgentInstance agent = new AgentInstance(user, agentDefinition, null);
+    agent.enabled = true;
+    return agent;
+  }
+
+  AgentActivity createActivity(AgentInstance agent, int i){
+    // Due well in the future so that it stays queued
+    return new AgentActivity(agent, Clock.now() + 60 * 60 * 1000, "Test activity " + i);
+  }
+
+  @Test
+  public void testWatermarks() throws Exception {
+    AgentAdmissionControl admission = new AgentAdmissionControl();
+    admission.maxQueued = 10;
+    admission.lowWatermark = 50;
+    AgentInstance agent = createAgent();
+
+    // Admitted up to the high watermark
+    for (int i = 0; i < 10; i++)
+      assertTrue("Activity " + i + " not admitted", admission.admit(createActivity(agent, i), false));
+    assertTrue("Not saturated", admission.isSaturated());
+    assertTrue("User not saturated", admission.isSaturated(user.id));
+    assertFalse("Activity admitted while saturated", admission.admit(createActivity(agent, 10), false));
+    assertTrue("Bounded activity not admitted", admission.admit(createActivity(agent, 11), true));
+    assertEquals("Number queued", 11, admission.getNumQueued());
+
+    // Still saturated until the queue drains to the low watermark
+    admission.release(agent, 5);
+    assertTrue("No longer saturated above low watermark", admission.isSaturated());
+    admission.release(agent, 1);
+    assertFalse("Saturated at low watermark", admission.isSaturated());
+    assertEquals("Number queued", 5, admission.getNumQueued());
+    assertTrue("Activity not admitted", admission.admit(createActivity(agent, 12), false));
+  }
+
+  @Test
+  public void testReject() throws Exception {
+    AgentSchedulerShard shard = createShard();
+    AgentAdmissionControl admission = shard.scheduler.admission;
+    admission.maxQueuedPerAgent = 4;
+    AgentInstance agent = createAgent();
+    AgentInstance otherAgent = createAgent();
+
+    // Agent may only queue up to its own limit
+    for (int i = 0; i < 4; i++)
+      assertTrue("Activity " + i + " not queued", shard.add(createActivity(agent, i)));
+    assertTrue("Agent not saturated", admission.isSaturated(agent));
+    assertFalse("Server saturated", admission.isSaturated());
+    assertFalse("Activity queued past agent limit", shard.add(createActivity(agent, 4)));
+    assertFalse("Activity queued past agent limit", shard.add(createActivity(agent, 5)));
+    assertEquals("Number of scheduled activities", 4, shard.getNumScheduledActivities());
+    assertEquals("Number rejected", 2, admission.getNumRejected());
+
+    // Each rejection is recorded for the agent
+    assertEquals("Number of agent exceptions", 2, agent.exceptionHistory.size());
+    assertEquals("Exception type", "activity", agent.exceptionHistory.get(0).scriptName);
+    assertTrue("Exception message: " + agent.exceptionHistory.get(0).message,
+        agent.exceptionHistory.get(0).message.startsWith("Activity rejected since the scheduler queue is saturated"));
+
+    // Other agents and timers are not held back
+    assertTrue("Activity of other agent not queued", shard.add(createActivity(otherAgent, 0)));
+    AgentTimer timer = AgentTimer.fromJson("{\"name\": \"t1\", \"interval\": 3600000}");
+    assertTrue("Timer not queued", shard.add(new AgentActivityTimer(agent, timer)));
+
+    // Flushing the agent's activities lets it queue again
+    shard.flushAgentActivities(agent);
+    assertFalse("Agent still saturated", admission.isSaturated(agent));
+    assertTrue("Activity not queued", shard.add(createActivity(agent, 6)));
+
+    // Counts are reported with the scheduler metrics
+    JSONObject metricsJson = shard.scheduler.getMetricsJson();
+    JSONObject admissionJson = metricsJson.getJSONObject("admission");
+    assertEquals("Queued", 2, admissionJson.getInt("queued"));
+    assertFalse("Saturated", admissionJson.getBoolean("saturated"));
+    assertEquals("Rejected", 2, admissionJson.getLong("rejected"));
+    assertEquals("Deferred", 0, admissionJson.getLong("deferred"));
+    assertEquals("Dropped", 0, admissionJson.getLong("dropped"));
+  }
+
+  @Test
+  public void testDefer() throws Exception {
+    AgentSchedulerShard shard = createShard();
+    AgentAdmissionControl admission = shard.scheduler.admission;
+    admission.maxQueued = 2;
+    admission.overloadPolicy = AgentAdmissionControl.DEFER_POLICY;
+    AgentInstance agent = createAgent();
+
+    // Once saturated, new activities are held back rather than turned away
+    assertTrue("Activity not queued", shard.add(new AgentActivity(agent, 0, "Test activity 0")));
+    assertTrue("Activity not queued", shard.add(new AgentActivity(agent, 0, "Test activity 1")));
+    assertTrue("Saturated", admission.isSaturated());
+    long now = Clock.now();
+    AgentActivity activity = new AgentActivity(agent, 0, "Test activity 2");
+    assertTrue("Activity not queued", shard.add(activity));
+    assertTrue("Activity not deferred", activity.when >= now + admission.retryInterval);
+    assertEquals("Number deferred", 1, admission.getNumDeferred());
+    assertEquals("Number of agent exceptions", 0, agent.exceptionHistory.size());
+  }
+
+  @Test
+  public void testDropOldestInputChanged() throws Exception {
+    AgentSchedulerShard shard = createShard();
+    AgentAdmissionControl admission = shard.scheduler.admission;
+    admission.maxQueuedPerAgent = 2;
+    AgentInstance agent = createAgent();
+    AgentInstance[] dataSources = new AgentInstance[3];
+    for (int i = 0; i < dataSources.length; i++)
+      dataSources[i] = createAgent();
+
+    // A newer input-changed trigger replaces the agent's oldest pending one once saturated
+    synchronized (shard){
+      for (AgentInstance dataSource: dataSources)
+        shard.mergeInputChanged(new AgentActivityTriggerInputChanged(agent, dataSource, 60 * 1000));
+      assertEquals("Number of pending input-changed activities", 2, agent.pendingInputChanged.size());
+      assertFalse("Oldest trigger not dropped", agent.pendingInputChanged.containsKey(dataSources[0]));
+      assertTrue("Newest trigger dropped", agent.pendingInputChanged.containsKey(dataSources[2]));
+      assertEquals("Number of scheduled activities", 2, shard.getNumScheduledActivities());
+      assertEquals("Number dropped", 1, admission.getNumDropped());
+      assertEquals("Number rejected", 0, admission.getNumRejected());
+      assertEquals("Number queued for agent", 2, admission.getNumQueued(agent));
+    }
+  }
+}
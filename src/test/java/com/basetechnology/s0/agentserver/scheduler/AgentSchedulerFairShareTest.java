@@ -0,0 +1,196 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.scheduler;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.basetechnology.s0.agentserver.AgentDefinition;
+import com.basetechnology.s0.agentserver.AgentInstance;
+import com.basetechnology.s0.agentserver.AgentServer;
+import com.basetechnology.s0.agentserver.User;
+import com.basetechnology.s0.agentserver.activities.AgentActivity;
+import com.basetechnology.s0.agentserver.appserver.AgentAppServer;
+import com.basetechnology.s0.agentserver.config.AgentServerProperties;
+
+public class AgentSchedulerFairShareTest {
+  AgentAppServer agentAppServer;
+  AgentServer agentServer;
+  User heavyUser;
+  User lightUser;
+  AgentDefinition heavyDef;
+  AgentDefinition lightDef;
+
+  @Before
+  public void setUp() throws Exception {
+    File pf = new File(AgentServerProperties.DEFAULT_PERSISTENT_STORE_PATH);
+    pf.delete();
+    assertTrue("Persistent store not deleted: " + AgentServerProperties.DEFAULT_PERSISTENT_STORE_PATH, ! pf.exists());
+
+    agentAppServer = new AgentAppServer();
+    agentServer = agentAppServer.agentServer;
+
+    heavyUser = agentServer.addUser("Heavy-User");
+    lightUser = agentServer.addUser("Light-User");
+    heavyDef = agentServer.addAgentDefinition("{\"user\": \"Heavy-User\", \"name\": \"HeavyAgent\", \"enabled\": false}");
+    lightDef = agentServer.addAgentDefinition("{\"user\": \"Light-User\", \"name\": \"LightAgent\", \"enabled\": false}");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (agentAppServer != null)
+      agentAppServer.stop();
+    File pf = new File(AgentServerProperties.DEFAULT_PERSISTENT_STORE_PATH);
+    pf.delete();
+    agentAppServer = null;
+    agentServer = null;
+  }
+
+  AgentSchedulerShard createShard(int numWorkers) throws Exception {
+    // Only shard of a scheduler that is never started, so the test drives delivery and dispatch itself
+    agentServer.config.put("scheduler_shards", "1");
+    AgentScheduler scheduler = new AgentScheduler(agentServer, false);
+    assertEquals("Number of shards", 1, scheduler.getNumShards());
+    AgentSchedulerShard shard = scheduler.shards[0];
+    shard.threadPool = new AgentActivityThreadPool(AgentActivityThreadPool.FIXED_THREAD_POOL_TYPE, numWorkers);
+    return shard;
+  }
+
+  void deliver(AgentSchedulerShard shard, User user, AgentDefinition agentDefinition, int numAgents) throws Exception {
+    for (int i = 0; i < numAgents; i++){
+      AgentInstance agent = new AgentInstance(user, agentDefinition, null);
+      agent.enabled = true;
+      shard.deliver(new AgentActivity(agent, 0, "Test activity " + i));
+    }
+  }
+
+  String dispatchOrder(AgentSchedulerShard shard){
+    // Users of the dispatched activities, in the order they were dispatched
+    StringBuilder order = new StringBuilder();
+    for (AgentActivity activity: shard.activeActivities)
+      order.append(activity.agent.user == heavyUser ? 'H' : 'L');
+    return order.toString();
+  }
+
+  @Test
+  public void testWeightedShare() throws Exception {
+    heavyUser.schedulerWeight = 3;
+    AgentSchedulerShard shard = createShard(8);
+    synchronized (shard){
+      deliver(shard, heavyUser, heavyDef, 8);
+      deliver(shard, lightUser, lightDef, 8);
+      shard.dispatchReady();
+
+      // Heavy user gets three workers for each one of the light user
+      assertEquals("Dispatch order", "HHHLHHHL", dispatchOrder(shard));
+
+      // Both users report their share and remaining backlog
+      JSONArray usersJson = shard.scheduler.getUserSchedulingJson();
+      assertEquals("Number of users", 2, usersJson.length());
+      JSONObject heavyJson = usersJson.getJSONObject(0);
+      assertEquals("user", "Heavy-User", heavyJson.getString("user"));
+      assertEquals("weight", 3, heavyJson.getInt("weight"));
+      assertEquals("share", 0.75, heavyJson.getDouble("share"), 0.001);
+      assertEquals("active", 6, heavyJson.getInt("active"));
+      assertEquals("backlog", 2, heavyJson.getInt("backlog"));
+      JSONObject lightJson = usersJson.getJSONObject(1);
+      assertEquals("user", "Light-User", lightJson.getString("user"));
+      assertEquals("weight", 1, lightJson.getInt("weight"));
+      assertEquals("share", 0.25, lightJson.getDouble("share"), 0.001);
+      assertEquals("active", 2, lightJson.getInt("active"));
+      assertEquals("backlog", 6, lightJson.getInt("backlog"));
+    }
+    shard.threadPool.shutdown();
+  }
+
+  @Test
+  public void testMaxConcurrency() throws Exception {
+    heavyUser.schedulerWeight = 3;
+    heavyUser.schedulerMaxConcurrency = 2;
+    AgentSchedulerShard shard = createShard(8);
+    synchronized (shard){
+      deliver(shard, heavyUser, heavyDef, 8);
+      deliver(shard, lightUser, lightDef, 8);
+      shard.dispatchReady();
+
+      // Heavy user is held to two workers, so the light user gets the rest
+      assertEquals("Dispatch order", "HHLLLLLL", dispatchOrder(shard));
+      assertEquals("Heavy user active", 2, shard.getUserQueue(heavyUser).numActive);
+    }
+    shard.threadPool.shutdown();
+  }
+
+  @Test
+  public void testMaxConcurrencyAcrossShards() throws Exception {
+    heavyUser.schedulerMaxConcurrency = 3;
+    agentServer.config.put("scheduler_shards", "2");
+    AgentScheduler scheduler = new AgentScheduler(agentServer, false);
+    assertEquals("Number of shards", 2, scheduler.getNumShards());
+    AgentSchedulerShard shard0 = scheduler.shards[0];
+    AgentSchedulerShard shard1 = scheduler.shards[1];
+    shard0.threadPool = new AgentActivityThreadPool(AgentActivityThreadPool.FIXED_THREAD_POOL_TYPE, 4);
+    shard1.threadPool = new AgentActivityThreadPool(AgentActivityThreadPool.FIXED_THREAD_POOL_TYPE, 4);
+    synchronized (shard0){
+      synchronized (shard1){
+        // Heavy user has agents on both shards, light user only on the second
+        deliver(shard0, heavyUser, heavyDef, 4);
+        deliver(shard1, heavyUser, heavyDef, 4);
+        deliver(shard1, lightUser, lightDef, 4);
+        shard0.dispatchReady();
+        shard1.dispatchReady();
+
+        // Heavy user's limit applies to its activities on all shards together
+        assertEquals("Shard 0 dispatch order", "HHH", dispatchOrder(shard0));
+        assertEquals("Shard 1 dispatch order", "LLLL", dispatchOrder(shard1));
+        assertEquals("Heavy user active", 3, scheduler.getNumUserActive(heavyUser));
+
+        // Heavy user has all of the first shard's half of the workers and half of the second's
+        JSONArray usersJson = scheduler.getUserSchedulingJson();
+        assertEquals("Number of users", 2, usersJson.length());
+        JSONObject heavyJson = usersJson.getJSONObject(0);
+        assertEquals("user", "Heavy-User", heavyJson.getString("user"));
+        assertEquals("share", 0.75, heavyJson.getDouble("share"), 0.001);
+        assertEquals("active", 3, heavyJson.getInt("active"));
+        assertEquals("backlog", 5, heavyJson.getInt("backlog"));
+        JSONObject lightJson = usersJson.getJSONObject(1);
+        assertEquals("user", "Light-User", lightJson.getString("user"));
+        assertEquals("share", 0.25, lightJson.getDouble("share"), 0.001);
+        assertEquals("active", 4, lightJson.getInt("active"));
+      }
+    }
+
+    // Once the heavy user's activities complete, the other shard can use the freed workers
+    long startTime = System.currentTimeMillis();
+    while (scheduler.getNumActiveActivities() > 0 && System.currentTimeMillis() - startTime < 5000)
+      Thread.sleep(10);
+    assertEquals("Heavy user active", 0, scheduler.getNumUserActive(heavyUser));
+    synchronized (shard1){
+      shard1.dispatchReady();
+      assertEquals("Heavy user active on shard 1", 3, shard1.getUserQueue(heavyUser).numActive);
+      assertEquals("Heavy user active", 3, scheduler.getNumUserActive(heavyUser));
+    }
+    shard0.threadPool.shutdown();
+    shard1.threadPool.shutdown();
+  }
+}
@@ -0,0 +1,218 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.scheduler;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.basetechnology.s0.agentserver.AgentDefinition;
+import com.basetechnology.s0.agentserver.AgentInstance;
+import com.basetechnology.s0.agentserver.AgentServer;
+import com.basetechnology.s0.agentserver.AgentServerException;
+import com.basetechnology.s0.agentserver.AgentTimer;
+import com.basetechnology.s0.agentserver.User;
+import com.basetechnology.s0.agentserver.activities.AgentActivity;
+import com.basetechnology.s0.agentserver.appserver.AgentAppServer;
+import com.basetechnology.s0.agentserver.config.AgentServerProperties;
+import com.basetechnology.s0.agentserver.util.Clock;
+import com.basetechnology.s0.agentserver.util.SimulatedClock;
+import com.basetechnology.s0.agentserver.util.SystemClock;
+
+public class AgentSchedulerPriorityTest {
+  AgentAppServer agentAppServer;
+  AgentServer agentServer;
+  User user;
+  AgentDefinition agentDefinition;
+  SimulatedClock clock;
+
+  @Before
+  public void setUp() throws Exception {
+    File pf = new File(AgentServerProperties.DEFAULT_PERSISTENT_STORE_PATH);
+    pf.delete();
+    assertTrue("Persistent store not deleted: " + AgentServerProperties.DEFAULT_PERSISTENT_STORE_PATH, ! pf.exists());
+
+    agentAppServer = new AgentAppServer();
+    agentServer = agentAppServer.agentServer;
+
+    user = agentServer.addUser("Test-User");
+    agentDefinition = agentServer.addAgentDefinition("{\"user\": \"Test-User\", \"name\": \"TestAgent\", \"enabled\": false}");
+
+    // Drive time by hand so that aging is predictable
+    clock = new SimulatedClock(1000000);
+    Clock.set(clock);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    Clock.set(SystemClock.one);
+    if (agentAppServer != null)
+      agentAppServer.stop();
+    File pf = new File(AgentServerProperties.DEFAULT_PERSISTENT_STORE_PATH);
+    pf.delete();
+    agentAppServer = null;
+    agentServer = null;
+  }
+
+  AgentSchedulerShard createShard(int numWorkers) throws Exception {
+    // Only shard of a scheduler that is never started, so the test drives delivery and dispatch itself
+    AgentScheduler scheduler = new AgentScheduler(agentServer, false);
+    AgentSchedulerShard shard = scheduler.shards[0];
+    shard.threadPool = new AgentActivityThreadPool(AgentActivityThreadPool.FIXED_THREAD_POOL_TYPE, numWorkers);
+    return shard;
+  }
+
+  AgentInstance createAgent() throws Exception {
+    AgentInstance agent = new AgentInstance(user, agentDefinition, null);
+    agent.enabled = true;
+    return agent;
+  }
+
+  AgentActivity deliver(AgentSchedulerShard shard, AgentInstance agent, int priority){
+    AgentActivity activity = new AgentActivity(agent, 0, "Test " + AgentActivity.getPriorityName(priority) + " activity");
+    activity.priority = priority;
+    shard.deliver(activity);
+    return activity;
+  }
+
+  String dispatchOrder(AgentSchedulerShard shard){
+    // Priority classes of the dispatched activities, in the order they were dispatched
+    StringBuilder order = new StringBuilder();
+    for (AgentActivity activity: shard.activeActivities)
+      order.append(activity.priority);
+    return order.toString();
+  }
+
+  @Test
+  public void testDefaultPriorities() throws Exception {
+    assertEquals("Number of priorities", 5, AgentActivity.NUM_PRIORITIES);
+    assertEquals("init", AgentActivity.INIT_PRIORITY, AgentActivity.getPriority("init"));
+    assertEquals("notification", AgentActivity.NOTIFICATION_PRIORITY, AgentActivity.getPriority("notification"));
+    assertEquals("inputs_changed", AgentActivity.INPUTS_CHANGED_PRIORITY, AgentActivity.getPriority("inputs_changed"));
+    assertEquals("timer", AgentActivity.TIMER_PRIORITY, AgentActivity.getPriority("Timer"));
+    assertEquals("condition", AgentActivity.CONDITION_PRIORITY, AgentActivity.getPriority("condition"));
+    try {
+      AgentActivity.getPriority("urgent");
+      fail("Unknown priority was accepted");
+    } catch (AgentServerException e){
+      assertEquals("Exception message", "Unknown activity priority: 'urgent'", e.getMessage());
+    }
+
+    // A timer may override its default priority in the agent definition
+    AgentTimer timer = AgentTimer.fromJson("{\"name\": \"t1\", \"interval\": 1000, \"priority\": \"notification\"}");
+    assertEquals("Timer priority", AgentActivity.NOTIFICATION_PRIORITY, timer.priority);
+    assertEquals("Timer priority JSON", "notification", timer.toJson().getString("priority"));
+    timer = AgentTimer.fromJson("{\"name\": \"t2\", \"interval\": 1000}");
+    assertEquals("Timer priority", -1, timer.priority);
+    assertFalse("Timer has priority JSON", timer.toJson().has("priority"));
+  }
+
+  @Test
+  public void testStrictPriority() throws Exception {
+    AgentSchedulerShard shard = createShard(5);
+    synchronized (shard){
+      // Deliver one activity of each class, lowest priority first, each to its own agent
+      for (int priority = AgentActivity.NUM_PRIORITIES - 1; priority >= 0; priority--)
+        deliver(shard, createAgent(), priority);
+
+      // Backlog is reported for each class
+      JSONObject backlogJson = shard.scheduler.getPriorityBacklogJson();
+      assertEquals("Priority backlog", "{\"init\":1,\"notification\":1,\"inputs_changed\":1,\"timer\":1,\"condition\":1}", backlogJson.toString());
+
+      // Most urgent activities are dispatched first
+      shard.dispatchReady();
+      assertEquals("Dispatch order", "01234", dispatchOrder(shard));
+      backlogJson = shard.scheduler.getPriorityBacklogJson();
+      assertEquals("Priority backlog", "{\"init\":0,\"notification\":0,\"inputs_changed\":0,\"timer\":0,\"condition\":0}", backlogJson.toString());
+    }
+    shard.threadPool.shutdown();
+  }
+
+  @Test
+  public void testMailboxPriority() throws Exception {
+    AgentSchedulerShard shard = createShard(1);
+    synchronized (shard){
+      // An agent runs the most urgent activity in its mailbox first, even if it arrived last
+      AgentInstance agent = createAgent();
+      deliver(shard, agent, AgentActivity.CONDITION_PRIORITY);
+      deliver(shard, agent, AgentActivity.TIMER_PRIORITY);
+      deliver(shard, agent, AgentActivity.INIT_PRIORITY);
+      shard.dispatchReady();
+      assertEquals("Dispatch order", "0", dispatchOrder(shard));
+      assertEquals("Mailbox size", 2, agent.mailbox.size());
+    }
+    shard.threadPool.shutdown();
+  }
+
+  @Test
+  public void testMailboxAging() throws Exception {
+    // Mailbox keeps a queue per class, and an activity that has waited long enough overtakes a fresh, more urgent one
+    AgentInstance agent = createAgent();
+    AgentMailbox mailbox = new AgentMailbox();
+    AgentActivity conditionActivity = new AgentActivity(agent, 0, "Condition activity");
+    conditionActivity.priority = AgentActivity.CONDITION_PRIORITY;
+    conditionActivity.readyTime = Clock.now();
+    mailbox.add(conditionActivity);
+    clock.advance(4 * AgentReadyQueue.DEFAULT_AGING_INTERVAL);
+    AgentActivity timerActivity = new AgentActivity(agent, 0, "Timer activity");
+    timerActivity.readyTime = Clock.now();
+    mailbox.add(timerActivity);
+    AgentActivity notificationActivity = new AgentActivity(agent, 0, "Notification activity");
+    notificationActivity.priority = AgentActivity.NOTIFICATION_PRIORITY;
+    notificationActivity.readyTime = Clock.now();
+    mailbox.add(notificationActivity);
+    assertEquals("Mailbox size", 3, mailbox.size());
+    assertEquals("Top priority", AgentActivity.NOTIFICATION_PRIORITY, mailbox.getTopPriority());
+
+    long now = Clock.now();
+    assertTrue("Aged condition first", mailbox.poll(now, AgentReadyQueue.DEFAULT_AGING_INTERVAL) == conditionActivity);
+    assertTrue("Notification next", mailbox.poll(now, AgentReadyQueue.DEFAULT_AGING_INTERVAL) == notificationActivity);
+    assertTrue("Timer removed", mailbox.remove(timerActivity));
+    assertTrue("Mailbox is not empty", mailbox.isEmpty());
+    assertTrue("Poll of empty mailbox", mailbox.poll(now, AgentReadyQueue.DEFAULT_AGING_INTERVAL) == null);
+  }
+
+  @Test
+  public void testAging() throws Exception {
+    AgentSchedulerShard shard = createShard(1);
+    synchronized (shard){
+      // A condition that has waited long enough overtakes a fresh notification
+      deliver(shard, createAgent(), AgentActivity.CONDITION_PRIORITY);
+      clock.advance(4 * AgentReadyQueue.DEFAULT_AGING_INTERVAL);
+      deliver(shard, createAgent(), AgentActivity.NOTIFICATION_PRIORITY);
+      shard.dispatchReady();
+      assertEquals("Dispatch order", "4", dispatchOrder(shard));
+    }
+    shard.threadPool.shutdown();
+
+    shard = createShard(1);
+    synchronized (shard){
+      // But not one that has only waited a little
+      deliver(shard, createAgent(), AgentActivity.CONDITION_PRIORITY);
+      clock.advance(2 * AgentReadyQueue.DEFAULT_AGING_INTERVAL);
+      deliver(shard, createAgent(), AgentActivity.NOTIFICATION_PRIORITY);
+      shard.dispatchReady();
+      assertEquals("Dispatch order", "1", dispatchOrder(shard));
+    }
+    shard.threadPool.shutdown();
+  }
+}
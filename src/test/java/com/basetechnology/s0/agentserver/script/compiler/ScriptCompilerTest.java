@@ -0,0 +1,233 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.script.compiler;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.basetechnology.s0.agentserver.AgentDefinition;
+import com.basetechnology.s0.agentserver.AgentInstance;
+import com.basetechnology.s0.agentserver.AgentServer;
+import com.basetechnology.s0.agentserver.appserver.AgentAppServer;
+import com.basetechnology.s0.agentserver.config.AgentServerProperties;
+import com.basetechnology.s0.agentserver.script.intermediate.ObjectTypeNode;
+import com.basetechnology.s0.agentserver.script.intermediate.ScriptNode;
+import com.basetechnology.s0.agentserver.script.intermediate.Symbol;
+import com.basetechnology.s0.agentserver.script.parser.ScriptParser;
+import com.basetechnology.s0.agentserver.script.runtime.ScriptRuntime;
+import com.basetechnology.s0.agentserver.script.runtime.ScriptState;
+import com.basetechnology.s0.agentserver.script.runtime.value.FloatValue;
+import com.basetechnology.s0.agentserver.script.runtime.value.IntegerValue;
+import com.basetechnology.s0.agentserver.script.runtime.value.StringValue;
+import com.basetechnology.s0.agentserver.script.runtime.value.Value;
+
+public class ScriptCompilerTest {
+  AgentAppServer agentAppServer = null;
+  AgentServer agentServer = null;
+  AgentDefinition dummyAgentDefinition;
+  AgentInstance dummyAgentInstance;
+  ScriptParser parser;
+  ScriptRuntime scriptRuntime;
+
+  @Before
+  public void setUp() throws Exception {
+    File pf = new File(AgentServerProperties.DEFAULT_PERSISTENT_STORE_PATH);
+    pf.delete();
+    assertTrue("Persistent store not deleted: " + AgentServerProperties.DEFAULT_PERSISTENT_STORE_PATH, ! pf.exists());
+
+    agentAppServer = new AgentAppServer();
+    agentServer = agentAppServer.agentServer;
+    dummyAgentDefinition = new AgentDefinition(agentServer);
+    dummyAgentInstance = new AgentInstance(dummyAgentDefinition);
+    parser = new ScriptParser(dummyAgentInstance);
+    scriptRuntime = new ScriptRuntime(dummyAgentInstance);
+
+    // Scripts are only compiled when a test asks for it, and may run long loops
+    agentServer.config.put("script_compile_threshold", 0);
+    agentServer.config.putDefaultExecutionLevel(4);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (agentAppServer != null)
+      agentAppServer.stop();
+    File pf = new File(AgentServerProperties.DEFAULT_PERSISTENT_STORE_PATH);
+    pf.delete();
+    agentAppServer = null;
+    agentServer = null;
+  }
+
+  public ScriptState runScript(ScriptNode scriptNode, List<Value> argumentValues, StringBuilder exceptionMessage){
+    ScriptState scriptState = new ScriptState(scriptRuntime, "test", scriptNode);
+    try {
+      scriptNode.run(scriptState, argumentValues);
+    } catch (Exception e){
+      exceptionMessage.append(e.getClass().getSimpleName() + ": " + e.getMessage());
+    }
+    return scriptState;
+  }
+
+  public Value compareRuns(String script, Value... arguments) throws Exception {
+    // Run the script interpreted and compiled, which must give the same results
+    ScriptNode scriptNode = parser.parseScriptString(script);
+    assertTrue("Null was returned from script parser", scriptNode != null);
+    List<Value> argumentValues = new ArrayList<Value>(Arrays.asList(arguments));
+    StringBuilder interpretedException = new StringBuilder();
+    ScriptState interpretedState = runScript(scriptNode, argumentValues, interpretedException);
+    assertNull("Script was compiled", scriptNode.compiledScript);
+    scriptNode.compiledScript = ScriptCompiler.compile(scriptNode);
+    StringBuilder compiledException = new StringBuilder();
+    ScriptState compiledState = runScript(scriptNode, argumentValues, compiledException);
+    scriptNode.compiledScript = null;
+
+    assertEquals("Exception for " + script, interpretedException.toString(), compiledException.toString());
+    assertEquals("Node executions for " + script, interpretedState.nodeExecutionCount, compiledState.nodeExecutionCount);
+    assertEquals("Control flow change for " + script, interpretedState.controlFlowChange, compiledState.controlFlowChange);
+    Value interpretedValue = interpretedState.returnValue;
+    Value compiledValue = compiledState.returnValue;
+    if (interpretedValue == null)
+      assertNull("Return value for " + script, compiledValue);
+    else {
+      assertTrue("No return value for " + script, compiledValue != null);
+      assertEquals("Return type for " + script, interpretedValue.getClass(), compiledValue.getClass());
+      assertEquals("Return value for " + script, interpretedValue.toString(), compiledValue.toString());
+    }
+    return compiledValue;
+  }
+
+  @Test
+  public void testArithmetic() throws Exception {
+    assertEquals("Sum", 295, compareRuns("int sum = 0; for (int i = 0; i < 100; i++) sum += i % 7; return sum;").getLongValue());
+    assertEquals("Product", 956432249.8, compareRuns("float x = 1.0; int i = 0; while (i < 50){x = x * 1.5 + 0.25; i++;} return x;").getDoubleValue(), 1.0);
+    assertEquals("Mixed", 13, compareRuns("int a = 7; return a / 2 + a % 4 - -a;").getLongValue());
+    compareRuns("int a = 7; float f = 2.0; return a / f;");
+    compareRuns("int i = 1; i = i * 1.5; return i;");
+    compareRuns("float t = 0.0; for (float x = 0.5; x < 3; x++) t += x; return t;");
+    compareRuns("int i = 0; int j = i++ + ++i - i-- - --i; return j * 10 + i;");
+    compareRuns("float f = 1.5; f--; --f; return -f;");
+    compareRuns("int i; float f; return i + f;");
+    compareRuns("int z = 0; return 5 / z;");
+    compareRuns("int x = 9223372036854775807; return x + 1;");
+  }
+
+  @Test
+  public void testComparisons() throws Exception {
+    assertEquals("Less", true, compareRuns("int i = 3; float f = 2.5; return i < f || i == f;").getBooleanValue() == false);
+    assertEquals("Truncated equals", true, compareRuns("int i = 2; float f = 2.7; return i == f;").getBooleanValue());
+    compareRuns("int i = 2; float f = 2.9; return i >= f;");
+    compareRuns("int i = 2; float f = 2.9; return i < f;");
+    compareRuns("int i = 2; float f = 2.9; return f > i && f != i && f >= i && ! (f <= i);");
+    compareRuns("float n = 0.0; n = n / n; return (n < 1) + ',' + (n > 1) + ',' + (n == n) + ',' + (n != n);");
+    compareRuns("int i = 5; boolean b = i > 3 && ! (i == 4); return b ? i * 2 : -i;");
+    compareRuns("int i = 5; return i > 7 ? 1.5 : i;");
+    compareRuns("boolean b = false; return b || true;");
+    compareRuns("string s = 'abc'; return s == 'abc' && s < 'abd';");
+  }
+
+  @Test
+  public void testControlFlow() throws Exception {
+    assertEquals("Continue and break", 14, compareRuns("int n = 0; for (int i = 0; i < 30; i++){if (i % 3 == 0) continue; if (i > 20) break; n++;} return n;").getLongValue());
+    assertEquals("Do", 16, compareRuns("int i = 0; do {i += 2;} while (i < 15); return i;").getLongValue());
+    assertEquals("Return in loop", 8, compareRuns("for (int i = 0; true; i++) if (i * i > 50) return i; return -1;").getLongValue());
+    compareRuns("int sum = 0, int i = 0; while (true){if (i > 10) break; sum += i++;} return sum;");
+    compareRuns("int n = 0; for (int i = 0; i < 5; i++) for (int j = 0; j < 5; j++){if (j > i) break; n += j;} return n;");
+    compareRuns("int n = 0; if (n > 0) n = 1; else if (n == 0) n = 2; else n = 3; return n;");
+    compareRuns("int n = 1; {int m = n * 2; n = m + 1;} return n;");
+    compareRuns("int n = 0; while (n < 10){n++; if (n == 5) break;} return n;");
+    compareRuns("break; return 1;");
+    compareRuns("int n = 3;");
+  }
+
+  @Test
+  public void testValues() throws Exception {
+    assertEquals("String", "01234", compareRuns("string s = ''; for (int i = 0; i < 5; i++) s += i; return s;").getStringValue());
+    compareRuns("string s = 'ab'; string t = s; t += 'c'; return s + t;");
+    compareRuns("list l = [1, 2.5, 'x']; int n = 0; for (int i = 0; i < l.size; i++) n += i; return n + ' ' + l;");
+    compareRuns("int n = 0; for (int i = 0; i < 4; i++) n += max(i, 2); return n;");
+    compareRuns("float f = 0.0; for (int i = 1; i <= 4; i++) f += sqrt(i); return f;");
+  }
+
+  @Test
+  public void testVariablesOutsideScript() throws Exception {
+    // Memory variables stay in the script state
+    Symbol aSymbol = dummyAgentInstance.symbolManager.put("memory", "a", ObjectTypeNode.one);
+    ScriptNode scriptNode = parser.parseScriptString("int n = 0; for (int i = 0; i < 5; i++){a = a + i; n += a;} return n;");
+    dummyAgentInstance.categorySymbolValues.get("memory").put(aSymbol, new IntegerValue(3));
+    StringBuilder exceptionMessage = new StringBuilder();
+    ScriptState interpretedState = runScript(scriptNode, null, exceptionMessage);
+    Value interpretedA = dummyAgentInstance.categorySymbolValues.get("memory").get(aSymbol);
+    dummyAgentInstance.categorySymbolValues.get("memory").put(aSymbol, new IntegerValue(3));
+    scriptNode.compiledScript = ScriptCompiler.compile(scriptNode);
+    ScriptState compiledState = runScript(scriptNode, null, exceptionMessage);
+    assertEquals("Exception", "", exceptionMessage.toString());
+    assertEquals("Return value", 35, compiledState.returnValue.getLongValue());
+    assertEquals("Return value", interpretedState.returnValue.getLongValue(), compiledState.returnValue.getLongValue());
+    assertEquals("Memory value", interpretedA.getLongValue(), dummyAgentInstance.categorySymbolValues.get("memory").get(aSymbol).getLongValue());
+    assertEquals("Node executions", interpretedState.nodeExecutionCount, compiledState.nodeExecutionCount);
+  }
+
+  @Test
+  public void testFunctions() throws Exception {
+    // Parameters are passed in as arguments
+    compareRuns("int f(int x){int y = 0; for (int i = 0; i < x; i++) y += i; return y;}", new IntegerValue(10));
+    compareRuns("float g(float x, int n){while (n-- > 0) x *= x; return x;}", new FloatValue(1.1), new IntegerValue(3));
+    compareRuns("string h(string s){return s + s;}", new StringValue("ab"));
+    compareRuns("int f(int x){return x;}", new Value[]{null});
+    compareRuns("int f(int x){return x;}");
+
+    // Functions called by a compiled script are run by their own script node
+    dummyAgentInstance.parsedScripts.add(parser.parseScriptString("int square(int x){return x * x;}"));
+    assertEquals("Sum of squares", 285, compareRuns("int n = 0; for (int i = 0; i < 10; i++) n += square(i); return n;").getLongValue());
+  }
+
+  @Test
+  public void testLimits() throws Exception {
+    // Execution limits are enforced at the same node in compiled code
+    agentServer.config.putDefaultExecutionLevel(1);
+    compareRuns("int i = 0; while (true) i++; return i;");
+    compareRuns("int i = 0; for (;;){i += 2; if (i < 0) break;} return i;");
+  }
+
+  @Test
+  public void testCompileThreshold() throws Exception {
+    ScriptNode scriptNode = parser.parseScriptString("int n = 0; for (int i = 0; i < 10; i++) n += i; return n;");
+
+    // Never compiled while compilation is disabled
+    for (int i = 0; i < 5; i++)
+      assertEquals("Return value", 45, scriptRuntime.runScript("test", scriptNode).getLongValue());
+    assertNull("Script was compiled", scriptNode.compiledScript);
+
+    // Compiled once run often enough
+    agentServer.config.put("script_compile_threshold", 3);
+    assertEquals("Cached compile threshold", 3, agentServer.scriptCompileThreshold);
+    for (int i = 0; i < 2; i++)
+      assertEquals("Return value", 45, scriptRuntime.runScript("test", scriptNode).getLongValue());
+    assertNull("Script was compiled too soon", scriptNode.compiledScript);
+    assertEquals("Return value", 45, scriptRuntime.runScript("test", scriptNode).getLongValue());
+    assertTrue("Script was not compiled", scriptNode.compiledScript != null);
+    assertEquals("Return value", 45, scriptRuntime.runScript("test", scriptNode).getLongValue());
+    assertEquals("Exceptions", 0, dummyAgentInstance.exceptionHistory.size());
+  }
+}
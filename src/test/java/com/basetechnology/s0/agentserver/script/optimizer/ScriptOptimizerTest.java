@@ -0,0 +1,230 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.script.optimizer;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.basetechnology.s0.agentserver.AgentDefinition;
+import com.basetechnology.s0.agentserver.AgentInstance;
+import com.basetechnology.s0.agentserver.AgentServer;
+import com.basetechnology.s0.agentserver.appserver.AgentAppServer;
+import com.basetechnology.s0.agentserver.config.AgentServerProperties;
+import com.basetechnology.s0.agentserver.script.intermediate.AddNode;
+import com.basetechnology.s0.agentserver.script.intermediate.DivideNode;
+import com.basetechnology.s0.agentserver.script.intermediate.ExpressionNode;
+import com.basetechnology.s0.agentserver.script.intermediate.IfStatementNode;
+import com.basetechnology.s0.agentserver.script.intermediate.ReturnStatementNode;
+import com.basetechnology.s0.agentserver.script.intermediate.ScriptNode;
+import com.basetechnology.s0.agentserver.script.intermediate.StatementNode;
+import com.basetechnology.s0.agentserver.script.parser.ScriptParser;
+import com.basetechnology.s0.agentserver.script.runtime.ScriptRuntime;
+import com.basetechnology.s0.agentserver.script.runtime.ScriptState;
+import com.basetechnology.s0.agentserver.script.runtime.value.FalseValue;
+import com.basetechnology.s0.agentserver.script.runtime.value.FloatValue;
+import com.basetechnology.s0.agentserver.script.runtime.value.IntegerValue;
+import com.basetechnology.s0.agentserver.script.runtime.value.StringValue;
+import com.basetechnology.s0.agentserver.script.runtime.value.TrueValue;
+import com.basetechnology.s0.agentserver.script.runtime.value.Value;
+
+public class ScriptOptimizerTest {
+  AgentAppServer agentAppServer = null;
+  AgentServer agentServer = null;
+  AgentDefinition dummyAgentDefinition;
+  AgentInstance dummyAgentInstance;
+  ScriptParser parser;
+  ScriptRuntime scriptRuntime;
+
+  @Before
+  public void setUp() throws Exception {
+    File pf = new File(AgentServerProperties.DEFAULT_PERSISTENT_STORE_PATH);
+    pf.delete();
+    assertTrue("Persistent store not deleted: " + AgentServerProperties.DEFAULT_PERSISTENT_STORE_PATH, ! pf.exists());
+
+    agentAppServer = new AgentAppServer();
+    agentServer = agentAppServer.agentServer;
+    dummyAgentDefinition = new AgentDefinition(agentServer);
+    dummyAgentInstance = new AgentInstance(dummyAgentDefinition);
+    parser = new ScriptParser(dummyAgentInstance);
+    scriptRuntime = new ScriptRuntime(dummyAgentInstance);
+
+    // Keep the compiler out of the way so node counts come from the interpreter
+    agentServer.config.put("script_compile_threshold", 0);
+    agentServer.config.putDefaultExecutionLevel(4);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (agentAppServer != null)
+      agentAppServer.stop();
+    File pf = new File(AgentServerProperties.DEFAULT_PERSISTENT_STORE_PATH);
+    pf.delete();
+    agentAppServer = null;
+    agentServer = null;
+  }
+
+  public ExpressionNode optimizedExpression(String expression) throws Exception {
+    ExpressionNode expressionNode = parser.parseExpressionString(expression);
+    assertTrue("Null was returned from expression parser", expressionNode != null);
+    return expressionNode;
+  }
+
+  public List<StatementNode> optimizedStatements(String script) throws Exception {
+    ScriptNode scriptNode = parser.parseScriptString(script);
+    assertTrue("Null was returned from script parser", scriptNode != null);
+    return scriptNode.blockNode.statementSequence;
+  }
+
+  public ScriptState runScript(ScriptNode scriptNode, StringBuilder exceptionMessage){
+    ScriptState scriptState = new ScriptState(scriptRuntime, "test", scriptNode);
+    try {
+      scriptNode.run(scriptState, new ArrayList<Value>());
+    } catch (Exception e){
+      exceptionMessage.append(e.getClass().getSimpleName() + ": " + e.getMessage());
+    }
+    return scriptState;
+  }
+
+  public Value compareRuns(String script) throws Exception {
+    // Run the script with and without optimization, which must give the same results in no more steps
+    parser.optimize = false;
+    ScriptNode plainNode = parser.parseScriptString(script);
+    parser.optimize = true;
+    ScriptNode optimizedNode = parser.parseScriptString(script);
+    StringBuilder plainException = new StringBuilder();
+    ScriptState plainState = runScript(plainNode, plainException);
+    StringBuilder optimizedException = new StringBuilder();
+    ScriptState optimizedState = runScript(optimizedNode, optimizedException);
+
+    assertEquals("Exception for " + script, plainException.toString(), optimizedException.toString());
+    assertTrue("Node executions for " + script + " went from " + plainState.nodeExecutionCount + " to " + optimizedState.nodeExecutionCount,
+        optimizedState.nodeExecutionCount <= plainState.nodeExecutionCount);
+    Value plainValue = plainState.returnValue;
+    Value optimizedValue = optimizedState.returnValue;
+    if (plainValue == null)
+      assertNull("Return value for " + script, optimizedValue);
+    else {
+      assertTrue("No return value for " + script, optimizedValue != null);
+      assertEquals("Return type for " + script, plainValue.getClass(), optimizedValue.getClass());
+      assertEquals("Return value for " + script, plainValue.toString(), optimizedValue.toString());
+    }
+    return optimizedValue;
+  }
+
+  @Test
+  public void testFolding() throws Exception {
+    ExpressionNode node = optimizedExpression("seconds(30)");
+    assertEquals("seconds class", IntegerValue.class, node.getClass());
+    assertEquals("seconds value", 30000, ((IntegerValue)node).value);
+
+    node = optimizedExpression("minutes(5) + seconds(10)");
+    assertEquals("duration sum class", IntegerValue.class, node.getClass());
+    assertEquals("duration sum value", 310000, ((IntegerValue)node).value);
+
+    node = optimizedExpression("2 * 3 + 4 - 10 % 3");
+    assertEquals("arithmetic class", IntegerValue.class, node.getClass());
+    assertEquals("arithmetic value", 9, ((IntegerValue)node).value);
+
+    node = optimizedExpression("sqrt(16.0) * 2");
+    assertEquals("sqrt class", FloatValue.class, node.getClass());
+    assertEquals("sqrt value", 8.0, ((FloatValue)node).value, 0.0);
+
+    node = optimizedExpression("'abc' + 'def'");
+    assertEquals("concat class", StringValue.class, node.getClass());
+    assertEquals("concat value", "abcdef", ((StringValue)node).value);
+
+    assertEquals("comparison", TrueValue.class, optimizedExpression("3 < 4.5").getClass());
+    assertEquals("equality", FalseValue.class, optimizedExpression("'a' == 'b'").getClass());
+    assertEquals("not", FalseValue.class, optimizedExpression("! (1 < 2)").getClass());
+    assertEquals("and", FalseValue.class, optimizedExpression("false && 1 < 2").getClass());
+    assertEquals("negation", -7, ((IntegerValue)optimizedExpression("-(3 + 4)")).value);
+    assertEquals("ternary", 1, ((IntegerValue)optimizedExpression("2 > 1 ? 1 : 2")).value);
+
+    // Errors are left for the runtime to report
+    assertEquals("divide by zero", DivideNode.class, optimizedExpression("5 / 0").getClass());
+
+    // Only constants are folded
+    List<StatementNode> statements = optimizedStatements("int x = 2; return x + seconds(1);");
+    ExpressionNode returnExpr = ((ReturnStatementNode)statements.get(statements.size() - 1)).returnExpr;
+    assertEquals("variable sum class", AddNode.class, returnExpr.getClass());
+    assertEquals("folded operand", IntegerValue.class, ((AddNode)returnExpr).rightNode.getClass());
+  }
+
+  @Test
+  public void testDeadCode() throws Exception {
+    List<StatementNode> statements = optimizedStatements("int x = 1; if (false) x = 2; while (1 > 2) x++; return x;");
+    assertEquals("statements after pruning", 2, statements.size());
+    assertEquals("last statement", ReturnStatementNode.class, statements.get(1).getClass());
+
+    statements = optimizedStatements("int x = 1; if (true) x = 2; else x = 3; return x;");
+    assertEquals("statements with constant if", 3, statements.size());
+    assertTrue("if was not replaced", ! (statements.get(1) instanceof IfStatementNode));
+
+    statements = optimizedStatements("int x = 1; return x; x = 2; return 3;");
+    assertEquals("statements after return", 2, statements.size());
+
+    // A condition that depends on a variable is kept
+    statements = optimizedStatements("int x = 1; if (x > 0) x = 2; return x;");
+    assertEquals("statements with variable if", 3, statements.size());
+    assertEquals("variable if", IfStatementNode.class, statements.get(1).getClass());
+  }
+
+  @Test
+  public void testDisabled() throws Exception {
+    parser.optimize = false;
+    assertEquals("unoptimized sum", AddNode.class, optimizedExpression("1 + 2").getClass());
+    assertEquals("unoptimized if", 3, optimizedStatements("int x = 1; if (false) x = 2; return x;").size());
+    parser.optimize = true;
+
+    // The configuration can turn the optimizer off for every parser
+    agentServer.config.put("script_optimize", false);
+    assertTrue("optimizing with configuration off", ! parser.isOptimizing());
+    assertEquals("configured off sum", AddNode.class, optimizedExpression("1 + 2").getClass());
+    agentServer.config.put("script_optimize", true);
+    assertEquals("configured on sum", IntegerValue.class, optimizedExpression("1 + 2").getClass());
+  }
+
+  @Test
+  public void testSameResults() throws Exception {
+    assertEquals("duration sum", 3 * 60 * 60 * 1000 + 1, compareRuns("int t = hours(3); return t + 1;").getLongValue());
+    assertEquals("loop", 45, compareRuns("int sum = 0; for (int i = 0; i < 10 * 1; i++) if (true) sum += i; return sum;").getLongValue());
+    compareRuns("int z = 0; if (1 > 2) z = 1; else z = 2 * 3; return z;");
+    compareRuns("float f = pi() * 2; return f / 2;");
+    compareRuns("string s = 'a' + 'b' + 1; return s + '!';");
+    compareRuns("int x = 1; while (false) x++; do x++; while (x < 3 - 1); return x;");
+    compareRuns("return 5 / 0;");
+    compareRuns("int x = 1; return x; x = 2;");
+    compareRuns("int x = 2; return x == 1 + 1 ? seconds(2) : days(1) + true;");
+  }
+
+  @Test
+  public void testTreeJson() throws Exception {
+    JSONObject treeJson = ScriptOptimizer.toJson(parser.parseScriptString("int x = 1 + 2; return x;"));
+    assertEquals("root node", "ScriptNode", treeJson.getString("node"));
+    String treeString = treeJson.toString();
+    assertTrue("folded literal missing from " + treeString, treeString.contains("{\"node\":\"IntegerValue\",\"value\":\"3\"}"));
+    assertTrue("runtime field in " + treeString, ! treeString.contains("numRuns"));
+  }
+}
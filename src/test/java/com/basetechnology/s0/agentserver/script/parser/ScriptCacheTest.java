@@ -0,0 +1,175 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.script.parser;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.basetechnology.s0.agentserver.AgentDefinition;
+import com.basetechnology.s0.agentserver.AgentInstance;
+import com.basetechnology.s0.agentserver.AgentServer;
+import com.basetechnology.s0.agentserver.appserver.AgentAppServer;
+import com.basetechnology.s0.agentserver.config.AgentServerProperties;
+import com.basetechnology.s0.agentserver.script.intermediate.ExpressionNode;
+import com.basetechnology.s0.agentserver.script.intermediate.ScriptNode;
+import com.basetechnology.s0.agentserver.script.runtime.value.Value;
+
+public class ScriptCacheTest {
+  AgentAppServer agentAppServer = null;
+  AgentServer agentServer = null;
+  AgentDefinition dummyAgentDefinition;
+  AgentInstance dummyAgentInstance;
+
+  @Before
+  public void setUp() throws Exception {
+    File pf = new File(AgentServerProperties.DEFAULT_PERSISTENT_STORE_PATH);
+    pf.delete();
+    assertTrue("Persistent store not deleted: " + AgentServerProperties.DEFAULT_PERSISTENT_STORE_PATH, ! pf.exists());
+
+    agentAppServer = new AgentAppServer();
+    agentServer = agentAppServer.agentServer;
+    dummyAgentDefinition = new AgentDefinition(agentServer);
+    dummyAgentInstance = new AgentInstance(dummyAgentDefinition);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (agentAppServer != null)
+      agentAppServer.stop();
+    File pf = new File(AgentServerProperties.DEFAULT_PERSISTENT_STORE_PATH);
+    pf.delete();
+    agentAppServer = null;
+    agentServer = null;
+  }
+
+  @Test
+  public void testHitsAndMisses() throws Exception {
+    ScriptCache scriptCache = new ScriptCache(10);
+
+    // First parse is a miss, the rest reuse the same tree ('now' keeps the optimizer from folding it to a literal)
+    ExpressionNode expressionNode = scriptCache.parseExpression(dummyAgentInstance, "now + 3 * 4");
+    assertTrue("No expression tree returned", expressionNode != null);
+    for (int i = 0; i < 5; i++)
+      assertSame("Expression tree not reused", expressionNode, scriptCache.parseExpression(dummyAgentInstance, "now + 3 * 4"));
+    assertEquals("Hits", 5, scriptCache.getNumHits());
+    assertEquals("Misses", 1, scriptCache.getNumMisses());
+
+    // Scripts are separate entries
+    ScriptNode scriptNode = scriptCache.parseScript(dummyAgentInstance, "now + 3 * 4;");
+    assertTrue("No script tree returned", scriptNode != null);
+    assertSame("Script tree not reused", scriptNode, scriptCache.parseScript(dummyAgentInstance, "now + 3 * 4;"));
+    assertEquals("Size", 2, scriptCache.size());
+
+    // Another instance of the same definition shares the tree
+    AgentInstance otherAgentInstance = new AgentInstance(dummyAgentDefinition);
+    assertSame("Expression tree not shared across instances", expressionNode, scriptCache.parseExpression(otherAgentInstance, "now + 3 * 4"));
+
+    // An instance of another definition gets its own tree bound to its own symbols
+    AgentInstance otherDefinitionInstance = new AgentInstance(new AgentDefinition(agentServer));
+    assertNotSame("Expression tree shared across definitions", expressionNode, scriptCache.parseExpression(otherDefinitionInstance, "now + 3 * 4"));
+    assertEquals("Size", 3, scriptCache.size());
+
+    // Empty and missing source are not cached
+    assertNull("Tree returned for empty expression", scriptCache.parseExpression(dummyAgentInstance, ""));
+    assertNull("Tree returned for missing expression", scriptCache.parseExpression(dummyAgentInstance, null));
+    assertEquals("Size", 3, scriptCache.size());
+
+    // Parse errors are reported each time and not cached
+    for (int i = 0; i < 2; i++)
+      try {
+        scriptCache.parseExpression(dummyAgentInstance, "2 +");
+        fail("Parse error not reported");
+      } catch (ParserException e){
+        // Expected
+      }
+    assertEquals("Size", 3, scriptCache.size());
+  }
+
+  @Test
+  public void testEvictionAndInvalidation() throws Exception {
+    ScriptCache scriptCache = new ScriptCache(3);
+
+    // Least recently used tree is evicted first
+    ExpressionNode expressionNode = scriptCache.parseExpression(dummyAgentInstance, "1");
+    scriptCache.parseExpression(dummyAgentInstance, "2");
+    scriptCache.parseExpression(dummyAgentInstance, "3");
+    assertSame("Expression tree not reused", expressionNode, scriptCache.parseExpression(dummyAgentInstance, "1"));
+    scriptCache.parseExpression(dummyAgentInstance, "4");
+    assertEquals("Size", 3, scriptCache.size());
+    assertEquals("Evictions", 1, scriptCache.getNumEvictions());
+    assertSame("Recently used tree evicted", expressionNode, scriptCache.parseExpression(dummyAgentInstance, "1"));
+    long numMisses = scriptCache.getNumMisses();
+    scriptCache.parseExpression(dummyAgentInstance, "2");
+    assertEquals("Least recently used tree not evicted", numMisses + 1, scriptCache.getNumMisses());
+
+    // Invalidating a definition's symbols discards its trees
+    scriptCache.invalidate(dummyAgentInstance.symbolManager);
+    assertEquals("Size", 0, scriptCache.size());
+    assertEquals("Invalidations", 3, scriptCache.getNumInvalidations());
+
+    // Zero capacity disables caching
+    scriptCache.setCapacity(0);
+    scriptCache.parseExpression(dummyAgentInstance, "1");
+    assertEquals("Size", 0, scriptCache.size());
+  }
+
+  @Test
+  public void testAgentInstance() throws Exception {
+    ScriptCache scriptCache = agentServer.scriptCache;
+    scriptCache.clear();
+    AgentInstance agentInstance = new AgentInstance(dummyAgentDefinition);
+
+    // Repeated evaluation parses the expression only once
+    long numMisses = scriptCache.getNumMisses();
+    for (int i = 0; i < 10; i++)
+      assertEquals("Expression value", 14, agentInstance.evaluateExpression("2 + 3 * 4").getLongValue());
+    assertEquals("Misses", numMisses + 1, scriptCache.getNumMisses());
+
+    // Updating the definition invalidates the cached trees of its instances
+    dummyAgentDefinition.invalidateParsedScripts();
+    assertEquals("Size", 0, scriptCache.size());
+    assertEquals("Expression value", 14, agentInstance.evaluateExpression("2 + 3 * 4").getLongValue());
+    assertEquals("Misses", numMisses + 2, scriptCache.getNumMisses());
+  }
+
+  @Test
+  public void testLiteralChangedInPlace() throws Exception {
+    AgentInstance agentInstance = new AgentInstance(dummyAgentDefinition);
+
+    // Methods that change a string in place don't change the literal in the cached tree
+    for (int i = 0; i < 3; i++){
+      assertEquals("Expression value", "xabc", agentInstance.evaluateExpression("'abc'.insert(0, 'x')").getStringValue());
+      assertEquals("Expression value", "ABC", agentInstance.evaluateExpression("'abc'.upper").getStringValue());
+      assertEquals("Script value", "xabc", agentInstance.runScriptString("return 'abc'.insert(0, 'x');").getStringValue());
+    }
+
+    // Including once the script has been compiled
+    agentServer.config.put("script_compile_threshold", 1);
+    for (int i = 0; i < 3; i++){
+      assertEquals("Compiled script value", "xabc", agentInstance.runScriptString("string s = 'abc'.insert(0, 'x'); return s;").getStringValue());
+      Value valueNode = agentInstance.runScriptString("int n = 1; return 'abc';");
+      assertEquals("Compiled script value", "abc", valueNode.getStringValue());
+      valueNode.getMethodValue(null, "upper", new ArrayList<Value>());
+    }
+  }
+}
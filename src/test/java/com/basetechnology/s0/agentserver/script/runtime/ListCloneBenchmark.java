@@ -0,0 +1,80 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.script.runtime;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.basetechnology.s0.agentserver.script.intermediate.ObjectTypeNode;
+import com.basetechnology.s0.agentserver.script.runtime.value.IntegerValue;
+import com.basetechnology.s0.agentserver.script.runtime.value.ListValue;
+import com.basetechnology.s0.agentserver.script.runtime.value.MapValue;
+import com.basetechnology.s0.agentserver.script.runtime.value.StringValue;
+import com.basetechnology.s0.agentserver.script.runtime.value.Value;
+
+/**
+ * Times the snapshot pattern of an agent whose memory holds a large list of maps: on each
+ * tick the state is captured by cloning the list, then the script appends one element, and
+ * the snapshots are kept as a bounded history, as captureState and the output history do.
+ *
+ * Usage: ListCloneBenchmark [numElements [numTicks]]
+ */
+public class ListCloneBenchmark {
+  public static void main(String[] args) throws Exception {
+    int numElements = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    int numTicks = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+    int historySize = 20;
+
+    // Build the list of maps
+    List<Value> elements = new ArrayList<Value>();
+    for (int i = 0; i < numElements; i++)
+      elements.add(newRecord(i));
+    ListValue listValue = new ListValue(ObjectTypeNode.one, elements);
+
+    for (int run = 0; run < 3; run++){
+      // Snapshot only, as for values that a script reads but does not change
+      List<Value> history = new ArrayList<Value>();
+      long startTime = System.nanoTime();
+      for (int i = 0; i < numTicks; i++){
+        history.add(listValue.clone());
+        if (history.size() > historySize)
+          history.remove(0);
+      }
+      long snapshotTime = System.nanoTime() - startTime;
+
+      // Snapshot, then append to the live list
+      startTime = System.nanoTime();
+      for (int i = 0; i < numTicks; i++){
+        history.add(listValue.clone());
+        if (history.size() > historySize)
+          history.remove(0);
+        listValue.appendValue(newRecord(numElements + i));
+      }
+      long appendTime = System.nanoTime() - startTime;
+
+      System.out.println(String.format("%d elements: snapshot %8.3f ms/tick, snapshot and append %8.3f ms/tick",
+          numElements, snapshotTime / 1e6 / numTicks, appendTime / 1e6 / numTicks));
+    }
+  }
+
+  static MapValue newRecord(int i) throws Exception {
+    MapValue record = new MapValue(ObjectTypeNode.one);
+    record.put("id", new IntegerValue(i));
+    record.put("name", new StringValue("item-" + i));
+    return record;
+  }
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.script.runtime;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.basetechnology.s0.agentserver.AgentDefinition;
+import com.basetechnology.s0.agentserver.AgentInstance;
+import com.basetechnology.s0.agentserver.AgentServer;
+import com.basetechnology.s0.agentserver.appserver.AgentAppServer;
+import com.basetechnology.s0.agentserver.config.AgentServerProperties;
+import com.basetechnology.s0.agentserver.script.intermediate.MethodReferenceNode;
+import com.basetechnology.s0.agentserver.script.intermediate.ReturnStatementNode;
+import com.basetechnology.s0.agentserver.script.intermediate.ScriptNode;
+import com.basetechnology.s0.agentserver.script.parser.ScriptParser;
+import com.basetechnology.s0.agentserver.script.runtime.value.StringValue;
+
+public class PatternCacheTest {
+  AgentAppServer agentAppServer = null;
+  AgentServer agentServer = null;
+  AgentDefinition dummyAgentDefinition;
+  AgentInstance dummyAgentInstance;
+  ScriptParser parser;
+  ScriptRuntime scriptRuntime;
+
+  @Before
+  public void setUp() throws Exception {
+    File pf = new File(AgentServerProperties.DEFAULT_PERSISTENT_STORE_PATH);
+    pf.delete();
+    assertTrue("Persistent store not deleted: " + AgentServerProperties.DEFAULT_PERSISTENT_STORE_PATH, ! pf.exists());
+
+    agentAppServer = new AgentAppServer();
+    agentServer = agentAppServer.agentServer;
+    dummyAgentDefinition = new AgentDefinition(agentServer);
+    dummyAgentInstance = new AgentInstance(dummyAgentDefinition);
+    parser = new ScriptParser(dummyAgentInstance);
+    scriptRuntime = new ScriptRuntime(dummyAgentInstance);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (agentAppServer != null)
+      agentAppServer.stop();
+    File pf = new File(AgentServerProperties.DEFAULT_PERSISTENT_STORE_PATH);
+    pf.delete();
+    agentAppServer = null;
+    agentServer = null;
+  }
+
+  public StringValue getPatternLiteral(ScriptNode scriptNode, int argumentIndex){
+    MethodReferenceNode methodNode = (MethodReferenceNode)((ReturnStatementNode)scriptNode.blockNode.statementSequence.get(0)).returnExpr;
+    return (StringValue)methodNode.arguments.get(argumentIndex);
+  }
+
+  @Test
+  public void testHitsAndEviction() throws Exception {
+    PatternCache patternCache = new PatternCache(3);
+
+    // First compile is a miss, the rest reuse the same pattern
+    Pattern pattern = patternCache.getPattern("a+b");
+    for (int i = 0; i < 5; i++)
+      assertSame("Pattern not reused", pattern, patternCache.getPattern("a+b"));
+    assertEquals("Hits", 5, patternCache.getNumHits());
+    assertEquals("Misses", 1, patternCache.getNumMisses());
+
+    // Flags are part of the key
+    Pattern caseInsensitivePattern = patternCache.getPattern("a+b", Pattern.CASE_INSENSITIVE);
+    assertNotSame("Pattern shared across flags", pattern, caseInsensitivePattern);
+    assertTrue("Flags not applied", caseInsensitivePattern.matcher("AAB").matches());
+    assertEquals("Size", 2, patternCache.size());
+
+    // Least recently used pattern is evicted first
+    patternCache.getPattern("c");
+    patternCache.getPattern("a+b");
+    patternCache.getPattern("d");
+    assertEquals("Size", 3, patternCache.size());
+    assertEquals("Evictions", 1, patternCache.getNumEvictions());
+    assertSame("Recently used pattern evicted", pattern, patternCache.getPattern("a+b"));
+    long numMisses = patternCache.getNumMisses();
+    patternCache.getPattern("a+b", Pattern.CASE_INSENSITIVE);
+    assertEquals("Least recently used pattern not evicted", numMisses + 1, patternCache.getNumMisses());
+
+    // Bad patterns are reported each time and not cached
+    for (int i = 0; i < 2; i++)
+      try {
+        patternCache.getPattern("(");
+        fail("Pattern error not reported");
+      } catch (PatternSyntaxException e){
+        // Expected
+      }
+    assertEquals("Size", 3, patternCache.size());
+
+    // Zero capacity disables caching
+    patternCache.setCapacity(0);
+    assertEquals("Size", 0, patternCache.size());
+    patternCache.getPattern("e");
+    assertEquals("Size", 0, patternCache.size());
+  }
+
+  @Test
+  public void testLiteralPatterns() throws Exception {
+    // Literal patterns are compiled when the script is parsed
+    ScriptNode scriptNode = parser.parseScriptString("return 'x-aaa-y'.betweenRegex('-a+', '-');");
+    assertTrue("First pattern not compiled", getPatternLiteral(scriptNode, 0).pattern != null);
+    assertTrue("Second pattern not compiled", getPatternLiteral(scriptNode, 1).pattern != null);
+    long numLookups = PatternCache.shared.getNumHits() + PatternCache.shared.getNumMisses();
+    for (int i = 0; i < 3; i++)
+      assertEquals("betweenRegex", "", scriptRuntime.runScript("test", scriptNode).getStringValue());
+    assertEquals("Lookups for literal patterns", numLookups, PatternCache.shared.getNumHits() + PatternCache.shared.getNumMisses());
+
+    scriptNode = parser.parseScriptString("return 'x-aaa-y'.afterRegex('a+');");
+    assertEquals("afterRegex", "-y", scriptRuntime.runScript("test", scriptNode).getStringValue());
+    scriptNode = parser.parseScriptString("return 'x-aaa-y'.matches('x-a*-y');");
+    assertTrue("matches", scriptRuntime.runScript("test", scriptNode).getBooleanValue());
+    scriptNode = parser.parseScriptString("return 'x-aaa-y'.indexOfRegex('a' + 'a');");
+    assertTrue("Folded pattern not compiled", getPatternLiteral(scriptNode, 0).pattern != null);
+    assertEquals("indexOfRegex", 2, scriptRuntime.runScript("test", scriptNode).getLongValue());
+
+    // Computed patterns come from the shared cache
+    scriptNode = parser.parseScriptString("string p = 'a+'; return 'x-aaa-y'.endIndexOfRegex(p);");
+    long numHits = PatternCache.shared.getNumHits();
+    for (int i = 0; i < 3; i++)
+      assertEquals("endIndexOfRegex", 5, scriptRuntime.runScript("test", scriptNode).getLongValue());
+    assertTrue("No cache hits for computed pattern", PatternCache.shared.getNumHits() >= numHits + 2);
+
+    // Bad literal patterns are still reported when the script runs
+    scriptNode = parser.parseScriptString("return 'abc'.matches('(');");
+    assertNull("Bad pattern compiled", getPatternLiteral(scriptNode, 0).pattern);
+    int numExceptions = dummyAgentInstance.exceptionHistory.size();
+    scriptRuntime.runScript("test", scriptNode);
+    assertEquals("Pattern error not reported", numExceptions + 1, dummyAgentInstance.exceptionHistory.size());
+    assertTrue("Pattern error", dummyAgentInstance.exceptionHistory.get(numExceptions).exception instanceof PatternSyntaxException);
+  }
+}
@@ -47,18 +47,28 @@ import com.basetechnology.s0.agentserver.AgentServerException;
 import com.basetechnology.s0.agentserver.AgentServerTestBase;
 import com.basetechnology.s0.agentserver.appserver.AgentAppServer;
 import com.basetechnology.s0.agentserver.config.AgentServerProperties;
+import com.basetechnology.s0.agentserver.script.intermediate.AddNode;
+import com.basetechnology.s0.agentserver.script.intermediate.BinaryExpressionNode;
 import com.basetechnology.s0.agentserver.script.intermediate.ExpressionNode;
 import com.basetechnology.s0.agentserver.script.intermediate.IntegerTypeNode;
+import com.basetechnology.s0.agentserver.script.intermediate.LessNode;
+import com.basetechnology.s0.agentserver.script.intermediate.MultiplyNode;
+import com.basetechnology.s0.agentserver.script.intermediate.ObjectTypeNode;
+import com.basetechnology.s0.agentserver.script.intermediate.ReturnStatementNode;
 import com.basetechnology.s0.agentserver.script.intermediate.ScriptNode;
 import com.basetechnology.s0.agentserver.script.intermediate.StringTypeNode;
 import com.basetechnology.s0.agentserver.script.intermediate.Symbol;
 import com.basetechnology.s0.agentserver.script.intermediate.SymbolManager;
+import com.basetechnology.s0.agentserver.script.intermediate.SymbolTable;
 import com.basetechnology.s0.agentserver.script.intermediate.SymbolValues;
 import com.basetechnology.s0.agentserver.script.parser.ParserException;
 import com.basetechnology.s0.agentserver.script.parser.ScriptParser;
 import com.basetechnology.s0.agentserver.script.parser.tokenizer.TokenizerException;
+import com.basetechnology.s0.agentserver.script.runtime.BuiltinFunction;
+import com.basetechnology.s0.agentserver.script.runtime.BuiltinFunctions;
 import com.basetechnology.s0.agentserver.script.runtime.ExceptionInfo;
 import com.basetechnology.s0.agentserver.script.runtime.ScriptRuntime;
+import com.basetechnology.s0.agentserver.script.runtime.ScriptState;
 import com.basetechnology.s0.agentserver.script.runtime.value.BooleanValue;
 import com.basetechnology.s0.agentserver.script.runtime.value.FalseValue;
 import com.basetechnology.s0.agentserver.script.runtime.value.FloatValue;
@@ -4149,6 +4159,310 @@ public class ScriptRuntimeTest extends AgentServerTestBase {
 
   }
 
+  @Test
+  public void testVariableSlots() throws Exception {
+    // Local variables get fixed slots within their block's category
+    ScriptNode scriptNode = parser.parseScriptString("int total = 0; for (int i = 0; i < 4; i++){int sq = i * i; total += sq;} return total;");
+    assertTrue("Null was returned from script parser", scriptNode != null);
+    assertEquals("Number of local categories", 3, scriptNode.numLocalCategories);
+    Symbol totalSymbol = scriptNode.blockNode.localVariables.get(0);
+    assertEquals("Slot of total", 0, totalSymbol.slot);
+    assertEquals("Category slot of total", SymbolManager.NUM_AGENT_CATEGORIES, totalSymbol.symbolTable.categorySlot);
+
+    // Reads and writes go through the slots
+    Value valueNode = scriptRuntime.runScript(parser.scriptString, scriptNode);
+    assertEquals("Return integer value", 14, valueNode.getLongValue());
+    valueNode = scriptRuntime.runScript(parser.scriptString, scriptNode);
+    assertEquals("Return integer value", 14, valueNode.getLongValue());
+
+    // Agent categories have fixed slots too
+    Symbol memorySymbol = symbols.put("memory", "m", new IntegerTypeNode());
+    Symbol outputSymbol = symbols.put("outputs", "o", new IntegerTypeNode());
+    assertEquals("Category slot of memory", SymbolManager.AGENT_CATEGORIES.indexOf("memory"), memorySymbol.symbolTable.categorySlot);
+    values.get("memory").put(memorySymbol, new IntegerValue(5));
+    scriptNode = parser.parseScriptString("o = m * 3; m = o + 1; return m;");
+    valueNode = scriptRuntime.runScript(parser.scriptString, scriptNode);
+    assertEquals("Return integer value", 16, valueNode.getLongValue());
+    assertEquals("Final value of m", 16, values.get("memory").get(memorySymbol).getLongValue());
+    assertEquals("Final value of o", 15, values.get("outputs").get(outputSymbol).getLongValue());
+
+    // Symbols of another table that share a slot keep their own values, in the order added
+    SymbolValues symbolValues = new SymbolValues("memory");
+    Symbol otherSymbol = new SymbolTable("memory").put("n", new IntegerTypeNode());
+    assertEquals("Slot of other symbol", memorySymbol.slot, otherSymbol.slot);
+    Symbol unslottedSymbol = new Symbol(memorySymbol.symbolTable, "u", new IntegerTypeNode());
+    symbolValues.put(otherSymbol, new IntegerValue(1));
+    symbolValues.put(memorySymbol, new IntegerValue(2));
+    symbolValues.put(unslottedSymbol, new IntegerValue(3));
+    symbolValues.put(otherSymbol, new IntegerValue(4));
+    assertEquals("Value of other symbol", 4, symbolValues.get(otherSymbol).getLongValue());
+    assertEquals("Value of memory symbol", 2, symbolValues.get(memorySymbol).getLongValue());
+    assertEquals("Value of unslotted symbol", 3, symbolValues.get(unslottedSymbol).getLongValue());
+    assertEquals("Number of values", 3, symbolValues.size());
+    assertEquals("JSON", "{\"n\":4,\"m\":2,\"u\":3}", symbolValues.toJson().toString());
+    assertEquals("Copy of values", "{\"n\":4,\"m\":2,\"u\":3}", symbolValues.clone().toJson().toString());
+  }
+
+  @Test
+  public void testBuiltinFunctions() throws Exception {
+    // Built-ins are bound by name and argument count when the call is parsed
+    ScriptNode scriptNode = parser.parseScriptString("return sqrt(16) + years(1) / days(1);");
+    assertTrue("Null was returned from script parser", scriptNode != null);
+    Value valueNode = scriptRuntime.runScript(parser.scriptString, scriptNode);
+    assertEquals("Return float value", 369.0, valueNode.getDoubleValue(), 0.0001);
+    assertTrue("No built-in for sqrt with two arguments", BuiltinFunctions.get("sqrt", 2) == null);
+    assertTrue("Built-in max takes any number of arguments", BuiltinFunctions.get("max", 5) != null);
+
+    // Durations too long for an int are still exact
+    assertEquals("Years", 31536000000L, eval("years(1)", "IntegerValue").getLongValue());
+    assertEquals("Decades", 315360000000L, eval("decades(1)", "IntegerValue").getLongValue());
+    assertEquals("Centuries", 3153600000000L, eval("centuries(1)", "IntegerValue").getLongValue());
+    assertEquals("Half a century", 1576800000000L, eval("centuries(0.5)", "IntegerValue").getLongValue());
+
+    // Native functions can be added to the registry
+    BuiltinFunction twice = new BuiltinFunction("twice", 1){
+      public Value call(ScriptState scriptState, Value[] arguments) throws AgentServerException {
+        return arguments[0].add(arguments[0]);
+      }
+    };
+    BuiltinFunctions.register(twice);
+    try {
+      int numFunctions = BuiltinFunctions.size();
+      BuiltinFunctions.register(twice);
+      assertEquals("Number of built-ins after registering again", numFunctions, BuiltinFunctions.size());
+      evalInt("twice(21)", 42);
+    } finally {
+      BuiltinFunctions.unregister(twice);
+    }
+    assertTrue("Built-in twice was not removed", BuiltinFunctions.get("twice", 1) == null);
+
+    // User-defined functions are cached at the call site by argument types
+    ScriptNode functionNode = parser.parseScriptString("int f(int x){return x * 2;}");
+    dummyAgentInstance.parsedScripts.add(functionNode);
+    ScriptNode functionNode2 = parser.parseScriptString("string f(string x){return x + '!';}");
+    dummyAgentInstance.parsedScripts.add(functionNode2);
+    Symbol aSymbol = symbols.put("memory", "a", ObjectTypeNode.one);
+    scriptNode = parser.parseScriptString("return f(a);");
+    values.get("memory").put(aSymbol, new IntegerValue(3));
+    valueNode = scriptRuntime.runScript(parser.scriptString, scriptNode);
+    assertEquals("Return integer value", 6, valueNode.getLongValue());
+    valueNode = scriptRuntime.runScript(parser.scriptString, scriptNode);
+    assertEquals("Return integer value", 6, valueNode.getLongValue());
+    values.get("memory").put(aSymbol, new StringValue("abc"));
+    valueNode = scriptRuntime.runScript(parser.scriptString, scriptNode);
+    assertEquals("Return string value", "abc!", valueNode.getStringValue());
+
+    // Redefining the functions makes the call site look them up again
+    dummyAgentInstance.parsedScripts.clear();
+    dummyAgentInstance.parsedScripts.add(parser.parseScriptString("string f(string x){return x + '?';}"));
+    valueNode = scriptRuntime.runScript(parser.scriptString, scriptNode);
+    assertEquals("Return string value", "abc?", valueNode.getStringValue());
+  }
+
+  @Test
+  public void testMethodTables() throws Exception {
+    // Methods are looked up by name and argument count, falling back to inherited methods
+    assertTrue("No substring method for string", StringValue.methodTable.get("substring", 2) != null);
+    assertTrue("Inherited type method for string", StringValue.methodTable.get("type", 0) != null);
+    assertTrue("No after method with three arguments", StringValue.methodTable.get("after", 3) == null);
+    assertTrue("Integer and float share sqrt", new IntegerValue(4).getMethodTable() == new FloatValue(4.0).getMethodTable());
+
+    // A method reference resolves again when the type of its value changes
+    Symbol aSymbol = symbols.put("memory", "a", ObjectTypeNode.one);
+    ScriptNode scriptNode = parser.parseScriptString("return a.size();");
+    values.get("memory").put(aSymbol, new StringValue("abc"));
+    Value valueNode = scriptRuntime.runScript(parser.scriptString, scriptNode);
+    assertEquals("Size of string", 3, valueNode.getLongValue());
+    values.get("memory").put(aSymbol, new ListValue(IntegerTypeNode.one, Arrays.asList((Value)(new IntegerValue(1)), new IntegerValue(2))));
+    valueNode = scriptRuntime.runScript(parser.scriptString, scriptNode);
+    assertEquals("Size of list", 2, valueNode.getLongValue());
+    values.get("memory").put(aSymbol, new StringValue("abcde"));
+    valueNode = scriptRuntime.runScript(parser.scriptString, scriptNode);
+    assertEquals("Size of string", 5, valueNode.getLongValue());
+
+    // Unknown methods are reported with the type of the value
+    dummyAgentInstance.exceptionHistory.clear();
+    scriptNode = parser.parseScriptString("return a.nosuch(1);");
+    scriptRuntime.runScript(parser.scriptString, scriptNode);
+    assertEquals("Number of exceptions", 1, dummyAgentInstance.exceptionHistory.size());
+    assertEquals("Exception message", "No method named 'nosuch' with 1 arguments for value of type string",
+        dummyAgentInstance.exceptionHistory.get(0).message);
+  }
+
+  @Test
+  public void testOperatorSpecialization() throws Exception {
+    Symbol aSymbol = symbols.put("memory", "a", ObjectTypeNode.one);
+    Symbol bSymbol = symbols.put("memory", "b", ObjectTypeNode.one);
+    ScriptNode scriptNode = parser.parseScriptString("return a + b;");
+    AddNode addNode = (AddNode)((ReturnStatementNode)scriptNode.blockNode.statementSequence.get(0)).returnExpr;
+    assertEquals("Initial specialization", BinaryExpressionNode.UNSPECIALIZED, addNode.specialization);
+
+    // Integer operands specialize the node for integers
+    values.get("memory").put(aSymbol, new IntegerValue(2));
+    values.get("memory").put(bSymbol, new IntegerValue(3));
+    Value valueNode = scriptRuntime.runScript(parser.scriptString, scriptNode);
+    assertEquals("Return integer value", 5, valueNode.getLongValue());
+    assertTrue("Integer result", valueNode instanceof IntegerValue);
+    assertEquals("Specialization", BinaryExpressionNode.INTEGER, addNode.specialization);
+    valueNode = scriptRuntime.runScript(parser.scriptString, scriptNode);
+    assertEquals("Return integer value", 5, valueNode.getLongValue());
+    assertEquals("Specialization", BinaryExpressionNode.INTEGER, addNode.specialization);
+
+    // Other operand types send the node back to the generic path for good
+    values.get("memory").put(bSymbol, new FloatValue(0.5));
+    valueNode = scriptRuntime.runScript(parser.scriptString, scriptNode);
+    assertEquals("Return float value", 2.5, valueNode.getDoubleValue(), 0.0001);
+    assertEquals("Specialization", BinaryExpressionNode.GENERIC, addNode.specialization);
+    values.get("memory").put(bSymbol, new StringValue("x"));
+    valueNode = scriptRuntime.runScript(parser.scriptString, scriptNode);
+    assertEquals("Return string value", "2x", valueNode.getStringValue());
+    values.get("memory").put(bSymbol, new IntegerValue(3));
+    valueNode = scriptRuntime.runScript(parser.scriptString, scriptNode);
+    assertEquals("Return integer value", 5, valueNode.getLongValue());
+    assertEquals("Specialization", BinaryExpressionNode.GENERIC, addNode.specialization);
+
+    // Float specialization covers mixed integer and float operands
+    scriptNode = parser.parseScriptString("return a * b < 10;");
+    LessNode lessNode = (LessNode)((ReturnStatementNode)scriptNode.blockNode.statementSequence.get(0)).returnExpr;
+    MultiplyNode multiplyNode = (MultiplyNode)lessNode.leftNode;
+    values.get("memory").put(bSymbol, new FloatValue(4.5));
+    valueNode = scriptRuntime.runScript(parser.scriptString, scriptNode);
+    assertTrue("Return true", valueNode.getBooleanValue());
+    assertEquals("Specialization of multiply", BinaryExpressionNode.FLOAT, multiplyNode.specialization);
+    assertEquals("Specialization of less", BinaryExpressionNode.FLOAT, lessNode.specialization);
+    values.get("memory").put(aSymbol, new FloatValue(2.5));
+    valueNode = scriptRuntime.runScript(parser.scriptString, scriptNode);
+    assertFalse("Return false", valueNode.getBooleanValue());
+    assertEquals("Specialization of multiply", BinaryExpressionNode.FLOAT, multiplyNode.specialization);
+
+    // But <=, > and >= still compare an integer with a float truncated, as the generic path does
+    scriptNode = parser.parseScriptString("return [a >= b, a > b, a <= b, b <= a, a < b, b > a];");
+    values.get("memory").put(aSymbol, new IntegerValue(1));
+    values.get("memory").put(bSymbol, new FloatValue(1.5));
+    for (int i = 0; i < 3; i++){
+      valueNode = scriptRuntime.runScript(parser.scriptString, scriptNode);
+      assertEquals("Mixed comparisons", "[true, false, true, false, true, true]", valueNode.toString());
+    }
+
+    // Small integers are shared, larger ones are not
+    assertTrue("Shared small integer", IntegerValue.valueOf(17) == IntegerValue.valueOf(17));
+    assertTrue("Shared negative integer", IntegerValue.valueOf(-5) == IntegerValue.valueOf(-5));
+    assertFalse("Unshared large integer", IntegerValue.valueOf(100000) == IntegerValue.valueOf(100000));
+    assertEquals("Large integer value", 100000, IntegerValue.valueOf(100000).value);
+  }
+
+  @Test
+  public void testStringAppend() throws Exception {
+    // Long strings are appended to in a shared buffer, but each value keeps its own text
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < StringValue.MIN_BUFFER_LENGTH; i++)
+      sb.append('a');
+    String a = sb.toString();
+    StringValue aValue = new StringValue(a);
+    StringValue bValue = aValue.concat("b");
+    StringValue cValue = bValue.concat("c");
+    StringValue dValue = bValue.concat("d");
+    assertEquals("Original", a, aValue.getStringValue());
+    assertEquals("First append", a + "b", bValue.getStringValue());
+    assertEquals("Second append", a + "bc", cValue.getStringValue());
+    assertEquals("Branched append", a + "bd", dValue.toString());
+    assertEquals("Append after branch", a + "bce", cValue.concat("e").getStringValue());
+    assertEquals("Append after read", a + "bde", dValue.concat("e").getStringValue());
+
+    // Copies share the buffer until one of them is appended to
+    StringValue eValue = cValue.concat("e").concat("f");
+    StringValue copyValue = (StringValue)eValue.copyOnAssignment();
+    assertEquals("Appended copy", a + "bcefg", copyValue.concat("g").getStringValue());
+    assertEquals("Appended original", a + "bcefh", eValue.concat("h").getStringValue());
+
+    // Changing a string in place detaches it from its buffer
+    StringValue fValue = aValue.concat("x");
+    fValue.getNamedValue(null, "upper");
+    assertEquals("Changed in place", a.toUpperCase() + "Xy", fValue.concat("y").getStringValue());
+    assertEquals("Length method", StringValue.MIN_BUFFER_LENGTH + 2, aValue.concat("x").concat("y").getMethodValue(null, "length", new ArrayList<Value>()).getLongValue());
+
+    // Scripts that build a string in a loop get the same text as before
+    agentServer.config.putDefaultExecutionLevel(4);
+    ScriptNode scriptNode = parser.parseScriptString(
+        "string s = ''; string t = ''; for (int i = 0; i < 500; i++){s += i + ','; if (i == 300) t = s; s = s + '|';} return s + t.length;");
+    Value valueNode = scriptRuntime.runScript(parser.scriptString, scriptNode);
+    sb = new StringBuilder();
+    String t = null;
+    for (int i = 0; i < 500; i++){
+      sb.append(i + ",");
+      if (i == 300)
+        t = sb.toString();
+      sb.append('|');
+    }
+    assertEquals("Built string", sb.toString() + t.length(), valueNode.getStringValue());
+  }
+
+  @Test
+  public void testListMapClone() throws Exception {
+    // A cloned list is a deep copy, so changing either side leaves the other alone
+    List<Value> elements = new ArrayList<Value>();
+    elements.add(new StringValue("abc"));
+    elements.add(new ListValue(ObjectTypeNode.one, new ArrayList<Value>(Arrays.asList((Value)new IntegerValue(1)))));
+    ListValue listValue = new ListValue(ObjectTypeNode.one, elements);
+    ListValue listCopy = (ListValue)listValue.clone();
+    assertFalse("Copied list elements", listCopy.value == listValue.value);
+    assertTrue("Cloned list equals", listCopy.equals(listValue));
+    listValue.appendValue(new IntegerValue(2));
+    assertEquals("Modified list", "[abc, [1], 2]", listValue.toString());
+    assertEquals("Cloned list", "[abc, [1]]", listCopy.toString());
+
+    // Elements handed out of a clone can be modified in place without affecting the original
+    ListValue listCopy2 = (ListValue)listValue.clone();
+    Value element = listCopy2.getSubscriptedValue(null, Arrays.asList((Value)new IntegerValue(0)));
+    element.getMethodValue(null, "upper", new ArrayList<Value>());
+    Value nestedElement = listCopy2.getMethodValue(null, "get", Arrays.asList((Value)new IntegerValue(1)));
+    nestedElement.getMethodValue(null, "add", Arrays.asList((Value)new IntegerValue(3)));
+    assertEquals("Modified clone", "[ABC, [1, 3], 2]", listCopy2.toString());
+    assertEquals("Original list", "[abc, [1], 2]", listValue.toString());
+    assertEquals("First clone", "[abc, [1]]", listCopy.toString());
+    listCopy2.getMethodValue(null, "clear", new ArrayList<Value>());
+    assertEquals("Cleared clone", "[]", listCopy2.toString());
+    assertEquals("Original after clear", "[abc, [1], 2]", listValue.toString());
+
+    // A cloned map is a deep copy as well
+    MapValue mapValue = new MapValue(ObjectTypeNode.one);
+    mapValue.put("a", new IntegerValue(1));
+    mapValue.put("b", listValue);
+    MapValue mapCopy = mapValue.clone();
+    assertFalse("Copied map values", mapCopy.value == mapValue.value);
+    assertTrue("Cloned map equals", mapCopy.equals(mapValue));
+    mapCopy.put("c", new IntegerValue(3));
+    mapCopy.getMethodValue(null, "remove", Arrays.asList((Value)new StringValue("a")));
+    ((ListValue)mapCopy.get("b")).appendValue(new IntegerValue(4));
+    assertEquals("Modified map", "{b: [abc, [1], 2, 4], c: 3}", mapCopy.toString());
+    assertEquals("Original map", "{a: 1, b: [abc, [1], 2]}", mapValue.toString());
+    assertEquals("Original list in map", "[abc, [1], 2]", listValue.toString());
+    assertFalse("Unequal map", mapCopy.equals(mapValue));
+
+    // Snapshots as taken by captureState don't see later changes to an aliased element, and
+    // taking them doesn't break the alias
+    ListValue x = new ListValue(ObjectTypeNode.one, new ArrayList<Value>(Arrays.asList((Value)new IntegerValue(1))));
+    MapValue m = new MapValue(ObjectTypeNode.one);
+    m.put("b", x);
+    MapValue mSnapshot = m.clone();
+    ListValue xSnapshot = (ListValue)x.clone();
+    x.appendValue(new IntegerValue(2));
+    assertEquals("Map snapshot after alias change", "{b: [1]}", mSnapshot.toString());
+    assertEquals("List snapshot after alias change", "[1]", xSnapshot.toString());
+    assertEquals("Map after alias change", "{b: [1, 2]}", m.toString());
+    assertTrue("Alias kept", m.get("b") == x);
+    ((ListValue)m.get("b")).appendValue(new IntegerValue(3));
+    assertEquals("List changed through map", "[1, 2, 3]", x.toString());
+    assertEquals("Map snapshot after change through map", "{b: [1]}", mSnapshot.toString());
+
+    // Scripts see the same list and map semantics as before
+    agentServer.config.putDefaultExecutionLevel(4);
+    ScriptNode scriptNode = parser.parseScriptString(
+        "list l = [1, 2, 3]; map m = {a: l}; l.add(4); l[0] = 5; m['b'] = 6; m.remove('a'); l.remove(1); return l.concat(',') + ' ' + m.size + ' ' + m.b;");
+    Value valueNode = scriptRuntime.runScript(parser.scriptString, scriptNode);
+    assertEquals("Script list and map", "5,3,4 1 6", valueNode.getStringValue());
+  }
+
   @Test
   public void testExit() throws Exception {
     assertTrue("Should not be deleted", ! dummyAgentInstance.deleted);
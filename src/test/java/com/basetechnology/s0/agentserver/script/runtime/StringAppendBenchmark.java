@@ -0,0 +1,79 @@
+/**
+ * Copyright 2012 John W. Krupansky d/b/a Base Technology
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.basetechnology.s0.agentserver.script.runtime;
+
+import java.io.File;
+
+import com.basetechnology.s0.agentserver.AgentDefinition;
+import com.basetechnology.s0.agentserver.AgentInstance;
+import com.basetechnology.s0.agentserver.AgentServer;
+import com.basetechnology.s0.agentserver.appserver.AgentAppServer;
+import com.basetechnology.s0.agentserver.config.AgentServerProperties;
+import com.basetechnology.s0.agentserver.script.intermediate.ScriptNode;
+import com.basetechnology.s0.agentserver.script.parser.ScriptParser;
+import com.basetechnology.s0.agentserver.script.runtime.value.Value;
+
+/**
+ * Times scripts that build up a long string by appending to it in a loop, as report and CSV
+ * building scripts do, both interpreted and compiled. The last script reads the string on
+ * each iteration, which copies it out of its append buffer every time, for comparison.
+ *
+ * Usage: StringAppendBenchmark [numIterations [numRuns]]
+ */
+public class StringAppendBenchmark {
+  public static void main(String[] args) throws Exception {
+    int numIterations = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    int numRuns = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+    String[] scripts = {
+        "string s = ''; for (int i = 0; i < " + numIterations + "; i++) s += 'x'; return s.length;",
+        "string csv = ''; for (int i = 0; i < " + numIterations + "; i++) csv = csv + i + ',' + i * 2 + '|'; return csv.length;",
+        "string s = ''; int n = 0; for (int i = 0; i < " + numIterations + "; i++){s += 'x'; n = s.length;} return n;"
+    };
+
+    new File(AgentServerProperties.DEFAULT_PERSISTENT_STORE_PATH).delete();
+    AgentAppServer agentAppServer = new AgentAppServer();
+    try {
+      AgentServer agentServer = agentAppServer.agentServer;
+      for (int level = 1; level <= 4; level++)
+        agentServer.config.put("execution_limit_level_" + level, Integer.MAX_VALUE);
+      AgentInstance agentInstance = new AgentInstance(new AgentDefinition(agentServer));
+      ScriptParser parser = new ScriptParser(agentInstance);
+      ScriptRuntime scriptRuntime = new ScriptRuntime(agentInstance);
+
+      // Interpreted, then compiled from the first run on
+      for (int compileThreshold: new int[]{0, 1}){
+        agentServer.config.put("script_compile_threshold", compileThreshold);
+        for (String script: scripts){
+          ScriptNode scriptNode = parser.parseScriptString(script);
+          long bestTime = Long.MAX_VALUE;
+          Value valueNode = null;
+          for (int i = 0; i < numRuns; i++){
+            long startTime = System.nanoTime();
+            valueNode = scriptRuntime.runScript("benchmark", scriptNode);
+            bestTime = Math.min(bestTime, System.nanoTime() - startTime);
+          }
+          System.out.println(String.format("%-11s %8.2f ms (%6.0f ns/append) length %8s  %s",
+              compileThreshold == 0 ? "interpreted" : "compiled", bestTime / 1e6, (double)bestTime / numIterations,
+              valueNode, script.substring(0, script.indexOf(" for"))));
+        }
+      }
+    } finally {
+      agentAppServer.stop();
+      new File(AgentServerProperties.DEFAULT_PERSISTENT_STORE_PATH).delete();
+    }
+  }
+}